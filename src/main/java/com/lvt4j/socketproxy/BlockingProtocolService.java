@@ -0,0 +1,292 @@
+package com.lvt4j.socketproxy;
+
+import static java.lang.String.format;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import org.apache.commons.lang3.ArrayUtils;
+
+import com.google.common.net.HostAndPort;
+import com.lvt4j.socketproxy.ChannelReader.Decoder;
+import com.lvt4j.socketproxy.Config.SocketProfile;
+import com.lvt4j.socketproxy.ProxyApp.IOExceptionConsumer;
+import com.lvt4j.socketproxy.ProxyApp.IOExceptionRunnable;
+import com.lvt4j.socketproxy.ProxyApp.IoExceptionBiConsumer;
+
+/**
+ * 阻塞引擎（{@link Config.Engine#Blocking}）的握手：每个连接在{@link BlockingTransmitter}的一个线程（JDK21及以上为虚拟线程）上，
+ * 以阻塞读写顺序执行连接、握手，与{@link ProtocolService}的回调链一一对应，协议的解码、校验复用同样的Decoder
+ * <pre>
+ * 握手中的channel不注册在selector上，每一步没有注册/唤醒的开销；握手完成后交给transmitter在新的线程上转发
+ * 握手时多读的数据：服务端在回调onConnect前直接写往目标；
+ * 客户端放入reader的预读，由{@link #handover}阻塞写往对接的channel
+ * 回调都在该线程上执行
+ * </pre>
+ * @author LV on 2026年10月18日
+ */
+class BlockingProtocolService extends ProtocolService {
+    
+    /** 握手时每次读取的缓冲大小，Decoder是增量的，不需要容纳整个握手消息 */
+    private static final int HandshakeBufSize = 1024;
+    
+    private final ChannelConnector connector;
+    private final BlockingTransmitter engine;
+    
+    /**
+     * @param engine 提供执行握手的线程
+     */
+    BlockingProtocolService(ChannelReader reader, ChannelWriter writer, ChannelConnector connector, BlockingTransmitter engine) {
+        super(reader, writer, connector);
+        this.connector = connector;
+        this.engine = engine;
+    }
+    
+    @Override
+    public void connect(HostAndPort targetConfig, SocketProfile profile, long connectTimeout,
+            IOExceptionConsumer<SocketChannel> onConnect, Consumer<Exception> exHandler) {
+        engine.execute(()->{
+            SocketChannel target = null;
+            try{
+                target = connector.connectBlocking(targetConfig, profile, connectTimeout);
+                onConnect.accept(target);
+            }catch(Exception e){
+                ProxyApp.close(target);
+                exHandler.accept(e);
+            }
+        });
+    }
+    
+    @Override
+    public void socks5_client_connect(HostAndPort serverConfig, HostAndPort targetConfig,
+            SocketProfile profile, long connectTimeout,
+            IOExceptionConsumer<SocketChannel> onConnect, Consumer<Exception> exHandler) {
+        engine.execute(()->{
+            SocketChannel server = null;
+            ByteBuffer buf = BufferPool.acquire(HandshakeBufSize);
+            try{
+                server = connector.connectBlocking(serverConfig, profile, connectTimeout);
+                buf.flip();
+                write(server, ByteBuffer.wrap(Socks5.ClientHandshake));
+                socks5_client_check_method(read(server, buf, new LengthDecoder(2)));
+                write(server, socks5_client_target_packet(targetConfig));
+                read(server, buf, new Socks5.ReplyDecoder());
+                readAhead(server, buf);
+                onConnect.accept(server);
+            }catch(Exception e){
+                ProxyApp.close(server);
+                exHandler.accept(e);
+            }finally{
+                BufferPool.release(buf);
+            }
+        });
+    }
+    
+    @Override
+    public void http_client_connect(HostAndPort serverConfig, HostAndPort targetConfig,
+            SocketProfile profile, long connectTimeout,
+            IOExceptionConsumer<SocketChannel> onConnect, Consumer<Exception> exHandler) {
+        engine.execute(()->{
+            SocketChannel server = null;
+            ByteBuffer buf = BufferPool.acquire(HandshakeBufSize);
+            try{
+                server = connector.connectBlocking(serverConfig, profile, connectTimeout);
+                buf.flip();
+                write(server, ByteBuffer.wrap(http_client_handshake_packet(serverConfig, targetConfig)));
+                http_client_check_status(read(server, buf, new Http.HeadDecoder()));
+                readAhead(server, buf);
+                onConnect.accept(server);
+            }catch(Exception e){
+                ProxyApp.close(server);
+                exHandler.accept(e);
+            }finally{
+                BufferPool.release(buf);
+            }
+        });
+    }
+    
+    /**
+     * 握手阶段、请求阶段见{@link ProtocolService}中的说明
+     */
+    @Override
+    public void socks5_server_connect(SocketChannel client, SocketProfile profile, long connectTimeout,
+            IOExceptionConsumer<SocketChannel> onConnect, Consumer<Exception> exHandler) {
+        engine.execute(()->{
+            ByteBuffer buf = BufferPool.acquire(HandshakeBufSize);
+            try{
+                client.configureBlocking(true);
+                buf.flip();
+                byte[] methods = read(client, buf, new Socks5.MethodsDecoder());
+                if(!ArrayUtils.contains(methods, Socks5.NoAuth)){ //目前仅支持无身份验证，但客户端不支持无身份验证
+                    write(client, ByteBuffer.wrap(Socks5.NoAcc));
+                    throw new IOException(format("only accept no auth but : %s", Arrays.toString(methods)));
+                }
+                write(client, ByteBuffer.wrap(Socks5.Acc));
+                HostAndPort targetConfig = read(client, buf, new Socks5.RequestDecoder()).target();
+                SocketChannel target;
+                try{
+                    target = connector.connectBlocking(targetConfig, profile, connectTimeout);
+                }catch(IOException e){
+                    throw new ReplyException(Socks5.Fail, format("连接目标失败 : %s", targetConfig), e);
+                }
+                try{
+                    write(client, ByteBuffer.wrap(Socks5.Suc));
+                    write(target, buf);
+                    onConnect.accept(target);
+                }catch(Exception e){
+                    ProxyApp.close(target);
+                    throw e;
+                }
+            }catch(Exception e){
+                reply(client, e);
+                exHandler.accept(e);
+            }finally{
+                BufferPool.release(buf);
+            }
+        });
+    }
+    
+    @Override
+    public void http_server_connect(SocketChannel client, SocketProfile profile, long connectTimeout,
+            IoExceptionBiConsumer<String, SocketChannel> onConnect, Consumer<Exception> exHandler) {
+        engine.execute(()->{
+            ByteBuffer buf = BufferPool.acquire(HandshakeBufSize);
+            try{
+                client.configureBlocking(true);
+                buf.flip();
+                byte[] statusLineRaw = read(client, buf, new LineDecoder());
+                String statusLine = new String(statusLineRaw, 0, statusLineRaw.length-1);
+                String[] split = statusLine.split(" ", 3);
+                if(split.length!=3) throw new IOException(format("非法的http请求状态行：%s", statusLine));
+                boolean jump = "CONNECT".equals(split[0]);
+                String targetStr = jump ? split[1] : http_server_direct_target(split[1]);
+                HostAndPort targetConfig = ProxyApp.validHostPort(targetStr);
+                if(targetConfig==null) throw new IOException(format("请求头中的目标地址非法 : %s", targetStr));
+                SocketChannel target;
+                try{
+                    target = connector.connectBlocking(targetConfig, profile, connectTimeout);
+                }catch(IOException e){
+                    throw new IOException(format("连接目标失败 : %s", targetConfig), e);
+                }
+                try{
+                    if(jump){
+                        read(client, buf, new Http.HeadDecoder(true)); //请求头结束，返回连接建立成功消息
+                        write(client, ByteBuffer.wrap(Http.EstablishedHeaders));
+                    }else{
+                        write(target, ByteBuffer.wrap(statusLineRaw));
+                    }
+                    write(target, buf);
+                    onConnect.accept(targetStr, target);
+                }catch(Exception e){
+                    ProxyApp.close(target);
+                    throw e;
+                }
+            }catch(Exception e){
+                exHandler.accept(e);
+            }finally{
+                BufferPool.release(buf);
+            }
+        });
+    }
+    
+    /**
+     * 握手时从from多读的数据阻塞写往to，在调用者线程上完成后回调onHandover
+     */
+    @Override
+    public void handover(SocketChannel from, SocketChannel to,
+            IOExceptionRunnable onHandover, Consumer<Exception> exHandler) throws IOException {
+        ByteBuffer readAhead = reader().takeReadAhead(from);
+        if(readAhead!=null){
+            try{
+                to.configureBlocking(true);
+                write(to, readAhead);
+            }catch(Exception e){
+                exHandler.accept(e);
+                return;
+            }
+        }
+        onHandover.run();
+    }
+    
+    /**
+     * 从buf及channel中阻塞读取，直到decoder解出结果
+     * @param buf 读模式，其中是上次多读的数据，返回时仍为读模式，剩下多读的数据
+     */
+    private static <T> T read(SocketChannel channel, ByteBuffer buf, Decoder<T> decoder) throws IOException {
+        while(true){
+            if(buf.hasRemaining()){
+                T decoded = decoder.decode(buf);
+                if(decoded!=null) return decoded;
+            }
+            buf.compact();
+            int size = channel.read(buf);
+            buf.flip();
+            if(size<0) throw new EOFException();
+        }
+    }
+    private static void write(SocketChannel channel, ByteBuffer data) throws IOException {
+        while(data.hasRemaining()) channel.write(data);
+    }
+    /**
+     * 客户端握手时多读的数据放入reader的预读，由{@link #handover}写往对接的channel
+     */
+    private void readAhead(SocketChannel server, ByteBuffer buf) {
+        if(!buf.hasRemaining()) return;
+        ByteBuffer data = ByteBuffer.allocate(buf.remaining());
+        data.put(buf).flip();
+        reader().addReadAhead(server, data);
+    }
+    /**
+     * 异常为{@link ReplyException}时先将其reply写往channel
+     */
+    private static void reply(SocketChannel channel, Exception e) {
+        if(!(e instanceof ReplyException)) return;
+        try{
+            write(channel, ByteBuffer.wrap(((ReplyException) e).reply()));
+        }catch(Exception ig){}
+    }
+    
+    /**
+     * 解码定长的数据
+     */
+    private static class LengthDecoder implements Decoder<byte[]> {
+        private final byte[] data;
+        private int len;
+    
+        private LengthDecoder(int length) {
+            data = new byte[length];
+        }
+    
+        @Override
+        public byte[] decode(ByteBuffer buf) throws IOException {
+            int n = Math.min(buf.remaining(), data.length-len);
+            buf.get(data, len, n);
+            len += n;
+            return len<data.length ? null : data;
+        }
+    }
+    
+    /**
+     * 解码一行，结果含换行符，不超过{@link Http#MaxHeadSize}
+     */
+    private static class LineDecoder implements Decoder<byte[]> {
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    
+        @Override
+        public byte[] decode(ByteBuffer data) throws IOException {
+            while(data.hasRemaining()){
+                byte b = data.get();
+                line.write(b);
+                if(b==Http.LineFeed) return line.toByteArray();
+                if(line.size()>=Http.MaxHeadSize) throw new IOException(format("http头超长 : %s", line.size()));
+            }
+            return null;
+        }
+    }
+    
+}
\ No newline at end of file
@@ -0,0 +1,200 @@
+package com.lvt4j.socketproxy;
+
+import java.io.EOFException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.apache.commons.lang3.Validate;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 阻塞式转发：每个方向一个线程，以阻塞读写在两个channel间转发
+ * <pre>
+ * JDK21及以上使用虚拟线程，每个连接只占用两个虚拟线程的栈及两块缓冲，没有注册/唤醒的开销；
+ * 更低版本退化为平台线程，仅适合连接数不多的场景，{@link EventLoopGroup}在这种情况下不启用阻塞引擎
+ * 阻塞引擎下tcp、socks5、http的连接、握手也经{@link #execute}在本引擎的线程上以阻塞读写执行（见{@link BlockingProtocolService}），
+ * 这样的channel从未注册在selector上；预连接池等仍在selector上握手的channel，需等其注销（见{@link TaskQueue#deregister}）后才能切换为阻塞模式
+ * 转发异常时回调exHandler后关闭两个channel，以唤醒另一方向上阻塞的读
+ * intranet隧道不使用阻塞引擎：一条隧道上多路复用了许多连接，各连接的帧经差额轮询调度、控制帧优先插队后由非阻塞的writer写出，
+ * 而channel的阻塞模式对读写是同一个，隧道读改为阻塞就不能再经writer写；隧道及其上连接的读写仍在selector引擎上
+ * </pre>
+ * @author LV on 2026年10月18日
+ */
+@Slf4j
+public class BlockingTransmitter implements Transmitter {
+    
+    /** 等待channel从selector上注销的最长时间 */
+    private static final long DeregisterTimeout = 1000;
+    
+    private final ThreadFactory threadFactory;
+    
+    /** 转发中的连接 */
+    private final Set<Pipe> pipes = ConcurrentHashMap.newKeySet();
+    
+    public BlockingTransmitter(String name) {
+        threadFactory = threadFactory(name);
+    }
+    
+    @Override
+    public void transmit(SocketChannel a, SocketChannel b, int minBuffSize, int maxBuffSize,
+            Runnable onTrans, Consumer<Exception> exHandler) {
+        Validate.isTrue(0<minBuffSize && minBuffSize<=maxBuffSize, "非法的缓冲大小:%s~%s", minBuffSize, maxBuffSize);
+        Pipe pipe = new Pipe(a, b, minBuffSize, maxBuffSize, onTrans, exHandler);
+        pipes.add(pipe);
+        threadFactory.newThread(pipe::start).start();
+    }
+    
+    /**
+     * 在本引擎的一个新线程上执行task，供阻塞的连接、握手使用
+     */
+    public void execute(Runnable task) {
+        threadFactory.newThread(task).start();
+    }
+    
+    @Override
+    public void destory() {
+        pipes.forEach(Pipe::close);
+        pipes.clear();
+    }
+    
+    /**
+     * 当前JDK是否支持虚拟线程（JDK21及以上）
+     */
+    public static boolean virtualThreadSupported() {
+        try{
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        }catch(Throwable e){
+            return false;
+        }
+    }
+    
+    /**
+     * JDK21及以上返回虚拟线程工厂，否则返回平台daemon线程工厂
+     * 源码需兼容JDK8，通过反射调用Thread.ofVirtual()
+     */
+    static ThreadFactory threadFactory(String name) {
+        try{
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Method nameMethod = builderClass.getMethod("name", String.class, long.class);
+            builder = nameMethod.invoke(builder, name+"-", 0L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            factory.newThread(()->{});
+            log.info("{} 使用虚拟线程", name);
+            return factory;
+        }catch(Throwable e){
+            log.info("{} 不支持虚拟线程，使用平台线程", name);
+            AtomicInteger idx = new AtomicInteger();
+            return r->{
+                Thread t = new Thread(r, name+"-"+idx.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            };
+        }
+    }
+    
+    private class Pipe {
+        private final SocketChannel a;
+        private final SocketChannel b;
+        private final int minBuffSize;
+        private final int maxBuffSize;
+        private final Runnable onTrans;
+        private final Consumer<Exception> exHandler;
+        private final AtomicBoolean broken = new AtomicBoolean();
+        
+        private Pipe(SocketChannel a, SocketChannel b, int minBuffSize, int maxBuffSize,
+                Runnable onTrans, Consumer<Exception> exHandler) {
+            this.a = a;
+            this.b = b;
+            this.minBuffSize = minBuffSize;
+            this.maxBuffSize = maxBuffSize;
+            this.onTrans = onTrans;
+            this.exHandler = exHandler;
+        }
+        
+        /**
+         * 切换为阻塞模式后，本线程转发a->b，另起一个线程转发b->a
+         */
+        private void start() {
+            try{
+                CompletableFuture<Void> deregistered = CompletableFuture.allOf(
+                    TaskQueue.deregister(a), TaskQueue.deregister(b));
+                try{
+                    deregistered.get(DeregisterTimeout, TimeUnit.MILLISECONDS);
+                }catch(TimeoutException e){
+                    throw new IllegalBlockingModeException();
+                }
+                a.configureBlocking(true);
+                b.configureBlocking(true);
+            }catch(Exception e){
+                exception(e);
+                return;
+            }
+            threadFactory.newThread(()->pump(b, a)).start();
+            pump(a, b);
+        }
+        
+        private void pump(SocketChannel from, SocketChannel to) {
+            int buffSize = minBuffSize;
+            ByteBuffer buf = BufferPool.acquire(buffSize);
+            try{
+                while(!broken.get()){
+                    int size = from.read(buf);
+                    if(size<0) throw new EOFException();
+                    onTrans.run();
+                    boolean full = !buf.hasRemaining();
+                    buf.flip();
+                    while(buf.hasRemaining()) to.write(buf);
+                    onTrans.run();
+                    if(full && buffSize<maxBuffSize){
+                        BufferPool.release(buf);
+                        buffSize = Math.min(buffSize<<1, maxBuffSize);
+                        buf = BufferPool.acquire(buffSize);
+                    }else{
+                        buf.clear().limit(buffSize);
+                    }
+                }
+            }catch(Exception e){
+                exception(e);
+            }finally{
+                BufferPool.release(buf);
+            }
+        }
+        
+        private void exception(Exception e) {
+            if(!broken.compareAndSet(false, true)) return;
+            pipes.remove(this);
+            if(e instanceof ClosedChannelException){ //被外部直接关闭（如连接闲置被清理），与selector引擎一致不回调
+                close();
+                return;
+            }
+            try{
+                exHandler.accept(e);
+            }finally{
+                ProxyApp.close(a);
+                ProxyApp.close(b);
+            }
+        }
+        
+        private void close() {
+            broken.set(true);
+            ProxyApp.close(a);
+            ProxyApp.close(b);
+        }
+    }
+
+}
@@ -0,0 +1,172 @@
+package com.lvt4j.socketproxy;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 直接内存缓冲池
+ * <pre>
+ * 按2的幂分级缓存直接内存buffer，所有连接共享
+ * 避免连接频繁建立断开时反复分配buffer带来的GC压力
+ * 也避免堆内buffer在每次NIO读写时都要先拷贝到临时直接内存
+ *
+ * 借出的buffer用完后必须{@link #release(ByteBuffer)}归还，
+ * 借出后未归还就被GC回收的buffer会被当作泄漏记录日志
+ * </pre>
+ * @author LV on 2026年10月18日
+ */
+@Slf4j
+public class BufferPool {
+    
+    /** 最小分级 */
+    public static final int MinSize = 512;
+    /** 最大分级，超过的不池化 */
+    public static final int MaxSize = 64*1024;
+    
+    /** 每个分级最多缓存的总字节数 */
+    private static final int MaxPooledBytesPerClass = 4*1024*1024;
+    
+    private static final int ClassNum = Integer.numberOfTrailingZeros(MaxSize)-Integer.numberOfTrailingZeros(MinSize)+1;
+    
+    @SuppressWarnings({"unchecked","rawtypes"})
+    private static final ConcurrentLinkedQueue<ByteBuffer>[] pools = new ConcurrentLinkedQueue[ClassNum];
+    private static final AtomicInteger[] pooledNums = new AtomicInteger[ClassNum];
+    static {
+        for(int i=0; i<ClassNum; i++){
+            pools[i] = new ConcurrentLinkedQueue<>();
+            pooledNums[i] = new AtomicInteger();
+        }
+    }
+    
+    /** 已借出未归还的buffer，key为identityHashCode */
+    private static final Map<Integer, LeakRef> leased = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<ByteBuffer> leakQueue = new ReferenceQueue<>();
+    private static final AtomicInteger leasedNum = new AtomicInteger();
+    
+    /**
+     * 借出一个容量不小于size的直接内存buffer
+     * @param size
+     * @return limit为size、position为0的buffer
+     */
+    public static ByteBuffer acquire(int size) {
+        detectLeak();
+        if(size>MaxSize) return ByteBuffer.allocateDirect(size);
+        int idx = classIdx(size);
+        ByteBuffer buf = pools[idx].poll();
+        if(buf==null){
+            buf = ByteBuffer.allocateDirect(MinSize<<idx);
+        }else{
+            pooledNums[idx].decrementAndGet();
+        }
+        buf.clear().limit(size);
+        track(buf);
+        return buf;
+    }
+    
+    /**
+     * 归还buffer，归还后调用者不能再使用它
+     * 非本池借出的buffer（如堆内buffer）会被忽略
+     * @param buf 可为null
+     */
+    public static void release(ByteBuffer buf) {
+        if(buf==null || !buf.isDirect()) return;
+        if(!untrack(buf)){
+            if(buf.capacity()<=MaxSize) log.warn("release buffer not leased from pool (double release?)", new IllegalStateException());
+            return;
+        }
+        int idx = classIdx(buf.capacity());
+        if((MinSize<<idx)!=buf.capacity()) return;
+        if(pooledNums[idx].incrementAndGet()*buf.capacity()>MaxPooledBytesPerClass){
+            pooledNums[idx].decrementAndGet();
+            return;
+        }
+        pools[idx].offer(buf);
+    }
+    
+    /**
+     * @return 已借出未归还的buffer数
+     */
+    public static int leasedNum() {
+        return leasedNum.get();
+    }
+    
+    private static int classIdx(int size) {
+        if(size<=MinSize) return 0;
+        return 32-Integer.numberOfLeadingZeros(size-1)-Integer.numberOfTrailingZeros(MinSize);
+    }
+    
+    private static void track(ByteBuffer buf) {
+        LeakRef ref = new LeakRef(buf);
+        leased.compute(ref.id, (id, head)->{
+            ref.next = head;
+            return ref;
+        });
+        leasedNum.incrementAndGet();
+    }
+    private static boolean untrack(ByteBuffer buf) {
+        boolean[] found = {false};
+        leased.computeIfPresent(System.identityHashCode(buf), (id, head)->{
+            LeakRef prev = null;
+            for(LeakRef ref=head; ref!=null; prev=ref, ref=ref.next){
+                if(ref.get()!=buf) continue;
+                found[0] = true;
+                ref.clear();
+                if(prev==null) return ref.next;
+                prev.next = ref.next;
+                return head;
+            }
+            return head;
+        });
+        if(found[0]) leasedNum.decrementAndGet();
+        return found[0];
+    }
+    
+    /**
+     * 借出后未归还即被GC的buffer，其引用会进入leakQueue
+     */
+    private static void detectLeak() {
+        LeakRef leak;
+        while((leak = (LeakRef) leakQueue.poll())!=null){
+            LeakRef target = leak;
+            boolean[] found = {false};
+            leased.computeIfPresent(target.id, (id, head)->{
+                LeakRef prev = null;
+                for(LeakRef ref=head; ref!=null; prev=ref, ref=ref.next){
+                    if(ref!=target) continue;
+                    found[0] = true;
+                    if(prev==null) return ref.next;
+                    prev.next = ref.next;
+                    return head;
+                }
+                return head;
+            });
+            if(!found[0]) continue;
+            leasedNum.decrementAndGet();
+            log.error("buffer leak detected, capacity {} acquired by thread {}", target.capacity, target.acquirer, target.site);
+        }
+    }
+    
+    private static class LeakRef extends WeakReference<ByteBuffer> {
+        private final int id;
+        private final int capacity;
+        private final String acquirer = Thread.currentThread().getName();
+        /** 仅debug时记录借出位置 */
+        private final Throwable site = log.isDebugEnabled() ? new Throwable("buffer acquired here") : null;
+        
+        private LeakRef next;
+        
+        private LeakRef(ByteBuffer buf) {
+            super(buf, leakQueue);
+            this.id = System.identityHashCode(buf);
+            this.capacity = buf.capacity();
+        }
+    }
+
+}
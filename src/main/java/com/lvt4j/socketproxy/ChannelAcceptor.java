@@ -1,17 +1,17 @@
 package com.lvt4j.socketproxy;
 
 import static java.nio.channels.SelectionKey.OP_ACCEPT;
-import static java.util.Collections.synchronizedList;
 
 import java.io.IOException;
 import java.lang.Thread.UncaughtExceptionHandler;
+import java.net.InetAddress;
 import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.function.Consumer;
 
@@ -20,21 +20,33 @@ import javax.annotation.PreDestroy;
 
 import org.springframework.stereotype.Service;
 
+import com.lvt4j.socketproxy.Config.SocketProfile;
 import com.lvt4j.socketproxy.ProxyApp.IOExceptionConsumer;
 
 import lombok.extern.slf4j.Slf4j;
 
 /**
- *
+ * 监听端口、接受新连接
+ * <pre>
+ * 每次可accept时批量accept，直到没有待accept的连接或达到{@link #MaxAcceptBatch}
+ * {@link #listen}可开多个SO_REUSEPORT的channel监听同一端口，分别由不同的acceptor线程accept，
+ * 第一个由本线程负责，其余的按需创建分片线程
+ * </pre>
  * @author LV on 2022年4月3日
  */
 @Slf4j
 @Service
 public class ChannelAcceptor extends Thread implements UncaughtExceptionHandler {
 
+    /** 一次可accept事件最多accept的连接数，避免一个端口的连接风暴饿死同线程上的其他端口 */
+    private static final int MaxAcceptBatch = 256;
+    
     private Selector selector;
     /** 待注册队列 */
-    private List<Runnable> registerQueue = synchronizedList(new LinkedList<>());
+    private TaskQueue registerQueue;
+    
+    /** 分片监听用的其他acceptor线程，第i个分片由shards[i-1]负责 */
+    private final List<ChannelAcceptor> shards = new ArrayList<>();
     
     @PostConstruct
     public void init() throws IOException {
@@ -44,10 +56,15 @@ public class ChannelAcceptor extends Thread implements UncaughtExceptionHandler
         setName(name);
         setUncaughtExceptionHandler(this);
         selector = Selector.open();
+        registerQueue = new TaskQueue(selector);
         start();
     }
     @PreDestroy
     public void destory() {
+        synchronized(shards){
+            shards.forEach(ChannelAcceptor::destory);
+            shards.clear();
+        }
         try{
             selector.close();
             join(1000);
@@ -74,20 +91,76 @@ public class ChannelAcceptor extends Thread implements UncaughtExceptionHandler
                 meta.exHandler.accept(e);
             }
         });
-        selector.wakeup();
     }
     
     public void waitDeregister(ServerSocketChannel channel) {
         ProxyApp.waitDeregister(selector, channel);
     }
     
+    /**
+     * 监听端口并accept
+     * @param acceptorNum 监听的channel数，大于1时需支持SO_REUSEPORT（JDK9+），每个channel由一个acceptor线程负责，不支持时退化为1
+     * @param backlog 每个channel等待accept的连接队列长度，小于1时使用系统默认
+     * @return 监听的channel，停止时交给{@link #close(List)}
+     */
+    public List<ServerSocketChannel> listen(InetAddress host, int port, int acceptorNum, int backlog,
+            IOExceptionConsumer<SocketChannel> onAccept, Consumer<Exception> exHandler) throws IOException {
+        return listen(host, port, acceptorNum, backlog, null, onAccept, exHandler);
+    }
+    /**
+     * @param profile 接入连接的socket配置，SO_RCVBUF在bind前设置在监听的channel上由接入的连接继承，可为null
+     * @see #listen(InetAddress, int, int, int, IOExceptionConsumer, Consumer)
+     */
+    public List<ServerSocketChannel> listen(InetAddress host, int port, int acceptorNum, int backlog, SocketProfile profile,
+            IOExceptionConsumer<SocketChannel> onAccept, Consumer<Exception> exHandler) throws IOException {
+        int num = Math.max(1, acceptorNum);
+        if(num>1 && ProxyApp.ReusePort==null){
+            log.warn("{} 不支持SO_REUSEPORT，只使用一个acceptor", port);
+            num = 1;
+        }
+        List<ServerSocketChannel> channels = new ArrayList<>(num);
+        try{
+            for(int i=0; i<num; i++) channels.add(ProxyApp.server(host, port, backlog, num>1, profile));
+        }catch(IOException e){
+            channels.forEach(ProxyApp::close);
+            throw e;
+        }
+        for(int i=0; i<num; i++) shard(i).accept(channels.get(i), onAccept, exHandler);
+        return channels;
+    }
+    /**
+     * 关闭{@link #listen}返回的channel，并等待其注销
+     */
+    public void close(List<ServerSocketChannel> channels) {
+        if(channels==null) return;
+        for(int i=0; i<channels.size(); i++){
+            ProxyApp.close(channels.get(i));
+            shard(i).waitDeregister(channels.get(i));
+        }
+    }
+    private ChannelAcceptor shard(int idx) {
+        if(idx==0) return this;
+        synchronized(shards){
+            while(shards.size()<idx){
+                ChannelAcceptor shard = new ChannelAcceptor();
+                try{
+                    shard.init(getName()+"-"+(shards.size()+1));
+                }catch(IOException e){
+                    throw new IllegalStateException("start acceptor shard err", e);
+                }
+                shards.add(shard);
+            }
+            return shards.get(idx-1);
+        }
+    }
+    
     @Override
     public void run() {
         try{
             while(selector.isOpen()){
-                selector.select();
+                registerQueue.select(0);
                 Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
-                while(!registerQueue.isEmpty()) registerQueue.remove(0).run();
+                registerQueue.run();
                 if(!selector.isOpen()) return;
                 while(keys.hasNext()){
                     SelectionKey key = keys.next();
@@ -101,12 +174,21 @@ public class ChannelAcceptor extends Thread implements UncaughtExceptionHandler
     }
     private void accept(SelectionKey key) {
         AcceptMeta meta = (AcceptMeta) key.attachment();
-        try{
-            if(!key.isAcceptable()) return;
-            SocketChannel channel = meta.channel.accept();
-            meta.onAccept.accept(channel);
-        }catch(Exception e){
-            meta.exHandler.accept(e);
+        if(!key.isValid() || !key.isAcceptable()) return;
+        for(int i=0; i<MaxAcceptBatch; i++){
+            SocketChannel channel;
+            try{
+                channel = meta.channel.accept();
+            }catch(Exception e){
+                meta.exHandler.accept(e);
+                return;
+            }
+            if(channel==null) return;
+            try{
+                meta.onAccept.accept(channel);
+            }catch(Exception e){
+                meta.exHandler.accept(e);
+            }
         }
     }
     
@@ -1,115 +1,404 @@
 package com.lvt4j.socketproxy;
 
 import static java.nio.channels.SelectionKey.OP_CONNECT;
-import static java.util.Collections.synchronizedList;
 
 import java.io.IOException;
-import java.lang.Thread.UncaughtExceptionHandler;
-import java.nio.channels.ClosedSelectorException;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
 import java.nio.channels.SocketChannel;
-import java.util.Iterator;
+import java.util.Deque;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Consumer;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import com.google.common.net.HostAndPort;
+import com.lvt4j.socketproxy.ChannelSelector.Handler;
+import com.lvt4j.socketproxy.ChannelSelector.Tick;
+import com.lvt4j.socketproxy.Config.SocketProfile;
+import com.lvt4j.socketproxy.ProxyApp.IOExceptionConsumer;
 import com.lvt4j.socketproxy.ProxyApp.IOExceptionRunnable;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
 /**
  *
+ * <pre>
+ * 运行在{@link ChannelSelector}上，可独占一个（{@link #init(String)}），也可与同一loop的其他组件共用（{@link #init(String, Resolver, ChannelSelector)}）
+ * </pre>
  * @author LV on 2022年4月2日
  */
 @Slf4j
 @Service
-public class ChannelConnector extends Thread implements UncaughtExceptionHandler {
+public class ChannelConnector implements Tick {
 
-    private Selector selector;
+    private ChannelSelector selector;
+    /** selector是否由本connector创建，是则随本connector销毁 */
+    private boolean ownSelector;
     
-    /** 待注册队列 */
-    private List<Runnable> registerQueue = synchronizedList(new LinkedList<>());
+    /** 同一目标多个地址时，相邻两次连接尝试的间隔（RFC 8305 Connection Attempt Delay） */
+    public static final long AttemptDelay = 250;
+    
+    /** 解析目标地址，未注入时自建一个 */
+    @Autowired
+    private Resolver resolver;
+    private boolean ownResolver;
+    
+    /** 连接超时、延迟发起的连接尝试等定时任务，只在本线程上访问 */
+    private final PriorityQueue<Scheduled> scheduleds = new PriorityQueue<>();
+    
+    /** 超时放弃的连接数 */
+    private Counter timeoutCounter;
     
     @PostConstruct
     public void init() throws IOException {
         init("ChannelConnector");
     }
     public void init(String name) throws IOException {
-        setName(name);
-        setUncaughtExceptionHandler(this);
-        selector = Selector.open();
-        start();
+        init(name, resolver);
+    }
+    public void init(String name, Resolver resolver) throws IOException {
+        init(name, resolver, new ChannelSelector(name));
+        ownSelector = true;
+    }
+    /**
+     * 运行在共用的selector上
+     * @param name 指标中的selector标签
+     * @param resolver 为null时自建一个
+     */
+    public void init(String name, Resolver resolver, ChannelSelector selector) {
+        if(resolver==null){
+            resolver = new Resolver(); resolver.init(name+" resolver");
+            ownResolver = true;
+        }
+        this.resolver = resolver;
+        this.selector = selector;
+        timeoutCounter = Counter.builder("connector.timeout")
+            .description("connects given up on reaching their deadline")
+            .tag("selector", name)
+            .register(Metrics.globalRegistry);
+        selector.addTick(this);
     }
     @PreDestroy
     public void destory() {
+        Metrics.globalRegistry.remove(timeoutCounter);
+        selector.removeTick(this);
         try{
-            selector.close();
-            join(1000);
+            if(ownSelector) selector.destory();
+            if(ownResolver) resolver.destory();
         }catch(Exception e){
             log.error("channel connector close err", e);
         }
     }
-    @Override
-    public void uncaughtException(Thread t, Throwable e) {
-        if(e instanceof ClosedSelectorException) return;
-        log.error("channel connector err", e);
-    }
     
-    public void connect(SocketChannel channel, IOExceptionRunnable onConnect, Consumer<Exception> exHandler) {
-        registerQueue.add(()->{
-            ConnectMeta cnn = new ConnectMeta();
-            cnn.onConnect = onConnect;
-            cnn.exHandler = exHandler;
-            
+    /**
+     * 等待已发起连接的channel连接完成
+     * @param timeout 超时毫秒数，超时后关闭channel并以{@link SocketTimeoutException}回调exHandler，不大于0时不超时
+     */
+    public void connect(SocketChannel channel, long timeout, IOExceptionRunnable onConnect, Consumer<Exception> exHandler) {
+        selector.add(()->{
+            Race race = new Race(new LinkedList<>(), null, c->onConnect.run(), exHandler);
+            race.deadline(timeout, channel.toString());
             try{
-                channel.register(selector, OP_CONNECT, cnn);
+                race.attempt(channel);
             }catch(Exception e){
-                exHandler.accept(e);
+                race.fail(e);
             }
         });
-        selector.wakeup();
     }
     
-    @Override
-    public void run() {
+    /**
+     * 异步解析target后，以解析出的第一个地址连接已打开的channel，超时包含解析耗时
+     */
+    public void connect(SocketChannel channel, HostAndPort target, long timeout,
+            IOExceptionRunnable onConnect, Consumer<Exception> exHandler) {
+        long begin = System.currentTimeMillis();
+        resolve(target, addresses->{
+            channel.connect(new InetSocketAddress(addresses[0], target.getPort()));
+            connect(channel, remain(timeout, begin), onConnect, exHandler);
+        }, exHandler);
+    }
+    /**
+     * 异步解析target的所有地址并竞速连接，超时包含解析耗时，
+     * 见{@link #connect(InetAddress[], int, SocketProfile, long, IOExceptionConsumer, Consumer)}
+     */
+    public void connect(HostAndPort target, SocketProfile profile, long timeout,
+            IOExceptionConsumer<SocketChannel> onConnect, Consumer<Exception> exHandler) {
+        long begin = System.currentTimeMillis();
+        resolve(target, addresses->{
+            connect(addresses, target.getPort(), profile, remain(timeout, begin), onConnect, exHandler);
+        }, exHandler);
+    }
+    /**
+     * 解析结果可能来自缓存而在调用者线程上回调，失败时总是转到本线程上异步回调，
+     * 避免调用者在发起连接的过程中就收到异常
+     */
+    private void resolve(HostAndPort target, IOExceptionConsumer<InetAddress[]> onResolve, Consumer<Exception> exHandler) {
+        resolver.resolve(target.getHostText(), onResolve, e->selector.add(()->exHandler.accept(e)));
+    }
+    /**
+     * 解析之后剩余的超时时间，已耗尽时返回1以尽快超时
+     */
+    private static long remain(long timeout, long begin) {
+        if(timeout<=0) return timeout;
+        return Math.max(1, timeout-(System.currentTimeMillis()-begin));
+    }
+    /**
+     * 按RFC 8305（happy eyeballs）竞速连接多个地址
+     * <pre>
+     * 地址按IPv6、IPv4交错排列（以第一个地址的协议族优先），每隔{@link #AttemptDelay}毫秒
+     * 或上一个尝试失败时立即发起下一个尝试，最先连接成功的channel回调onConnect，其余的关闭
+     * 全部失败时以最后一个异常回调exHandler，超时时以{@link SocketTimeoutException}回调exHandler
+     * </pre>
+     * @param profile 新建channel的socket调优，可为空
+     * @param timeout 超时毫秒数，不大于0时不超时
+     */
+    public void connect(InetAddress[] addresses, int port, SocketProfile profile, long timeout,
+            IOExceptionConsumer<SocketChannel> onConnect, Consumer<Exception> exHandler) {
+        Deque<InetSocketAddress> candidates = interleave(addresses, port);
+        selector.add(()->{
+            Race race = new Race(candidates, profile, onConnect, exHandler);
+            race.deadline(timeout, candidates.toString());
+            race.next();
+        });
+    }
+    
+    /**
+     * 阻塞地解析target并依次连接各地址，返回阻塞模式的channel，供阻塞引擎（{@link BlockingProtocolService}）在其线程上调用
+     * <pre>
+     * 地址同样按协议族交错排列，但不竞速：一个线程上只能阻塞等待一个连接，
+     * 前一个地址连接失败（或分到的超时用完）后才尝试下一个，超时包含解析耗时
+     * 不能在selector线程上调用，解析失败的回调要经过本selector
+     * </pre>
+     * @param profile 新建channel的socket调优，可为空
+     * @param timeout 超时毫秒数，不大于0时不超时
+     */
+    public SocketChannel connectBlocking(HostAndPort target, SocketProfile profile, long timeout) throws IOException {
+        long begin = System.currentTimeMillis();
+        CompletableFuture<InetAddress[]> resolved = new CompletableFuture<>();
+        resolve(target, resolved::complete, resolved::completeExceptionally);
+        InetAddress[] addresses;
         try{
-            while(selector.isOpen()){
-                selector.select();
-                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
-                while(!registerQueue.isEmpty()) registerQueue.remove(0).run();
-                if(!selector.isOpen()) return;
-                while(keys.hasNext()){
-                    SelectionKey key = keys.next();
-                    keys.remove();
-                    connect(key);
-                    key.cancel();
-                }
+            addresses = timeout>0 ? resolved.get(timeout, TimeUnit.MILLISECONDS) : resolved.get();
+        }catch(TimeoutException e){
+            timeoutCounter.increment();
+            throw new SocketTimeoutException(String.format("connect timeout(%sms) : %s", timeout, target));
+        }catch(InterruptedException e){
+            throw new InterruptedIOException("resolve interrupted : "+target);
+        }catch(ExecutionException e){
+            if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException("resolve fail : "+target, e.getCause());
+        }
+        Deque<InetSocketAddress> candidates = interleave(addresses, target.getPort());
+        IOException lastException = new ConnectException("no address to connect");
+        while(!candidates.isEmpty()){
+            InetSocketAddress address = candidates.poll();
+            long remain = remain(timeout, begin);
+            SocketChannel channel = null;
+            try{
+                channel = SocketChannel.open();
+                SocketProfile.apply(profile, channel);
+                channel.socket().connect(address, (int) Math.min(Math.max(remain, 0), Integer.MAX_VALUE));
+                return channel;
+            }catch(SocketTimeoutException e){
+                ProxyApp.close(channel);
+                timeoutCounter.increment();
+                throw new SocketTimeoutException(String.format("connect timeout(%sms) : %s", timeout, address));
+            }catch(IOException e){
+                ProxyApp.close(channel);
+                lastException = e;
             }
-        }catch(Throwable e){
-            uncaughtException(this, e);
         }
+        throw lastException;
     }
-    private void connect(SelectionKey key) {
-        ConnectMeta cnn = (ConnectMeta) key.attachment();
-        try{
-            if(!key.isConnectable()) return;
-            SocketChannel channel = (SocketChannel)key.channel();
-            channel.finishConnect();
-            cnn.onConnect.run();
-        }catch(Exception e){
-            cnn.exHandler.accept(e);
+    
+    /**
+     * 地址按协议族交错排列，第一个地址所在的协议族在前
+     */
+    static Deque<InetSocketAddress> interleave(InetAddress[] addresses, int port) {
+        Deque<InetSocketAddress> candidates = new LinkedList<>();
+        if(addresses.length==0) return candidates;
+        Class<?> first = addresses[0].getClass();
+        Queue<InetAddress> preferred = new LinkedList<>(), others = new LinkedList<>();
+        for(InetAddress address : addresses){
+            (address.getClass()==first?preferred:others).add(address);
+        }
+        while(!preferred.isEmpty() || !others.isEmpty()){
+            if(!preferred.isEmpty()) candidates.add(new InetSocketAddress(preferred.poll(), port));
+            if(!others.isEmpty()) candidates.add(new InetSocketAddress(others.poll(), port));
         }
+        return candidates;
     }
-
-    private class ConnectMeta {
-        private IOExceptionRunnable onConnect;
-        private Consumer<Exception> exHandler;
+    
+    @Override
+    public long tick() {
+        runScheduled();
+        return selectTimeout();
+    }
+    
+    /**
+     * 距最近一个定时任务的毫秒数，没有定时任务时返回0（不超时）
+     */
+    private long selectTimeout() {
+        Scheduled first = scheduleds.peek();
+        if(first==null) return 0;
+        return Math.max(1, first.time-System.currentTimeMillis());
+    }
+    private void runScheduled() {
+        long now = System.currentTimeMillis();
+        while(!scheduleds.isEmpty() && scheduleds.peek().time<=now){
+            scheduleds.poll().run.run();
+        }
+    }
+    private Scheduled schedule(long time, Runnable run) {
+        Scheduled scheduled = new Scheduled(time, run);
+        scheduleds.add(scheduled);
+        return scheduled;
+    }
+    
+    @RequiredArgsConstructor
+    private static class Scheduled implements Comparable<Scheduled> {
+        private final long time;
+        private final Runnable run;
+        @Override
+        public int compareTo(Scheduled o) {
+            return Long.compare(time, o.time);
+        }
+    }
+    
+    /**
+     * 同一目标的一组连接尝试，只在本线程上访问
+     */
+    @RequiredArgsConstructor
+    private class Race implements Handler {
+        /** 还未尝试的地址 */
+        private final Deque<InetSocketAddress> candidates;
+        private final SocketProfile profile;
+        private final IOExceptionConsumer<SocketChannel> onConnect;
+        private final Consumer<Exception> exHandler;
+        
+        /** 正在连接中的channel */
+        private final List<SocketChannel> attempts = new LinkedList<>();
+        /** 本组发起的定时任务，结束时从{@link ChannelConnector#scheduleds}中移除，不必等到期 */
+        private final List<Scheduled> timers = new LinkedList<>();
+        /** 下一个尝试的发起时间，早于该时间的定时任务忽略 */
+        private long nextAttemptTime;
+        private Exception lastException;
+        private boolean done;
+        
+        private void deadline(long timeout, String target) {
+            if(timeout<=0) return;
+            timers.add(schedule(System.currentTimeMillis()+timeout, ()->{
+                if(done) return;
+                timeoutCounter.increment();
+                fail(new SocketTimeoutException(String.format("connect timeout(%sms) : %s", timeout, target)));
+            }));
+        }
+        
+        /**
+         * 发起下一个地址的连接尝试，打开或连接失败时继续下一个
+         */
+        private void next() {
+            while(!done && !candidates.isEmpty()){
+                InetSocketAddress address = candidates.poll();
+                SocketChannel channel = null;
+                try{
+                    channel = SocketChannel.open();
+                    channel.configureBlocking(false);
+                    SocketProfile.apply(profile, channel);
+                    if(channel.connect(address)){
+                        win(channel);
+                        return;
+                    }
+                    attempt(channel);
+                }catch(Exception e){
+                    ProxyApp.close(channel);
+                    lastException = e;
+                    continue;
+                }
+                if(!candidates.isEmpty()){
+                    nextAttemptTime = System.currentTimeMillis()+AttemptDelay;
+                    timers.add(schedule(nextAttemptTime, this::delayedNext));
+                }
+                return;
+            }
+            if(done || !attempts.isEmpty()) return;
+            fail(lastException!=null ? lastException : new ConnectException("no address to connect"));
+        }
+        private void delayedNext() {
+            if(done || System.currentTimeMillis()<nextAttemptTime) return;
+            next();
+        }
+        
+        private void attempt(SocketChannel channel) throws ClosedChannelException {
+            selector.register(channel, OP_CONNECT, this);
+            attempts.add(channel);
+        }
+        
+        @Override
+        public void handle(SelectableChannel channel, int op) {
+            selector.deregister(channel, OP_CONNECT, this);
+            connected((SocketChannel) channel);
+        }
+        
+        private void connected(SocketChannel channel) {
+            attempts.remove(channel);
+            if(done){
+                ProxyApp.close(channel);
+                return;
+            }
+            try{
+                channel.finishConnect();
+            }catch(Exception e){
+                ProxyApp.close(channel);
+                lastException = e;
+                if(!candidates.isEmpty()) next();
+                else if(attempts.isEmpty()) fail(e);
+                return;
+            }
+            win(channel);
+        }
+        
+        private void win(SocketChannel channel) {
+            finish();
+            try{
+                onConnect.accept(channel);
+            }catch(Exception e){
+                exHandler.accept(e);
+            }
+        }
+        
+        private void fail(Exception e) {
+            finish();
+            exHandler.accept(e);
+        }
+        
+        private void finish() {
+            done = true;
+            attempts.forEach(ProxyApp::close);
+            attempts.clear();
+            timers.forEach(scheduleds::remove);
+            timers.clear();
+        }
     }
     
 }
\ No newline at end of file
@@ -1,20 +1,15 @@
 package com.lvt4j.socketproxy;
 
 import static java.nio.channels.SelectionKey.OP_READ;
-import static java.util.Collections.synchronizedList;
 
 import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
-import java.lang.Thread.UncaughtExceptionHandler;
 import java.nio.ByteBuffer;
-import java.nio.channels.ClosedSelectorException;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
+import java.nio.channels.SelectableChannel;
 import java.nio.channels.SocketChannel;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 
 import javax.annotation.PostConstruct;
@@ -22,88 +17,92 @@ import javax.annotation.PreDestroy;
 
 import org.springframework.stereotype.Service;
 
+import com.lvt4j.socketproxy.ChannelSelector.Handler;
+import com.lvt4j.socketproxy.ChannelSelector.Tick;
 import com.lvt4j.socketproxy.ProxyApp.IOExceptionConsumer;
 
-import lombok.extern.slf4j.Slf4j;
-
 /**
  *
+ * <pre>
+ * 运行在{@link ChannelSelector}上，可独占一个（{@link #init(String)}），也可与同一loop的其他组件共用（{@link #init(ChannelSelector)}）
+ * </pre>
  * @author LV on 2022年4月2日
  */
-@Slf4j
 @Service
-public class ChannelReader extends Thread implements UncaughtExceptionHandler {
+public class ChannelReader implements Tick {
 
-    private Selector selector;
+    /** 预读缓冲大小 */
+    private static final int ReadAheadSize = 4096;
+    /** 兜底清理被外部直接关闭的channel的预读数据的间隔 */
+    private static final long SweepInterval = 1000;
+    
+    private ChannelSelector selector;
+    /** selector是否由本reader创建，是则随本reader销毁 */
+    private boolean ownSelector;
     
-    /** 待注册队列 */
-    private List<Runnable> registerQueue = synchronizedList(new LinkedList<>());
+    /** 批量预读用的缓冲，仅本线程访问 */
+    private ByteBuffer readAheadBuf;
+    /** 各channel已预读但还未被读取的数据，读模式 */
+    private Map<SocketChannel, ByteBuffer> readAheads = new ConcurrentHashMap<>();
+    private long lastSweepTime = System.currentTimeMillis();
     
     @PostConstruct
     public void init() throws IOException {
         init("ChannelReader");
     }
     public void init(String name) throws IOException {
-        setName(name);
-        setUncaughtExceptionHandler(this);
-        selector = Selector.open();
-        start();
+        init(new ChannelSelector(name));
+        ownSelector = true;
+    }
+    /**
+     * 运行在共用的selector上
+     */
+    public void init(ChannelSelector selector) {
+        this.selector = selector;
+        readAheadBuf = ByteBuffer.allocateDirect(ReadAheadSize);
+        selector.addTick(this);
     }
     
     @PreDestroy
     public void destory() {
-        try{
-            selector.close();
-            join(1000);
-        }catch(Exception e){
-            log.error("channel reader close err", e);
-        }
-    }
-    @Override
-    public void uncaughtException(Thread t, Throwable e) {
-        if(e instanceof ClosedSelectorException) return;
-        log.error("channel reader err", e);
+        selector.removeTick(this);
+        if(ownSelector) selector.destory();
     }
     
     public void readOne(SocketChannel channel, IOExceptionConsumer<Byte> onRead, Consumer<Exception> exHandler) {
-        registerQueue.add(()->{
+        selector.add(()->{
             ReadOneMeta meta = new ReadOneMeta();
             meta.channel = channel;
-            meta.buf = ByteBuffer.allocate(1);
             meta.onRead = onRead;
             meta.exHandler = exHandler;
             
             read(meta);
         });
-        selector.wakeup();
     }
     public void readUntilByte(SocketChannel channel, byte specifyByte
             ,IOExceptionConsumer<byte[]> onRead, Consumer<Exception> exHandler) {
-        registerQueue.add(()->{
+        selector.add(()->{
             ReadUntitSpecifyByteMeta meta = new ReadUntitSpecifyByteMeta();
             meta.channel = channel;
             meta.specifyByte = specifyByte;
-            meta.buf = ByteBuffer.allocate(1);
             meta.readed = new ByteArrayOutputStream();
             meta.onRead = onRead;
             meta.exHandler = exHandler;
             
             read(meta);
         });
-        selector.wakeup();
     }
     public void readUntilLength(SocketChannel channel, int length
             ,IOExceptionConsumer<byte[]> onRead, Consumer<Exception> exHandler) {
-        registerQueue.add(()->{
+        selector.add(()->{
             ReadLengthMeta meta = new ReadLengthMeta();
             meta.channel = channel;
-            meta.buf = ByteBuffer.allocate(length);
+            meta.readed = new byte[length];
             meta.onRead = onRead;
             meta.exHandler = exHandler;
             
             read(meta);
         });
-        selector.wakeup();
     }
     /**
      * 读任意长度（不能为0且最多不超过max），读到后回调onRead
@@ -116,7 +115,7 @@ public class ChannelReader extends Thread implements UncaughtExceptionHandler {
      */
     public void readAny(SocketChannel channel, ByteBuffer buf
             ,IOExceptionConsumer<ByteBuffer> onRead, Consumer<Exception> exHandler) {
-        registerQueue.add(()->{
+        selector.add(()->{
             ReadAnyMeta meta = new ReadAnyMeta();
             meta.channel = channel;
             buf.clear();
@@ -126,84 +125,217 @@ public class ChannelReader extends Thread implements UncaughtExceptionHandler {
             
             read(meta);
         });
-        selector.wakeup();
     }
     /**
      * 读任意长度（不能为0且最多不超过max），读到后回调onRead
      * @param channel
-     * @param bufSize 缓冲大小
+     * @param bufSize 缓冲大小，缓冲在channel可读时才从{@link BufferPool}借出，onRead返回后即归还
      * @param onRead 该函数处理时应默认buf参数为读模式<br>
-     * 　　ChannelReacher不会再使用buf，因此回调函数可以任意处理
+     * 　　buf仅在回调期间有效，回调返回后不能再使用
      * @param exHandler
      * @see #readAny(SocketChannel, ByteBuffer, IOExceptionConsumer, Consumer)
      */
     public void readAny(SocketChannel channel, int bufSize
             ,IOExceptionConsumer<ByteBuffer> onRead, Consumer<Exception> exHandler) {
-        readAny(channel, ByteBuffer.allocate(bufSize), onRead, exHandler);
+        selector.add(()->{
+            ReadAnyPooledMeta meta = new ReadAnyPooledMeta();
+            meta.channel = channel;
+            meta.bufSize = bufSize;
+            meta.onRead = onRead;
+            meta.exHandler = exHandler;
+            
+            read(meta);
+        });
+    }
+    /**
+     * 持续读：channel保持注册，每次可读都把读到的数据回调给onRead，直到暂停、关闭或异常
+     * <pre>
+     * 适用于长期的数据通路，相比在onRead中反复调用readAny，
+     * 不需要每读一块数据就重新注册、入队、唤醒selector
+     * </pre>
+     * @param channel
+     * @param bufSize 每次读的缓冲大小，缓冲在channel可读时才从{@link BufferPool}借出，onRead返回后即归还
+     * @param onRead 参数为读模式，仅在回调期间有效
+     * @param exHandler 异常（包括对端关闭）时回调，之后不再读
+     * @return 用于暂停、恢复、停止读的句柄
+     */
+    public ReadStream readStream(SocketChannel channel, int bufSize
+            ,IOExceptionConsumer<ByteBuffer> onRead, Consumer<Exception> exHandler) {
+        ReadStream stream = new ReadStream();
+        selector.add(()->{
+            ReadStreamMeta meta = new ReadStreamMeta();
+            meta.channel = channel;
+            meta.bufSize = bufSize;
+            meta.stream = stream;
+            meta.onRead = onRead;
+            meta.exHandler = exHandler;
+            
+            read(meta);
+        });
+        return stream;
+    }
+    /**
+     * 将channel上读到的数据交给decoder增量解码，直到解出结果后回调onRead
+     * <pre>
+     * 整个解码过程只注册一次，每次可读时读到的所有数据都交给decoder，
+     * decoder没消费完的数据留给该channel的下一次读取
+     * </pre>
+     * @param channel
+     * @param decoder 有状态的解码器，不能复用
+     * @param onRead
+     * @param exHandler decoder抛出的异常也交给它处理
+     */
+    public <T> void readDecode(SocketChannel channel, Decoder<T> decoder
+            ,IOExceptionConsumer<T> onRead, Consumer<Exception> exHandler) {
+        selector.add(()->{
+            ReadDecodeMeta<T> meta = new ReadDecodeMeta<>();
+            meta.channel = channel;
+            meta.decoder = decoder;
+            meta.onRead = onRead;
+            meta.exHandler = exHandler;
+            
+            read(meta);
+        });
+    }
+    /**
+     * 取出channel上已预读但还未被读取的数据，取出后本reader不再持有
+     * <pre>
+     * readOne、readUntilByte、readUntilLength会从channel批量预读，
+     * 不再通过本reader读取该channel（如握手完成后交给{@link ChannelTransmitter}）前，
+     * 需调用本方法取出多读的数据交给下一个使用者
+     * </pre>
+     * @param channel
+     * @return 读模式的数据，没有时返回null
+     */
+    public ByteBuffer takeReadAhead(SocketChannel channel) {
+        return readAheads.remove(channel);
+    }
+    /**
+     * 将在本reader之外从channel读到的数据（如{@link WarmPool}试读到的）追加到预读中，之后通过本reader读取该channel时先读到
+     * <pre>
+     * 调用时该channel不能正在通过本reader读取
+     * </pre>
+     * @param data 读模式
+     */
+    public void addReadAhead(SocketChannel channel, ByteBuffer data) {
+        readAheads.merge(channel, data, (readAhead, more)->{
+            ByteBuffer merged = ByteBuffer.allocate(readAhead.remaining()+more.remaining());
+            merged.put(readAhead).put(more).flip();
+            return merged;
+        });
     }
     private void read(ReadMeta meta) {
+        ByteBuffer readAhead = readAheads.remove(meta.channel);
         try{
-            meta.channel.register(selector, OP_READ, meta);
+            if(readAhead!=null){
+                boolean finish = meta.consume(readAhead);
+                if(readAhead.hasRemaining()) readAheads.put(meta.channel, readAhead);
+                if(finish){
+                    meta.finish();
+                    if(!meta.keep()) return;
+                }
+            }
+            meta.register();
         }catch(Exception e){
+            readAheads.remove(meta.channel);
             meta.exHandler.accept(e);
         }
     }
     
     @Override
-    public void run() {
-        try{
-            while(selector.isOpen()){
-                selector.select();
-                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
-                while(!registerQueue.isEmpty()) registerQueue.remove(0).run();
-                if(!selector.isOpen()) return;
-                while(keys.hasNext()){
-                    SelectionKey key = keys.next();
-                    keys.remove();
-                    read(key);
-                }
-            }
-        }catch(Throwable e){
-            uncaughtException(this, e);
-        }
+    public long tick() {
+        sweep();
+        return readAheads.isEmpty() ? 0 : SweepInterval;
     }
-    private void read(SelectionKey key) {
-        ReadMeta meta = (ReadMeta)key.attachment();
+    /**
+     * 读出错时已就地移除，取走（{@link #takeReadAhead}）后不再持有，这里只兜底：
+     * 预读后channel被外部直接关闭（如连接闲置被清理）时不会再有读事件触发，在此回收其预读数据
+     */
+    private void sweep() {
+        if(System.currentTimeMillis()-lastSweepTime<SweepInterval) return;
+        lastSweepTime = System.currentTimeMillis();
+        if(!readAheads.isEmpty()) readAheads.keySet().removeIf(c->!c.isOpen());
+    }
+    private void readable(ReadMeta meta) {
         try{
-            if(!key.isReadable()) return;
-            int size = meta.channel.read(meta.buf);
-            if(size==0) return;
-            if(size<0){
-                meta.exHandler.accept(new EOFException("end-of-stream"));
-                return;
+            ByteBuffer data = meta.fill();
+            if(data==null) return;
+            boolean finish = meta.consume(data);
+            if(data==readAheadBuf && data.hasRemaining()){
+                ByteBuffer readAhead = ByteBuffer.allocate(data.remaining());
+                readAhead.put(data).flip();
+                readAheads.put(meta.channel, readAhead);
             }
-            meta.read(key);
+            if(!finish) return;
+            if(!meta.keep()) meta.deregister();
+            meta.finish();
         }catch(Exception e){
+            meta.deregister();
+            readAheads.remove(meta.channel);
             meta.exHandler.accept(e);
         }
     }
     
-    private abstract class ReadMeta {
+    private abstract class ReadMeta implements Handler {
         
         protected SocketChannel channel;
         
-        protected ByteBuffer buf;
-        
         protected Consumer<Exception> exHandler;
         
-        protected abstract void read(SelectionKey key) throws IOException;
+        protected void register() throws IOException {
+            selector.register(channel, OP_READ, this);
+        }
+        protected void deregister() {
+            selector.deregister(channel, OP_READ, this);
+        }
+        @Override
+        public void handle(SelectableChannel channel, int op) {
+            readable(this);
+        }
+        
+        /**
+         * 读完一次后是否继续保持注册
+         */
+        protected boolean keep() {
+            return false;
+        }
+        
+        /**
+         * 从channel读数据，默认批量读到预读缓冲中
+         * @return 读模式的数据，没读到时返回null
+         */
+        protected ByteBuffer fill() throws IOException {
+            readAheadBuf.clear();
+            int size = channel.read(readAheadBuf);
+            if(size<0) throw new EOFException("end-of-stream");
+            if(size==0) return null;
+            readAheadBuf.flip();
+            return readAheadBuf;
+        }
+        
+        /**
+         * 从data中取需要的数据，没取完的会被留给该channel的下一次读取
+         * @return 是否已读完
+         */
+        protected abstract boolean consume(ByteBuffer data) throws IOException;
+        
+        /** 读完后回调 */
+        protected abstract void finish() throws IOException;
     }
     
     /** 只读一个字节则结束 */
     private class ReadOneMeta extends ReadMeta {
+        private byte readed;
         private IOExceptionConsumer<Byte> onRead;
         
         @Override
-        protected void read(SelectionKey key) throws IOException {
-            buf.flip();
-            byte b = buf.get();
-            key.cancel();
-            onRead.accept(b);
+        protected boolean consume(ByteBuffer data) {
+            readed = data.get();
+            return true;
+        }
+        @Override
+        protected void finish() throws IOException {
+            onRead.accept(readed);
         }
     }
     
@@ -215,41 +347,192 @@ public class ChannelReader extends Thread implements UncaughtExceptionHandler {
         private IOExceptionConsumer<byte[]> onRead;
         
         @Override
-        protected void read(SelectionKey key) throws IOException {
-            buf.flip();
-            byte b = buf.get();
-            readed.write(b);
-            buf.clear();
-            
-            if(specifyByte!=b) return;
-            key.cancel();
+        protected boolean consume(ByteBuffer data) {
+            while(data.hasRemaining()){
+                byte b = data.get();
+                readed.write(b);
+                if(specifyByte==b) return true;
+            }
+            return false;
+        }
+        @Override
+        protected void finish() throws IOException {
             onRead.accept(readed.toByteArray());
         }
     }
     
     /** 读够特定长度，则结束 */
     private class ReadLengthMeta extends ReadMeta {
+        private byte[] readed;
+        private int readedLength;
         private IOExceptionConsumer<byte[]> onRead;
         
         @Override
-        protected void read(SelectionKey key) throws IOException {
-            if(buf.hasRemaining()) return;
-            key.cancel();
-            buf.flip();
-            onRead.accept(buf.array());
+        protected boolean consume(ByteBuffer data) {
+            int length = Math.min(data.remaining(), readed.length-readedLength);
+            data.get(readed, readedLength, length);
+            readedLength += length;
+            return readedLength==readed.length;
+        }
+        @Override
+        protected void finish() throws IOException {
+            onRead.accept(readed);
+        }
+    }
+    
+    /** 持续读，直到暂停、关闭或异常 */
+    private class ReadStreamMeta extends ReadAnyPooledMeta {
+        private ReadStream stream;
+        
+        @Override
+        protected void register() throws IOException {
+            selector.register(channel, OP_READ, this);
+            stream.meta = this;
+            if(stream.paused) selector.interest(channel, OP_READ, false);
+            if(stream.closed) deregister();
+        }
+        @Override
+        protected boolean keep() {
+            return !stream.closed;
+        }
+    }
+    
+    /**
+     * {@link ChannelReader#readStream}的句柄
+     * @author LV on 2026年10月18日
+     */
+    public class ReadStream {
+        /** 注册后的读 */
+        private ReadStreamMeta meta;
+        private boolean paused;
+        private boolean closed;
+        
+        /**
+         * 暂停读，可在任意线程调用，在onRead中调用时本次回调后即不再读
+         */
+        public void pause() {
+            selector.execute(()->{
+                paused = true;
+                if(meta!=null && !closed) selector.interest(meta.channel, OP_READ, false);
+            });
+        }
+        /**
+         * 恢复读
+         */
+        public void resume() {
+            selector.execute(()->{
+                paused = false;
+                if(meta!=null && !closed) selector.interest(meta.channel, OP_READ, true);
+            });
+        }
+        /**
+         * 停止读，之后不能再恢复，channel本身不会被关闭
+         */
+        public void close() {
+            selector.execute(()->{
+                closed = true;
+                if(meta!=null) meta.deregister();
+            });
+        }
+    }
+    
+    /** 解码出结果则结束 */
+    private class ReadDecodeMeta<T> extends ReadMeta {
+        private Decoder<T> decoder;
+        private T decoded;
+        private IOExceptionConsumer<T> onRead;
+        
+        @Override
+        protected boolean consume(ByteBuffer data) throws IOException {
+            decoded = decoder.decode(data);
+            return decoded!=null;
+        }
+        @Override
+        protected void finish() throws IOException {
+            onRead.accept(decoded);
         }
     }
     
     /** 读任意长度（不能为0），则结束 */
     private class ReadAnyMeta extends ReadMeta {
+        private ByteBuffer buf;
         private IOExceptionConsumer<ByteBuffer> onRead;
         
         @Override
-        protected void read(SelectionKey key) throws IOException {
-            key.cancel();
+        protected ByteBuffer fill() throws IOException {
+            int size = channel.read(buf);
+            if(size<0) throw new EOFException("end-of-stream");
+            if(size==0) return null;
+            return buf;
+        }
+        @Override
+        protected boolean consume(ByteBuffer data) {
+            if(data!=buf){ //来自预读
+                ByteBuffer part = data.duplicate();
+                part.limit(part.position()+Math.min(part.remaining(), buf.remaining()));
+                buf.put(part);
+                data.position(part.position());
+            }
+            return true;
+        }
+        @Override
+        protected void finish() throws IOException {
             buf.flip();
             onRead.accept(buf);
         }
     }
     
+    /** 读任意长度（不能为0），则结束，缓冲仅在读时借出 */
+    private class ReadAnyPooledMeta extends ReadMeta {
+        protected int bufSize;
+        private ByteBuffer buf;
+        protected IOExceptionConsumer<ByteBuffer> onRead;
+        
+        @Override
+        protected ByteBuffer fill() throws IOException {
+            buf = BufferPool.acquire(bufSize);
+            try{
+                int size = channel.read(buf);
+                if(size<0) throw new EOFException("end-of-stream");
+                if(size>0) return buf;
+                BufferPool.release(buf); buf = null;
+                return null;
+            }catch(IOException e){
+                BufferPool.release(buf); buf = null;
+                throw e;
+            }
+        }
+        @Override
+        protected boolean consume(ByteBuffer data) {
+            if(data==buf){
+                buf.flip();
+            }else{ //来自预读，直接交给回调
+                buf = data.slice();
+                data.position(data.limit());
+            }
+            return true;
+        }
+        @Override
+        protected void finish() throws IOException {
+            try{
+                onRead.accept(buf);
+            }finally{
+                BufferPool.release(buf); buf = null;
+            }
+        }
+    }
+    
+    /**
+     * 增量解码器，数据可能分多次到达
+     * @author LV on 2026年10月18日
+     */
+    public interface Decoder<T> {
+        /**
+         * 从data中消费能消费的数据
+         * @param data 读模式
+         * @return 解码结果，数据还不够时返回null
+         */
+        T decode(ByteBuffer data) throws IOException;
+    }
+    
 }
\ No newline at end of file
@@ -0,0 +1,224 @@
+package com.lvt4j.socketproxy;
+
+import static java.nio.channels.SelectionKey.OP_ACCEPT;
+import static java.nio.channels.SelectionKey.OP_CONNECT;
+import static java.nio.channels.SelectionKey.OP_READ;
+import static java.nio.channels.SelectionKey.OP_WRITE;
+
+import java.io.IOException;
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 一个selector及驱动它的线程，由{@link TaskQueue}提交任务
+ * <pre>
+ * reader、writer、connector、transmitter等组件以handler的形式注册在channel的某个事件上，
+ * 一个channel在本selector上只有一个key，各事件的handler共用该key，就绪时按事件分发给对应的handler，
+ * 因此这些组件可以共用一个selector线程（见{@link EventLoopGroup.EventLoop}），也可以各自独占一个
+ * 事件的handler全部注销后key仍保留（interestOps为0），直到channel关闭或{@link TaskQueue#deregister}，
+ * 避免同一轮中注销后又注册时遇到还未清理的已取消key
+ * 组件的定时工作（兜底清理、连接超时等）以{@link Tick}的形式在每轮select后执行
+ * </pre>
+ * @author LV on 2026年10月18日
+ */
+@Slf4j
+public class ChannelSelector extends Thread implements UncaughtExceptionHandler {
+    
+    /** 分发顺序：先完成连接，再写后读 */
+    private static final int[] Ops = {OP_CONNECT, OP_ACCEPT, OP_WRITE, OP_READ};
+    
+    private final Selector selector;
+    
+    /** 任务队列 */
+    private final TaskQueue tasks;
+    
+    /** 每个就绪channel的处理（含IO及回调）占用本线程的耗时 */
+    private final HandleTimer handleTimer;
+    
+    private final List<Tick> ticks = new CopyOnWriteArrayList<>();
+    
+    public ChannelSelector(String name) throws IOException {
+        super(name);
+        setUncaughtExceptionHandler(this);
+        selector = Selector.open();
+        tasks = new TaskQueue(selector);
+        handleTimer = new HandleTimer(name);
+        start();
+    }
+    
+    public void destory() {
+        handleTimer.remove();
+        try{
+            selector.close();
+            join(1000);
+        }catch(Exception e){
+            log.error("channel selector close err", e);
+        }
+    }
+    @Override
+    public void uncaughtException(Thread t, Throwable e) {
+        if(e instanceof ClosedSelectorException) return;
+        log.error("channel selector err", e);
+    }
+    
+    /**
+     * 提交任务在本线程上执行，可在任意线程调用
+     */
+    public void add(Runnable task) {
+        tasks.add(task);
+    }
+    /**
+     * 在本线程上执行，当前就在本线程时立即执行
+     */
+    public void execute(Runnable task) {
+        if(inLoop()){
+            task.run();
+            return;
+        }
+        tasks.add(task);
+    }
+    public boolean inLoop() {
+        return Thread.currentThread()==this;
+    }
+    
+    /**
+     * 添加定时工作，可在任意线程调用
+     */
+    public void addTick(Tick tick) {
+        ticks.add(tick);
+    }
+    public void removeTick(Tick tick) {
+        ticks.remove(tick);
+    }
+    
+    /**
+     * 在channel的op事件上注册handler，并关注该事件，该事件上已有的handler被替换，仅本线程调用
+     * @param op {@link SelectionKey}中的单个事件
+     */
+    public void register(SelectableChannel channel, int op, Handler handler) throws ClosedChannelException {
+        SelectionKey key = channel.keyFor(selector);
+        if(key==null){
+            Handler[] handlers = new Handler[Ops.length];
+            handlers[idx(op)] = handler;
+            channel.register(selector, op, handlers);
+            return;
+        }
+        ((Handler[]) key.attachment())[idx(op)] = handler;
+        key.interestOps(key.interestOps() | op);
+    }
+    /**
+     * 注销channel在op事件上的handler，该事件上已换成其他handler时忽略，仅本线程调用
+     */
+    public void deregister(SelectableChannel channel, int op, Handler handler) {
+        SelectionKey key = channel.keyFor(selector);
+        if(key==null || !key.isValid()) return;
+        Handler[] handlers = (Handler[]) key.attachment();
+        int idx = idx(op);
+        if(handlers[idx]!=handler) return;
+        handlers[idx] = null;
+        key.interestOps(key.interestOps() & ~op);
+    }
+    /**
+     * 关注或暂不关注channel的op事件，handler保持注册，仅本线程调用
+     */
+    public void interest(SelectableChannel channel, int op, boolean interest) {
+        SelectionKey key = channel.keyFor(selector);
+        if(key==null || !key.isValid()) return;
+        if(interest) key.interestOps(key.interestOps() | op);
+        else key.interestOps(key.interestOps() & ~op);
+    }
+    /**
+     * channel的op事件是否已注册handler且正被关注，仅本线程调用
+     */
+    public boolean interested(SelectableChannel channel, int op) {
+        SelectionKey key = channel.keyFor(selector);
+        return key!=null && key.isValid() && (key.interestOps() & op)!=0;
+    }
+    private static int idx(int op) {
+        switch(op){
+        case OP_CONNECT: return 0;
+        case OP_ACCEPT: return 1;
+        case OP_WRITE: return 2;
+        case OP_READ: return 3;
+        default: throw new IllegalArgumentException("非法的事件:"+op);
+        }
+    }
+    
+    @Override
+    public void run() {
+        try{
+            long timeout = 0;
+            while(selector.isOpen()){
+                tasks.select(timeout);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                tasks.run();
+                if(!selector.isOpen()) return;
+                while(keys.hasNext()){
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    long begin = System.nanoTime();
+                    handle(key);
+                    handleTimer.record(begin);
+                }
+                timeout = tick();
+            }
+        }catch(Throwable e){
+            uncaughtException(this, e);
+        }
+    }
+    private void handle(SelectionKey key) {
+        Handler[] handlers = (Handler[]) key.attachment();
+        SelectableChannel channel = key.channel();
+        for(int i=0; i<Ops.length; i++){
+            if(!key.isValid()) return;
+            int op = Ops[i];
+            if((key.readyOps() & op)==0 || (key.interestOps() & op)==0 || handlers[i]==null) continue;
+            try{
+                handlers[i].handle(channel, op);
+            }catch(RuntimeException e){
+                log.error("channel selector handle err", e);
+            }
+        }
+    }
+    /**
+     * 执行各定时工作
+     * @return 下次select的超时毫秒数，0表示不超时
+     */
+    private long tick() {
+        long timeout = 0;
+        for(Tick tick : ticks){
+            long next = tick.tick();
+            if(next>0 && (timeout==0 || next<timeout)) timeout = next;
+        }
+        return timeout;
+    }
+    
+    /**
+     * channel上注册的事件就绪时在selector线程上回调，IO异常由handler自行处理
+     * @author LV on 2026年10月18日
+     */
+    public interface Handler {
+        void handle(SelectableChannel channel, int op);
+    }
+    
+    /**
+     * 每轮select后在selector线程上执行的定时工作
+     * @author LV on 2026年10月18日
+     */
+    public interface Tick {
+        /**
+         * @return 距下次需要执行的毫秒数，0表示没有需要定时执行的工作（有IO事件或任务时仍会执行）
+         */
+        long tick();
+    }
+    
+}
\ No newline at end of file
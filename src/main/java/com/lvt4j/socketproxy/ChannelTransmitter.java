@@ -2,128 +2,289 @@ package com.lvt4j.socketproxy;
 
 import static java.nio.channels.SelectionKey.OP_READ;
 import static java.nio.channels.SelectionKey.OP_WRITE;
-import static java.util.Collections.synchronizedList;
 
 import java.io.EOFException;
 import java.io.IOException;
-import java.lang.Thread.UncaughtExceptionHandler;
 import java.nio.ByteBuffer;
-import java.nio.channels.ClosedSelectorException;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
+import java.nio.channels.SelectableChannel;
 import java.nio.channels.SocketChannel;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Set;
 import java.util.function.Consumer;
 
-import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.Validate;
+
+import com.lvt4j.socketproxy.ChannelSelector.Handler;
+import com.lvt4j.socketproxy.ChannelSelector.Tick;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
 
 /**
- *
+ * 全双工转发：一个连接的两个channel各自只在selector上注册一次，
+ * 通过切换interestOps在读写间转换，而不是每传输一块数据就cancel再register
+ * <pre>
+ * 每个方向的缓冲大小自适应：读满缓冲时翻倍直到最大值，连续多次读不到一半时减半直到最小值；
+ * 缓冲在首次读时才从{@link BufferPool}借出，连接闲置一个检查周期后归还，闲置连接不占用缓冲
+ * 每次借出缓冲时的大小记录在transmit.buffer.size指标中
+ * 运行在{@link ChannelSelector}上，可独占一个，也可与同一loop的其他组件共用
+ * </pre>
  * @author LV on 2022年4月2日
  */
-@Slf4j
-public class ChannelTransmitter extends Thread implements UncaughtExceptionHandler {
-
-    private Selector selector;
+public class ChannelTransmitter implements Tick, Transmitter {
+    
+    /** 检查已被外部关闭的连接的间隔 */
+    private static final long SweepInterval = 1000;
+    /** 连续多少次读不到缓冲一半时缩小缓冲 */
+    private static final int ShrinkThreshold = 4;
+    
+    private final ChannelSelector selector;
+    /** selector是否由本transmitter创建，是则随本transmitter销毁 */
+    private final boolean ownSelector;
+    
+    /** 转发中的连接，仅本线程访问 */
+    private Set<Pipe> pipes = new HashSet<>();
+    private long lastSweepTime = System.currentTimeMillis();
     
-    /** 待注册队列 */
-    private List<Runnable> registerQueue = synchronizedList(new LinkedList<>());
+    private DistributionSummary bufferSizes;
     
     public ChannelTransmitter(String name) throws IOException {
-        super(name);
-        setDefaultUncaughtExceptionHandler(this);
-        selector = Selector.open();
-        start();
+        this(name, new ChannelSelector(name), true);
     }
-    @Override
-    public void uncaughtException(Thread t, Throwable e) {
-        if(e instanceof ClosedSelectorException) return;
-        log.error("channel trans err", e);
+    /**
+     * 运行在共用的selector上
+     * @param name 指标中的transmitter标签
+     */
+    public ChannelTransmitter(String name, ChannelSelector selector) {
+        this(name, selector, false);
+    }
+    private ChannelTransmitter(String name, ChannelSelector selector, boolean ownSelector) {
+        this.selector = selector;
+        this.ownSelector = ownSelector;
+        bufferSizes = DistributionSummary.builder("transmit.buffer.size")
+            .description("transmit buffer size when acquired").baseUnit("bytes")
+            .tag("transmitter", name).publishPercentileHistogram()
+            .register(Metrics.globalRegistry);
+        selector.addTick(this);
     }
     
-    public void transmit(SocketChannel from, SocketChannel to, int buffSize,
+    /**
+     * 在a与b之间双向转发数据
+     * @param a
+     * @param b
+     * @param minBuffSize 每个方向上的缓冲初始及最小大小
+     * @param maxBuffSize 每个方向上的缓冲最大大小
+     * @param onTrans 任一方向有数据读写时回调
+     * @param exHandler 任一方向异常（包括对端关闭）时回调，回调后两个channel都不再被转发
+     */
+    @Override
+    public void transmit(SocketChannel a, SocketChannel b, int minBuffSize, int maxBuffSize,
             Runnable onTrans, Consumer<Exception> exHandler) {
-        registerQueue.add(()->{
-            Arrow arrow = new Arrow();
-            arrow.from = from;
-            arrow.to = to;
-            arrow.buf = ByteBuffer.allocate(buffSize);
-            arrow.onTrans = onTrans;
-            arrow.exHandler = exHandler;
+        Validate.isTrue(0<minBuffSize && minBuffSize<=maxBuffSize, "非法的缓冲大小:%s~%s", minBuffSize, maxBuffSize);
+        selector.add(()->{
+            Pipe pipe = new Pipe();
+            pipe.onTrans = onTrans;
+            pipe.exHandler = exHandler;
+            pipe.a = pipe.new End(a, minBuffSize, maxBuffSize);
+            pipe.b = pipe.new End(b, minBuffSize, maxBuffSize);
+            pipe.a.peer = pipe.b;
+            pipe.b.peer = pipe.a;
+            pipes.add(pipe);
             
             try{
-                from.register(selector, OP_READ, arrow);
+                pipe.a.register();
+                pipe.b.register();
             }catch(Exception e){
-                exHandler.accept(e);
+                pipe.exception(e);
             }
         });
-        selector.wakeup();
     }
     
     @Override
-    public void run() {
-        try{
-            while(selector.isOpen()){
-                selector.select();
-                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
-                while(!registerQueue.isEmpty()) registerQueue.remove(0).run();
-                if(!selector.isOpen()) return;
-                while(keys.hasNext()){
-                    SelectionKey key = keys.next();
-                    keys.remove();
-                    trans(key);
-                }
-            }
-        }catch(Throwable e){
-            uncaughtException(this, e);
-        }
+    public long tick() {
+        sweep();
+        return pipes.isEmpty() ? 0 : SweepInterval;
     }
-    private void trans(SelectionKey key) {
-        Arrow arrow = (Arrow) key.attachment();
-        try{
-            if(key.isReadable()){
-                int size = arrow.from.read(arrow.buf);
-                if(size>0){
-                    arrow.onTrans.run();
-                    arrow.buf.flip();
-                    key.cancel();
-                    arrow.to.register(selector, OP_WRITE, arrow);
-                }else if(size==-1){
-                    key.cancel();
-                    arrow.exHandler.accept(new EOFException());
-                }
-            }else if(key.isWritable()){
-                int size = arrow.to.write(arrow.buf);
-                if(size>0){
-                    arrow.onTrans.run();
-                }
-                if(!arrow.buf.hasRemaining()){
-                    arrow.buf.clear();
-                    key.cancel();
-                    arrow.from.register(selector, OP_READ, arrow);
-                }
+    
+    /**
+     * channel被外部直接关闭（如连接闲置被清理）时不会再有事件触发，在此回收其缓冲；
+     * 上个周期内没有读过的方向，归还其缓冲
+     */
+    private void sweep() {
+        if(System.currentTimeMillis()-lastSweepTime<SweepInterval) return;
+        lastSweepTime = System.currentTimeMillis();
+        Iterator<Pipe> it = pipes.iterator();
+        while(it.hasNext()){
+            Pipe pipe = it.next();
+            if(pipe.a.channel.isOpen() && pipe.b.channel.isOpen()){
+                pipe.a.idle();
+                pipe.b.idle();
+                continue;
             }
-        }catch(Exception e){
-            arrow.exHandler.accept(e);
+            it.remove();
+            pipe.close();
         }
     }
     
+    /**
+     * 共用selector时需在selector销毁后调用
+     */
+    @Override
     public void destory() {
-        try{
-            selector.close();
-            join(100);
-        }catch(Exception e){
-            log.error("channel trans close err", e);
-        }
+        Metrics.globalRegistry.remove(bufferSizes);
+        selector.removeTick(this);
+        if(ownSelector) selector.destory();
+        pipes.forEach(Pipe::close);
+        pipes.clear();
     }
     
-    private class Arrow {
-        private SocketChannel from;
-        private SocketChannel to;
-        private ByteBuffer buf;
+    /**
+     * 一个连接的两端
+     */
+    private class Pipe {
+        private End a;
+        private End b;
         private Runnable onTrans;
         private Consumer<Exception> exHandler;
+        private boolean broken;
+        
+        private void exception(Exception e) {
+            if(broken) return;
+            pipes.remove(this);
+            close();
+            exHandler.accept(e);
+        }
+        
+        private void close() {
+            if(broken) return;
+            broken = true;
+            a.deregister();
+            b.deregister();
+            a.releaseBuf();
+            b.releaseBuf();
+        }
+        
+        private class End implements Handler {
+            private final SocketChannel channel;
+            private final int minBuffSize;
+            private final int maxBuffSize;
+            /** 下次借出缓冲时的大小 */
+            private int buffSize;
+            /** 连续读不到缓冲一半的次数 */
+            private int smallReadTimes;
+            /** 上次sweep后是否读过 */
+            private boolean active;
+            /** 从本端读到、待写往对端的数据，闲置时为null */
+            private ByteBuffer buf;
+            private End peer;
+            
+            private End(SocketChannel channel, int minBuffSize, int maxBuffSize) {
+                this.channel = channel;
+                this.minBuffSize = minBuffSize;
+                this.maxBuffSize = maxBuffSize;
+                this.buffSize = minBuffSize;
+            }
+            
+            private void register() throws IOException {
+                selector.register(channel, OP_READ, this);
+                selector.register(channel, OP_WRITE, this);
+                selector.interest(channel, OP_WRITE, false);
+            }
+            private void deregister() {
+                selector.deregister(channel, OP_READ, this);
+                selector.deregister(channel, OP_WRITE, this);
+            }
+            @Override
+            public void handle(SelectableChannel channel, int op) {
+                try{
+                    if(op==OP_WRITE) write();
+                    else read();
+                }catch(Exception e){
+                    exception(e);
+                }
+            }
+            
+            /**
+             * 从本端读，并立即尝试写往对端，对端写不下时才停止读本端、等待对端可写
+             */
+            private void read() throws IOException {
+                if(buf==null){
+                    buf = BufferPool.acquire(buffSize);
+                    bufferSizes.record(buffSize);
+                }
+                int limit = buf.limit();
+                int size = channel.read(buf);
+                if(size==0) return;
+                if(size<0){
+                    exception(new EOFException());
+                    return;
+                }
+                active = true;
+                onTrans.run();
+                adapt(size, limit);
+                buf.flip();
+                int written = peer.channel.write(buf);
+                if(written>0) onTrans.run();
+                if(!buf.hasRemaining()){
+                    drained();
+                    return;
+                }
+                selector.interest(channel, OP_READ, false);
+                selector.interest(peer.channel, OP_WRITE, true);
+            }
+            
+            /**
+             * 将对端读到的剩余数据写往本端，写完后恢复读对端
+             */
+            private void write() throws IOException {
+                int written = channel.write(peer.buf);
+                if(written>0) onTrans.run();
+                if(peer.buf.hasRemaining()) return;
+                peer.drained();
+                selector.interest(channel, OP_WRITE, false);
+                selector.interest(peer.channel, OP_READ, true);
+            }
+            
+            /**
+             * 根据本次读到的大小调整下次的缓冲大小
+             */
+            private void adapt(int size, int limit) {
+                if(size>=limit){
+                    smallReadTimes = 0;
+                    buffSize = Math.min(buffSize<<1, maxBuffSize);
+                }else if(size<=buffSize>>1 && ++smallReadTimes>=ShrinkThreshold){
+                    smallReadTimes = 0;
+                    buffSize = Math.max(buffSize>>1, minBuffSize);
+                }
+            }
+            
+            /**
+             * 缓冲中数据已全部写往对端，大小不再合适时换一个
+             */
+            private void drained() {
+                if(buf.capacity()<buffSize || buf.capacity()>=buffSize<<1){
+                    releaseBuf();
+                    return;
+                }
+                buf.clear().limit(buffSize);
+            }
+            
+            /**
+             * 上个周期内没有读过，且缓冲中没有待写数据时，归还缓冲
+             */
+            private void idle() {
+                if(!active && buf!=null && selector.interested(channel, OP_READ)){
+                    releaseBuf();
+                    buffSize = Math.max(buffSize>>1, minBuffSize);
+                }
+                active = false;
+            }
+            
+            private void releaseBuf() {
+                BufferPool.release(buf);
+                buf = null;
+            }
+        }
     }
 }
\ No newline at end of file
@@ -1,69 +1,78 @@
 package com.lvt4j.socketproxy;
 
 import static java.nio.channels.SelectionKey.OP_WRITE;
-import static java.util.Collections.synchronizedList;
 
 import java.io.IOException;
-import java.lang.Thread.UncaughtExceptionHandler;
 import java.nio.ByteBuffer;
-import java.nio.channels.ClosedSelectorException;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
+import java.nio.channels.SelectableChannel;
 import java.nio.channels.SocketChannel;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 
-import org.apache.commons.lang3.tuple.Pair;
 import org.springframework.stereotype.Service;
 
+import com.lvt4j.socketproxy.ChannelSelector.Handler;
+import com.lvt4j.socketproxy.ChannelSelector.Tick;
 import com.lvt4j.socketproxy.ProxyApp.IOExceptionRunnable;
 
 import lombok.NonNull;
-import lombok.extern.slf4j.Slf4j;
 
 /**
  *
+ * <pre>
+ * 运行在{@link ChannelSelector}上，可独占一个（{@link #init(String)}），也可与同一loop的其他组件共用（{@link #init(ChannelSelector)}）
+ * </pre>
  * @author LV on 2022年4月2日
  */
-@Slf4j
 @Service
-public class ChannelWriter extends Thread implements UncaughtExceptionHandler {
+public class ChannelWriter implements Tick {
 
-    private Selector selector;
+    /** 每个channel待写入队列的初始容量 */
+    private static final int InitQueueSize = 8;
+    /** 一次gathering write最多写出的数据份数 */
+    private static final int MaxGather = 64;
     
-    /** 待注册队列 */
-    private List<Runnable> registerQueue = synchronizedList(new LinkedList<>());
+    /** 待写入字节数超过该值时回调背压的pause */
+    public static final int HighWatermark = 1024*1024;
+    /** 待写入字节数降到该值以下时回调背压的resume */
+    public static final int LowWatermark = 256*1024;
+    
+    /** 兜底清理被外部直接关闭的channel的间隔 */
+    private static final long SweepInterval = 1000;
+    
+    private ChannelSelector selector;
+    /** selector是否由本writer创建，是则随本writer销毁 */
+    private boolean ownSelector;
+    
+    /** 有待写入数据或正在回调的channel */
+    private Map<SocketChannel, WriteMeta> metas = new ConcurrentHashMap<>();
+    private long lastSweepTime = System.currentTimeMillis();
     
     @PostConstruct
     public void init() throws IOException {
         init("ChannelWriter");
     }
     public void init(String name) throws IOException {
-        setName(name);
-        setUncaughtExceptionHandler(this);
-        selector = Selector.open();
-        start();
+        init(new ChannelSelector(name));
+        ownSelector = true;
+    }
+    /**
+     * 运行在共用的selector上
+     */
+    public void init(ChannelSelector selector) {
+        this.selector = selector;
+        selector.addTick(this);
     }
     
     @PreDestroy
     public void destory() {
-        try{
-            selector.close();
-            join(1000);
-        }catch(Exception e){
-            log.error("channel reader close err", e);
-        }
-    }
-    
-    @Override
-    public void uncaughtException(Thread t, Throwable e) {
-        if(e instanceof ClosedSelectorException) return;
-        log.error("channel writer err", e);
+        selector.removeTick(this);
+        if(ownSelector) selector.destory();
     }
     
     /**
@@ -88,91 +97,444 @@ public class ChannelWriter extends Thread implements UncaughtExceptionHandler {
      * 将一份数据插入待写入队列，onWrite为其对应写入完成后的回调函数，遇到异常exHandler会被调用
      * 如果同一channel多次调用，每次调用增加的待写入数据data被写入完后，其对应的onWrite都会被调用
      * 但异常回调函数exHandler会被覆盖成最新的
+     * <pre>
+     * 该channel已连接且没有待写入数据时，直接在调用者线程上写，全部写完则onWrite也在调用者线程上回调；
+     * 写不完的剩余部分才入队，等待channel可写时由writer线程写
+     * 同一channel上数据的写入顺序及onWrite的回调顺序与调用顺序一致（优先写除外）
+     * </pre>
      * @param channel 
      * @param data 待写入数据，不能为空
      * @param onWrite 对应写入数据的回调函数，可为null
      * @param exHandler 异常回调，不能为null
      */
     public void write(@NonNull SocketChannel channel, @NonNull ByteBuffer data, IOExceptionRunnable onWrite, @NonNull Consumer<Exception> exHandler) {
-        registerQueue.add(()->{
-            SelectionKey key = channel.keyFor(selector);
-            WriteMeta meta;
-            if(key==null){
-                meta = new WriteMeta();
-                meta.channel = channel;
-                meta.exHandler = exHandler;
-                meta.queue.add(Pair.of(data, onWrite));
-            }else{
-                meta = (WriteMeta) key.attachment();
-                meta.exHandler = exHandler;
-                
-                meta.queue.add(Pair.of(data, onWrite));
-            }
-            try{
-                meta.channel.register(selector, OP_WRITE, meta);
-            }catch(Exception e){
-                meta.exHandler.accept(e);
-            }
-        });
-        selector.wakeup();
+        while(!metas.computeIfAbsent(channel, WriteMeta::new).offer(data, onWrite, exHandler, false));
+    }
+    /**
+     * @see #writeUrgent(SocketChannel, ByteBuffer, IOExceptionRunnable, Consumer)
+     */
+    public void writeUrgent(SocketChannel channel, ByteBuffer data, Consumer<Exception> exHandler) {
+        writeUrgent(channel, data, null, exHandler);
+    }
+    /**
+     * 优先写：data插到待写入队列中所有还未开始写的数据之前，正在写的一份写完后紧接着写，
+     * 多次优先写之间保持调用顺序，其余同{@link #write(SocketChannel, ByteBuffer, IOExceptionRunnable, Consumer)}
+     * <pre>
+     * 队列中每份数据都是一个完整的消息时，优先写的消息只会插在消息边界上，不会打断其他消息
+     * 已交给内核的数据无法越过，onWrite的回调顺序与实际写入顺序一致
+     * </pre>
+     */
+    public void writeUrgent(@NonNull SocketChannel channel, @NonNull ByteBuffer data, IOExceptionRunnable onWrite, @NonNull Consumer<Exception> exHandler) {
+        while(!metas.computeIfAbsent(channel, WriteMeta::new).offer(data, onWrite, exHandler, true));
+    }
+    /**
+     * @see #writeGather(SocketChannel, ByteBuffer[], IOExceptionRunnable, Consumer)
+     */
+    public void writeGather(SocketChannel channel, ByteBuffer[] datas, Consumer<Exception> exHandler) {
+        writeGather(channel, datas, null, exHandler);
+    }
+    /**
+     * 将多份数据作为一个整体插入待写入队列（gathering write），与其他写入不会交错
+     * <pre>
+     * datas仅在调用期间有效（如借自{@link BufferPool}的缓冲），调用返回后可被回收：
+     * 能直接在调用者线程上写完时不复制，写不完的剩余部分（或需要排队时的全部）复制后入队
+     * onWrite的回调时机与{@link #write(SocketChannel, ByteBuffer, IOExceptionRunnable, Consumer)}相同
+     * </pre>
+     * @param channel
+     * @param datas 读模式，调用返回后被读完
+     * @param onWrite 全部写入后的回调函数，可为null
+     * @param exHandler 异常回调，不能为null
+     */
+    public void writeGather(@NonNull SocketChannel channel, @NonNull ByteBuffer[] datas, IOExceptionRunnable onWrite, @NonNull Consumer<Exception> exHandler) {
+        while(!metas.computeIfAbsent(channel, WriteMeta::new).offerGather(datas, onWrite, exHandler));
+    }
+    /**
+     * 为channel设置背压：待写入字节数超过{@link #HighWatermark}时回调pause，
+     * 之后降到{@link #LowWatermark}以下时回调resume，用于暂停、恢复产生数据的一方
+     * <pre>
+     * pause与resume成对回调，回调时持有该channel的写锁，不能阻塞
+     * channel关闭后自动解除
+     * </pre>
+     * @param channel
+     * @param pause
+     * @param resume
+     */
+    public void backpressure(@NonNull SocketChannel channel, @NonNull Runnable pause, @NonNull Runnable resume) {
+        while(!metas.computeIfAbsent(channel, WriteMeta::new).backpressure(pause, resume));
+    }
+    /**
+     * channel上已入队的数据全部写完后关闭channel，没有待写入数据时立即关闭
+     * 写出错时也会关闭，调用后不应再往该channel写
+     * @param channel
+     * @param onClose 关闭后的回调，可为null，回调时持有该channel的写锁，不能阻塞
+     */
+    public void closeAfterFlush(@NonNull SocketChannel channel, Runnable onClose) {
+        while(!metas.computeIfAbsent(channel, WriteMeta::new).closeAfterFlush(onClose));
     }
     
     @Override
-    public void run() {
-        try{
-            while(selector.isOpen()){
-                selector.select();
-                while(!registerQueue.isEmpty()) registerQueue.remove(0).run();
-                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
-                if(!selector.isOpen()) return;
-                while(keys.hasNext()){
-                    SelectionKey key = keys.next();
-                    keys.remove();
-                    write(key);
-                }
-            }
-        }catch(Throwable e){
-            uncaughtException(this, e);
-        }
+    public long tick() {
+        sweep();
+        return metas.isEmpty() ? 0 : SweepInterval;
     }
-    private void write(SelectionKey key) {
-        WriteMeta meta = (WriteMeta) key.attachment();
-        try{
-            if(!key.isWritable()) return;
-            meta.write(key);
-        }catch(Exception e){
-            meta.exHandler.accept(e);
-        }
+    /**
+     * 写出错及closeAfterFlush时已就地失效，这里只兜底：
+     * channel被外部直接关闭（如连接闲置被清理）时不会再有写事件触发，在此回收其待写入数据
+     */
+    private void sweep() {
+        if(System.currentTimeMillis()-lastSweepTime<SweepInterval) return;
+        lastSweepTime = System.currentTimeMillis();
+        metas.values().forEach(WriteMeta::discardIfClosed);
     }
     
     /**
-     * {@link ChannelWriter#selector}上{@link #channel}注册时绑定对象
+     * {@link ChannelWriter#selector}上{@link #channel}的写事件的handler
      * 记录了待写入数据和对应的回调函数
      * 以及异常处理函数
+     * <pre>
+     * 待写入数据存放在数组中且始终连续，可调用一次gathering write写出多份数据
+     * 数组写满时先整理到数组头部，仍不够时才扩容，入队出队不产生新对象
+     * 
+     * 调用者线程与writer线程通过本对象的锁互斥，回调onWrite时不持有锁，
+     * 回调期间新增的数据只入队，回调完成后再继续写，以保证顺序
+     * 没有待写入数据且不在回调中时，本对象从{@link ChannelWriter#metas}中移除并失效，
+     * 设置了背压的则一直保留到channel关闭
+     * </pre>
      * @author LV on 2024年1月25日
      */
-    private class WriteMeta {
-        private SocketChannel channel;
+    private class WriteMeta implements Handler {
+        private final SocketChannel channel;
         private Consumer<Exception> exHandler;
         
-        /** 待写入数据及对应的回调函数 */
-        private LinkedList<Pair<ByteBuffer, IOExceptionRunnable>> queue = new LinkedList<>();
-        
-        public void write(SelectionKey key) throws IOException {
-            Iterator<Pair<ByteBuffer, IOExceptionRunnable>> it = queue.iterator();
-            while(it.hasNext()){
-                Pair<ByteBuffer, IOExceptionRunnable> pair = it.next();
-                channel.write(pair.getLeft());
-                if(pair.getLeft().hasRemaining()){
-                    return;
-                }else{
-                    it.remove();
-                    if(pair.getRight()!=null) pair.getRight().run();
+        /** 待写入数据，有效部分为[head, tail) */
+        private ByteBuffer[] datas = new ByteBuffer[InitQueueSize];
+        /** 与datas一一对应的写入完成回调函数 */
+        private IOExceptionRunnable[] onWrites = new IOExceptionRunnable[InitQueueSize];
+        /** 与datas一一对应的原始大小，据此判断是否已写出了一部分，优先写的数据只能排在其后 */
+        private int[] sizes = new int[InitQueueSize];
+        private int head;
+        private int tail;
+        /** 优先写的数据都在[head, urgentEnd)中，之后的优先写排在urgentEnd处 */
+        private int urgentEnd;
+        /** 队列中还未写出的字节数 */
+        private long pending;
+        
+        /** 背压回调，未设置时为null */
+        private Runnable pause;
+        private Runnable resume;
+        private boolean paused;
+        
+        /** 写完后关闭channel */
+        private boolean closing;
+        private Runnable onClose;
+        
+        /** 是否已在selector上注册写 */
+        private boolean registered;
+        /** 是否正在回调onWrite */
+        private boolean callbacking;
+        /** 已从metas中移除 */
+        private boolean removed;
+        
+        private WriteMeta(SocketChannel channel) {
+            this.channel = channel;
+        }
+        
+        /**
+         * 在调用者线程上：已连接且没有待写入数据时直接写，写不完的部分入队
+         * @return false 本对象已失效，需重新获取
+         */
+        private boolean offer(ByteBuffer data, IOExceptionRunnable onWrite, Consumer<Exception> exHandler, boolean urgent) {
+            Exception ex = null;
+            synchronized(this){
+                if(removed) return false;
+                this.exHandler = exHandler;
+                if(head<tail || callbacking || !channel.isConnected()){
+                    if(urgent) addUrgent(data, onWrite);
+                    else add(data, onWrite);
+                    register();
+                    return true;
                 }
+                int remaining = data.remaining();
+                try{
+                    channel.write(data);
+                }catch(Exception e){
+                    ex = e;
+                }
+                if(ex==null){
+                    if(data.hasRemaining()){
+                        add(data, onWrite);
+                        sizes[tail-1] = remaining;
+                        register();
+                        return true;
+                    }
+                    if(onWrite==null){
+                        idle();
+                        return true;
+                    }
+                    callbacking = true;
+                }
+            }
+            if(ex!=null){
+                fail(ex);
+                return true;
+            }
+            callback(onWrite);
+            synchronized(this){
+                callbacking = false;
+                register();
+                idle();
+            }
+            return true;
+        }
+        
+        /**
+         * 在调用者线程上：已连接且没有待写入数据时直接gathering write，剩余部分复制后入队
+         * @return false 本对象已失效，需重新获取
+         */
+        private boolean offerGather(ByteBuffer[] datas, IOExceptionRunnable onWrite, Consumer<Exception> exHandler) {
+            Exception ex = null;
+            synchronized(this){
+                if(removed) return false;
+                this.exHandler = exHandler;
+                long written = 0;
+                if(head==tail && !callbacking && channel.isConnected()){
+                    try{
+                        written = channel.write(datas);
+                    }catch(Exception e){
+                        ex = e;
+                    }
+                }
+                if(ex==null){
+                    int remaining = 0;
+                    for(ByteBuffer data : datas) remaining += data.remaining();
+                    if(remaining>0){
+                        ByteBuffer copy = ByteBuffer.allocate(remaining);
+                        for(ByteBuffer data : datas) copy.put(data);
+                        copy.flip();
+                        add(copy, onWrite);
+                        sizes[tail-1] += (int) written;
+                        register();
+                        return true;
+                    }
+                    if(onWrite==null){
+                        idle();
+                        return true;
+                    }
+                    callbacking = true;
+                }
+            }
+            if(ex!=null){
+                fail(ex);
+                return true;
+            }
+            callback(onWrite);
+            synchronized(this){
+                callbacking = false;
+                register();
+                idle();
+            }
+            return true;
+        }
+        
+        @Override
+        public void handle(SelectableChannel channel, int op) {
+            try{
+                write();
+            }catch(Exception e){
+                fail(e);
+            }
+        }
+        
+        /**
+         * 在writer线程上：channel可写时写出队列中的数据
+         */
+        private void write() throws IOException {
+            while(true){
+                IOExceptionRunnable onWrite;
+                synchronized(this){
+                    if(head==tail){
+                        selector.deregister(channel, OP_WRITE, this);
+                        registered = false;
+                        idle();
+                        return;
+                    }
+                    if(datas[head].hasRemaining()){
+                        int end = Math.min(tail, head+MaxGather);
+                        pending -= channel.write(datas, head, end-head);
+                        if(pending<LowWatermark) decongest();
+                        if(datas[head].hasRemaining()) return;
+                    }
+                    onWrite = onWrites[head];
+                    datas[head] = null;
+                    onWrites[head] = null;
+                    head++;
+                    if(onWrite==null) continue;
+                    callbacking = true;
+                }
+                try{
+                    onWrite.run();
+                }finally{
+                    synchronized(this){
+                        callbacking = false;
+                    }
+                }
+            }
+        }
+        
+        private synchronized boolean backpressure(Runnable pause, Runnable resume) {
+            if(removed) return false;
+            this.pause = pause;
+            this.resume = resume;
+            congest();
+            return true;
+        }
+        
+        private synchronized boolean closeAfterFlush(Runnable onClose) {
+            if(removed) return false;
+            closing = true;
+            this.onClose = onClose;
+            if(!discardIfClosed()) idle();
+            return true;
+        }
+        
+        /**
+         * 写出错：丢弃所有待写入数据，需要关闭的关闭，之后回调exHandler
+         */
+        private void fail(Exception e) {
+            synchronized(this){
+                Arrays.fill(datas, head, tail, null);
+                Arrays.fill(onWrites, head, tail, null);
+                head = tail = urgentEnd = 0;
+                pending = 0;
+                decongest();
+                if(registered){
+                    selector.execute(()->selector.deregister(channel, OP_WRITE, this));
+                    registered = false;
+                }
+                idle();
+            }
+            exHandler.accept(e);
+        }
+        
+        /**
+         * channel已被外部关闭时丢弃待写入数据并失效，需要关闭的回调onClose
+         * @return 是否已失效
+         */
+        private synchronized boolean discardIfClosed() {
+            if(removed) return true;
+            if(channel.isOpen()) return false;
+            Arrays.fill(datas, head, tail, null);
+            Arrays.fill(onWrites, head, tail, null);
+            head = tail = urgentEnd = 0;
+            pending = 0;
+            decongest();
+            if(closing) close();
+            removed = true;
+            metas.remove(channel, this);
+            return true;
+        }
+        
+        private void callback(IOExceptionRunnable onWrite) {
+            try{
+                onWrite.run();
+            }catch(Exception e){
+                exHandler.accept(e);
+            }
+        }
+        
+        /** 有待写入数据且不在回调中时，注册到selector上等待可写 */
+        private void register() {
+            if(registered || callbacking || head==tail) return;
+            registered = true;
+            selector.add(()->{
+                try{
+                    selector.register(channel, OP_WRITE, this);
+                }catch(Exception e){
+                    fail(e);
+                }
+            });
+        }
+        
+        /** 没有待写入数据时：需要关闭的关闭，未设置背压的失效 */
+        private void idle() {
+            if(registered || callbacking || head<tail) return;
+            head = tail = urgentEnd = 0;
+            if(closing) close();
+            else if(pause!=null && channel.isOpen()) return;
+            removed = true;
+            metas.remove(channel, this);
+        }
+        private void close() {
+            closing = false;
+            ProxyApp.close(channel);
+            if(onClose!=null) onClose.run();
+            onClose = null;
+        }
+        
+        private void add(ByteBuffer data, IOExceptionRunnable onWrite) {
+            if(tail==datas.length) compact();
+            datas[tail] = data;
+            onWrites[tail] = onWrite;
+            sizes[tail] = data.remaining();
+            tail++;
+            pending += data.remaining();
+            congest();
+        }
+        /**
+         * 插到已开始写的数据及已有的优先写数据之后
+         * <pre>
+         * 一次gathering write可能写完队首并写出其后若干份的一部分，
+         * 队首回调期间（锁已释放）这些数据还在队列中，已开始写的总是从head起连续的一段
+         * </pre>
+         */
+        private void addUrgent(ByteBuffer data, IOExceptionRunnable onWrite) {
+            if(tail==datas.length) compact();
+            int started = head;
+            while(started<tail && datas[started].remaining()<sizes[started]) started++;
+            int at = Math.max(urgentEnd, started);
+            System.arraycopy(datas, at, datas, at+1, tail-at);
+            System.arraycopy(onWrites, at, onWrites, at+1, tail-at);
+            System.arraycopy(sizes, at, sizes, at+1, tail-at);
+            datas[at] = data;
+            onWrites[at] = onWrite;
+            sizes[at] = data.remaining();
+            tail++;
+            urgentEnd = at+1;
+            pending += data.remaining();
+            congest();
+        }
+        private void congest() {
+            if(pause==null || paused || pending<=HighWatermark) return;
+            paused = true;
+            pause.run();
+        }
+        private void decongest() {
+            if(!paused) return;
+            paused = false;
+            resume.run();
+        }
+        private void compact() {
+            int size = tail-head;
+            ByteBuffer[] newDatas = datas;
+            IOExceptionRunnable[] newOnWrites = onWrites;
+            if(size>datas.length>>1){
+                newDatas = new ByteBuffer[datas.length<<1];
+                newOnWrites = new IOExceptionRunnable[datas.length<<1];
+            }
+            System.arraycopy(datas, head, newDatas, 0, size);
+            System.arraycopy(onWrites, head, newOnWrites, 0, size);
+            int[] newSizes = newDatas==datas ? sizes : new int[newDatas.length];
+            System.arraycopy(sizes, head, newSizes, 0, size);
+            if(newDatas==datas){
+                Arrays.fill(datas, size, tail, null);
+                Arrays.fill(onWrites, size, tail, null);
             }
-            if(!queue.isEmpty()) return;
-            
-            key.cancel();
+            datas = newDatas;
+            onWrites = newOnWrites;
+            sizes = newSizes;
+            urgentEnd = Math.max(0, urgentEnd-head);
+            head = 0;
+            tail = size;
         }
     }
     
@@ -2,10 +2,19 @@ package com.lvt4j.socketproxy;
 
 import static com.lvt4j.socketproxy.ProxyApp.format;
 import static java.util.Collections.emptyList;
+import static org.apache.commons.lang3.ObjectUtils.firstNonNull;
 
+import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
 import java.net.URI;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import javax.annotation.PreDestroy;
@@ -17,6 +26,7 @@ import org.springframework.cloud.context.config.annotation.RefreshScope;
 import org.springframework.context.annotation.Configuration;
 
 import com.google.common.net.HostAndPort;
+import com.lvt4j.socketproxy.IntranetService.MsgType;
 
 import lombok.Data;
 import lombok.Getter;
@@ -40,6 +50,46 @@ public class Config {
     @Setter@Getter
     private long maxIdleTime;
     
+    /** 转发时每个方向的缓冲初始及最小大小 */
+    @Setter@Getter
+    private int transmitBufferMin = 1024;
+    /** 转发时每个方向的缓冲最大大小，连续读满缓冲时逐步扩大到该值 */
+    @Setter@Getter
+    private int transmitBufferMax = 64*1024;
+    
+    /** 每个监听端口的acceptor线程数，大于1时用SO_REUSEPORT（JDK9+）开多个channel由内核分摊新连接 */
+    @Setter@Getter
+    private int acceptors = 1;
+    /** 每个监听channel等待accept的连接队列长度 */
+    @Setter@Getter
+    private int acceptBacklog = 1024;
+    
+    /** 向外建立连接的超时毫秒数，不大于0时不超时；tcp、intranet可按端口覆盖 */
+    @Setter@Getter
+    private long connectTimeout = TimeUnit.SECONDS.toMillis(10);
+    
+    /** 域名解析线程数 */
+    @Setter@Getter
+    private int resolverThreads = Resolver.DefaultThreads;
+    /** 域名解析成功的结果缓存毫秒数 */
+    @Setter@Getter
+    private long dnsTtl = Resolver.DefaultTtl;
+    /** 域名解析失败的结果缓存毫秒数 */
+    @Setter@Getter
+    private long dnsNegativeTtl = Resolver.DefaultNegativeTtl;
+    
+    /** tcp、socks5、http连接的建立、握手及转发引擎，阻塞引擎需JDK21及以上，否则仍使用selector；intranet隧道始终使用selector */
+    @Setter@Getter
+    private Engine engine = Engine.Selector;
+    
+    /** 执行连接上非IO回调（日志、异常处理等）的worker线程数，0表示不启用，回调在selector线程上执行 */
+    @Setter@Getter
+    private int callbackWorkers = 0;
+    
+    /** 全局socket调优，作用于所有接入及向外建立的连接；tcp、intranet可按端口覆盖其中的项 */
+    @Setter@Getter
+    private SocketProfile socket = new SocketProfile();
+    
     @Getter
     private List<TcpConfig> tcp = emptyList();
     @Getter@Setter
@@ -103,6 +153,24 @@ public class Config {
         
         public URI proxy;
         
+        /** 该端口的acceptor线程数，为空时使用全局配置 */
+        public Integer acceptors;
+        /** 该端口等待accept的连接队列长度，为空时使用全局配置 */
+        public Integer backlog;
+        
+        /** 该端口向target（或proxy）建立连接的超时毫秒数，为空时使用全局配置 */
+        public Long connectTimeout;
+        
+        /** 预先建立（经proxy时并完成代理握手）的到target的连接数，为空或0时不启用，不支持pws代理 */
+        public Integer warmPool;
+        /** 预连接闲置超过该毫秒数后关闭并重新建立 */
+        public Long warmPoolMaxIdle = TimeUnit.SECONDS.toMillis(30);
+        
+        /** 该端口接入连接的socket调优，未配置的项使用全局配置 */
+        public SocketProfile socket;
+        /** 该端口向target（或proxy）建立连接的socket调优，未配置的项使用全局配置 */
+        public SocketProfile targetSocket;
+        
         public void setTarget(String target) {
             this.target = ProxyApp.validHostPort(target);
             Validate.notNull(this.target, "非法的地址:%s", target);
@@ -173,6 +241,38 @@ public class Config {
         /** 多久没收到心跳时断开连接 */
         public Long heartbeatMissTimeout = TimeUnit.MINUTES.toMillis(1);
         
+        /**
+         * 转发服务配置，与entry之间并行建立的隧道数，各隧道分担连接，断开一条不影响其他隧道上的连接
+         * 逐条建立，entry不支持时只建立一条
+         */
+        public Integer tunnels = 1;
+        
+        /** 转发服务配置，向entry、target建立连接的超时毫秒数，为空时使用全局配置 */
+        public Long connectTimeout;
+        
+        /** 转发服务配置，预先建立的到target的连接数，为空或0时不启用 */
+        public Integer warmPool;
+        /** 转发服务配置，预连接闲置超过该毫秒数后关闭并重新建立 */
+        public Long warmPoolMaxIdle = TimeUnit.SECONDS.toMillis(30);
+        
+        /** 入口服务为接入的客户端连接、转发服务为向target建立的连接的socket调优，未配置的项使用全局配置 */
+        public SocketProfile socket;
+        
+        /**
+         * 入口服务配置，按客户端IP配置连接在隧道上的调度权重，未配置的为{@link MsgType#DefaultWeight}
+         * 隧道拥塞时各连接按权重分享带宽，双向生效
+         */
+        public Map<String, Integer> weights;
+        
+        /**
+         * 客户端连接的调度权重
+         */
+        public int weightOf(SocketAddress client) {
+            if(weights==null || !(client instanceof InetSocketAddress)) return MsgType.DefaultWeight;
+            Integer weight = weights.get(((InetSocketAddress)client).getAddress().getHostAddress());
+            return weight==null ? MsgType.DefaultWeight : weight;
+        }
+        
         public void setEntry(String entry) {
             this.entry = ProxyApp.validHostPort(entry);
             Validate.notNull(this.entry, "非法的地址:%s", entry);
@@ -191,4 +291,136 @@ public class Config {
         }
     }
     
+    /**
+     * socket调优参数，各项为空时保持系统默认
+     * <pre>
+     * keepAliveIdle、keepAliveInterval、keepAliveCount、quickAck依赖jdk.net.ExtendedSocketOptions，
+     * 所在JDK或平台不支持时忽略
+     * </pre>
+     * @author LV on 2026年10月18日
+     */
+    @Data
+    public static class SocketProfile {
+        
+        private static final SocketOption<?> KeepAliveIdle = extendedOption("TCP_KEEPIDLE");
+        private static final SocketOption<?> KeepAliveInterval = extendedOption("TCP_KEEPINTERVAL");
+        private static final SocketOption<?> KeepAliveCount = extendedOption("TCP_KEEPCOUNT");
+        private static final SocketOption<?> QuickAck = extendedOption("TCP_QUICKACK");
+        
+        /** SO_RCVBUF，建连前设置时才能影响窗口扩大因子：接入的连接设置在监听的channel上，由其继承 */
+        public Integer rcvBuf;
+        /** SO_SNDBUF */
+        public Integer sndBuf;
+        /** TCP_NODELAY，关闭Nagle算法 */
+        public Boolean noDelay;
+        /** SO_KEEPALIVE */
+        public Boolean keepAlive;
+        /** 连接空闲多少秒后开始发送keepalive探测 */
+        public Integer keepAliveIdle;
+        /** keepalive探测间隔秒数 */
+        public Integer keepAliveInterval;
+        /** keepalive探测多少次无响应后断开 */
+        public Integer keepAliveCount;
+        /**
+         * TCP_QUICKACK，立即回复ACK（仅Linux）
+         * <pre>
+         * Linux不会保持该选项，发出下一个ACK后即清除，恢复延迟确认，
+         * 这里只在建连时设置一次，因此只影响连接建立后最初的ACK，不能持续关闭延迟确认
+         * </pre>
+         */
+        public Boolean quickAck;
+        /** 出错、闲置超时等中止连接时的SO_LINGER秒数，0表示直接RST不进入TIME_WAIT，正常关闭不受影响 */
+        public Integer linger;
+        
+        /**
+         * 合并两份配置，override中未配置的项取base中的
+         */
+        public static SocketProfile merge(SocketProfile override, SocketProfile base) {
+            if(override==null) return base;
+            if(base==null) return override;
+            SocketProfile merged = new SocketProfile();
+            merged.rcvBuf = firstNonNull(override.rcvBuf, base.rcvBuf);
+            merged.sndBuf = firstNonNull(override.sndBuf, base.sndBuf);
+            merged.noDelay = firstNonNull(override.noDelay, base.noDelay);
+            merged.keepAlive = firstNonNull(override.keepAlive, base.keepAlive);
+            merged.keepAliveIdle = firstNonNull(override.keepAliveIdle, base.keepAliveIdle);
+            merged.keepAliveInterval = firstNonNull(override.keepAliveInterval, base.keepAliveInterval);
+            merged.keepAliveCount = firstNonNull(override.keepAliveCount, base.keepAliveCount);
+            merged.quickAck = firstNonNull(override.quickAck, base.quickAck);
+            merged.linger = firstNonNull(override.linger, base.linger);
+            return merged;
+        }
+        
+        /**
+         * 将已配置的项设置到channel上，profile为空时不做任何设置
+         */
+        public static void apply(SocketProfile profile, SocketChannel channel) throws IOException {
+            if(profile!=null) profile.apply(channel);
+        }
+        
+        /**
+         * rcvBuf只在还未连接的channel上设置，已接入的由监听的channel（见{@link #listen(SocketProfile, ServerSocketChannel)}）继承
+         * linger不在此设置，见{@link #abort(SocketProfile, SocketChannel)}
+         */
+        public void apply(SocketChannel channel) throws IOException {
+            if(!channel.isConnected()) set(channel, StandardSocketOptions.SO_RCVBUF, rcvBuf);
+            set(channel, StandardSocketOptions.SO_SNDBUF, sndBuf);
+            set(channel, StandardSocketOptions.TCP_NODELAY, noDelay);
+            set(channel, StandardSocketOptions.SO_KEEPALIVE, keepAlive);
+            set(channel, KeepAliveIdle, keepAliveIdle);
+            set(channel, KeepAliveInterval, keepAliveInterval);
+            set(channel, KeepAliveCount, keepAliveCount);
+            set(channel, QuickAck, quickAck);
+        }
+        
+        /**
+         * 在bind前设置到监听的channel上，接入的连接继承，才能影响窗口扩大因子
+         */
+        public static void listen(SocketProfile profile, ServerSocketChannel channel) throws IOException {
+            if(profile==null || profile.rcvBuf==null) return;
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, profile.rcvBuf);
+        }
+        
+        /**
+         * 中止连接（出错、闲置超时）：配置了linger时先设置SO_LINGER再关闭，为0时直接RST
+         * <pre>
+         * 正常关闭（包括{@link ChannelWriter#closeAfterFlush}）不设置，
+         * 否则关闭也变成RST，内核中还未发出的数据会被丢弃
+         * </pre>
+         */
+        public static void abort(SocketProfile profile, SocketChannel channel) {
+            if(channel==null) return;
+            try{
+                if(profile!=null && channel.isOpen()) set(channel, StandardSocketOptions.SO_LINGER, profile.linger);
+            }catch(IOException ig){}
+            ProxyApp.close(channel);
+        }
+        
+        @SuppressWarnings("unchecked")
+        private static <T> void set(SocketChannel channel, SocketOption<?> option, T value) throws IOException {
+            if(option==null || value==null) return;
+            if(!channel.supportedOptions().contains(option)) return;
+            channel.setOption((SocketOption<T>) option, value);
+        }
+        
+        /**
+         * 源码需兼容JDK8，通过反射取jdk.net.ExtendedSocketOptions中的扩展项，不存在时返回null
+         */
+        private static SocketOption<?> extendedOption(String name) {
+            try{
+                return (SocketOption<?>) Class.forName("jdk.net.ExtendedSocketOptions").getField(name).get(null);
+            }catch(Throwable e){
+                return null;
+            }
+        }
+    }
+    
+    public enum Engine {
+        /** 非阻塞IO，所有连接复用少量selector线程 */
+        Selector
+        /** 阻塞IO，每个连接的握手及每个转发方向各一个虚拟线程，需JDK21及以上 */
+        ,Blocking
+        ;
+    }
+    
 }
\ No newline at end of file
@@ -1,11 +1,17 @@
 package com.lvt4j.socketproxy;
 
-import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 import java.lang.Thread.UncaughtExceptionHandler;
-import java.util.concurrent.DelayQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.Consumer;
 
 import javax.annotation.PostConstruct;
@@ -15,19 +21,46 @@ import org.springframework.stereotype.Service;
 
 import com.lvt4j.socketproxy.ProxyApp.IOExceptionRunnable;
 
-import lombok.RequiredArgsConstructor;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 
 /**
- *
+ * 延迟任务，分层哈希时间轮实现
+ * <pre>
+ * 时间以{@link System#nanoTime()}计，按{@link #TickNanos}划分为tick，共{@link #Levels}层，每层{@link #SlotNum}个槽：
+ * 第0层每槽1个tick，第L层每槽覆盖第L-1层一整圈，到期时间离当前越远放在越高的层，
+ * 每到一个高层槽的起点，将其中的任务按剩余时间重新放入低层（cascade），第0层槽到期时执行其中的任务
+ * 提交、取消只入无锁队列，由时间轮线程批量放入或移出槽（双向链表），均为O(1)
+ * 时间轮线程只负责推进，到期的任务交给worker线程池执行
+ * 时间轮线程按最近一个非空的第0层槽或下一个cascade点休眠，没有任务时一直休眠直到有新任务提交
+ * </pre>
  * @author LV on 2022年4月6日
  */
 @Slf4j
 @Service
 public class DelayRunner extends Thread implements UncaughtExceptionHandler {
-
-    private DelayQueue<DelayMeta> queue = new DelayQueue<>();
+    
+    public static final long TickNanos = TimeUnit.MILLISECONDS.toNanos(1);
+    public static final int Levels = 4;
+    private static final int SlotBits = 8;
+    public static final int SlotNum = 1<<SlotBits;
+    private static final int SlotMask = SlotNum-1;
+    /** 每次推进最多放入的新任务数，避免大量提交时长时间不推进 */
+    private static final int MaxDrain = 100000;
+    
+    private final long startNanos = System.nanoTime();
+    private final Slot[][] wheel = new Slot[Levels][SlotNum];
+    /** 已处理到的tick */
+    private long tick;
+    /** 时间轮中的任务数，只在时间轮线程上访问 */
+    private int size;
+    
+    private final Queue<Timeout> adds = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancels = new ConcurrentLinkedQueue<>();
+    /** 时间轮线程计划醒来的tick，新任务更早到期时唤醒它 */
+    private volatile long wakeTick;
+    
+    private ExecutorService workers;
     
     private volatile boolean destory;
     
@@ -36,6 +69,18 @@ public class DelayRunner extends Thread implements UncaughtExceptionHandler {
         init("DelayRunner");
     }
     public void init(String name) {
+        AtomicInteger idx = new AtomicInteger();
+        init(name, Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r->{
+            Thread t = new Thread(r, name+" worker-"+idx.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }));
+    }
+    public void init(String name, ExecutorService workers) {
+        this.workers = workers;
+        for(Slot[] level : wheel){
+            for(int i=0; i<SlotNum; i++) level[i] = new Slot();
+        }
         setName(name);
         setUncaughtExceptionHandler(this);
         start();
@@ -46,6 +91,8 @@ public class DelayRunner extends Thread implements UncaughtExceptionHandler {
         destory = true;
         interrupt();
         join();
+        workers.shutdown();
+        workers.awaitTermination(1, TimeUnit.SECONDS);
     }
     
     @Override
@@ -54,53 +101,203 @@ public class DelayRunner extends Thread implements UncaughtExceptionHandler {
         log.error("delay runner err", e);
     }
     
+    /**
+     * delayed毫秒后执行run
+     * @return 可用于{@link #cancel(Delayed)}
+     */
     public Delayed run(long delayed, IOExceptionRunnable run, Consumer<Exception> exHandler) {
-        DelayMeta meta = new DelayMeta(delayed, run, exHandler);
-        queue.put(meta);
-        return meta;
+        long deadline = System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(delayed);
+        Timeout timeout = new Timeout(deadline, tickOf(deadline), run, exHandler);
+        adds.offer(timeout);
+        if(timeout.tick<wakeTick) LockSupport.unpark(this);
+        return timeout;
     }
     
+    /**
+     * @return 任务还未执行且被本次取消时返回true
+     */
     public boolean cancel(Delayed delayed) {
-        if(delayed==null) return false;
-        return queue.remove(delayed);
+        if(!(delayed instanceof Timeout)) return false;
+        Timeout timeout = (Timeout) delayed;
+        if(!timeout.transit(Timeout.Cancelled)) return false;
+        cancels.offer(timeout);
+        return true;
+    }
+    
+    /**
+     * 不早于deadline的第一个tick
+     */
+    private long tickOf(long deadline) {
+        long elapsed = deadline-startNanos;
+        if(elapsed<=0) return 0;
+        return (elapsed+TickNanos-1)/TickNanos;
     }
     
     @Override
     public void run() {
         while(!destory){
-            DelayMeta meta;
-            try{
-                meta = queue.take();
-            }catch(InterruptedException e){
-                continue;
-            }
-            try{
-                meta.run.run();
-            }catch(Exception e){
-                meta.exHandler.accept(e);
+            drain();
+            long now = tickOf(System.nanoTime()+1)-1;
+            if(size==0){
+                tick = Math.max(tick, now);
+            }else{
+                while(tick<now) advance(++tick);
             }
+            park();
         }
     }
     
-    @RequiredArgsConstructor
-    private class DelayMeta implements Delayed {
-
-        private final long createTime = System.currentTimeMillis();
-        private final long delayMs;
+    private void park() {
+        long next = size==0 ? Long.MAX_VALUE : nextTick();
+        wakeTick = next;
+        if(!adds.isEmpty() || destory) return;
+        if(next==Long.MAX_VALUE){
+            LockSupport.park(this);
+        }else{
+            long nanos = startNanos+next*TickNanos-System.nanoTime();
+            if(nanos>0) LockSupport.parkNanos(this, nanos);
+        }
+    }
+    
+    /**
+     * 下一个需要处理的tick：最近的非空第0层槽，或下一个cascade点
+     */
+    private long nextTick() {
+        for(long t=tick+1; ; t++){
+            if((t&SlotMask)==0 || wheel[0][(int)(t&SlotMask)].head!=null) return t;
+        }
+    }
+    
+    private void drain() {
+        Timeout timeout;
+        while((timeout=cancels.poll())!=null){
+            if(timeout.slot==null) continue;
+            timeout.slot.remove(timeout);
+            size--;
+        }
+        for(int i=0; i<MaxDrain && (timeout=adds.poll())!=null; i++){
+            if(timeout.state!=Timeout.Pending) continue;
+            place(timeout);
+        }
+    }
+    
+    /**
+     * 推进到tick t：高层槽到了起点的先cascade，再执行第0层槽中到期的任务
+     */
+    private void advance(long t) {
+        for(int level=Levels-1; level>0; level--){
+            int shift = level*SlotBits;
+            if((t&((1L<<shift)-1))!=0) continue;
+            cascade(wheel[level][(int)((t>>>shift)&SlotMask)]);
+        }
+        cascade(wheel[0][(int)(t&SlotMask)]);
+    }
+    /**
+     * 取出槽中所有任务重新放置，已到期的直接执行
+     */
+    private void cascade(Slot slot) {
+        Timeout timeout = slot.head;
+        slot.head = slot.tail = null;
+        while(timeout!=null){
+            Timeout next = timeout.next;
+            timeout.prev = timeout.next = null;
+            timeout.slot = null;
+            size--;
+            place(timeout);
+            timeout = next;
+        }
+    }
+    
+    private void place(Timeout timeout) {
+        long diff = timeout.tick-tick;
+        if(diff<=0){
+            expire(timeout);
+            return;
+        }
+        int level = 0;
+        while(level<Levels-1 && diff>=(1L<<((level+1)*SlotBits))) level++;
+        wheel[level][(int)((timeout.tick>>>(level*SlotBits))&SlotMask)].add(timeout);
+        size++;
+    }
+    
+    private void expire(Timeout timeout) {
+        if(!timeout.transit(Timeout.Expired)) return;
+        try{
+            workers.execute(timeout);
+        }catch(Exception e){
+            timeout.exHandler.accept(e);
+        }
+    }
+    
+    private static class Slot {
+        private Timeout head;
+        private Timeout tail;
+        
+        private void add(Timeout timeout) {
+            timeout.slot = this;
+            timeout.prev = tail;
+            if(tail==null) head = timeout;
+            else tail.next = timeout;
+            tail = timeout;
+        }
+        
+        private void remove(Timeout timeout) {
+            if(timeout.prev==null) head = timeout.next;
+            else timeout.prev.next = timeout.next;
+            if(timeout.next==null) tail = timeout.prev;
+            else timeout.next.prev = timeout.prev;
+            timeout.prev = timeout.next = null;
+            timeout.slot = null;
+        }
+    }
+    
+    private static class Timeout implements Delayed, Runnable {
+        private static final int Pending = 0;
+        private static final int Expired = 1;
+        private static final int Cancelled = 2;
+        private static final AtomicIntegerFieldUpdater<Timeout> StateUpdater =
+            AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+        
+        private final long deadline;
+        private final long tick;
         private final IOExceptionRunnable run;
         private final Consumer<Exception> exHandler;
-
+        private volatile int state = Pending;
+        
+        /** 所在的槽及链表前后节点，只在时间轮线程上访问 */
+        private Slot slot;
+        private Timeout prev;
+        private Timeout next;
+        
+        private Timeout(long deadline, long tick, IOExceptionRunnable run, Consumer<Exception> exHandler) {
+            this.deadline = deadline;
+            this.tick = tick;
+            this.run = run;
+            this.exHandler = exHandler;
+        }
+        
+        private boolean transit(int to) {
+            return StateUpdater.compareAndSet(this, Pending, to);
+        }
+        
         @Override
-        public int compareTo(Delayed o) {
-            return Long.compare(getDelay(MILLISECONDS), o.getDelay(MILLISECONDS));
+        public void run() {
+            try{
+                run.run();
+            }catch(Exception e){
+                exHandler.accept(e);
+            }
         }
-
+        
         @Override
         public long getDelay(TimeUnit unit) {
-            long delay = createTime+delayMs-System.currentTimeMillis();
-            return unit.convert(delay, MILLISECONDS);
+            return unit.convert(deadline-System.nanoTime(), NANOSECONDS);
+        }
+        
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(getDelay(NANOSECONDS), o.getDelay(NANOSECONDS));
         }
-
     }
-
+    
 }
\ No newline at end of file
@@ -0,0 +1,184 @@
+package com.lvt4j.socketproxy;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import com.lvt4j.socketproxy.Config.Engine;
+import com.lvt4j.socketproxy.ProxyApp.IOExceptionConsumer;
+import com.lvt4j.socketproxy.ProxyApp.IoExceptionBiConsumer;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 按CPU核数固定大小的事件循环组
+ * <pre>
+ * 每个{@link EventLoop}只有一个selector及其线程（{@link ChannelSelector}），
+ * 其connector、reader、writer、transmitter都以handler的形式注册在该selector上，
+ * transmitter按{@link Config#getEngine()}为selector引擎（注册在loop的selector上）或阻塞引擎（所有loop共用），
+ * 阻塞引擎时tcp、socks5、http连接的建立、握手也在阻塞引擎的线程上（见{@link BlockingProtocolService}），只有accept的分发经过loop，
+ * {@link ChannelAcceptor}的线程只负责accept，接受的连接经{@link #dispatch}交给{@link #next()}选定的loop，
+ * 之后其建立（{@link EventLoop#dispatch}）、握手（{@link EventLoop#protocol}）、读写转发都在该loop的线程上，
+ * 线程数只与核数相关，不再随监听端口、intranet服务的数量增长
+ * 可选的worker线程池（{@link Config#getCallbackWorkers()}）用于执行连接上的非IO回调，见{@link #worker()}
+ * </pre>
+ * @author LV on 2026年10月18日
+ */
+@Slf4j
+@Service
+public class EventLoopGroup {
+    
+    @Autowired
+    private Config config;
+    /** 所有loop的connector共用，未注入时各connector自建 */
+    @Autowired
+    private Resolver resolver;
+    
+    private EventLoop[] loops;
+    private final AtomicInteger idx = new AtomicInteger();
+    
+    /** 执行非IO回调的worker线程池，为null时回调仍在selector线程上执行 */
+    private ExecutorService workers;
+    /** 阻塞引擎时所有loop共用的transmitter，也提供阻塞握手的线程 */
+    private BlockingTransmitter blockingTransmitter;
+    
+    @PostConstruct
+    public void init() throws IOException {
+        init("EventLoop", Runtime.getRuntime().availableProcessors(), config.getCallbackWorkers(), config.getEngine());
+    }
+    public void init(String name, int size) throws IOException {
+        init(name, size, 0, Engine.Selector);
+    }
+    public void init(String name, int size, int workerNum, Engine engine) throws IOException {
+        if(engine==Engine.Blocking && !BlockingTransmitter.virtualThreadSupported()){
+            log.warn("{} 阻塞引擎需要JDK21及以上的虚拟线程，当前JDK不支持，使用selector引擎", name);
+            engine = Engine.Selector;
+        }
+        if(engine==Engine.Blocking) blockingTransmitter = new BlockingTransmitter(name+" engine");
+        if(workerNum>0){
+            AtomicInteger workerIdx = new AtomicInteger();
+            workers = Executors.newFixedThreadPool(workerNum, r->{
+                Thread t = new Thread(r, name+" worker-"+workerIdx.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            });
+            workers = ExecutorServiceMetrics.monitor(Metrics.globalRegistry, workers, name+" worker");
+        }
+        loops = new EventLoop[size];
+        try{
+            for(int i=0; i<size; i++) loops[i] = new EventLoop(name+"-"+i, resolver, blockingTransmitter);
+        }catch(IOException e){
+            destory();
+            throw e;
+        }
+    }
+    
+    @PreDestroy
+    public void destory() {
+        if(loops!=null){
+            for(EventLoop loop : loops){
+                if(loop!=null) loop.destory();
+            }
+        }
+        if(blockingTransmitter!=null) blockingTransmitter.destory();
+        if(workers!=null){
+            workers.shutdown();
+            try{
+                workers.awaitTermination(1, TimeUnit.SECONDS);
+            }catch(InterruptedException ig){}
+        }
+    }
+    
+    /**
+     * 轮询选出一个loop
+     */
+    public EventLoop next() {
+        return loops[Math.floorMod(idx.getAndIncrement(), loops.length)];
+    }
+    
+    /**
+     * 将acceptor接受的连接交给{@link #next()}选出的loop，onAccept在该loop的线程上执行
+     * @param exHandler onAccept抛出的异常在loop的线程上交给它处理
+     * @return 交给{@link ChannelAcceptor}的onAccept
+     */
+    public IOExceptionConsumer<SocketChannel> dispatch(IoExceptionBiConsumer<EventLoop, SocketChannel> onAccept, Consumer<Exception> exHandler) {
+        return channel->{
+            EventLoop loop = next();
+            loop.selector.add(()->{
+                try{
+                    onAccept.accept(loop, channel);
+                }catch(Exception e){
+                    exHandler.accept(e);
+                }
+            });
+        };
+    }
+    
+    /**
+     * 为一个连接创建回调执行器，提交到其上的回调在worker线程上按提交顺序串行执行，
+     * 未启用worker时回调直接在调用者（selector）线程上执行
+     */
+    public SerialExecutor worker() {
+        return new SerialExecutor(workers);
+    }
+    
+    public int size() {
+        return loops.length;
+    }
+    
+    public static class EventLoop {
+        /** 本loop唯一的selector线程，以下组件都注册在其上 */
+        public final ChannelSelector selector;
+        public final ChannelConnector connector;
+        public final ChannelReader reader;
+        public final ChannelWriter writer;
+        public final Transmitter transmitter;
+        /** 在本loop的reader、writer、connector上握手，阻塞引擎时在其线程上阻塞握手 */
+        public final ProtocolService protocol;
+        
+        private EventLoop(String name, Resolver resolver, BlockingTransmitter blockingTransmitter) throws IOException {
+            selector = new ChannelSelector(name);
+            connector = new ChannelConnector(); connector.init(name+" connector", resolver, selector);
+            reader = new ChannelReader(); reader.init(selector);
+            writer = new ChannelWriter(); writer.init(selector);
+            transmitter = blockingTransmitter!=null ? blockingTransmitter : new ChannelTransmitter(name+" transmitter", selector);
+            protocol = blockingTransmitter!=null ? new BlockingProtocolService(reader, writer, connector, blockingTransmitter)
+                : new ProtocolService(reader, writer, connector);
+        }
+        
+        /**
+         * 将acceptor接受的连接交给本loop，onAccept在本loop的线程上执行
+         * @see EventLoopGroup#dispatch(IoExceptionBiConsumer, Consumer)
+         */
+        public IOExceptionConsumer<SocketChannel> dispatch(IOExceptionConsumer<SocketChannel> onAccept, Consumer<Exception> exHandler) {
+            return channel->selector.add(()->{
+                try{
+                    onAccept.accept(channel);
+                }catch(Exception e){
+                    exHandler.accept(e);
+                }
+            });
+        }
+        
+        private void destory() {
+            selector.destory();
+            connector.destory();
+            reader.destory();
+            writer.destory();
+            if(transmitter instanceof ChannelTransmitter) transmitter.destory();
+        }
+    }
+    
+}
\ No newline at end of file
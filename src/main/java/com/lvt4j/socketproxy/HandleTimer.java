@@ -0,0 +1,40 @@
+package com.lvt4j.socketproxy;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * selector线程上每个就绪channel的处理（含IO及回调）占用线程的耗时，指标selector.handle
+ * <pre>
+ * 每个就绪key都记录一次，处于最热的路径上，因此只记录次数、总耗时及最大值，不发布百分位直方图
+ * </pre>
+ * @author LV on 2026年10月18日
+ */
+public class HandleTimer {
+    
+    private final Timer timer;
+    
+    public HandleTimer(String selector) {
+        timer = Timer.builder("selector.handle")
+            .description("time a ready channel occupies the selector thread, io and callbacks included")
+            .tag("selector", selector)
+            .register(Metrics.globalRegistry);
+    }
+    
+    /**
+     * @param begin 开始处理时的{@link System#nanoTime()}
+     */
+    public void record(long begin) {
+        timer.record(System.nanoTime()-begin, NANOSECONDS);
+    }
+    
+    /**
+     * selector关闭时从注册表中移除
+     */
+    public void remove() {
+        Metrics.globalRegistry.remove(timer);
+    }
+    
+}
\ No newline at end of file
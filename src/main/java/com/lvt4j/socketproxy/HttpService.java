@@ -17,6 +17,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.TreeMap;
+import java.util.function.Consumer;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
@@ -29,6 +30,8 @@ import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
 import com.google.common.collect.ImmutableSet;
+import com.lvt4j.socketproxy.Config.SocketProfile;
+import com.lvt4j.socketproxy.EventLoopGroup.EventLoop;
 
 import lombok.extern.slf4j.Slf4j;
 
@@ -48,7 +51,7 @@ public class HttpService implements InfoContributor {
     @Autowired
     private ChannelAcceptor acceptor;
     @Autowired
-    private ProtocolService protocolService;
+    private EventLoopGroup loops;
     
     private Map<Integer, ServerMeta> servers = new HashMap<>();
     
@@ -80,7 +83,7 @@ public class HttpService implements InfoContributor {
         ImmutableSet.copyOf(servers.values()).forEach(ServerMeta::destory);
     }
 
-    @Scheduled(cron="0/10 * * * * ?")
+    @Scheduled(cron="* * * * * ?")
     public synchronized void cleanIdle() {
         servers.values().forEach(ServerMeta::cleanIdle);
     }
@@ -95,48 +98,35 @@ public class HttpService implements InfoContributor {
     private class ServerMeta {
         
         private int port;
-        private ServerSocketChannel serverSocketChannel;
-        
-        private ChannelTransmitter src2target;
-        private ChannelTransmitter target2src;
+        private List<ServerSocketChannel> serverSocketChannels;
         
         private List<ConnectMeta> connections = Collections.synchronizedList(new LinkedList<>());
+        private IdleTracker idleTracker = new IdleTracker(config::getMaxIdleTime);
         
         public ServerMeta(int port) throws IOException {
             this.port = port;
             
             try{
-                serverSocketChannel = ProxyApp.server(null, port);
-                
-                src2target = new ChannelTransmitter(port+" s->t");
-                target2src = new ChannelTransmitter(port+" t->s");
-                
-                acceptor.accept(serverSocketChannel, this::accept, e->log.error("establish connection err", e));
+                Consumer<Exception> exHandler = e->log.error("establish connection err", e);
+                serverSocketChannels = acceptor.listen(null, port, config.getAcceptors(), config.getAcceptBacklog(), config.getSocket()
+                    ,loops.dispatch(this::accept, exHandler), exHandler);
             }catch(Exception e){
                 destory();
                 throw e;
             }
         }
-        private void accept(SocketChannel src) throws IOException {
-            connections.add(new ConnectMeta(src));
+        private void accept(EventLoop loop, SocketChannel src) throws IOException {
+            connections.add(new ConnectMeta(loop, src));
         }
         public void destory() {
             ImmutableSet.copyOf(connections).forEach(ConnectMeta::destory);
-            if(src2target!=null) src2target.destory();
-            if(target2src!=null) target2src.destory();
-            ProxyApp.close(serverSocketChannel);
-            acceptor.waitDeregister(serverSocketChannel);
+            acceptor.close(serverSocketChannels);
             servers.remove(port);
             log.info("{} http5代理停止", port);
         }
         
         public void cleanIdle() {
-            synchronized (connections) {
-                for(ConnectMeta connect : ImmutableSet.copyOf(connections)){
-                    if(System.currentTimeMillis()-connect.latestTouchTime<config.getMaxIdleTime()) continue;
-                    connect.destory();
-                }
-            }
+            idleTracker.sweep();
         }
 
         public String info() {
@@ -151,6 +141,12 @@ public class HttpService implements InfoContributor {
         }
         
         private class ConnectMeta {
+            /** 本连接固定使用的loop（accept时选定），建立、握手、转发都在该loop上 */
+            private final EventLoop loop;
+            /** 非IO回调（连接建立后的日志、异常处理等），未启用worker时仍在selector线程上执行 */
+            private final SerialExecutor worker = loops.worker();
+            private final Consumer<Exception> exHandler = worker.offload(this::onException);
+            
             private final SocketChannel src;
             
             private String targetStr;
@@ -158,12 +154,14 @@ public class HttpService implements InfoContributor {
             
             private String direction;
             
-            private long latestTouchTime = System.currentTimeMillis();
+            private final IdleTracker.Entry idle = idleTracker.track(this::abort);
             
-            public ConnectMeta(SocketChannel src) throws IOException {
+            public ConnectMeta(EventLoop loop, SocketChannel src) throws IOException {
+                this.loop = loop;
                 this.src = src;
                 try{
                     src.configureBlocking(false);
+                    SocketProfile.apply(config.getSocket(), src);
                     
                     targetStr = "initializing";
                     direction = String.format("%s->%s->%s->%s"
@@ -172,7 +170,7 @@ public class HttpService implements InfoContributor {
                     
                     if(log.isTraceEnabled()) log.trace("{} connecting {}", port, direction);
                     
-                    protocolService.http_server_connect(src, (targetStr, target)->{
+                    loop.protocol.http_server_connect(src, config.getSocket(), config.getConnectTimeout(), worker.offload((targetStr, target)->{
                         ConnectMeta.this.targetStr = targetStr;
                         ConnectMeta.this.target = target;
                         
@@ -180,11 +178,10 @@ public class HttpService implements InfoContributor {
                             ,format(src.getRemoteAddress()), port(src.getLocalAddress())
                             ,port(target.getLocalAddress()), format(target.getRemoteAddress()));
                         
-                        src2target.transmit(src, target, 1024, this::onTrans, this::onException);
-                        target2src.transmit(target, src, 1024, this::onTrans, this::onException);
+                        loop.transmitter.transmit(src, target, config.getTransmitBufferMin(), config.getTransmitBufferMax(), this::onTrans, exHandler);
                         
                         log.info("{} connected {}", port, direction);
-                    }, this::onException);
+                    }, this::onException), exHandler);
                 }catch(IOException e){
                     destory();
                     throw e;
@@ -192,11 +189,24 @@ public class HttpService implements InfoContributor {
             }
             
             private void onTrans() {
-                latestTouchTime = System.currentTimeMillis();
+                idle.touch();
             }
             
             private synchronized void onException(Exception e) {
-                if(!ProxyApp.isCloseException(e)) log.error("connection {} err", direction, e);
+                if(ProxyApp.isCloseException(e)){
+                    destory();
+                    return;
+                }
+                log.error("connection {} err", direction, e);
+                abort();
+            }
+            
+            /**
+             * 出错、闲置超时时中止连接，见{@link SocketProfile#abort}
+             */
+            private void abort() {
+                SocketProfile.abort(config.getSocket(), src);
+                SocketProfile.abort(config.getSocket(), target);
                 destory();
             }
             
@@ -204,6 +214,7 @@ public class HttpService implements InfoContributor {
                 ProxyApp.close(src);
                 ProxyApp.close(target);
                 connections.remove(this);
+                idleTracker.untrack(idle);
                 
                 log.info("{} disconnected {}", port, direction);
             }
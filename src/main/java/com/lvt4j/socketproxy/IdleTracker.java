@@ -0,0 +1,193 @@
+package com.lvt4j.socketproxy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 连接闲置跟踪
+ * <pre>
+ * 每次转发只调用{@link Entry#touch()}记录一下粗粒度时钟（由后台线程每{@link #ClockResolution}毫秒更新），不加锁、不调用系统时间
+ * 连接按到期时间（最近一次touch+maxIdle）放入按秒划分的时间轮槽中（双向链表），跟踪、取消跟踪均为O(1)
+ * {@link #sweep()}只处理已到期的槽：其中确实闲置超时的连接回调onIdle，期间有过touch的按新的到期时间重新放入
+ * 每秒调用一次sweep，闲置超时在1秒内被清理（因时钟粗粒度，最多提前{@link #ClockResolution}毫秒）；maxIdle变化时所有连接按新值重新放置
+ * </pre>
+ * @author LV on 2026年10月18日
+ */
+@Slf4j
+public class IdleTracker {
+    
+    /** 粗粒度时钟的更新间隔毫秒数 */
+    public static final long ClockResolution = 10;
+    /** 时间轮每槽的毫秒数 */
+    public static final long SlotMillis = 1000;
+    private static final int SlotNum = 64;
+    
+    private static volatile long now = System.currentTimeMillis();
+    
+    static {
+        Thread clock = new Thread("IdleTracker clock"){
+            @Override
+            public void run() {
+                while(true){
+                    LockSupport.parkNanos(ClockResolution*1000000);
+                    now = System.currentTimeMillis();
+                }
+            }
+        };
+        clock.setDaemon(true);
+        clock.start();
+    }
+    
+    /**
+     * 粗粒度的当前时间，最多落后{@link #ClockResolution}毫秒
+     */
+    public static long now() {
+        return now;
+    }
+    
+    private final LongSupplier maxIdle;
+    
+    private final Slot[] wheel = new Slot[SlotNum];
+    /** 当前各连接到期时间所依据的maxIdle */
+    private long placedMaxIdle;
+    /** 已处理完的槽（秒），之前的槽都已处理 */
+    private long sweptSlot;
+    private int size;
+    
+    /**
+     * @param maxIdle 闲置超时毫秒数，每次sweep时读取
+     */
+    public IdleTracker(LongSupplier maxIdle) {
+        this.maxIdle = maxIdle;
+        for(int i=0; i<SlotNum; i++) wheel[i] = new Slot();
+        this.placedMaxIdle = maxIdle.getAsLong();
+        this.sweptSlot = System.currentTimeMillis()/SlotMillis-1;
+    }
+    
+    /**
+     * 开始跟踪一个连接
+     * @param onIdle 闲置超时后的回调，回调前已取消跟踪
+     */
+    public synchronized Entry track(Runnable onIdle) {
+        Entry entry = new Entry(onIdle);
+        place(entry);
+        size++;
+        return entry;
+    }
+    
+    /**
+     * 取消跟踪，可重复调用
+     */
+    public synchronized void untrack(Entry entry) {
+        if(entry.slot==null) return;
+        entry.slot.remove(entry);
+        size--;
+    }
+    
+    public synchronized int size() {
+        return size;
+    }
+    
+    /**
+     * 清理闲置超时的连接，只处理已到期的槽
+     */
+    public void sweep() {
+        List<Entry> idles = new ArrayList<>();
+        synchronized(this){
+            long current = System.currentTimeMillis();
+            now = current;
+            long maxIdle = this.maxIdle.getAsLong();
+            if(maxIdle!=placedMaxIdle){
+                placedMaxIdle = maxIdle;
+                for(Slot slot : wheel) replace(slot, current, idles);
+            }
+            long currentSlot = current/SlotMillis;
+            for(long s=Math.max(sweptSlot+1, currentSlot-SlotNum+1); s<=currentSlot; s++){
+                replace(wheel[(int)(s%SlotNum)], current, idles);
+            }
+            //当前槽可能还有未到期的，下次仍需处理
+            sweptSlot = currentSlot-1;
+        }
+        for(Entry entry : idles){
+            try{
+                entry.onIdle.run();
+            }catch(Exception e){
+                log.error("idle callback err", e);
+            }
+        }
+    }
+    
+    /**
+     * 取出槽中所有连接，闲置超时的放入idles，其余按到期时间重新放置
+     */
+    private void replace(Slot slot, long current, List<Entry> idles) {
+        Entry entry = slot.head;
+        slot.head = slot.tail = null;
+        while(entry!=null){
+            Entry next = entry.next;
+            entry.prev = entry.next = null;
+            entry.slot = null;
+            if(current-entry.touchTime>=placedMaxIdle){
+                size--;
+                idles.add(entry);
+            }else{
+                place(entry);
+            }
+            entry = next;
+        }
+    }
+    
+    private void place(Entry entry) {
+        long dueSlot = Math.max((entry.touchTime+placedMaxIdle)/SlotMillis, sweptSlot+1);
+        wheel[(int)(dueSlot%SlotNum)].add(entry);
+    }
+    
+    private static class Slot {
+        private Entry head;
+        private Entry tail;
+        
+        private void add(Entry entry) {
+            entry.slot = this;
+            entry.prev = tail;
+            if(tail==null) head = entry;
+            else tail.next = entry;
+            tail = entry;
+        }
+        
+        private void remove(Entry entry) {
+            if(entry.prev==null) head = entry.next;
+            else entry.prev.next = entry.next;
+            if(entry.next==null) tail = entry.prev;
+            else entry.next.prev = entry.prev;
+            entry.prev = entry.next = null;
+            entry.slot = null;
+        }
+    }
+    
+    public static class Entry {
+        private final Runnable onIdle;
+        private volatile long touchTime = now;
+        
+        /** 所在的槽及链表前后节点，只在持有tracker锁时访问 */
+        private Slot slot;
+        private Entry prev;
+        private Entry next;
+        
+        private Entry(Runnable onIdle) {
+            this.onIdle = onIdle;
+        }
+        
+        /**
+         * 记录一次活动
+         */
+        public void touch() {
+            long now = IdleTracker.now;
+            if(touchTime!=now) touchTime = now;
+        }
+    }
+    
+}
\ No newline at end of file
@@ -5,28 +5,31 @@ import static com.lvt4j.socketproxy.ProxyApp.isCloseException;
 import static com.lvt4j.socketproxy.ProxyApp.port;
 import static java.net.InetAddress.getByName;
 import static java.util.stream.Collectors.joining;
+import static java.util.stream.Collectors.toList;
+import static org.apache.commons.lang3.ObjectUtils.firstNonNull;
 import static org.apache.commons.lang3.StringUtils.firstNonBlank;
 import static org.apache.commons.lang3.StringUtils.isBlank;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
@@ -38,10 +41,13 @@ import org.springframework.boot.actuate.info.InfoContributor;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.net.HostAndPort;
 import com.google.common.primitives.Ints;
 import com.lvt4j.socketproxy.Config.IntranetConfig;
+import com.lvt4j.socketproxy.Config.SocketProfile;
+import com.lvt4j.socketproxy.EventLoopGroup.EventLoop;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -61,7 +67,7 @@ public class IntranetService implements InfoContributor {
     @Autowired
     private ChannelAcceptor acceptor;
     @Autowired
-    private ChannelConnector connector;
+    private EventLoopGroup loops;
     @Autowired
     private DelayRunner delayRunner;
     
@@ -107,7 +113,7 @@ public class IntranetService implements InfoContributor {
         ImmutableSet.copyOf(servers.values()).forEach(Server::destory);
     }
     
-    @Scheduled(cron="0/10 * * * * ?")
+    @Scheduled(cron="* * * * * ?")
     public synchronized void cleanIdle() {
         servers.values().forEach(Server::cleanIdle);
     }
@@ -127,24 +133,31 @@ public class IntranetService implements InfoContributor {
         builder.withDetail("intranet", infos);
     }
 
-    private class EntryServer extends Thread implements Server {
+    private class EntryServer extends Thread implements Server, IntranetTunnel.Handler {
         private final IntranetConfig config;
         
         private final int relay;
         private final ServerSocketChannel relayServer;
-        private SocketChannel relayer;
-        private long lastHeartBeatTime;
+        /** 接入的relay隧道及其所属组（还未收到{@link MsgType.Join}时为null），新的连接分配到负载最低的隧道上 */
+        private final Map<IntranetTunnel, Long> relayers = new LinkedHashMap<>();
+        /** 负载相同的隧道从该位置起轮流分配 */
+        private int cursor;
         
         private final int port;
-        private final ServerSocketChannel server;
+        private final List<ServerSocketChannel> server;
         private final AtomicInteger idx = new AtomicInteger();
         
+        /** relayer及其上所有连接共用一个loop */
         private final ChannelReader reader;
         private final ChannelWriter writer;
         
+        /** 接入的client连接的socket调优 */
+        private final SocketProfile socket;
+        
         private String direction;
         
         private Map<Integer, ConnectMeta> connections = new ConcurrentHashMap<>();
+        private IdleTracker idleTracker = new IdleTracker(IntranetService.this.config::getMaxIdleTime);
         
         private volatile boolean destoried = false;
         
@@ -152,18 +165,23 @@ public class IntranetService implements InfoContributor {
             this.config = config;
             this.port = config.port;
             this.relay = config.relay;
+            this.socket = SocketProfile.merge(config.getSocket(), IntranetService.this.config.getSocket());
             
             try{
-                String entryHost = firstNonBlank(config.getEntryHost(), config.getHost());
-                server = ProxyApp.server(isBlank(entryHost)?null:getByName(entryHost), port);
                 String relayHost = firstNonBlank(config.getRelayHost(), config.getHost());
-                relayServer = ProxyApp.server(isBlank(relayHost)?null:getByName(relayHost), relay);
+                relayServer = ProxyApp.server(isBlank(relayHost)?null:getByName(relayHost), relay, 0, false, IntranetService.this.config.getSocket());
                 
-                reader = new ChannelReader(); reader.init(port+" entry reader");
-                writer = new ChannelWriter(); writer.init(port+" entry writer");
+                EventLoop loop = loops.next();
+                reader = loop.reader;
+                writer = loop.writer;
                 
-                acceptor.accept(relayServer, this::relayAccept, e->log.error("establish relay connection err", e));
-                acceptor.accept(server, this::serverAccept, e->log.error("establish client connection err", e));
+                Consumer<Exception> relayExHandler = e->log.error("establish relay connection err", e);
+                acceptor.accept(relayServer, loop.dispatch(this::relayAccept, relayExHandler), relayExHandler);
+                String entryHost = firstNonBlank(config.getEntryHost(), config.getHost());
+                Consumer<Exception> clientExHandler = e->log.error("establish client connection err", e);
+                server = acceptor.listen(isBlank(entryHost)?null:getByName(entryHost), port
+                    ,IntranetService.this.config.getAcceptors(), IntranetService.this.config.getAcceptBacklog(), socket
+                    ,loop.dispatch(this::serverAccept, clientExHandler), clientExHandler);
                 
                 direction = String.format("%s->%s", port, relay);
                 
@@ -177,11 +195,8 @@ public class IntranetService implements InfoContributor {
         public synchronized void destory() {
             destoried = true; interrupt(); try{ join(1000); }catch(Exception ig){}
             ImmutableSet.copyOf(connections.values()).forEach(ConnectMeta::destory);
-            if(reader!=null) reader.destory();
-            if(writer!=null) writer.destory();
-            ProxyApp.close(server);
-            acceptor.waitDeregister(server);
-            ProxyApp.close(relayer); relayer=null;
+            acceptor.close(server);
+            relayDestory(t->true);
             ProxyApp.close(relayServer);
             acceptor.waitDeregister(relayServer);
             servers.remove(config);
@@ -192,73 +207,82 @@ public class IntranetService implements InfoContributor {
             try{
                 log.info("{} intranet relay {} 接入", port, format(relayer.getRemoteAddress()));
             }catch(Exception ig){}
-            relayDestory();
+            //未加入组的旧隧道：旧版本relay重连时替换旧隧道；同一relay逐条建立隧道，不会有其他未加入组的
+            relayDestory(t->relayers.get(t)==null);
             relayer.configureBlocking(false);
-            lastHeartBeatTime = System.currentTimeMillis();
-            this.relayer = relayer;
-            direction = String.format("%s->%s->%s", port, relay, format(relayer.getRemoteAddress()));
-            relayRead();
-        }
-        private void relayRead() {
-            reader.readOne(relayer, type->{
-                switch(type){
-                case MsgType.HeartBeat.Type:
-                    lastHeartBeatTime = System.currentTimeMillis();
-                    relayRead();
-                    break;
-                case MsgType.Transmit.Type:
-                    reader.readUntilLength(relayer, 4, idBs->{
-                        int id = Ints.fromByteArray(idBs);
-                        reader.readUntilLength(relayer, 4, lenBs->{
-                            int len = Ints.fromByteArray(lenBs);
-                            reader.readUntilLength(relayer, len, data->{
-                                relayRead();
-                                ConnectMeta connect = connections.get(id);
-                                if(connect==null) return;
-                                connect.dataFromRelayToSrc(data);
-                            }, this::relayException);
-                        }, this::relayException);
-                    }, this::relayException);
-                    break;
-                case MsgType.ConnectClose.Type:
-                    reader.readUntilLength(relayer, 4, idBs->{
-                        relayRead();
-                        int id = Ints.fromByteArray(idBs);
-                        ConnectMeta connect = connections.get(id);
-                        if(connect==null) return;
-                        connect.destory(false);
-                    }, this::relayException);
-                    break;
-                default:
-                    log.warn("unknown msg type : {}", type);
-                    relayRead();
-                    break;
-                }
-            }, this::relayException);
+            SocketProfile.apply(IntranetService.this.config.getSocket(), relayer);
+            IntranetTunnel tunnel = new IntranetTunnel("entry:"+port, relayer, reader, writer, this);
+            relayers.put(tunnel, null);
+            direction();
+            tunnel.start(true);
         }
-        private synchronized void relayException(Exception e) {
-            if(!isCloseException(e)) log.error("relay err", e);
-            relayDestory();
+        private void direction() {
+            List<String> remotes = relayers.keySet().stream().map(this::remote).collect(toList());
+            direction = String.format("%s->%s->%s", port, relay, StringUtils.join(remotes, ","));
         }
-        private synchronized void relayDestory() {
-            if(relayer==null) return;
+        private String remote(IntranetTunnel tunnel) {
             try{
-                log.info("{} intranet relay {} 断开", port, format(relayer.getRemoteAddress()));
-            }catch(Exception ig){}
-            ImmutableSet.copyOf(connections.values()).forEach(ConnectMeta::destory);
-            ProxyApp.close(relayer);
-            relayer = null;
+                return format(tunnel.getChannel().getRemoteAddress());
+            }catch(Exception e){
+                return "closed";
+            }
         }
-        private void relayerCheck() throws IOException {
-            if(relayer==null) throw new IOException("转发服务未连接");
+        @Override
+        public void onTransmit(IntranetTunnel tunnel, int id, byte[] data) {
+            ConnectMeta connect = connections.get(id);
+            if(connect!=null) connect.dataFromRelayToSrc(data);
         }
-        private synchronized void relayWriteTransmit(byte[] body) throws IOException {
-            relayerCheck();
-            writer.write(relayer, body, this::relayException);
+        @Override
+        public void onConnectClose(IntranetTunnel tunnel, int id) {
+            ConnectMeta connect = connections.get(id);
+            if(connect==null) return;
+            connect.destory(false);
         }
-        private synchronized void relayWriteConnectClose(byte[] body) {
-            if(relayer==null) return;
-            writer.write(relayer, body, e->{});
+        @Override
+        public void onSwitch(IntranetTunnel tunnel) {}
+        @Override
+        public synchronized void onJoin(IntranetTunnel tunnel, long group) {
+            if(!relayers.containsKey(tunnel)) return;
+            relayers.put(tunnel, group);
+            //relay重启后为新的组，旧组的隧道已失效
+            relayDestory(t->relayers.get(t)!=null && relayers.get(t)!=group);
+            //回复后relay才建立下一条隧道
+            tunnel.writeJoin(group);
+        }
+        @Override
+        public synchronized void onException(IntranetTunnel tunnel, Exception e) {
+            if(!relayers.containsKey(tunnel)) return;
+            if(!isCloseException(e)) log.error("relay err", e);
+            relayDestory(t->t==tunnel);
+        }
+        /**
+         * 断开符合条件的隧道，只关闭其上的连接
+         */
+        private synchronized void relayDestory(Predicate<IntranetTunnel> filter) {
+            for(IntranetTunnel tunnel : ImmutableList.copyOf(relayers.keySet())){
+                if(!filter.test(tunnel)) continue;
+                log.info("{} intranet relay {} 断开", port, remote(tunnel));
+                relayers.remove(tunnel);
+                connections.values().stream().filter(c->c.tunnel==tunnel).collect(toList()).forEach(ConnectMeta::destory);
+                tunnel.close();
+            }
+            direction();
+        }
+        /**
+         * 连接数最少的隧道，连接数相同时取积压最少的，仍相同时从{@link #cursor}起取第一个
+         */
+        private synchronized IntranetTunnel relayerCheck() throws IOException {
+            if(relayers.isEmpty()) throw new IOException("转发服务未连接");
+            Comparator<IntranetTunnel> load = Comparator.comparingInt(IntranetTunnel::streamCount)
+                .thenComparingLong(IntranetTunnel::backlog);
+            List<IntranetTunnel> members = ImmutableList.copyOf(relayers.keySet());
+            cursor = (cursor+1)%members.size();
+            IntranetTunnel picked = null;
+            for(int i=0; i<members.size(); i++){
+                IntranetTunnel member = members.get((cursor+i)%members.size());
+                if(picked==null || load.compare(member, picked)<0) picked = member;
+            }
+            return picked;
         }
         
         private synchronized void serverAccept(SocketChannel client) throws IOException {
@@ -277,55 +301,59 @@ public class IntranetService implements InfoContributor {
         }
         
         public synchronized void heartbeat() {
-            if(relayer==null) return;
-            if(System.currentTimeMillis()-lastHeartBeatTime>=config.getHeartbeatMissTimeout()) {
-                relayException(new TimeoutException("超时未收到relayer心跳"));
-                return;
+            for(IntranetTunnel relayer : ImmutableList.copyOf(relayers.keySet())){
+                if(!relayer.readPaused() && System.currentTimeMillis()-relayer.getLastHeartBeatTime()>=config.getHeartbeatMissTimeout()) {
+                    onException(relayer, new TimeoutException("超时未收到relayer心跳"));
+                    continue;
+                }
+                relayer.writeHeartbeat();
             }
-            writer.write(relayer, MsgType.HeartBeat.Packet, this::relayException);
         }
         @Override
         public synchronized void cleanIdle() {
-            for(ConnectMeta connect : ImmutableSet.copyOf(connections.values())){
-                if(System.currentTimeMillis()-connect.latestTouchTime<IntranetService.this.config.getMaxIdleTime()) continue;
-                connect.destory();
-            }
+            idleTracker.sweep();
         }
         
         public String info() {
             List<Object> infos = new LinkedList<>();
             infos.add("  "+direction);
-            connections.values().stream().sorted((c1,c2)->Integer.compare(c1.id, c2.id)).forEach(c->infos.add("  - "+c.id+": "+c.direction));
+            synchronized(this){
+                relayers.keySet().forEach(t->infos.add("  = "+remote(t)+" "+t.stats()+" streams:"+t.streamCount()));
+            }
+            connections.values().stream().sorted((c1,c2)->Integer.compare(c1.id, c2.id)).forEach(c->infos.add("  - "+c.id+": "+c.direction+" "+c.stream.stats()));
             return StringUtils.join(infos, "\n");
         }
         
         @RequiredArgsConstructor
         private class ConnectMeta {
             private final int id;
-            private final byte[] idBs;
             
             private final SocketChannel client;
+            /** 该连接所在的隧道 */
+            private final IntranetTunnel tunnel;
+            private final IntranetTunnel.Stream stream;
             
             private final String direction;
             
-            private long latestTouchTime = System.currentTimeMillis();
-            
-            private AtomicLong prepareWrite2ClientDataIder = new AtomicLong();
-            private Set<Long> prepareWrite2ClientDataIds = Collections.synchronizedSet(new HashSet<>());
-            private volatile boolean prepareCloseClient = false;
+            private final IdleTracker.Entry idle = idleTracker.track(this::abort);
             
             public ConnectMeta(int id, SocketChannel client) throws IOException {
-                this.id = id; this.idBs = Ints.toByteArray(id);
+                this.id = id;
                 this.client = client;
                 
                 try{
-                    relayerCheck();
+                    tunnel = relayerCheck();
+                    stream = tunnel.stream(id);
                     
                     client.configureBlocking(false);
+                    SocketProfile.apply(socket, client);
                     
                     direction = String.format("%s->%s" ,format(client.getRemoteAddress()), port(client.getLocalAddress()));
+                    stream.weight(config.weightOf(client.getRemoteAddress()));
                     
-                    reader.readAny(client, 1024, this::dataFromClientToRelay, this::onException);
+                    writer.backpressure(client, ()->tunnel.pauseRead(id), ()->tunnel.resumeRead(id));
+                    int chunkSize = tunnel.writeVersion()==MsgType.Version1 ? 1024 : MsgType.V2ChunkSize;
+                    stream.source(reader.readStream(client, chunkSize, this::dataFromClientToRelay, this::onException));
                     
                     log.info("{} connected {}", port, direction);
                 }catch(Exception e){
@@ -334,28 +362,35 @@ public class IntranetService implements InfoContributor {
                 }
             }
             private void dataFromRelayToSrc(byte[] data) {
-                long prepareWrite2ClientDataId = prepareWrite2ClientDataIder.incrementAndGet();
-                prepareWrite2ClientDataIds.add(prepareWrite2ClientDataId);
-                writer.write(client, data, ()->{
-                    prepareWrite2ClientDataIds.remove(prepareWrite2ClientDataId);
-                    closeClientIfPossible();
-                }, this::onException);
+                writer.write(client, data, ()->stream.onConsumed(data.length), this::onException);
                 onTrans();
             }
             private void dataFromClientToRelay(ByteBuffer data) throws IOException {
-                EntryServer.this.relayWriteTransmit(MsgType.Transmit.packet(idBs, data));
+                int length = data.remaining();
+                stream.writeTransmit(data);
+                stream.onSend(length);
                 onTrans();
-                
-                reader.readAny(client, data, this::dataFromClientToRelay, this::onException);
             }
             
             private void onTrans() {
-                latestTouchTime = System.currentTimeMillis();
+                idle.touch();
             }
             
             private synchronized void onException(Exception e) {
-                prepareWrite2ClientDataIds.clear();
-                if(!isCloseException(e)) log.error("connection {} err", direction, e);
+                if(isCloseException(e)){
+                    ProxyApp.close(client);
+                    destory();
+                    return;
+                }
+                log.error("connection {} err", direction, e);
+                abort();
+            }
+            
+            /**
+             * 出错、闲置超时时中止连接，见{@link SocketProfile#abort}
+             */
+            private void abort() {
+                SocketProfile.abort(socket, client);
                 destory();
             }
             
@@ -363,37 +398,53 @@ public class IntranetService implements InfoContributor {
                 destory(true);
             }
             private void destory(boolean sendCloseMsgToRelay) {
-                prepareCloseClient = true; closeClientIfPossible();
+                writer.closeAfterFlush(client, null);
                 connections.remove(id);
-                if(sendCloseMsgToRelay) relayWriteConnectClose(MsgType.ConnectClose.packet(idBs));
+                idleTracker.untrack(idle);
+                if(tunnel!=null){
+                    tunnel.resumeRead(id);
+                    if(sendCloseMsgToRelay) stream.writeClose();
+                    else stream.release();
+                }
                 
                 log.info("{} disconnected {}", port, direction);
             }
-            private void closeClientIfPossible() {
-                if(!prepareCloseClient) return;
-                if(!prepareWrite2ClientDataIds.isEmpty()) return;
-                ProxyApp.close(client);
-            }
         }
     }
     
-    private class RelayServer extends Thread implements Server {
+    private class RelayServer extends Thread implements Server, IntranetTunnel.Handler {
         private final IntranetConfig config;
         
         private final HostAndPort entryConfig;
         private final HostAndPort targetConfig;
         
+        /** entry及其上所有连接共用一个loop */
+        private final ChannelConnector connector;
         private final ChannelReader reader;
         private final ChannelWriter writer;
         
+        /** 向target建立的连接的socket调优 */
+        private final SocketProfile socket;
+        /** 向entry、target建立连接的超时毫秒数 */
+        private final long connectTimeout;
+        /** 到target的预连接池，未配置时为null */
+        private final WarmPool warmPool;
+        
         private Delayed entryConnectRetryDelay;
         
-        private SocketChannel entry;
-        private long lastHeartBeatTime;
+        /** 本relay的组标识，entry据此识别同一relay的多条隧道 */
+        private final long group = ThreadLocalRandom.current().nextLong();
+        /** 与entry之间的隧道，为null的还未建立 */
+        private final IntranetTunnel[] entries;
+        /** 正在建立隧道（含失败后等待重试） */
+        private boolean connecting;
+        /** 已建立还未被entry加入组的隧道，加入后才建立下一条，entry不支持时一直只有这一条 */
+        private IntranetTunnel pending;
         
         private String direction;
         
         private Map<Integer, ConnectMeta> connections = new ConcurrentHashMap<>();
+        private IdleTracker idleTracker = new IdleTracker(IntranetService.this.config::getMaxIdleTime);
         
         private volatile boolean destoried = false;
         
@@ -401,13 +452,26 @@ public class IntranetService implements InfoContributor {
             this.config = config;
             this.entryConfig = config.getEntry();
             this.targetConfig = config.getTarget();
+            this.socket = SocketProfile.merge(config.getSocket(), IntranetService.this.config.getSocket());
+            this.connectTimeout = firstNonNull(config.getConnectTimeout(), IntranetService.this.config.getConnectTimeout());
+            this.entries = new IntranetTunnel[Math.max(1, firstNonNull(config.getTunnels(), 1))];
             
             try{
-                reader = new ChannelReader(); reader.init(targetConfig+" relay reader");
-                writer = new ChannelWriter(); writer.init(targetConfig+" relay writer");
+                EventLoop loop = loops.next();
+                connector = loop.connector;
+                reader = loop.reader;
+                writer = loop.writer;
                 
                 direction = String.format("%s->%s->port->%s", entryConfig, "connecting", targetConfig);
                 
+                if(config.getWarmPool()!=null && config.getWarmPool()>0){
+                    warmPool = new WarmPool(String.valueOf(targetConfig), config.getWarmPool(), config.getWarmPoolMaxIdle(), reader, delayRunner,
+                        (onConnect, exHandler)->connector.connect(targetConfig, socket, connectTimeout, onConnect, exHandler));
+                    warmPool.maintain();
+                }else{
+                    warmPool = null;
+                }
+                
                 entryConnectBegin();
                 
                 setName("RelayServer:"+direction);
@@ -417,96 +481,111 @@ public class IntranetService implements InfoContributor {
                 throw e;
             }
         }
+        /**
+         * 还有未建立的隧道且没有正在建立的时，建立下一条
+         */
         private synchronized void entryConnectBegin() {
-            try{
-                SocketChannel entry = SocketChannel.open();
-                entry.configureBlocking(false);
-                entry.connect(new InetSocketAddress(entryConfig.getHostText(), entryConfig.getPort()));
-                connector.connect(entry, ()->entryConnected(entry), this::entryOnConnectException);
-            }catch(Exception e){
-                log.error("尝试打开与entry({})服务连接的端口失败", entryConfig, e);
-                entryConnectRetry();
-            }
+            if(destoried || connecting || pending!=null) return;
+            if(Arrays.stream(entries).allMatch(Objects::nonNull)) return;
+            connecting = true;
+            entryConnect();
+        }
+        private synchronized void entryConnect() {
+            connector.connect(entryConfig, IntranetService.this.config.getSocket(), connectTimeout, this::entryConnected, this::entryOnConnectException);
         }
         private void entryConnectRetry() {
-            direction = String.format("%s->%s->port->%s", entryConfig, "connecting", targetConfig);
+            direction();
             entryConnectRetryDelay = delayRunner.run(EntryConnectRetryGap,
-                this::entryConnectBegin, this::entryOnConnectException);
+                this::entryConnect, this::entryOnConnectException);
         }
         private synchronized void entryOnConnectException(Exception e) {
             log.error("尝试与entry({})服务建立连接失败，{}s后重试", entryConfig, EntryConnectRetryGap/1000, e);
             entryConnectRetry();
         }
         private synchronized void entryConnected(SocketChannel entry) throws IOException {
-            direction = String.format("%s->%s->port->%s", entryConfig, port(entry.getLocalAddress()), targetConfig);
-            lastHeartBeatTime = System.currentTimeMillis();
-            this.entry = entry;
+            connecting = false;
+            if(destoried){
+                ProxyApp.close(entry);
+                return;
+            }
+            IntranetTunnel tunnel = new IntranetTunnel("relay:"+targetConfig, entry, reader, writer, this);
+            for(int i=0; i<entries.length; i++){
+                if(entries[i]!=null) continue;
+                entries[i] = tunnel;
+                break;
+            }
+            pending = tunnel;
+            direction();
             log.info("与entry({}<->{})服务连接建立", entryConfig, port(entry.getLocalAddress()));
-            entryRead();
-        }
-        private void entryRead() {
-            reader.readOne(entry, type->{
-                switch(type){
-                case MsgType.HeartBeat.Type:
-                    lastHeartBeatTime = System.currentTimeMillis();
-                    entryRead();
-                    break;
-                case MsgType.Transmit.Type:
-                    reader.readUntilLength(entry, 4, idBs->{
-                        int id = Ints.fromByteArray(idBs);
-                        reader.readUntilLength(entry, 4, lenBs->{
-                            int len = Ints.fromByteArray(lenBs);
-                            reader.readUntilLength(entry, len, data->{
-                                entryRead();
-                                ConnectMeta connect = connections.get(id);
-                                if(connect==null){
-                                    try{
-                                        connections.put(id, connect = new ConnectMeta(id));
-                                    }catch(Exception e){
-                                        log.error("initial connection err", e);
-                                        return;
-                                    }
-                                }
-                                connect.dataFromEntryToTarget(data);
-                            }, this::entryOnException);
-                        }, this::entryOnException);
-                    }, this::entryOnException);
-                    break;
-                case MsgType.ConnectClose.Type:
-                    reader.readUntilLength(entry, 4, idBs->{
-                        entryRead();
-                        int id = Ints.fromByteArray(idBs);
-                        ConnectMeta connect = connections.get(id);
-                        if(connect==null) return;
-                        connect.destory(false);
-                    }, this::entryOnException);
-                    break;
-                default:
-                    log.warn("unknown msg type : {}", type);
-                    entryRead();
-                    break;
+            tunnel.start(false);
+        }
+        private void direction() {
+            List<String> ports = new LinkedList<>();
+            for(IntranetTunnel tunnel : entries){
+                if(tunnel==null) continue;
+                try{
+                    ports.add(port(tunnel.getChannel().getLocalAddress()));
+                }catch(Exception ig){}
+            }
+            direction = String.format("%s->%s->port->%s", entryConfig, ports.isEmpty()?"connecting":StringUtils.join(ports, ","), targetConfig);
+        }
+        private int indexOf(IntranetTunnel tunnel) {
+            for(int i=0; i<entries.length; i++){
+                if(entries[i]==tunnel) return i;
+            }
+            return -1;
+        }
+        @Override
+        public void onTransmit(IntranetTunnel tunnel, int id, byte[] data) {
+            ConnectMeta connect = connections.get(id);
+            if(connect==null){
+                try{
+                    connections.put(id, connect = new ConnectMeta(id, tunnel));
+                }catch(Exception e){
+                    log.error("initial connection err", e);
+                    return;
                 }
-            }, this::entryOnException);
-            
+            }
+            connect.dataFromEntryToTarget(data);
         }
-        private synchronized void entryOnException(Exception e) {
-            if(!isCloseException(e)) log.error("与entry({})服务传输数据失败，重建连接", entryConfig, e);
-            log.info("与entry({})服务连接断开", entryConfig);
-            ImmutableSet.copyOf(connections.values()).forEach(ConnectMeta::destory);
-            ProxyApp.close(entry);
-            entry = null;
-            entryConnectBegin();
+        @Override
+        public void onConnectClose(IntranetTunnel tunnel, int id) {
+            ConnectMeta connect = connections.get(id);
+            if(connect==null) return;
+            connect.destory(false);
         }
-        private synchronized void entryWriteTransmit(byte[] body) throws IOException {
-            entryCheck();
-            writer.write(entry, body, this::entryOnException);
+        /**
+         * entry支持版本2，申请加入组
+         */
+        @Override
+        public synchronized void onSwitch(IntranetTunnel tunnel) {
+            if(indexOf(tunnel)<0) return;
+            tunnel.writeJoin(group);
         }
-        private synchronized void entryWriteConnectClose(byte[] packet) {
-            if(entry==null) return;
-            writer.write(entry, packet, e->{});
+        /**
+         * entry已将该隧道加入组，建立下一条隧道；entry不支持多隧道时不会回复，一直只有一条
+         */
+        @Override
+        public synchronized void onJoin(IntranetTunnel tunnel, long group) {
+            if(tunnel!=pending) return;
+            pending = null;
+            entryConnectBegin();
         }
-        private void entryCheck() throws IOException {
-            if(entry==null) throw new IOException("入口服务未连接");
+        /**
+         * 只关闭该隧道上的连接并重建该隧道
+         */
+        @Override
+        public synchronized void onException(IntranetTunnel tunnel, Exception e) {
+            int idx = indexOf(tunnel);
+            if(idx<0) return;
+            if(!isCloseException(e)) log.error("与entry({})服务传输数据失败，重建连接", entryConfig, e);
+            log.info("与entry({})服务连接断开", entryConfig);
+            connections.values().stream().filter(c->c.tunnel==tunnel).collect(toList()).forEach(ConnectMeta::destory);
+            tunnel.close();
+            entries[idx] = null;
+            if(tunnel==pending) pending = null;
+            direction();
+            entryConnectBegin();
         }
         
         public void run() {
@@ -518,93 +597,121 @@ public class IntranetService implements InfoContributor {
             }
         }
         public synchronized void heartbeat() {
-            if(entry==null) return;
-            if(System.currentTimeMillis() - lastHeartBeatTime >= config.getHeartbeatMissTimeout()){
-                entryOnException(new TimeoutException("超时未收到entry心跳"));
-                return;
+            for(IntranetTunnel entry : entries){
+                if(entry==null) continue;
+                if(System.currentTimeMillis() - entry.getLastHeartBeatTime() >= config.getHeartbeatMissTimeout()){
+                    onException(entry, new TimeoutException("超时未收到entry心跳"));
+                    continue;
+                }
+                entry.writeHeartbeat();
             }
-            writer.write(entry, MsgType.HeartBeat.Packet, this::entryOnException);
         }
         
         public synchronized void destory() {
             destoried = true; interrupt(); try{ join(1000); }catch(Exception ig){}
+            if(warmPool!=null) warmPool.destory();
             ImmutableSet.copyOf(connections.values()).forEach(ConnectMeta::destory);
             delayRunner.cancel(entryConnectRetryDelay);
-            ProxyApp.close(entry); entry = null;
-            if(reader!=null) reader.destory();
-            if(writer!=null) writer.destory();
+            for(int i=0; entries!=null && i<entries.length; i++){
+                if(entries[i]!=null) entries[i].close();
+                entries[i] = null;
+            }
             servers.remove(config);
             log.info("{} intranet relay停止", targetConfig);
         }
         
         @Override
         public synchronized void cleanIdle() {
-            for(ConnectMeta connect : ImmutableSet.copyOf(connections.values())){
-                if(System.currentTimeMillis()-connect.latestTouchTime<IntranetService.this.config.getMaxIdleTime()) continue;
-                connect.destory();
-            }
+            if(warmPool!=null) warmPool.maintain();
+            idleTracker.sweep();
         }
         
         public String info() {
             List<Object> infos = new LinkedList<>();
             infos.add("  "+direction);
-            connections.values().stream().sorted((c1,c2)->Integer.compare(c1.id, c2.id)).forEach(c->infos.add("  - "+c.id+": "+c.direction));
+            synchronized(this){
+                for(IntranetTunnel tunnel : entries){
+                    if(tunnel!=null) infos.add("  = "+port(tunnel.getChannel().socket().getLocalSocketAddress())+" "+tunnel.stats()+" streams:"+tunnel.streamCount());
+                }
+            }
+            connections.values().stream().sorted((c1,c2)->Integer.compare(c1.id, c2.id)).forEach(c->infos.add("  - "+c.id+": "+c.direction+" "+c.stream.stats()));
             return StringUtils.join(infos, "\n");
         }
         
         private class ConnectMeta {
             private final int id;
-            private final byte[] idBs;
             private final SocketChannel target;
+            /** 该连接所在的隧道 */
+            private final IntranetTunnel tunnel;
+            private final IntranetTunnel.Stream stream;
             
             private String direction;
             
-            private long latestTouchTime = System.currentTimeMillis();
+            private final IdleTracker.Entry idle = idleTracker.track(this::abort);
             
-            public ConnectMeta(int id) throws IOException {
+            public ConnectMeta(int id, IntranetTunnel tunnel) throws IOException {
                 this.id = id;
-                idBs = Ints.toByteArray(id);
+                this.tunnel = tunnel;
+                this.stream = tunnel.stream(id);
                 
+                SocketChannel warm = warmPool==null?null:warmPool.poll();
                 try{
-                    target = SocketChannel.open();
-                    target.configureBlocking(false);
-                    target.connect(new InetSocketAddress(targetConfig.getHostText(), targetConfig.getPort()));
-                    
-                    direction = String.format("%s", "initializing");
-                    connector.connect(target, ()->{
+                    if(warm!=null){
+                        target = warm;
                         direction = String.format("%s", port(target.getLocalAddress()));
                         
-                        targetRead(null);
-                    }, this::onException);
+                        targetRead();
+                    }else{
+                        target = SocketChannel.open();
+                        target.configureBlocking(false);
+                        SocketProfile.apply(socket, target);
+                        
+                        direction = String.format("%s", "initializing");
+                        connector.connect(target, targetConfig, connectTimeout, ()->{
+                            direction = String.format("%s", port(target.getLocalAddress()));
+                            
+                            targetRead();
+                        }, this::onException);
+                    }
                 }catch(IOException e){
                     destory();
                     throw e;
                 }
             }
-            private void targetRead(ByteBuffer buf) {
-                if(buf==null) buf = ByteBuffer.allocate(1024);
-                reader.readAny(target, buf, data->{
-                    dataFromTargetToEntry(data);
-                    targetRead(data);
-                }, this::onException);
+            private void targetRead() {
+                int chunkSize = tunnel.writeVersion()==MsgType.Version1 ? 1024 : MsgType.V2ChunkSize;
+                stream.source(reader.readStream(target, chunkSize, this::dataFromTargetToEntry, this::onException));
             }
             private void dataFromEntryToTarget(byte[] data) {
-                writer.write(target, data, this::onException);
+                writer.write(target, data, ()->stream.onConsumed(data.length), this::onException);
                 
                 onTrans();
             }
             private void dataFromTargetToEntry(ByteBuffer data) throws IOException {
-                RelayServer.this.entryWriteTransmit(MsgType.Transmit.packet(idBs, data));
+                int length = data.remaining();
+                stream.writeTransmit(data);
+                stream.onSend(length);
                 
                 onTrans();
             }
             
             private void onTrans() {
-                latestTouchTime = System.currentTimeMillis();
+                idle.touch();
             }
             
             private synchronized void onException(Exception e) {
-                if(!isCloseException(e)) log.error("connection {} err", direction, e);
+                if(isCloseException(e)){
+                    destory();
+                    return;
+                }
+                log.error("connection {} err", direction, e);
+                abort();
+            }
+            /**
+             * 出错、闲置超时时中止连接，见{@link SocketProfile#abort}
+             */
+            private synchronized void abort() {
+                SocketProfile.abort(socket, target);
                 destory();
             }
             private synchronized void destory() {
@@ -613,7 +720,8 @@ public class IntranetService implements InfoContributor {
             private synchronized void destory(boolean sendCloseMsgToEntry) {
                 ProxyApp.close(target);
                 connections.remove(id);
-                entryWriteConnectClose(MsgType.ConnectClose.packet(idBs));
+                idleTracker.untrack(idle);
+                stream.writeClose();
                 
                 log.info("{} disconnected {}", targetConfig, direction);
             }
@@ -629,18 +737,99 @@ public class IntranetService implements InfoContributor {
     
     /**
      * 入口服务与转发服务之间的通信协议
-     *
+     * <pre>
+     * 版本1：各消息格式见各类型说明，头部定长
+     * 版本2：由{@link Hello}、{@link Switch}协商，所有消息统一为
+     * 消息类型(1字节)+连接编号(变长整数)+内容长度(变长整数)+内容(由内容长度确定)，
+     * 变长整数每字节低7位为数据、最高位表示后面还有字节，低位在前；心跳的编号、长度都为0，断开连接的长度为0
+     * 版本2下每个连接每个方向都有{@link #InitWindow}字节的发送窗口，用完后发送方暂停读该连接的数据来源，
+     * 接收方将数据写给本地的client、target后通过{@link WindowUpdate}归还，慢的连接只影响自己
+     * 连接的调度权重不为{@link #DefaultWeight}时，entry在发送该连接的数据前先通过{@link Weight}告知relay
+     * 一个relay可以与entry逐条建立多条隧道，各隧道切换到版本2后通过{@link Join}加入组，entry将新的连接分配到负载最低的隧道上
+     * </pre>
      * @author LV on 2022年3月28日
      */
     static class MsgType {
         
+        static final int Version1 = 1;
+        static final int Version2 = 2;
+        
+        /** 版本2单个消息内容的最大长度 */
+        static final int MaxFrameLength = 16*1024*1024;
+        /** 版本2下转发时每次从client、target读取的块大小 */
+        static final int V2ChunkSize = 16*1024;
+        /** 版本2下每个连接每个方向的初始发送窗口 */
+        static final int InitWindow = 256*1024;
+        /** 连接默认的调度权重 */
+        static final int DefaultWeight = 1;
+        
+        /**
+         * 版本2的消息头部
+         * @return 读模式
+         */
+        static ByteBuffer header(byte type, int id, int len) {
+            ByteBuffer header = ByteBuffer.allocate(1+5+5);
+            header.put(type);
+            putVarint(header, id);
+            putVarint(header, len);
+            header.flip();
+            return header;
+        }
+        static void putVarint(ByteBuffer buf, int value) {
+            while((value&~0x7f)!=0){
+                buf.put((byte)((value&0x7f)|0x80));
+                value >>>= 7;
+            }
+            buf.put((byte)value);
+        }
+        static int getVarint(ByteBuffer buf) throws IOException {
+            int value = 0;
+            for(int shift=0; shift<=28; shift+=7){
+                byte b = buf.get();
+                value |= (b&0x7f)<<shift;
+                if((b&0x80)==0) return value;
+            }
+            throw new IOException("malformed varint");
+        }
+        /**
+         * 版本2内容为一个变长整数的消息
+         * @return 读模式
+         */
+        static ByteBuffer varintPacket(byte type, int id, int value) {
+            ByteBuffer body = ByteBuffer.allocate(5);
+            putVarint(body, value);
+            body.flip();
+            ByteBuffer header = header(type, id, body.remaining());
+            ByteBuffer packet = ByteBuffer.allocate(header.remaining()+body.remaining());
+            packet.put(header).put(body);
+            packet.flip();
+            return packet;
+        }
+        
         /**
          * 心跳
-         * 1s一次，整个消息仅一个字节
+         * 版本1：整个消息仅一个字节
+         * 版本2：编号为{@link #Ping}时内容为发送方的时间(8字节long，纳秒)，对端以编号{@link #Ack}原样回复，
+         * 发送方据此计算往返时延；两者都视为收到了心跳
          */
         static class HeartBeat {
             static final byte Type = 0;
             static final byte[] Packet = {Type};
+            
+            static final int Ping = 0;
+            static final int Ack = 1;
+            
+            /**
+             * 版本2
+             * @return 读模式
+             */
+            static ByteBuffer packet(int id, byte[] time) {
+                ByteBuffer header = header(Type, id, time.length);
+                ByteBuffer packet = ByteBuffer.allocate(header.remaining()+time.length);
+                packet.put(header).put(time);
+                packet.flip();
+                return packet;
+            }
         }
         
         /**
@@ -657,7 +846,7 @@ public class IntranetService implements InfoContributor {
             /**
              * 转发消息包装
              * @param idBs
-             * @param data 默认其为读模式
+             * @param data 默认其为读模式，可以是直接内存buffer，包装后其数据被读完
              * @return
              */
             static byte[] packet(byte[] id, ByteBuffer data) {
@@ -666,7 +855,7 @@ public class IntranetService implements InfoContributor {
                 packet[0] = Type;
                 System.arraycopy(id, 0, packet, 1, 4);
                 System.arraycopy(Ints.toByteArray(data.remaining()), 0, packet, 5, 4);
-                System.arraycopy(data.array(), 0, packet, 9, data.remaining());
+                data.get(packet, 9, data.remaining());
                 return packet;
             }
             /**
@@ -703,6 +892,74 @@ public class IntranetService implements InfoContributor {
             }
         }
         
+        /**
+         * entry在连接建立后发送，表明支持版本2
+         * 整个消息仅一个字节：固定值3，不认识的一方会忽略
+         */
+        static class Hello {
+            static final byte Type = 3;
+            static final byte[] Packet = {Type};
+        }
+        
+        /**
+         * 发送方之后写出的消息都使用版本2
+         * 整个消息仅一个字节：固定值4
+         */
+        static class Switch {
+            static final byte Type = 4;
+            static final byte[] Packet = {Type};
+        }
+        
+        /**
+         * 版本2：接收方归还发送窗口
+         * 内容为归还的字节数(变长整数)
+         */
+        static class WindowUpdate {
+            static final byte Type = 5;
+            
+            /**
+             * @return 读模式
+             */
+            static ByteBuffer packet(int id, int credit) {
+                return varintPacket(Type, id, credit);
+            }
+        }
+        
+        /**
+         * 版本2：entry告知relay连接的调度权重，在该连接的第一个转发包之前发送
+         * 内容为权重(变长整数)
+         */
+        static class Weight {
+            static final byte Type = 6;
+            
+            /**
+             * @return 读模式
+             */
+            static ByteBuffer packet(int id, int weight) {
+                return varintPacket(Type, id, weight);
+            }
+        }
+        
+        /**
+         * 版本2：relay告知entry隧道所属的组，同一relay的各隧道属于同一组，relay重启后为新的组；
+         * entry加入组后原样回复，relay收到回复后才建立下一条隧道
+         * 编号为0，内容为组标识(8字节long)
+         */
+        static class Join {
+            static final byte Type = 7;
+            
+            /**
+             * @return 读模式
+             */
+            static ByteBuffer packet(long group) {
+                ByteBuffer header = header(Type, 0, Long.BYTES);
+                ByteBuffer packet = ByteBuffer.allocate(header.remaining()+Long.BYTES);
+                packet.put(header).putLong(group);
+                packet.flip();
+                return packet;
+            }
+        }
+        
     }
     
 }
\ No newline at end of file
@@ -0,0 +1,812 @@
+package com.lvt4j.socketproxy;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+import com.lvt4j.socketproxy.ChannelReader.ReadStream;
+import com.lvt4j.socketproxy.IntranetService.MsgType;
+import com.lvt4j.socketproxy.ProxyApp.IOExceptionRunnable;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * entry与relay之间的一条隧道连接：协议版本协商及帧的读写
+ * <pre>
+ * 连接建立后双方都按版本1通信，entry先发送{@link MsgType.Hello}表明支持版本2：
+ * 收到Hello的一方发送{@link MsgType.Switch}，之后自己写出的帧都使用版本2；
+ * 收到Switch的一方之后读到的帧都按版本2解码，自己还没切换的也发送Switch并切换
+ * 旧版本的一方不认识Hello会忽略，也不会发送Switch，双方一直使用版本1
+ *
+ * 版本1每个帧的类型、编号、长度、内容分别注册读取
+ * 版本2在一次注册的持续读中，从每次批量读到的数据里连续解出所有完整的帧，跨读取的半个帧保留解码状态；
+ * 写出时头部与内容一起gathering write，内容只在需要排队时才复制
+ * 版本2下每个连接通过{@link Stream}做流量控制
+ *
+ * 各连接的转发包经差额轮询（deficit round robin）调度后才交给writer：
+ * 交给writer还未写出的转发包不超过{@link #MaxInflight}字节，超出时转发包在各连接自己的队列中排队，
+ * 有数据排队的连接轮流发送，每轮可发送{@link #Quantum}乘以权重的字节数，大流量的连接不会让其他连接一直等待
+ * 转发包在出队时才按当时的写版本编码；排队的转发包复制到借自{@link BufferPool}的缓冲中，
+ * 版本2在缓冲头部预留的空间里写帧头后整帧直接交给writer，写出后才归还，不经堆内复制
+ *
+ * 心跳、断开连接、窗口归还等控制帧不参与调度，通过writer的优先写插到已排队的转发包之前（在帧边界上），
+ * 不会因大量转发数据积压而心跳超时；但Switch写出之前的控制帧仍按顺序写，不能越过Switch；
+ * 断开连接要等该连接已交给writer的转发包都写出后才发送
+ * 版本2的心跳带有发送时间，对端原样回复，据此统计隧道的往返时延
+ * </pre>
+ * @author LV on 2026年10月18日
+ */
+@Slf4j
+class IntranetTunnel {
+    
+    /** 版本2持续读的缓冲大小 */
+    private static final int ReadBufSize = 64*1024;
+    /** 交给writer但还未写出的转发包字节数上限 */
+    static final int MaxInflight = 64*1024;
+    /** 权重为1的连接每轮可发送的字节数 */
+    static final int Quantum = 16*1024;
+    /** 排队的转发包缓冲头部为帧头预留的字节数，不小于版本2帧头的最大长度 */
+    private static final int FrameHeadroom = 1+5+5;
+    
+    /** 隧道名，用作指标的标签 */
+    private final String name;
+    @Getter
+    private final SocketChannel channel;
+    private final ChannelReader reader;
+    private final ChannelWriter writer;
+    private final Handler handler;
+    
+    /** 读到的帧所用的版本 */
+    @Getter
+    private volatile int readVersion = MsgType.Version1;
+    /** 写出的帧所用的版本，与写出一起在本对象锁内切换 */
+    private volatile int writeVersion = MsgType.Version1;
+    /** Switch已写出，之后的控制帧可以优先写 */
+    private volatile boolean switchFlushed;
+    
+    @Getter
+    private volatile long lastHeartBeatTime;
+    /** 最近一次心跳的往返时延纳秒数，还没有时为-1 */
+    @Getter
+    private volatile long rtt = -1;
+    private final Timer rttTimer;
+    
+    /** 暂停读的原因（如写不及时的连接id），不为空时暂停读 */
+    private final Set<Object> pausers = ConcurrentHashMap.newKeySet();
+    /** 版本1下读已因暂停而停止 */
+    private final AtomicBoolean readParked = new AtomicBoolean();
+    /** 版本2下的持续读 */
+    private volatile ReadStream stream;
+    
+    private volatile boolean closed;
+    /** 持有本对象锁时发生的写异常 */
+    private Exception writeException;
+    
+    /** 本隧道上的连接 */
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+    /** 各权重的排队时延指标 */
+    private final Map<Integer, Timer> delayTimers = new ConcurrentHashMap<>();
+    /** 已交给writer还未写出的转发包字节数，持有本对象锁时访问 */
+    private int inflight;
+    /** 排队中的转发包字节数，持有本对象锁时访问 */
+    private long queued;
+    /** 有转发包排队的连接，按轮询顺序，持有本对象锁时访问 */
+    private final ArrayDeque<Stream> actives = new ArrayDeque<>();
+    /** 是否正在调度，防止写完回调中重入 */
+    private boolean pumping;
+    
+    IntranetTunnel(String name, SocketChannel channel, ChannelReader reader, ChannelWriter writer, Handler handler) {
+        this.name = name;
+        this.channel = channel;
+        this.reader = reader;
+        this.writer = writer;
+        this.handler = handler;
+        this.rttTimer = Timer.builder("intranet.tunnel.rtt")
+            .description("round trip time of heartbeats on the intranet tunnel")
+            .tag("tunnel", name).publishPercentileHistogram()
+            .register(Metrics.globalRegistry);
+    }
+    
+    /**
+     * 开始读
+     * <pre>
+     * 隧道上多路复用了许多连接，各连接的帧各自写出，关闭Nagle算法：
+     * 否则一个连接的小帧未被确认时，其他连接随后的小帧要等对端的延迟确认（约40ms）才能发出
+     * </pre>
+     * @param hello 是否发送{@link MsgType.Hello}发起版本协商，由entry发起
+     */
+    void start(boolean hello) throws IOException {
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        lastHeartBeatTime = System.currentTimeMillis();
+        if(hello) writeHello();
+        read();
+    }
+    
+    synchronized int writeVersion() {
+        return writeVersion;
+    }
+    
+    /**
+     * 按当前写版本编码转发包交给writer，持有本对象锁时调用
+     * @param data 读模式，调用返回后即被读完
+     */
+    private void writeTransmitFrame(Stream stream, ByteBuffer data) {
+        int length = data.remaining();
+        inflight += length;
+        stream.inflight += length;
+        IOExceptionRunnable onWrite = ()->onFlushed(stream, length);
+        if(writeVersion==MsgType.Version1){
+            writer.write(channel, MsgType.Transmit.packet(Ints.toByteArray(stream.id), data), onWrite, this::onWriteException);
+        }else{
+            writer.writeGather(channel, new ByteBuffer[]{MsgType.header(MsgType.Transmit.Type, stream.id, length), data}, onWrite, this::onWriteException);
+        }
+    }
+    /**
+     * 编码排队的转发包交给writer，持有本对象锁时调用
+     * <pre>
+     * 版本2在data头部预留的空间里写入帧头，整帧交给writer不复制，写出后归还data；
+     * 写出错时隧道断开，data不再归还
+     * </pre>
+     * @param data 借自{@link BufferPool}，数据前预留了{@link #FrameHeadroom}字节
+     */
+    private void writeQueuedTransmitFrame(Stream stream, ByteBuffer data) {
+        if(writeVersion==MsgType.Version1){
+            writeTransmitFrame(stream, data);
+            BufferPool.release(data);
+            return;
+        }
+        int length = data.remaining();
+        inflight += length;
+        stream.inflight += length;
+        ByteBuffer header = MsgType.header(MsgType.Transmit.Type, stream.id, length);
+        data.position(data.position()-header.remaining());
+        data.duplicate().put(header);
+        writer.write(channel, data, ()->{
+            BufferPool.release(data);
+            onFlushed(stream, length);
+        }, this::onWriteException);
+    }
+    /**
+     * 该连接已交给writer的转发包都写出后才发送断开连接，持有本对象锁时调用
+     */
+    private void writeConnectCloseFrame(Stream stream) {
+        if(stream.inflight>0){
+            stream.closePending = true;
+            return;
+        }
+        if(writeVersion==MsgType.Version1){
+            writeControl(ByteBuffer.wrap(MsgType.ConnectClose.packet(Ints.toByteArray(stream.id))), e->{});
+        }else{
+            writeControl(MsgType.header(MsgType.ConnectClose.Type, stream.id, 0), e->{});
+        }
+    }
+    /**
+     * 控制帧：Switch写出后（或一直是版本1时）优先写，持有本对象锁时调用
+     */
+    private void writeControl(ByteBuffer packet, Consumer<Exception> exHandler) {
+        if(writeVersion==MsgType.Version1 || switchFlushed) writer.writeUrgent(channel, packet, exHandler);
+        else writer.write(channel, packet, exHandler);
+    }
+    /**
+     * 转发包已写出，继续调度排队的转发包
+     */
+    private void onFlushed(Stream stream, int length) {
+        //在调用者线程上直接写完时已持有本对象锁，由外层处理写异常
+        boolean outer = !Thread.holdsLock(this);
+        synchronized(this){
+            inflight -= length;
+            stream.inflight -= length;
+            if(stream.closePending && stream.inflight==0 && !closed){
+                stream.closePending = false;
+                writeConnectCloseFrame(stream);
+            }
+            pump();
+        }
+        if(outer) afterWrite();
+    }
+    /**
+     * 差额轮询：轮到的连接先加上本轮的配额，队首转发包不超过剩余配额就发送，
+     * 否则保留剩余配额排到最后；队列发空的连接退出轮询并清空配额。持有本对象锁时调用
+     */
+    private void pump() {
+        if(pumping) return;
+        pumping = true;
+        try{
+            while(!closed && inflight<MaxInflight && !actives.isEmpty()){
+                Stream stream = actives.peekFirst();
+                if(!stream.credited){
+                    stream.deficit += Quantum*stream.weight;
+                    stream.credited = true;
+                }
+                Frame frame = stream.queue.peekFirst();
+                if(frame.size()>stream.deficit){
+                    stream.credited = false;
+                    actives.addLast(actives.pollFirst());
+                    continue;
+                }
+                stream.queue.pollFirst();
+                stream.deficit -= frame.size();
+                queued -= frame.size();
+                if(stream.queue.isEmpty()){
+                    actives.pollFirst();
+                    stream.active = stream.credited = false;
+                    stream.deficit = 0;
+                }
+                stream.recordDelay(System.nanoTime()-frame.time);
+                if(frame.data==null) writeConnectCloseFrame(stream);
+                else writeQueuedTransmitFrame(stream, frame.data);
+            }
+        }finally{
+            pumping = false;
+        }
+    }
+    
+    void writeHeartbeat() {
+        synchronized(this){
+            if(closed) return;
+            if(writeVersion==MsgType.Version1) writeControl(ByteBuffer.wrap(MsgType.HeartBeat.Packet), this::onWriteException);
+            else writeControl(MsgType.HeartBeat.packet(MsgType.HeartBeat.Ping, Longs.toByteArray(System.nanoTime())), this::onWriteException);
+        }
+        afterWrite();
+    }
+    /**
+     * 原样回复对端心跳的发送时间，仅版本2
+     */
+    private void writeHeartbeatAck(byte[] time) {
+        synchronized(this){
+            if(closed || writeVersion==MsgType.Version1) return;
+            writeControl(MsgType.HeartBeat.packet(MsgType.HeartBeat.Ack, time), this::onWriteException);
+        }
+        afterWrite();
+    }
+    /**
+     * 归还对端的发送窗口，仅版本2
+     */
+    void writeWindowUpdate(int id, int credit) {
+        synchronized(this){
+            if(closed || writeVersion==MsgType.Version1) return;
+            writeControl(MsgType.WindowUpdate.packet(id, credit), this::onWriteException);
+        }
+        afterWrite();
+    }
+    /**
+     * 告知对端连接的调度权重，仅版本2
+     */
+    private void writeWeight(int id, int weight) {
+        synchronized(this){
+            if(closed || writeVersion==MsgType.Version1) return;
+            writeControl(MsgType.Weight.packet(id, weight), this::onWriteException);
+        }
+        afterWrite();
+    }
+    /**
+     * relay告知entry本隧道所属的组，仅版本2
+     */
+    void writeJoin(long group) {
+        synchronized(this){
+            if(closed || writeVersion==MsgType.Version1) return;
+            writeControl(MsgType.Join.packet(group), this::onWriteException);
+        }
+        afterWrite();
+    }
+    /**
+     * 发送{@link MsgType.Hello}
+     */
+    private void writeHello() {
+        synchronized(this){
+            if(closed) return;
+            writer.write(channel, MsgType.Hello.Packet, this::onWriteException);
+        }
+        afterWrite();
+    }
+    /**
+     * 发送{@link MsgType.Switch}，之后写出的帧都使用版本2
+     */
+    private void switchWrite() {
+        synchronized(this){
+            if(closed || writeVersion==MsgType.Version2) return;
+            writer.write(channel, MsgType.Switch.Packet, ()->switchFlushed = true, this::onWriteException);
+            writeVersion = MsgType.Version2;
+        }
+        afterWrite();
+        handler.onSwitch(this);
+    }
+    /**
+     * 写出错时若正持有本对象锁（在调用者线程上直接写），先记下，释放锁后再回调，
+     * 避免持有本对象锁去获取handler的锁，而handler持有自己的锁时也会来写
+     */
+    private void onWriteException(Exception e) {
+        if(Thread.holdsLock(this)) writeException = e;
+        else onException(e);
+    }
+    private void afterWrite() {
+        Exception e;
+        synchronized(this){
+            e = writeException;
+            writeException = null;
+        }
+        if(e!=null) onException(e);
+    }
+    
+    /**
+     * 因by暂停读，直到所有暂停原因都被{@link #resumeRead(Object)}解除
+     */
+    void pauseRead(Object by) {
+        pausers.add(by);
+        ReadStream stream = this.stream;
+        if(stream!=null) stream.pause();
+    }
+    void resumeRead(Object by) {
+        if(!pausers.remove(by) || !pausers.isEmpty()) return;
+        ReadStream stream = this.stream;
+        if(stream!=null){
+            stream.resume();
+            return;
+        }
+        if(!readParked.compareAndSet(true, false)) return;
+        lastHeartBeatTime = System.currentTimeMillis();
+        read();
+    }
+    /**
+     * 是否因暂停而没有在读，此时收不到心跳
+     */
+    boolean readPaused() {
+        return readParked.get() || (stream!=null && !pausers.isEmpty());
+    }
+    
+    void close() {
+        closed = true;
+        pausers.clear();
+        synchronized(this){
+            actives.forEach(Stream::releaseQueue);
+            actives.clear();
+            streams.clear();
+        }
+        ReadStream stream = this.stream;
+        if(stream!=null) stream.close();
+        ProxyApp.close(channel);
+    }
+    
+    /**
+     * 负载：本隧道上的连接数
+     */
+    int streamCount() {
+        return streams.size();
+    }
+    /**
+     * 负载：已交给writer还未写出及排队中的转发包字节数
+     */
+    synchronized long backlog() {
+        return inflight+queued;
+    }
+    
+    /**
+     * 往返时延
+     */
+    String stats() {
+        long rtt = this.rtt;
+        return rtt<0 ? "rtt:-" : String.format("rtt:%.3fms", rtt/1e6);
+    }
+    
+    private void onException(Exception e) {
+        handler.onException(this, e);
+    }
+    
+    /**
+     * 版本1：读一个帧
+     */
+    private void read() {
+        if(closed) return;
+        reader.readOne(channel, type->{
+            switch(type){
+            case MsgType.HeartBeat.Type:
+                lastHeartBeatTime = System.currentTimeMillis();
+                read();
+                break;
+            case MsgType.Transmit.Type:
+                reader.readUntilLength(channel, 4, idBs->{
+                    int id = Ints.fromByteArray(idBs);
+                    reader.readUntilLength(channel, 4, lenBs->{
+                        int len = Ints.fromByteArray(lenBs);
+                        reader.readUntilLength(channel, len, data->{
+                            handler.onTransmit(this, id, data);
+                            readNext();
+                        }, this::onException);
+                    }, this::onException);
+                }, this::onException);
+                break;
+            case MsgType.ConnectClose.Type:
+                reader.readUntilLength(channel, 4, idBs->{
+                    read();
+                    onConnectClose(Ints.fromByteArray(idBs));
+                }, this::onException);
+                break;
+            case MsgType.Hello.Type:
+                switchWrite();
+                read();
+                break;
+            case MsgType.Switch.Type:
+                readVersion = MsgType.Version2;
+                switchWrite();
+                readV2();
+                break;
+            default:
+                log.warn("unknown msg type : {}", type);
+                read();
+                break;
+            }
+        }, this::onException);
+    }
+    private void onConnectClose(int id) {
+        handler.onConnectClose(this, id);
+        //对端可能在本方为该连接建立ConnectMeta前就断开了（如只收到了权重）
+        streams.remove(id);
+    }
+    /**
+     * 版本1：有暂停原因时停止读，直到恢复
+     */
+    private void readNext() {
+        if(!pausers.isEmpty()){
+            readParked.set(true);
+            if(!pausers.isEmpty() || !readParked.compareAndSet(true, false)) return;
+        }
+        read();
+    }
+    
+    /**
+     * 版本2：持续读并解码
+     */
+    private void readV2() {
+        if(closed) return;
+        FrameDecoder decoder = new FrameDecoder();
+        ReadStream stream = reader.readStream(channel, ReadBufSize, decoder::decode, this::onException);
+        this.stream = stream;
+        if(!pausers.isEmpty()) stream.pause();
+    }
+    
+    /**
+     * 版本2帧的增量解码器，一块数据中可以有多个帧，帧也可以跨多块数据
+     */
+    private class FrameDecoder {
+        private static final int StateType = 0;
+        private static final int StateId = 1;
+        private static final int StateLen = 2;
+        private static final int StatePayload = 3;
+        
+        private int state = StateType;
+        private byte type;
+        private int id;
+        /** 正在解码的变长整数 */
+        private int varint;
+        private int varintShift;
+        private byte[] payload;
+        private int payloadPos;
+        
+        private void decode(ByteBuffer data) throws IOException {
+            while(data.hasRemaining()){
+                switch(state){
+                case StateType:
+                    type = data.get();
+                    varint = varintShift = 0;
+                    state = StateId;
+                    break;
+                case StateId:
+                    if(!decodeVarint(data)) break;
+                    id = varint;
+                    varint = varintShift = 0;
+                    state = StateLen;
+                    break;
+                case StateLen:
+                    if(!decodeVarint(data)) break;
+                    if(varint<0 || varint>MsgType.MaxFrameLength) throw new IOException("frame too large : "+(varint&0xffffffffL));
+                    payload = new byte[varint];
+                    payloadPos = 0;
+                    state = StatePayload;
+                    if(varint==0) dispatch();
+                    break;
+                case StatePayload:
+                    int length = Math.min(data.remaining(), payload.length-payloadPos);
+                    data.get(payload, payloadPos, length);
+                    payloadPos += length;
+                    if(payloadPos==payload.length) dispatch();
+                    break;
+                }
+            }
+        }
+        /**
+         * @return 是否已解完一个变长整数
+         */
+        private boolean decodeVarint(ByteBuffer data) throws IOException {
+            while(data.hasRemaining()){
+                byte b = data.get();
+                if(varintShift>28) throw new IOException("malformed varint");
+                varint |= (b&0x7f)<<varintShift;
+                varintShift += 7;
+                if((b&0x80)==0) return true;
+            }
+            return false;
+        }
+        private void dispatch() throws IOException {
+            byte[] payload = this.payload;
+            this.payload = null;
+            state = StateType;
+            switch(type){
+            case MsgType.HeartBeat.Type:
+                lastHeartBeatTime = System.currentTimeMillis();
+                if(payload.length!=Long.BYTES) break;
+                if(id==MsgType.HeartBeat.Ping){
+                    writeHeartbeatAck(payload);
+                }else if(id==MsgType.HeartBeat.Ack){
+                    long rtt = System.nanoTime()-Longs.fromByteArray(payload);
+                    IntranetTunnel.this.rtt = rtt;
+                    rttTimer.record(rtt, NANOSECONDS);
+                }
+                break;
+            case MsgType.Transmit.Type:
+                handler.onTransmit(IntranetTunnel.this, id, payload);
+                break;
+            case MsgType.ConnectClose.Type:
+                onConnectClose(id);
+                break;
+            case MsgType.WindowUpdate.Type:
+                Stream stream = streams.get(id);
+                if(stream!=null) stream.onUpdate(MsgType.getVarint(ByteBuffer.wrap(payload)));
+                break;
+            case MsgType.Weight.Type:
+                stream(id).weight = Math.max(1, MsgType.getVarint(ByteBuffer.wrap(payload)));
+                break;
+            case MsgType.Join.Type:
+                if(payload.length==Long.BYTES) handler.onJoin(IntranetTunnel.this, Longs.fromByteArray(payload));
+                break;
+            default:
+                log.warn("unknown msg type : {}", type);
+                break;
+            }
+        }
+    }
+    
+    /**
+     * 取连接id在本隧道上的{@link Stream}，没有时创建；隧道当前写版本为1时不限制发送
+     */
+    Stream stream(int id) {
+        return streams.computeIfAbsent(id, Stream::new);
+    }
+    
+    private Timer delayTimer(int weight) {
+        return delayTimers.computeIfAbsent(weight, w->Timer.builder("intranet.queue.delay")
+            .description("time a transmit frame waits in the tunnel scheduler before handed to the writer")
+            .tag("tunnel", name).tag("weight", String.valueOf(w)).publishPercentileHistogram()
+            .register(Metrics.globalRegistry));
+    }
+    
+    /**
+     * 一个连接在本隧道上的发送调度及流量控制窗口
+     * <pre>
+     * 调度：转发包按{@link IntranetTunnel}的差额轮询发送，权重默认为{@link MsgType#DefaultWeight}，
+     * 由entry按配置设置并通过{@link MsgType.Weight}告知relay，双向使用相同的权重
+     * 发送方向：每发出一段数据扣减发送窗口，用完时暂停读数据来源，收到对端的WindowUpdate后恢复，
+     * 因每次最多多发一块数据，对端为该连接排队的数据不超过窗口加一块
+     * 接收方向：收到的数据写给本地的client、target完成后累计，达到半个窗口时给对端发送WindowUpdate归还
+     * </pre>
+     */
+    class Stream {
+        private final int id;
+        /** 是否限制发送 */
+        private final boolean limited;
+        
+        private volatile int weight = MsgType.DefaultWeight;
+        
+        //以下调度状态及排队时延统计只在持有隧道锁时访问
+        private final ArrayDeque<Frame> queue = new ArrayDeque<>();
+        /** 是否在轮询中 */
+        private boolean active;
+        /** 本轮是否已加过配额 */
+        private boolean credited;
+        private int deficit;
+        /** 已发送断开连接，之后的转发包丢弃 */
+        private boolean closing;
+        /** 已交给writer还未写出的转发包字节数 */
+        private int inflight;
+        /** 断开连接在等已交给writer的转发包写出 */
+        private boolean closePending;
+        private long delayCount;
+        private long delayTotal;
+        private long delayMax;
+        
+        private int sendWindow = MsgType.InitWindow;
+        /** 数据来源的持续读，可能晚于第一次发送才设置 */
+        private ReadStream source;
+        private boolean paused;
+        
+        /** 已写给本地但还未归还的字节数 */
+        private int consumed;
+        
+        private Stream(int id) {
+            this.id = id;
+            //在streams的computeIfAbsent中，不能获取隧道锁
+            this.limited = writeVersion==MsgType.Version2;
+        }
+        
+        /**
+         * 设置调度权重，并告知对端
+         */
+        void weight(int weight) {
+            weight = Math.max(1, weight);
+            if(weight==this.weight) return;
+            this.weight = weight;
+            writeWeight(id, weight);
+        }
+        
+        /**
+         * 发送转发包，没有排队的转发包且writer未积压时直接交给writer，否则复制到借自{@link BufferPool}的缓冲中排队
+         * @param data 读模式，可以借自{@link BufferPool}，调用返回后即可归还
+         */
+        void writeTransmit(ByteBuffer data) throws IOException {
+            synchronized(IntranetTunnel.this){
+                if(closed) throw new IOException("隧道已断开");
+                if(closing) return;
+                if(actives.isEmpty() && inflight<MaxInflight){
+                    recordDelay(0);
+                    writeTransmitFrame(this, data);
+                }else{
+                    ByteBuffer copy = BufferPool.acquire(FrameHeadroom+data.remaining());
+                    copy.position(FrameHeadroom);
+                    copy.put(data);
+                    copy.limit(copy.position());
+                    copy.position(FrameHeadroom);
+                    enqueue(new Frame(copy));
+                }
+            }
+            afterWrite();
+        }
+        /**
+         * 发送断开连接，排在该连接已排队的转发包之后，之后不再属于本隧道
+         */
+        void writeClose() {
+            synchronized(IntranetTunnel.this){
+                streams.remove(id, this);
+                if(closed || closing) return;
+                closing = true;
+                if(queue.isEmpty()) writeConnectCloseFrame(this);
+                else enqueue(new Frame(null));
+            }
+            afterWrite();
+        }
+        /**
+         * 丢弃排队的转发包，之后不再属于本隧道
+         */
+        void release() {
+            synchronized(IntranetTunnel.this){
+                streams.remove(id, this);
+                closing = true;
+                closePending = false;
+                releaseQueue();
+                if(active) actives.remove(this);
+                active = credited = false;
+            }
+        }
+        /**
+         * 丢弃排队的转发包并归还其缓冲，持有隧道锁时调用
+         */
+        private void releaseQueue() {
+            for(Frame frame : queue){
+                queued -= frame.size();
+                BufferPool.release(frame.data);
+            }
+            queue.clear();
+        }
+        private void enqueue(Frame frame) {
+            queue.add(frame);
+            queued += frame.size();
+            if(!active){
+                active = true;
+                actives.addLast(this);
+            }
+            pump();
+        }
+        private void recordDelay(long nanos) {
+            delayCount++;
+            delayTotal += nanos;
+            delayMax = Math.max(delayMax, nanos);
+            delayTimer(weight).record(nanos, NANOSECONDS);
+        }
+        
+        /**
+         * 权重、排队中的转发包数及排队时延
+         */
+        String stats() {
+            synchronized(IntranetTunnel.this){
+                return String.format("weight:%s queued:%s delay avg:%.3fms max:%.3fms", weight, queue.size(),
+                    delayCount==0?0:delayTotal/1e6/delayCount, delayMax/1e6);
+            }
+        }
+        
+        synchronized void source(ReadStream source) {
+            this.source = source;
+            if(paused) source.pause();
+        }
+        
+        /**
+         * 发出n字节后调用
+         */
+        synchronized void onSend(int n) {
+            if(!limited) return;
+            sendWindow -= n;
+            if(sendWindow>0 || paused) return;
+            paused = true;
+            if(source!=null) source.pause();
+        }
+        /**
+         * 收到对端归还的窗口
+         */
+        synchronized void onUpdate(int credit) {
+            sendWindow += credit;
+            if(!paused || sendWindow<=0) return;
+            paused = false;
+            if(source!=null) source.resume();
+        }
+        /**
+         * 收到的n字节已写给本地后调用
+         */
+        void onConsumed(int n) {
+            int credit;
+            synchronized(this){
+                consumed += n;
+                if(consumed<MsgType.InitWindow/2) return;
+                credit = consumed;
+                consumed = 0;
+            }
+            writeWindowUpdate(id, credit);
+        }
+        
+        synchronized boolean paused() {
+            return paused;
+        }
+    }
+    
+    /**
+     * 排队中的转发包
+     */
+    private static class Frame {
+        /** 读模式，借自{@link BufferPool}，其前预留了{@link IntranetTunnel#FrameHeadroom}字节；为null时为断开连接 */
+        private final ByteBuffer data;
+        /** 入队时间 */
+        private final long time = System.nanoTime();
+        
+        private Frame(ByteBuffer data) {
+            this.data = data;
+        }
+        
+        private int size() {
+            return data==null ? 0 : data.remaining();
+        }
+    }
+    
+    /**
+     * 隧道上的事件回调，都在reader线程上
+     */
+    interface Handler {
+        void onTransmit(IntranetTunnel tunnel, int id, byte[] data) throws IOException;
+        void onConnectClose(IntranetTunnel tunnel, int id);
+        /** 本方开始使用版本2写出，对端支持版本2 */
+        void onSwitch(IntranetTunnel tunnel);
+        /** 收到{@link MsgType.Join} */
+        void onJoin(IntranetTunnel tunnel, long group);
+        void onException(IntranetTunnel tunnel, Exception e);
+    }
+    
+}
\ No newline at end of file
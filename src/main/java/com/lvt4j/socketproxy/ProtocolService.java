@@ -2,14 +2,14 @@ package com.lvt4j.socketproxy;
 
 import static java.lang.String.format;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.net.Inet4Address;
-import java.net.Inet6Address;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.util.Arrays;
 import java.util.function.Consumer;
@@ -21,9 +21,13 @@ import org.springframework.stereotype.Service;
 import com.google.common.net.HostAndPort;
 import com.google.common.net.InetAddresses;
 import com.google.common.primitives.Shorts;
+import com.lvt4j.socketproxy.ChannelReader.Decoder;
+import com.lvt4j.socketproxy.Config.SocketProfile;
 import com.lvt4j.socketproxy.ProxyApp.IOExceptionConsumer;
+import com.lvt4j.socketproxy.ProxyApp.IOExceptionRunnable;
 import com.lvt4j.socketproxy.ProxyApp.IoExceptionBiConsumer;
 
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
 /**
@@ -37,17 +41,198 @@ public class ProtocolService {
     public static class Socks5 {
         public static final byte NoAuth = 0;
         
+        /** 客户端握手：版本5，仅支持无认证 */
+        public static final byte[] ClientHandshake = {5, 1, NoAuth};
+        
         public static final byte[] NoAcc = {5, -1};
         public static final byte[] Acc = {5, 0};
         
         public static final byte[] Fail = {5,1,0,1, 0,0,0,0, 0,0};
         public static final byte[] Suc = {5,0,0,1, 0,0,0,0, 0,0};
+        
+        /**
+         * 服务端解码握手阶段请求 ver|nmethods|methods，结果为methods
+         */
+        public static class MethodsDecoder implements Decoder<byte[]> {
+            private boolean verRead;
+            private byte[] methods;
+            private int methodsLen;
+            
+            @Override
+            public byte[] decode(ByteBuffer data) throws IOException {
+                if(!verRead){
+                    if(!data.hasRemaining()) return null;
+                    byte ver = data.get();
+                    if(ver!=5) throw new ReplyException(NoAcc, format("no acceptable socket ver : %s", ver)); //仅支持socket版本5
+                    verRead = true;
+                }
+                if(methods==null){
+                    if(!data.hasRemaining()) return null;
+                    byte nmethods = data.get();
+                    if(nmethods==0) throw new ReplyException(NoAcc, format("no acceptable nmethods : %s", nmethods)); //客户端不支持任何认证方法
+                    methods = new byte[Byte.toUnsignedInt(nmethods)];
+                }
+                methodsLen = fill(data, methods, methodsLen);
+                return methodsLen<methods.length ? null : methods;
+            }
+        }
+        
+        /**
+         * 增量解码 ver|cmd(rep)|rsv|atyp|addr|port 格式的消息，每读到一个字段就校验
+         */
+        public static abstract class AddrMsgDecoder implements Decoder<AddrMsg> {
+            /** 校验的字段，ver、cmd(rep)、rsv、atyp、域名长度 */
+            protected static final int Ver = 0, Code = 1, Atyp = 3, DomainLen = 4;
+            
+            private final byte[] head = new byte[4];
+            private int headLen;
+            private byte[] addr;
+            private int addrLen;
+            private final byte[] port = new byte[2];
+            private int portLen;
+            
+            @Override
+            public AddrMsg decode(ByteBuffer data) throws IOException {
+                while(headLen<head.length && data.hasRemaining()){
+                    head[headLen] = data.get();
+                    check(headLen, head[headLen]);
+                    headLen++;
+                }
+                if(headLen<head.length) return null;
+                if(addr==null){
+                    switch(head[Atyp]){
+                    case 1: addr = new byte[4]; break; //ipv4
+                    case 4: addr = new byte[16]; break; //ipv6
+                    default: //域名
+                        if(!data.hasRemaining()) return null;
+                        byte len = data.get();
+                        check(DomainLen, len);
+                        addr = new byte[Byte.toUnsignedInt(len)];
+                        break;
+                    }
+                }
+                addrLen = fill(data, addr, addrLen);
+                if(addrLen<addr.length) return null;
+                portLen = fill(data, port, portLen);
+                if(portLen<port.length) return null;
+                return new AddrMsg(head[Code], head[Atyp], addr, Short.toUnsignedInt(Shorts.fromByteArray(port)));
+            }
+            
+            /**
+             * @param field {@link #Ver} {@link #Code} {@link #Atyp} {@link #DomainLen}及rsv
+             * @param value
+             */
+            protected abstract void check(int field, byte value) throws IOException;
+        }
+        
+        /**
+         * 服务端解码请求阶段的请求
+         */
+        public static class RequestDecoder extends AddrMsgDecoder {
+            @Override
+            protected void check(int field, byte value) throws IOException {
+                switch(field){
+                case Ver:
+                    if(value!=5) throw new ReplyException(Fail, format("no acceptable socket ver : %s", value)); //仅支持socket版本5
+                    break;
+                case Code:
+                    if(value!=1) throw new ReplyException(Fail, format("no acceptable cmd : %s", value)); //仅支持CONNECT请求
+                    break;
+                case Atyp:
+                    if(value!=1 && value!=3 && value!=4) throw new ReplyException(Fail, format("no acceptable addr type : %s", value));
+                    break;
+                case DomainLen:
+                    if(value==0) throw new ReplyException(Fail, format("no acceptable domain len : %s", value));
+                    break;
+                }
+            }
+        }
+        
+        /**
+         * 客户端解码请求阶段服务端的响应
+         */
+        public static class ReplyDecoder extends AddrMsgDecoder {
+            @Override
+            protected void check(int field, byte value) throws IOException {
+                switch(field){
+                case Ver:
+                    if(value!=5) throw new IOException(format("server no acceptable socks5 ver : %s", value)); //仅支持socket版本5
+                    break;
+                case Code:
+                    if(value!=0) throw new IOException(format("server response not success : %s", value));
+                    break;
+                case Atyp:
+                    if(value!=1 && value!=3 && value!=4) throw new IOException(format("no acceptable server addr type : %s", value));
+                    break;
+                }
+            }
+        }
+        
+        @RequiredArgsConstructor
+        public static class AddrMsg {
+            /** cmd或rep */
+            public final byte code;
+            public final byte atyp;
+            public final byte[] addr;
+            public final int port;
+            
+            public InetAddress host() throws UnknownHostException {
+                if(atyp==3) return InetAddress.getByName(new String(addr));
+                return InetAddress.getByAddress(addr);
+            }
+            /** 目标地址，域名原样返回，交由{@link Resolver}异步解析 */
+            public HostAndPort target() throws UnknownHostException {
+                if(atyp==3) return HostAndPort.fromParts(new String(addr), port);
+                return HostAndPort.fromParts(InetAddress.getByAddress(addr).getHostAddress(), port);
+            }
+        }
     }
     public static class Http {
         public static final byte LineFeed = '\n';
         public static final byte RetChar = '\r';
         
         public static final byte[] EstablishedHeaders = "HTTP/1.0 200 Connection established\r\nProxy-Agent: lvt4j-SocketProxy/1.0\r\n\r\n".getBytes();
+        
+        /** 请求/响应头最大长度 */
+        public static final int MaxHeadSize = 64*1024;
+        
+        /**
+         * 增量解码一段http头，直到空行为止，结果为第一行（含换行符）
+         * 兼容只用'\n'换行的情况
+         */
+        public static class HeadDecoder implements Decoder<byte[]> {
+            private ByteArrayOutputStream firstLine = new ByteArrayOutputStream();
+            private boolean firstLineRead;
+            /** 当前行除'\r'外的字节数 */
+            private int lineLen;
+            private int headLen;
+            
+            public HeadDecoder() {}
+            /**
+             * @param firstLineRead 第一行（状态行）是否已被读走，已读走时只消费剩下的头
+             */
+            public HeadDecoder(boolean firstLineRead) {
+                this.firstLineRead = firstLineRead;
+            }
+            
+            @Override
+            public byte[] decode(ByteBuffer data) throws IOException {
+                while(data.hasRemaining()){
+                    byte b = data.get();
+                    if(++headLen>MaxHeadSize) throw new IOException(format("http头超长 : %s", headLen));
+                    if(!firstLineRead) firstLine.write(b);
+                    if(b==RetChar) continue;
+                    if(b!=LineFeed){
+                        lineLen++;
+                        continue;
+                    }
+                    if(lineLen==0 && firstLineRead) return firstLine.toByteArray();
+                    firstLineRead = true;
+                    lineLen = 0;
+                }
+                return null;
+            }
+        }
     }
     public static class Pws {
         
@@ -63,6 +248,28 @@ public class ProtocolService {
         
     }
     
+    /**
+     * 解码失败，需要先向对端回复reply再关闭
+     */
+    public static class ReplyException extends IOException {
+        private static final long serialVersionUID = 1L;
+        
+        private final byte[] reply;
+        
+        public ReplyException(byte[] reply, String msg) {
+            super(msg);
+            this.reply = reply;
+        }
+        public ReplyException(byte[] reply, String msg, Throwable cause) {
+            super(msg, cause);
+            this.reply = reply;
+        }
+        
+        public byte[] reply() {
+            return reply;
+        }
+    }
+    
     @Autowired
     private ChannelReader reader;
     @Autowired
@@ -70,19 +277,52 @@ public class ProtocolService {
     @Autowired
     private ChannelConnector connector;
     
-    public void client_connect(URI server, HostAndPort targetConfig,
+    public ProtocolService() {}
+    /**
+     * 在指定的reader、writer、connector上握手，见{@link EventLoopGroup.EventLoop#protocol}
+     */
+    ProtocolService(ChannelReader reader, ChannelWriter writer, ChannelConnector connector) {
+        this.reader = reader;
+        this.writer = writer;
+        this.connector = connector;
+    }
+    
+    /**
+     * 握手使用的reader，握手阶段多读的数据在其预读中
+     */
+    public ChannelReader reader() {
+        return reader;
+    }
+    
+    /**
+     * 直接连接目标，见{@link ChannelConnector#connect(HostAndPort, SocketProfile, long, IOExceptionConsumer, Consumer)}
+     * @param profile 与目标连接的socket调优，可为空
+     * @param connectTimeout 建立连接的超时毫秒数，不大于0时不超时
+     */
+    public void connect(HostAndPort targetConfig, SocketProfile profile, long connectTimeout,
+            IOExceptionConsumer<SocketChannel> onConnect, Consumer<Exception> exHandler) {
+        connector.connect(targetConfig, profile, connectTimeout, onConnect, exHandler);
+    }
+    
+    /**
+     * 通过代理服务器连接目标
+     * @param profile 与代理服务器连接的socket调优，可为空
+     * @param connectTimeout 与代理服务器建立连接的超时毫秒数，不大于0时不超时
+     */
+    public void client_connect(URI server, HostAndPort targetConfig, SocketProfile profile, long connectTimeout,
             IOExceptionConsumer<SocketChannel> onConnect, Consumer<Exception> exHandler) {
         client_connect(Protocol.parse(server.getScheme()), HostAndPort.fromParts(server.getHost(), server.getPort()),
-            targetConfig, onConnect, exHandler);
+            targetConfig, profile, connectTimeout, onConnect, exHandler);
     }
     public void client_connect(Protocol protocol, HostAndPort serverConfig, HostAndPort targetConfig,
+            SocketProfile profile, long connectTimeout,
             IOExceptionConsumer<SocketChannel> onConnect, Consumer<Exception> exHandler) {
         switch(protocol){
         case Socks5:
-            socks5_client_connect(serverConfig, targetConfig, onConnect, exHandler);
+            socks5_client_connect(serverConfig, targetConfig, profile, connectTimeout, onConnect, exHandler);
             break;
         case Http:
-            http_client_connect(serverConfig, targetConfig, onConnect, exHandler);
+            http_client_connect(serverConfig, targetConfig, profile, connectTimeout, onConnect, exHandler);
             break;
         default:
             throw new IllegalArgumentException(format("不支持的协议：%s", protocol));
@@ -90,114 +330,68 @@ public class ProtocolService {
     }
     
     public void socks5_client_connect(HostAndPort serverConfig, HostAndPort targetConfig,
+            SocketProfile profile, long connectTimeout,
             IOExceptionConsumer<SocketChannel> onConnect, Consumer<Exception> exHandler) {
-        SocketChannel server;
-        try{
-            server = SocketChannel.open();
-        }catch(Exception e){
-            exHandler.accept(new IOException(format("打开服务套接字失败 : %s", serverConfig), e));
-            return;
-        }
-        Consumer<Exception> closeExHandler = e->{
-            ProxyApp.close(server);
-            exHandler.accept(e);
-        };
-        try{
-            server.configureBlocking(false);
-            server.connect(new InetSocketAddress(serverConfig.getHostText(), serverConfig.getPort()));
-        }catch(Exception e){
-            closeExHandler.accept(new IOException(format("连接服务套接字失败 : %s", serverConfig), e));
-            return;
-        }
-        connector.connect(server, ()->socks5_client_handshake(server, targetConfig, onConnect, closeExHandler), closeExHandler);
+        connector.connect(serverConfig, profile, connectTimeout, server->{
+            socks5_client_handshake(server, targetConfig, onConnect, e->{
+                ProxyApp.close(server);
+                exHandler.accept(e);
+            });
+        }, exHandler);
     }
     private void socks5_client_handshake(SocketChannel server, HostAndPort targetConfig,
             IOExceptionConsumer<SocketChannel> onConnect, Consumer<Exception> exHandler){
-        byte[] handshake = {5, 1, 0};
-        writer.write(server, handshake, ()->{
-            reader.readOne(server, ver->{
-                if(ver!=5){ //仅支持socket版本5
-                    exHandler.accept(new IOException(format("server no acceptable socks5 ver : %s", ver)));
-                    return;
-                }
-                reader.readOne(server, method->{
-                    if(method!=0){ //仅支持无认证模式
-                        exHandler.accept(new IOException(format("we only accept no auth but : %s", method)));
-                        return;
-                    }
-                    socks5_client_target(server, targetConfig, onConnect, exHandler);
-                }, exHandler);
+        writer.write(server, Socks5.ClientHandshake, ()->{
+            reader.readUntilLength(server, 2, resp->{
+                socks5_client_check_method(resp);
+                socks5_client_target(server, targetConfig, onConnect, exHandler);
             }, exHandler);
         }, exHandler);
     }
+    /**
+     * 校验服务端对客户端握手的响应 ver|method
+     */
+    static void socks5_client_check_method(byte[] resp) throws IOException {
+        if(resp[0]!=5) throw new IOException(format("server no acceptable socks5 ver : %s", resp[0])); //仅支持socket版本5
+        if(resp[1]!=Socks5.NoAuth) throw new IOException(format("we only accept no auth but : %s", resp[1])); //仅支持无认证模式
+    }
     private void socks5_client_target(SocketChannel server, HostAndPort targetConfig,
             IOExceptionConsumer<SocketChannel> onConnect, Consumer<Exception> exHandler) {
-        byte[] packet = {5, 1, 0};
-        if(InetAddresses.isInetAddress(targetConfig.getHostText())){
-            InetAddress targetAddr = InetAddresses.forUriString(targetConfig.getHostText());
-            if(targetAddr instanceof Inet4Address){
-                packet = ArrayUtils.add(packet, (byte)1);
-            }else{
-                packet = ArrayUtils.add(packet, (byte)4);
-            }
-            packet = ArrayUtils.addAll(packet, targetAddr.getAddress());
+        writer.write(server, socks5_client_target_packet(targetConfig), ()->{
+            reader.readDecode(server, new Socks5.ReplyDecoder(), reply->onConnect.accept(server), exHandler);
+        }, exHandler);
+    }
+    /**
+     * 客户端请求阶段的请求 ver|cmd|rsv|atyp|addr|port
+     */
+    static ByteBuffer socks5_client_target_packet(HostAndPort targetConfig) {
+        String host = targetConfig.getHostText();
+        byte atyp; byte[] addr;
+        if(InetAddresses.isInetAddress(host)){
+            addr = InetAddresses.forUriString(host).getAddress();
+            atyp = addr.length==4 ? (byte)1 : (byte)4;
         }else{
-            packet = ArrayUtils.add(packet, (byte)3);
-            packet = ArrayUtils.add(packet, (byte)targetConfig.getHostText().getBytes().length);
-            packet = ArrayUtils.addAll(packet, targetConfig.getHostText().getBytes());
+            addr = host.getBytes();
+            atyp = 3;
         }
-        packet = ArrayUtils.addAll(packet, Shorts.toByteArray((short)targetConfig.getPort()));
-        writer.write(server, packet, ()->{
-            reader.readOne(server, ver->{
-                if(ver!=5){ //仅支持socket版本5
-                    exHandler.accept(new IOException(format("server no acceptable socks5 ver : %s", ver)));
-                    return;
-                }
-                reader.readOne(server, rep->{
-                    if(rep!=0){
-                        exHandler.accept(new IOException(format("server response not success : %s", rep)));
-                        return;
-                    }
-                    reader.readOne(server, rst->{
-                        reader.readOne(server, atyp->{
-                            switch(atyp){
-                            case 1: //ipv4
-                                reader.readUntilLength(server, 4, addr->{
-                                    reader.readUntilLength(server, 2, port->onConnect.accept(server), exHandler);
-                                }, exHandler);
-                                break;
-                            case 3: //域名
-                                reader.readOne(server, len->{
-                                    reader.readUntilLength(server, Byte.toUnsignedInt(len), addr->{
-                                        reader.readUntilLength(server, 2, port->onConnect.accept(server), exHandler);
-                                    }, exHandler);
-                                }, exHandler);
-                                break;
-                            case 4: //ipv6
-                                reader.readUntilLength(server, 16, addr->{
-                                    reader.readUntilLength(server, 2, port->onConnect.accept(server), exHandler);
-                                }, exHandler);
-                                break;
-                            default:
-                                exHandler.accept(new IOException(format("no acceptable server addr type : %s", atyp)));
-                                return;
-                            }
-                        }, exHandler);
-                    }, exHandler);
-                }, exHandler);
-            }, exHandler);
-        }, exHandler);
+        ByteBuffer packet = ByteBuffer.allocate(4+(atyp==3?1:0)+addr.length+2);
+        packet.put((byte)5).put((byte)1).put((byte)0).put(atyp);
+        if(atyp==3) packet.put((byte)addr.length);
+        packet.put(addr).putShort((short)targetConfig.getPort()).flip();
+        return packet;
     }
     
     /**
      * 代理服务器接收客户端连接
      * @param client accept的客户端
+     * @param profile 与目标服务连接的socket调优，可为空
+     * @param connectTimeout 与目标服务建立连接的超时毫秒数，不大于0时不超时
      * @param onConnect 协议通讯成功，并与目标服务建立完连接后的回调，参数为目标服务
      * @param exHandler 异常处理
      */
-    public void socks5_server_connect(SocketChannel client,
+    public void socks5_server_connect(SocketChannel client, SocketProfile profile, long connectTimeout,
             IOExceptionConsumer<SocketChannel> onConnect, Consumer<Exception> exHandler) {
-        socks5_server_handshake(client, onConnect, exHandler);
+        socks5_server_handshake(client, profile, connectTimeout, onConnect, exHandler);
     }
     /**
      * 握手阶段：获取认证方法 并 响应是否进入认证阶段，或无需认证跳过认证阶段
@@ -224,27 +418,15 @@ public class ProtocolService {
      * @param onConnect
      * @param exHandler
      */
-    private void socks5_server_handshake(SocketChannel client,
+    private void socks5_server_handshake(SocketChannel client, SocketProfile profile, long connectTimeout,
             IOExceptionConsumer<SocketChannel> onConnect, Consumer<Exception> exHandler) {
-        reader.readOne(client, ver->{
-            if(ver!=5){ //仅支持socket版本5
-                writer.write(client, Socks5.NoAcc, ()->exHandler.accept(new IOException(format("no acceptable socket ver : %s", ver))), exHandler);
+        reader.readDecode(client, new Socks5.MethodsDecoder(), methods->{
+            if(!ArrayUtils.contains(methods, Socks5.NoAuth)){ //目前仅支持无身份验证，但客户端不支持无身份验证
+                writer.write(client, Socks5.NoAcc, ()->exHandler.accept(new IOException(format("only accept no auth but : %s", Arrays.toString(methods)))), exHandler);
                 return;
             }
-            reader.readOne(client, nmethods->{
-                if(nmethods==0){ //客户端不支持任何认证方法
-                    writer.write(client, Socks5.NoAcc, ()->exHandler.accept(new IOException(format("no acceptable nmethods : %s", nmethods))), exHandler);
-                    return;
-                }
-                reader.readUntilLength(client, Byte.toUnsignedInt(nmethods), methods->{
-                    if(!ArrayUtils.contains(methods, Socks5.NoAuth)){ //目前仅支持无身份验证，但客户端不支持无身份验证
-                        writer.write(client, Socks5.NoAcc, ()->exHandler.accept(new IOException(format("only accept no auth but : %s", Arrays.toString(methods)))), exHandler);
-                        return;
-                    }
-                    writer.write(client, Socks5.Acc, ()->socks5_server_read_target(client, onConnect, exHandler), exHandler);
-                }, exHandler);
-            }, exHandler);
-        }, exHandler);
+            writer.write(client, Socks5.Acc, ()->socks5_server_read_target(client, profile, connectTimeout, onConnect, exHandler), exHandler);
+        }, replyThen(client, exHandler));
     }
     /**
      * 请求阶段：获取要建立连接的目标的地址&协议&端口
@@ -282,63 +464,26 @@ public class ProtocolService {
      * BND.PORT 服务绑定的端口DST.PORT
      * </pre>
      */
-    private void socks5_server_read_target(SocketChannel client,
+    private void socks5_server_read_target(SocketChannel client, SocketProfile profile, long connectTimeout,
             IOExceptionConsumer<SocketChannel> onConnect, Consumer<Exception> exHandler) {
-        reader.readOne(client, ver->{
-            if(ver!=5){ //仅支持socket版本5
-                writer.write(client, Socks5.Fail, ()->exHandler.accept(new IOException(format("no acceptable socket ver : %s", ver))), exHandler);
+        reader.readDecode(client, new Socks5.RequestDecoder(), request->{
+            socks5_server_target_connect(client, request.target(), profile, connectTimeout, onConnect, exHandler);
+        }, replyThen(client, exHandler));
+    }
+    /**
+     * 异常为{@link ReplyException}时先将其reply写往channel再交给exHandler
+     */
+    private Consumer<Exception> replyThen(SocketChannel channel, Consumer<Exception> exHandler) {
+        return e->{
+            if(!(e instanceof ReplyException)){
+                exHandler.accept(e);
                 return;
             }
-            reader.readOne(client, cmd->{
-                if(cmd!=1){ //仅支持CONNECT请求
-                    writer.write(client, Socks5.Fail, ()->exHandler.accept(new IOException(format("no acceptable cmd : %s", cmd))), exHandler);
-                    return;
-                }
-                reader.readOne(client, rsv->{
-                    reader.readOne(client, atyp->{
-                        switch(atyp){
-                        case 1: //ipv4
-                            reader.readUntilLength(client, 4, ipv4->{
-                                InetAddress host = Inet4Address.getByAddress(ipv4);
-                                socks5_server_read_target_port(client, host, onConnect, exHandler);
-                            }, exHandler);
-                            break;
-                        case 3: //域名
-                            reader.readOne(client, len->{
-                                if(len==0){
-                                    writer.write(client, Socks5.Fail, ()->exHandler.accept(new IOException(format("no acceptable domain len : %s", len))), exHandler);
-                                    return;
-                                }
-                                reader.readUntilLength(client, Byte.toUnsignedInt(len), domainBs->{
-                                    String domain = new String(domainBs);
-                                    InetAddress host = InetAddress.getByName(domain);
-                                    socks5_server_read_target_port(client, host, onConnect, exHandler);
-                                }, exHandler);
-                            }, exHandler);
-                            break;
-                        case 4: //ipv6
-                            reader.readUntilLength(client, 16, ipv6->{
-                                InetAddress host = Inet6Address.getByAddress(ipv6);
-                                socks5_server_read_target_port(client, host, onConnect, exHandler);
-                            }, exHandler);
-                            break;
-                        default:
-                            writer.write(client, Socks5.Fail, ()->exHandler.accept(new IOException(format("no acceptable addr type : %s", atyp))), exHandler);
-                            return;
-                        }
-                    }, exHandler);
-                }, exHandler);
-            }, exHandler);
-        }, exHandler);
-    }
-    private void socks5_server_read_target_port(SocketChannel client, InetAddress host,
-            IOExceptionConsumer<SocketChannel> onConnect, Consumer<Exception> exHandler) {
-        reader.readUntilLength(client, 2, portBs->{
-            int port = Short.toUnsignedInt(Shorts.fromByteArray(portBs));
-            socks5_server_target_connect(client, host, port, onConnect, exHandler);
-        }, exHandler);
+            writer.write(channel, ((ReplyException) e).reply, ()->exHandler.accept(e), exHandler);
+        };
     }
-    private void socks5_server_target_connect(SocketChannel client, InetAddress host, int port,
+    private void socks5_server_target_connect(SocketChannel client, HostAndPort targetConfig,
+            SocketProfile profile, long connectTimeout,
             IOExceptionConsumer<SocketChannel> onConnect, Consumer<Exception> exHandler) {
         Consumer<Exception> responseFail2ClientThenExHandler = e->{
             writer.write(client, Socks5.Fail, ()->{
@@ -348,95 +493,65 @@ public class ProtocolService {
                 exHandler.accept(e);
             });
         };
-        
-        SocketChannel target;
-        try{
-            target = SocketChannel.open();
-        }catch(Exception e){
-            responseFail2ClientThenExHandler.accept(new IOException(format("打开目标套接字失败 : %s:%s", host, port), e));
-            return;
-        }
-        Consumer<Exception> responseFail2ClientThenCloseThenExHandler = e->{
-            writer.write(client, Socks5.Fail, ()->{
+        connector.connect(targetConfig, profile, connectTimeout, target->{
+            Consumer<Exception> responseFail2ClientThenCloseThenExHandler = e->{
                 ProxyApp.close(target);
-                exHandler.accept(e);
-            }, we->{
-                ProxyApp.close(target);
-                log.error("write socks5 fail msg to client error", we);
-                exHandler.accept(e);
-            });
-        };
-        try{
-            target.configureBlocking(false);
-            target.connect(new InetSocketAddress(host, port));
-        }catch(Exception e){
-            responseFail2ClientThenCloseThenExHandler.accept(new IOException(format("连接目标套接字失败 : %s:%s", host, port), e));
-            return;
-        }
-        connector.connect(target, ()->{
+                responseFail2ClientThenExHandler.accept(e);
+            };
             writer.write(client, Socks5.Suc, ()->{
-                onConnect.accept(target);
+                handover(client, target, ()->onConnect.accept(target), e->{
+                    ProxyApp.close(target);
+                    exHandler.accept(e);
+                });
             }, responseFail2ClientThenCloseThenExHandler);
-        }, responseFail2ClientThenCloseThenExHandler);
+        }, e->{
+            responseFail2ClientThenExHandler.accept(new IOException(format("连接目标失败 : %s", targetConfig), e));
+        });
     }
     
     public void http_client_connect(HostAndPort serverConfig, HostAndPort targetConfig,
+            SocketProfile profile, long connectTimeout,
             IOExceptionConsumer<SocketChannel> onConnect, Consumer<Exception> exHandler){
-        SocketChannel server;
-        try{
-            server = SocketChannel.open();
-        }catch(Exception e){
-            exHandler.accept(new IOException(format("打开服务套接字失败 : %s", serverConfig), e));
-            return;
-        }
-        Consumer<Exception> closeExHandler = e->{
-            ProxyApp.close(server);
-            exHandler.accept(e);
-        };
-        try{
-            server.configureBlocking(false);
-            server.connect(new InetSocketAddress(serverConfig.getHostText(), serverConfig.getPort()));
-        }catch(Exception e){
-            closeExHandler.accept(new IOException(format("连接服务套接字失败 : %s", serverConfig), e));
-            return;
-        }
-        connector.connect(server, ()->http_client_handshake(server, serverConfig, targetConfig, onConnect, closeExHandler), closeExHandler);
+        connector.connect(serverConfig, profile, connectTimeout, server->{
+            http_client_handshake(server, serverConfig, targetConfig, onConnect, e->{
+                ProxyApp.close(server);
+                exHandler.accept(e);
+            });
+        }, exHandler);
     }
     private void http_client_handshake(SocketChannel server, HostAndPort serverConfig, HostAndPort targetConfig,
             IOExceptionConsumer<SocketChannel> onConnect, Consumer<Exception> exHandler) {
-        String statusLine = "CONNECT "+targetConfig+" HTTP/1.0\r\n";
-        String hostHeader = "Host: "+serverConfig+"\r\n";
-        
-        byte[] handshake = (statusLine+hostHeader+"\r\n").getBytes();
-        writer.write(server, handshake, ()->{
-            reader.readUntilByte(server, Http.LineFeed, data->{
-                String responseStatusLine = new String(data);
-                String[] split = responseStatusLine.split(" ", 3);
-                if(split.length!=3){
-                    exHandler.accept(new IOException(format("非法的http响应状态行 : %s", responseStatusLine)));
-                    return;
-                }
-                if(!"200".equals(split[1])){ //响应状态码不是200
-                    exHandler.accept(new IOException(format("http响应状态码不是200 : %s", responseStatusLine)));
-                    return;
-                }
-                http_client_exhaust_headers(server, onConnect, exHandler);
+        writer.write(server, http_client_handshake_packet(serverConfig, targetConfig), ()->{
+            reader.readDecode(server, new Http.HeadDecoder(), data->{
+                http_client_check_status(data);
+                onConnect.accept(server);
             }, exHandler);
         }, exHandler);
     }
-    private void http_client_exhaust_headers(SocketChannel server,
-            IOExceptionConsumer<SocketChannel> onConnect, Consumer<Exception> exHandler) {
-        reader.readUntilByte(server, Http.LineFeed, data->{
-            data = ArrayUtils.removeElement(data, Http.RetChar); //如win类操作系统，换行同时会携带'\r'，去掉它
-            if(data.length==1){ //响应头结束，连接建立成功
-                onConnect.accept(server);
-            }else{
-                http_client_exhaust_headers(server, onConnect, exHandler);
-            }
-        }, exHandler);
+    /**
+     * 客户端握手的CONNECT请求
+     */
+    static byte[] http_client_handshake_packet(HostAndPort serverConfig, HostAndPort targetConfig) {
+        String statusLine = "CONNECT "+targetConfig+" HTTP/1.0\r\n";
+        String hostHeader = "Host: "+serverConfig+"\r\n";
+        return (statusLine+hostHeader+"\r\n").getBytes();
+    }
+    /**
+     * 校验代理服务器响应的状态行，状态码须为200
+     */
+    static void http_client_check_status(byte[] data) throws IOException {
+        String responseStatusLine = new String(data);
+        String[] split = responseStatusLine.split(" ", 3);
+        if(split.length!=3) throw new IOException(format("非法的http响应状态行 : %s", responseStatusLine));
+        if(!"200".equals(split[1])) throw new IOException(format("http响应状态码不是200 : %s", responseStatusLine)); //响应状态码不是200
     }
     
-    public void http_server_connect(SocketChannel client,
+    /**
+     * 代理服务器接收客户端连接
+     * @param profile 与目标服务连接的socket调优，可为空
+     * @param connectTimeout 与目标服务建立连接的超时毫秒数，不大于0时不超时
+     */
+    public void http_server_connect(SocketChannel client, SocketProfile profile, long connectTimeout,
             IoExceptionBiConsumer<String, SocketChannel> onConnect, Consumer<Exception> exHandler) {
         reader.readUntilByte(client, Http.LineFeed, data->{
             String statusLine = new String(data, 0, data.length-1);
@@ -446,51 +561,60 @@ public class ProtocolService {
                 return;
             }
             if("CONNECT".equals(split[0])){
-                http_server_jump(split, client, onConnect, exHandler);
+                http_server_jump(split, client, profile, connectTimeout, onConnect, exHandler);
             }else{
-                http_server_direct(split, data, onConnect, exHandler);
+                http_server_direct(split, client, data, profile, connectTimeout, onConnect, exHandler);
             }
         }, exHandler);
     }
-    private void http_server_direct(String[] statusLine, byte[] statusLineRaw,
+    private void http_server_direct(String[] statusLine, SocketChannel client, byte[] statusLineRaw,
+            SocketProfile profile, long connectTimeout,
             IoExceptionBiConsumer<String, SocketChannel> onConnect, Consumer<Exception> exHandler) {
-        URL url;
+        String targetStr;
         try{
-            url=new URL(statusLine[1]);
-        }catch(MalformedURLException e){
-            exHandler.accept(new IOException(format("请求头中的目标地址非url : %s", statusLine[1])));
+            targetStr = http_server_direct_target(statusLine[1]);
+        }catch(IOException e){
+            exHandler.accept(e);
             return;
         }
-        int port = url.getPort();
-        if(port==-1) port = url.getDefaultPort();
-        String targetStr = url.getHost()+":"+port;
-        http_server_target_connect(targetStr, (target, closeExHandler)->{
+        http_server_target_connect(targetStr, profile, connectTimeout, (target, closeExHandler)->{
             writer.write(target, statusLineRaw, ()->{
-                onConnect.accept(targetStr, target);
+                handover(client, target, ()->onConnect.accept(targetStr, target), closeExHandler);
             }, closeExHandler);
         }, exHandler);
     }
+    /**
+     * 非CONNECT请求状态行中的url对应的目标 host:port
+     */
+    static String http_server_direct_target(String urlStr) throws IOException {
+        URL url;
+        try{
+            url=new URL(urlStr);
+        }catch(MalformedURLException e){
+            throw new IOException(format("请求头中的目标地址非url : %s", urlStr));
+        }
+        int port = url.getPort();
+        if(port==-1) port = url.getDefaultPort();
+        return url.getHost()+":"+port;
+    }
     private void http_server_jump(String[] statusLine,
-            SocketChannel client,
+            SocketChannel client, SocketProfile profile, long connectTimeout,
             IoExceptionBiConsumer<String, SocketChannel> onConnect, Consumer<Exception> exHandler) {
         String targetStr = statusLine[1];
-        http_server_target_connect(targetStr, (target, closeExHandler)->{
+        http_server_target_connect(targetStr, profile, connectTimeout, (target, closeExHandler)->{
             http_server_jump_exhaust_headers(client, targetStr, target, onConnect, exHandler);
         }, exHandler);
     }
     private void http_server_jump_exhaust_headers(SocketChannel client,
             String targetStr, SocketChannel target,
             IoExceptionBiConsumer<String, SocketChannel> onConnect, Consumer<Exception> exHandler) {
-        reader.readUntilByte(client, Http.LineFeed, data->{
-            data = ArrayUtils.removeElement(data, Http.RetChar); //如win类操作系统，换行同时会携带'\r'，去掉它
-            if(data.length==1){//请求头结束，返回连接建立成功消息
-                writer.write(client, Http.EstablishedHeaders, ()->onConnect.accept(targetStr, target), exHandler);
-            }else{
-                http_server_jump_exhaust_headers(client, targetStr, target, onConnect, exHandler);
-            }
+        reader.readDecode(client, new Http.HeadDecoder(true), data->{ //请求头结束，返回连接建立成功消息
+            writer.write(client, Http.EstablishedHeaders, ()->{
+                handover(client, target, ()->onConnect.accept(targetStr, target), exHandler);
+            }, exHandler);
         }, exHandler);
     }
-    private void http_server_target_connect(String targetStr,
+    private void http_server_target_connect(String targetStr, SocketProfile profile, long connectTimeout,
             IoExceptionBiConsumer<SocketChannel, Consumer<Exception>> onConnect, Consumer<Exception> exHandler) {
         HostAndPort targetConfig = ProxyApp.validHostPort(targetStr);
         if(targetConfig==null){
@@ -498,30 +622,41 @@ public class ProtocolService {
             return;
         }
         
-        SocketChannel target;
-        try{
-            target = SocketChannel.open();
-        }catch(Exception e){
-            exHandler.accept(new IOException(format("打开目标套接字失败 : %s", targetConfig), e));
-            return;
-        }
-        Consumer<Exception> closeExHandler = e->{
-            ProxyApp.close(target);
-            exHandler.accept(e);
-        };
-        try{
-            target.configureBlocking(false);
-            target.connect(new InetSocketAddress(targetConfig.getHostText(), targetConfig.getPort()));
-        }catch(Exception e){
-            closeExHandler.accept(new IOException(format("连接目标套接字失败 : %s", targetConfig), e));
-            return;
-        }
-        
-        connector.connect(target, ()->{
-            onConnect.accept(target, closeExHandler);
+        connector.connect(targetConfig, profile, connectTimeout, target->{
+            onConnect.accept(target, e->{
+                ProxyApp.close(target);
+                exHandler.accept(e);
+            });
         }, e->{
-            closeExHandler.accept(new IOException(format("连接目标失败 : %s", targetConfig), e));
+            exHandler.accept(new IOException(format("连接目标失败 : %s", targetConfig), e));
         });
     }
+    
+    /**
+     * 从src中取数据填充dst[offset~]
+     * @return 填充后dst中已有数据的长度
+     */
+    private static int fill(ByteBuffer src, byte[] dst, int offset) {
+        int len = Math.min(src.remaining(), dst.length-offset);
+        src.get(dst, offset, len);
+        return offset+len;
+    }
+    
+    /**
+     * 握手完成、from交给其他组件转发前，将握手阶段从from多预读的数据（如紧随握手的TLS ClientHello）先写往to
+     * @param from 握手的channel
+     * @param to 与from对接的channel
+     * @param onHandover 多读的数据写完后（没有时立即）回调
+     * @param exHandler
+     */
+    public void handover(SocketChannel from, SocketChannel to,
+            IOExceptionRunnable onHandover, Consumer<Exception> exHandler) throws IOException {
+        ByteBuffer readAhead = reader.takeReadAhead(from);
+        if(readAhead==null){
+            onHandover.run();
+            return;
+        }
+        writer.write(to, readAhead, onHandover, exHandler);
+    }
 
 }
\ No newline at end of file
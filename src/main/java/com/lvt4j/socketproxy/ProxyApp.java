@@ -6,6 +6,8 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
 import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
@@ -21,6 +23,7 @@ import org.springframework.boot.context.ApplicationPidFileWriter;
 import org.springframework.scheduling.annotation.EnableScheduling;
 
 import com.google.common.net.HostAndPort;
+import com.lvt4j.socketproxy.Config.SocketProfile;
 
 import lombok.extern.slf4j.Slf4j;
 
@@ -33,6 +36,9 @@ import lombok.extern.slf4j.Slf4j;
 @SpringBootApplication
 public class ProxyApp {
 
+    /** SO_REUSEPORT，JDK9及以上才有，源码需兼容JDK8故通过反射获取，不支持时为null */
+    public static final SocketOption<Boolean> ReusePort = reusePort();
+
     public static void main(String[] args) throws Throwable {
         SpringApplication app = new SpringApplication(ProxyApp.class);
         app.addListeners(new ApplicationPidFileWriter());
@@ -40,15 +46,39 @@ public class ProxyApp {
     }
     
     public static ServerSocketChannel server(InetAddress host, int port) throws IOException {
+        return server(host, port, 0, false, null);
+    }
+    /**
+     * @param backlog 等待accept的连接队列长度，小于1时使用系统默认
+     * @param reusePort 是否开启SO_REUSEPORT，以便多个channel监听同一端口由内核分摊新连接
+     * @param profile 接入连接的socket配置，其中需在bind前设置的选项（SO_RCVBUF）设置在监听的channel上，可为null
+     */
+    public static ServerSocketChannel server(InetAddress host, int port, int backlog, boolean reusePort, SocketProfile profile) throws IOException {
+        ServerSocketChannel channel = null;
         try{
-            ServerSocketChannel channel = ServerSocketChannel.open();
-            channel.bind(new InetSocketAddress(host, port));
+            channel = ServerSocketChannel.open();
+            if(reusePort) channel.setOption(ReusePort, true);
+            SocketProfile.listen(profile, channel);
+            channel.bind(new InetSocketAddress(host, port), backlog);
             channel.configureBlocking(false);
             return channel;
         }catch(IOException e){
+            close(channel);
             throw new IOException(String.format("启动服务端口[%s]失败", port), e);
         }
     }
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePort() {
+        try{
+            SocketOption<Boolean> option = (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+            try(ServerSocketChannel channel = ServerSocketChannel.open()){
+                if(!channel.supportedOptions().contains(option)) return null;
+            }
+            return option;
+        }catch(Exception e){
+            return null;
+        }
+    }
     public static HostAndPort validHostPort(String hostAndPort) {
         HostAndPort hp;
         try{
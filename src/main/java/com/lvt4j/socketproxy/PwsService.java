@@ -17,14 +17,11 @@ import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Set;
 import java.util.TreeMap;
-import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
@@ -41,6 +38,7 @@ import org.springframework.stereotype.Service;
 
 import com.google.common.collect.ImmutableSet;
 import com.google.common.net.HostAndPort;
+import com.lvt4j.socketproxy.Config.SocketProfile;
 
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
@@ -93,7 +91,7 @@ public class PwsService implements InfoContributor {
         ImmutableSet.copyOf(servers.values()).forEach(ServerMeta::destory);
     }
     
-    @Scheduled(cron="0/10 * * * * ?")
+    @Scheduled(cron="* * * * * ?")
     public synchronized void cleanIdle() {
         servers.values().forEach(ServerMeta::cleanIdle);
     }
@@ -110,6 +108,7 @@ public class PwsService implements InfoContributor {
         private final int port;
         
         private List<ConnectMeta> connections = Collections.synchronizedList(new LinkedList<>());
+        private IdleTracker idleTracker = new IdleTracker(config::getMaxIdleTime);
         
         public ServerMeta(int port) {
             super(new InetSocketAddress(port));
@@ -163,12 +162,7 @@ public class PwsService implements InfoContributor {
         }
         
         public void cleanIdle() {
-            synchronized (connections) {
-                for(ConnectMeta cnn : ImmutableSet.copyOf(connections)){
-                    if(System.currentTimeMillis()-cnn.latestTouchTime<config.getMaxIdleTime()) continue;
-                    cnn.destory();
-                }
-            }
+            idleTracker.sweep();
         }
         
         public String info() {
@@ -190,11 +184,7 @@ public class PwsService implements InfoContributor {
             
             private String direction;
             
-            private long latestTouchTime = System.currentTimeMillis();
-            
-            private AtomicLong prepareWrite2TargetDataIder = new AtomicLong();
-            private Set<Long> prepareWrite2TargetDataIds = Collections.synchronizedSet(new HashSet<>());
-            private volatile boolean prepareCloseClient = false;
+            private final IdleTracker.Entry idle = idleTracker.track(this::abort);
             
             public ConnectMeta(WebSocket client, ClientHandshake handshake) throws IOException {
                 this.client = client;
@@ -214,9 +204,9 @@ public class PwsService implements InfoContributor {
                     
                     target = SocketChannel.open();
                     target.configureBlocking(false);
-                    target.connect(new InetSocketAddress(targetConfig.getHostText(), targetConfig.getPort()));
+                    SocketProfile.apply(config.getSocket(), target);
                     
-                    connector.connect(target, ()->onConnect(target), this::onException);
+                    connector.connect(target, targetConfig, config.getConnectTimeout(), ()->onConnect(target), this::onException);
                 }catch(Exception e){
                     destory();
                     throw e;
@@ -227,16 +217,12 @@ public class PwsService implements InfoContributor {
                     ,format(client.getRemoteSocketAddress()), port(client.getLocalSocketAddress())
                     ,port(target.getLocalAddress()), format(target.getRemoteAddress()));
                 
-                targetRead(null);
+                targetRead();
                 
                 log.info("{} connected {}", port, direction);
             }
-            private void targetRead(ByteBuffer buf) {
-                if(buf==null) buf = ByteBuffer.allocate(1024);
-                reader.readAny(target, buf, data->{
-                    dataFromTargetToClient(data);
-                    targetRead(data);
-                }, e->{
+            private void targetRead() {
+                reader.readStream(target, 1024, this::dataFromTargetToClient, e->{
                     try{
                         if(client!=null && client.isOpen()) client.send(Command_Close);
                     }catch(Exception ig){}
@@ -259,35 +245,40 @@ public class PwsService implements InfoContributor {
                 }
             }
             private void dataFromClientToTarget(ByteBuffer buf) {
-                long prepareWrite2ClientDataId = prepareWrite2TargetDataIder.incrementAndGet();
-                prepareWrite2TargetDataIds.add(prepareWrite2ClientDataId);
-                writer.write(target, buf, ()->{
-                    prepareWrite2TargetDataIds.remove(prepareWrite2ClientDataId);
-                    closeIfPossible();
-                }, this::onException);
+                writer.write(target, buf, this::onException);
                 onTrans();
             }
             private void onTrans() {
-                latestTouchTime = System.currentTimeMillis();
+                idle.touch();
             }
             
             private synchronized void onException(Exception e) {
-                if(!isCloseException(e)) log.error("connection {} err", direction, e);
-                prepareWrite2TargetDataIds.clear();
+                if(isCloseException(e)){
+                    ProxyApp.close(target);
+                    destory();
+                    return;
+                }
+                log.error("connection {} err", direction, e);
+                abort();
+            }
+            
+            /**
+             * 出错、闲置超时时中止连接，见{@link SocketProfile#abort}
+             */
+            private void abort() {
+                SocketProfile.abort(config.getSocket(), target);
                 destory();
             }
             
             private void destory() {
-                prepareCloseClient=true; closeIfPossible();
-                ProxyApp.close(target);
+                if(target!=null) writer.closeAfterFlush(target, this::closeClient);
+                else closeClient();
                 connections.remove(this);
+                idleTracker.untrack(idle);
                 
                 log.info("{} disconnected {}", port, direction);
             }
-            public void closeIfPossible() {
-                if(!prepareCloseClient) return;
-                if(!prepareWrite2TargetDataIds.isEmpty()) return;
-                
+            private void closeClient() {
                 if(client!=null && client.isOpen()) client.close();
             }
         }
@@ -0,0 +1,203 @@
+package com.lvt4j.socketproxy;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import com.google.common.net.InetAddresses;
+import com.lvt4j.socketproxy.ProxyApp.IOExceptionConsumer;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * 异步域名解析
+ * <pre>
+ * 解析在自有的线程池上进行，不阻塞selector线程
+ * 解析结果按ttl缓存，解析失败按negativeTtl缓存，缓存有效期内直接在调用者线程上回调
+ * 同一域名同时有多个解析请求时只解析一次，结果回调所有请求
+ * ip字面量不解析，直接在调用者线程上回调
+ * </pre>
+ * @author LV on 2026年10月18日
+ */
+@Service
+public class Resolver {
+    
+    public static final int DefaultThreads = 4;
+    public static final long DefaultTtl = TimeUnit.MINUTES.toMillis(1);
+    public static final long DefaultNegativeTtl = TimeUnit.SECONDS.toMillis(5);
+    
+    /** 缓存条目超过该数量时清理过期的条目 */
+    private static final int CacheCleanThreshold = 10000;
+    
+    @Autowired
+    private Config config;
+    
+    private ExecutorService workers;
+    private long ttl;
+    private long negativeTtl;
+    
+    private final Map<String, Resolved> cache = new ConcurrentHashMap<>();
+    /** 正在解析中的域名 */
+    private final Map<String, Lookup> lookups = new ConcurrentHashMap<>();
+    
+    private Timer lookupTimer;
+    private Counter hitCounter;
+    private Counter coalescedCounter;
+    
+    @PostConstruct
+    public void init() {
+        init("Resolver", config.getResolverThreads(), config.getDnsTtl(), config.getDnsNegativeTtl());
+    }
+    public void init(String name) {
+        init(name, DefaultThreads, DefaultTtl, DefaultNegativeTtl);
+    }
+    public void init(String name, int threads, long ttl, long negativeTtl) {
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+        AtomicInteger idx = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(threads, r->{
+            Thread t = new Thread(r, name+"-"+idx.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        lookupTimer = Timer.builder("resolver.lookup")
+            .description("time of the underlying name lookups")
+            .tag("resolver", name)
+            .register(Metrics.globalRegistry);
+        hitCounter = Counter.builder("resolver.cache.hit")
+            .tag("resolver", name)
+            .register(Metrics.globalRegistry);
+        coalescedCounter = Counter.builder("resolver.coalesced")
+            .description("resolves joined an in-flight lookup of the same name")
+            .tag("resolver", name)
+            .register(Metrics.globalRegistry);
+    }
+    @PreDestroy
+    public void destory() {
+        if(workers!=null) workers.shutdownNow();
+    }
+    
+    /**
+     * 解析host的所有地址
+     * @param onResolve 解析成功的回调，参数至少有一个地址
+     * @param exHandler 解析失败（或onResolve异常）的回调
+     */
+    public void resolve(String host, IOExceptionConsumer<InetAddress[]> onResolve, Consumer<Exception> exHandler) {
+        if(InetAddresses.isInetAddress(host)){
+            new Resolved(new InetAddress[]{InetAddresses.forString(host)}, null, Long.MAX_VALUE).callback(onResolve, exHandler);
+            return;
+        }
+        Resolved resolved = cache.get(host);
+        if(resolved!=null && System.currentTimeMillis()<resolved.expireTime){
+            hitCounter.increment();
+            resolved.callback(onResolve, exHandler);
+            return;
+        }
+        Lookup created = new Lookup();
+        Lookup lookup = lookups.putIfAbsent(host, created);
+        if(lookup==null){
+            lookup = created;
+            try{
+                workers.execute(()->lookup(host, created));
+            }catch(Exception e){
+                lookups.remove(host, created);
+                exHandler.accept(e);
+                return;
+            }
+        }else{
+            coalescedCounter.increment();
+        }
+        lookup.await(onResolve, exHandler);
+    }
+    
+    private void lookup(String host, Lookup lookup) {
+        long begin = System.nanoTime();
+        Resolved resolved;
+        try{
+            InetAddress[] addresses = InetAddress.getAllByName(host);
+            resolved = new Resolved(addresses, null, System.currentTimeMillis()+ttl);
+        }catch(Exception e){
+            resolved = new Resolved(null, e, System.currentTimeMillis()+negativeTtl);
+        }
+        lookupTimer.record(System.nanoTime()-begin, NANOSECONDS);
+        if(cache.size()>CacheCleanThreshold){
+            long now = System.currentTimeMillis();
+            cache.values().removeIf(r->r.expireTime<=now);
+        }
+        cache.put(host, resolved);
+        lookups.remove(host, lookup);
+        lookup.complete(resolved);
+    }
+    
+    @RequiredArgsConstructor
+    private static class Resolved {
+        private final InetAddress[] addresses;
+        private final Exception ex;
+        private final long expireTime;
+        
+        private void callback(IOExceptionConsumer<InetAddress[]> onResolve, Consumer<Exception> exHandler) {
+            if(ex!=null){
+                exHandler.accept(ex);
+                return;
+            }
+            try{
+                onResolve.accept(addresses);
+            }catch(Exception e){
+                exHandler.accept(e);
+            }
+        }
+    }
+    
+    /**
+     * 一次进行中的解析，及等待其结果的请求
+     */
+    private static class Lookup {
+        private final List<Waiter> waiters = new ArrayList<>(1);
+        private Resolved resolved;
+        
+        private void await(IOExceptionConsumer<InetAddress[]> onResolve, Consumer<Exception> exHandler) {
+            synchronized(this){
+                if(resolved==null){
+                    waiters.add(new Waiter(onResolve, exHandler));
+                    return;
+                }
+            }
+            resolved.callback(onResolve, exHandler);
+        }
+        
+        private void complete(Resolved resolved) {
+            List<Waiter> waiters;
+            synchronized(this){
+                this.resolved = resolved;
+                waiters = new ArrayList<>(this.waiters);
+                this.waiters.clear();
+            }
+            for(Waiter waiter : waiters) resolved.callback(waiter.onResolve, waiter.exHandler);
+        }
+    }
+    
+    @RequiredArgsConstructor
+    private static class Waiter {
+        private final IOExceptionConsumer<InetAddress[]> onResolve;
+        private final Consumer<Exception> exHandler;
+    }
+    
+}
\ No newline at end of file
@@ -0,0 +1,100 @@
+package com.lvt4j.socketproxy;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import com.lvt4j.socketproxy.ProxyApp.IOExceptionConsumer;
+import com.lvt4j.socketproxy.ProxyApp.IOExceptionRunnable;
+import com.lvt4j.socketproxy.ProxyApp.IoExceptionBiConsumer;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 单个连接的回调执行器：任务提交到共享的worker线程池执行，同一执行器上的任务按提交顺序串行执行
+ * <pre>
+ * 用于把日志、拼装描述、异常处理等非IO回调移出selector线程，且不打乱同一连接上回调的顺序
+ * executor为null时在调用者线程上直接执行，即不启用worker
+ * </pre>
+ * @author LV on 2026年10月18日
+ */
+@Slf4j
+public class SerialExecutor implements Executor {
+    
+    /** 每次占用worker线程最多执行的任务数，超过后让出线程重新排队，避免一个连接长期占用worker */
+    private static final int MaxBatch = 64;
+    
+    private final Executor executor;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    /** 已提交还未执行完的任务数 */
+    private final AtomicInteger pending = new AtomicInteger();
+    
+    public SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+    
+    @Override
+    public void execute(Runnable task) {
+        if(executor==null){
+            task.run();
+            return;
+        }
+        tasks.offer(task);
+        if(pending.getAndIncrement()==0) executor.execute(this::drain);
+    }
+    private void drain() {
+        for(int i=0; i<MaxBatch; i++){
+            try{
+                tasks.poll().run();
+            }catch(Throwable e){
+                log.error("callback err", e);
+            }
+            if(pending.decrementAndGet()==0) return;
+        }
+        executor.execute(this::drain);
+    }
+    
+    /**
+     * 包装一个回调，调用时提交到本执行器执行，回调抛出的异常交给exHandler（同样在本执行器上）
+     */
+    public IOExceptionRunnable offload(IOExceptionRunnable callback, Consumer<Exception> exHandler) {
+        if(executor==null) return callback;
+        return ()->execute(()->{
+            try{
+                callback.run();
+            }catch(Exception e){
+                exHandler.accept(e);
+            }
+        });
+    }
+    public <T> IOExceptionConsumer<T> offload(IOExceptionConsumer<T> callback, Consumer<Exception> exHandler) {
+        if(executor==null) return callback;
+        return t->execute(()->{
+            try{
+                callback.accept(t);
+            }catch(Exception e){
+                exHandler.accept(e);
+            }
+        });
+    }
+    public <T, U> IoExceptionBiConsumer<T, U> offload(IoExceptionBiConsumer<T, U> callback, Consumer<Exception> exHandler) {
+        if(executor==null) return callback;
+        return (t, u)->execute(()->{
+            try{
+                callback.accept(t, u);
+            }catch(Exception e){
+                exHandler.accept(e);
+            }
+        });
+    }
+    /**
+     * 包装一个回调，调用时提交到本执行器执行
+     */
+    public <T> Consumer<T> offload(Consumer<T> callback) {
+        if(executor==null) return callback;
+        return t->execute(()->callback.accept(t));
+    }
+
+}
@@ -18,6 +18,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.TreeMap;
+import java.util.function.Consumer;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
@@ -30,6 +31,8 @@ import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
 import com.google.common.collect.ImmutableSet;
+import com.lvt4j.socketproxy.Config.SocketProfile;
+import com.lvt4j.socketproxy.EventLoopGroup.EventLoop;
 
 import lombok.extern.slf4j.Slf4j;
 
@@ -49,7 +52,7 @@ public class Socks5Service implements InfoContributor {
     @Autowired
     private ChannelAcceptor acceptor;
     @Autowired
-    private ProtocolService protocolService;
+    private EventLoopGroup loops;
     
     private Map<Integer, ServerMeta> servers = new HashMap<>();
     
@@ -81,7 +84,7 @@ public class Socks5Service implements InfoContributor {
         ImmutableSet.copyOf(servers.values()).forEach(ServerMeta::destory);
     }
     
-    @Scheduled(cron="0/10 * * * * ?")
+    @Scheduled(cron="* * * * * ?")
     public synchronized void cleanIdle() {
         servers.values().forEach(ServerMeta::cleanIdle);
     }
@@ -97,49 +100,36 @@ public class Socks5Service implements InfoContributor {
     private class ServerMeta {
         
         private int port;
-        private ServerSocketChannel serverSocketChannel;
-        
-        private ChannelTransmitter client2target;
-        private ChannelTransmitter target2client;
+        private List<ServerSocketChannel> serverSocketChannels;
         
         private List<ConnectMeta> connections = Collections.synchronizedList(new LinkedList<>());
+        private IdleTracker idleTracker = new IdleTracker(config::getMaxIdleTime);
         
         public ServerMeta(int port) throws IOException {
             this.port = port;
             
             try{
-                serverSocketChannel = ProxyApp.server(null, port);
-                
-                client2target = new ChannelTransmitter(port+" c->t");
-                target2client = new ChannelTransmitter(port+" t->c");
-                
-                acceptor.accept(serverSocketChannel, this::accept, e->log.error("establish connection err", e));
+                Consumer<Exception> exHandler = e->log.error("establish connection err", e);
+                serverSocketChannels = acceptor.listen(null, port, config.getAcceptors(), config.getAcceptBacklog(), config.getSocket()
+                    ,loops.dispatch(this::accept, exHandler), exHandler);
             }catch(Exception e){
                 destory();
                 throw e;
             }
         }
-        private void accept(SocketChannel client) throws IOException {
-            connections.add(new ConnectMeta(client));
+        private void accept(EventLoop loop, SocketChannel client) throws IOException {
+            connections.add(new ConnectMeta(loop, client));
         }
         
         public void destory() {
             ImmutableSet.copyOf(connections).forEach(ConnectMeta::destory);
-            if(client2target!=null) client2target.destory();
-            if(target2client!=null) target2client.destory();
-            ProxyApp.close(serverSocketChannel);
-            acceptor.waitDeregister(serverSocketChannel);
+            acceptor.close(serverSocketChannels);
             servers.remove(port);
             log.info("{} socks5代理停止", port);
         }
         
         public void cleanIdle() {
-            synchronized (connections) {
-                for(ConnectMeta connect : ImmutableSet.copyOf(connections)){
-                    if(System.currentTimeMillis()-connect.latestTouchTime<config.getMaxIdleTime()) continue;
-                    connect.destory();
-                }
-            }
+            idleTracker.sweep();
         }
 
         public String info() {
@@ -154,6 +144,12 @@ public class Socks5Service implements InfoContributor {
         }
         
         private class ConnectMeta {
+            /** 本连接固定使用的loop（accept时选定），建立、握手、转发都在该loop上 */
+            private final EventLoop loop;
+            /** 非IO回调（连接建立后的日志、异常处理等），未启用worker时仍在selector线程上执行 */
+            private final SerialExecutor worker = loops.worker();
+            private final Consumer<Exception> exHandler = worker.offload(this::onException);
+            
             private final SocketChannel client;
             
             private SocketChannel target;
@@ -161,13 +157,15 @@ public class Socks5Service implements InfoContributor {
             
             private String direction;
             
-            private long latestTouchTime = System.currentTimeMillis();
+            private final IdleTracker.Entry idle = idleTracker.track(this::abort);
             
-            public ConnectMeta(SocketChannel client) throws IOException {
+            public ConnectMeta(EventLoop loop, SocketChannel client) throws IOException {
+                this.loop = loop;
                 this.client = client;
                 
                 try{
                     client.configureBlocking(false);
+                    SocketProfile.apply(config.getSocket(), client);
                     
                     targetStr = "initializing";
                     direction = String.format("%s->%s->%s->%s"
@@ -176,7 +174,7 @@ public class Socks5Service implements InfoContributor {
                     
                     if(log.isTraceEnabled()) log.trace("{} connecting {}", port, direction);
                     
-                    protocolService.socks5_server_connect(client, target->{
+                    loop.protocol.socks5_server_connect(client, config.getSocket(), config.getConnectTimeout(), worker.offload(target->{
                         ConnectMeta.this.target = target;
                         targetStr = format(target.getRemoteAddress());
                         
@@ -184,11 +182,10 @@ public class Socks5Service implements InfoContributor {
                             ,format(client.getRemoteAddress()), port(client.getLocalAddress())
                             ,port(target.getLocalAddress()), format(target.getRemoteAddress()));
                         
-                        client2target.transmit(client, target, 1024, this::onTrans, this::onException);
-                        target2client.transmit(target, client, 1024, this::onTrans, this::onException);
+                        loop.transmitter.transmit(client, target, config.getTransmitBufferMin(), config.getTransmitBufferMax(), this::onTrans, exHandler);
                         
                         log.info("{} connected {}", port, direction);
-                    }, this::onException);
+                    }, this::onException), exHandler);
                 }catch(IOException e){
                     destory();
                     throw e;
@@ -197,11 +194,24 @@ public class Socks5Service implements InfoContributor {
             }
             
             private void onTrans() {
-                latestTouchTime = System.currentTimeMillis();
+                idle.touch();
             }
             
             private synchronized void onException(Exception e) {
-                if(!isCloseException(e)) log.error("connection {} err", direction, e);
+                if(isCloseException(e)){
+                    destory();
+                    return;
+                }
+                log.error("connection {} err", direction, e);
+                abort();
+            }
+            
+            /**
+             * 出错、闲置超时时中止连接，见{@link SocketProfile#abort}
+             */
+            private void abort() {
+                SocketProfile.abort(config.getSocket(), client);
+                SocketProfile.abort(config.getSocket(), target);
                 destory();
             }
             
@@ -209,6 +219,7 @@ public class Socks5Service implements InfoContributor {
                 ProxyApp.close(client);
                 ProxyApp.close(target);
                 connections.remove(this);
+                idleTracker.untrack(idle);
                 
                 log.info("{} disconnected {}", port, direction);
             }
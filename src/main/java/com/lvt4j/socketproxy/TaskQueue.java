@@ -0,0 +1,118 @@
+package com.lvt4j.socketproxy;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * selector线程的任务队列：任意线程提交任务，仅由selector线程执行
+ * <pre>
+ * 基于无锁队列，提交时不加锁
+ * 只有selector线程正在（或即将）阻塞在select上时提交才会唤醒selector，
+ * 同一次select期间的多次提交只唤醒一次；selector线程忙时提交不产生wakeup系统调用
+ * selector线程每轮最多批量执行{@link #MaxBatch}个任务，剩余的下一轮不阻塞地继续执行
+ * 另可通过{@link #deregister(SelectableChannel)}等待channel从所有selector上注销
+ * </pre>
+ * @author LV on 2026年10月18日
+ */
+public class TaskQueue {
+    
+    /** 每轮最多执行的任务数，避免任务中不断提交新任务时饿死IO事件 */
+    private static final int MaxBatch = 1024;
+    
+    /** 所有的任务队列，{@link #deregister(SelectableChannel)}据此找到channel注册过的selector */
+    private static final Set<TaskQueue> Queues = ConcurrentHashMap.newKeySet();
+    
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    /** 下一次select（其中注销已取消的key）后执行，仅selector线程访问 */
+    private final List<Runnable> afterSelects = new ArrayList<>();
+    /** selector线程是否可能阻塞在select上且还未被唤醒 */
+    private final AtomicBoolean selecting = new AtomicBoolean();
+    
+    public TaskQueue(Selector selector) {
+        this.selector = selector;
+        Queues.add(this);
+    }
+    
+    /**
+     * 等待channel从所有selector上注销，可在任意线程调用，调用前channel上经selector的读写应已结束
+     * <pre>
+     * 取消channel在各selector上的key，由各selector线程在下一次select注销后完成返回的future
+     * 阻塞模式的切换需等channel不再注册在任何selector上
+     * </pre>
+     */
+    public static CompletableFuture<Void> deregister(SelectableChannel channel) {
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for(TaskQueue queue : Queues){
+            if(!queue.selector.isOpen()){
+                Queues.remove(queue);
+                continue;
+            }
+            if(channel.keyFor(queue.selector)==null) continue;
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            queue.add(()->{
+                SelectionKey key = channel.keyFor(queue.selector);
+                if(key==null){
+                    future.complete(null);
+                    return;
+                }
+                key.cancel();
+                queue.afterSelects.add(()->future.complete(null));
+            });
+            futures.add(future);
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]));
+    }
+    
+    /**
+     * 提交任务，可在任意线程调用
+     */
+    public void add(Runnable task) {
+        tasks.offer(task);
+        if(selecting.get() && selecting.compareAndSet(true, false)) selector.wakeup();
+    }
+    
+    /**
+     * 仅selector线程调用：有待执行任务时不阻塞，否则阻塞select直到有IO事件、超时或有任务提交
+     * @param timeout 毫秒，0表示不超时
+     * @return 就绪的key数
+     */
+    public int select(long timeout) throws IOException {
+        selecting.set(true);
+        try{
+            if(!tasks.isEmpty() || !afterSelects.isEmpty()) return selector.selectNow();
+            return selector.select(timeout);
+        }finally{
+            selecting.set(false);
+            if(!afterSelects.isEmpty()){
+                afterSelects.forEach(Runnable::run);
+                afterSelects.clear();
+            }
+        }
+    }
+    
+    /**
+     * 仅selector线程调用：执行已提交的任务，最多{@link #MaxBatch}个
+     * @return 执行的任务数
+     */
+    public int run() {
+        int num = 0;
+        Runnable task;
+        while(num<MaxBatch && (task = tasks.poll())!=null){
+            task.run();
+            num++;
+        }
+        return num;
+    }
+
+}
@@ -9,11 +9,11 @@ import static java.util.stream.Collectors.groupingBy;
 import static java.util.stream.Collectors.joining;
 import static java.util.stream.Collectors.mapping;
 import static java.util.stream.Collectors.toList;
+import static org.apache.commons.lang3.ObjectUtils.firstNonNull;
 import static org.springframework.http.HttpHeaders.AUTHORIZATION;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
 import java.net.URI;
 import java.nio.ByteBuffer;
 import java.nio.channels.ServerSocketChannel;
@@ -21,14 +21,12 @@ import java.nio.channels.SocketChannel;
 import java.util.Base64;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Set;
 import java.util.TreeMap;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
@@ -46,7 +44,10 @@ import org.springframework.stereotype.Service;
 
 import com.google.common.collect.ImmutableSet;
 import com.google.common.net.HostAndPort;
+import com.lvt4j.socketproxy.Config.SocketProfile;
 import com.lvt4j.socketproxy.Config.TcpConfig;
+import com.lvt4j.socketproxy.EventLoopGroup.EventLoop;
+import com.lvt4j.socketproxy.ProxyApp.IOExceptionConsumer;
 
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
@@ -64,13 +65,11 @@ public class TcpService implements InfoContributor {
     @Autowired
     private ChannelAcceptor acceptor;
     @Autowired
-    private ChannelConnector connector;
-    @Autowired
-    private ChannelReader reader;
-    @Autowired
-    private ChannelWriter writer;
+    private EventLoopGroup loops;
     @Autowired
     private ProtocolService protocol;
+    @Autowired
+    private DelayRunner delayRunner;
     
     private Map<TcpConfig, ServerMeta> servers = new HashMap<>();
     
@@ -104,7 +103,7 @@ public class TcpService implements InfoContributor {
         ImmutableSet.copyOf(servers.values()).forEach(ServerMeta::destory);
     }
     
-    @Scheduled(cron="0/10 * * * * ?")
+    @Scheduled(cron="* * * * * ?")
     public synchronized void cleanIdle() {
         servers.values().forEach(ServerMeta::cleanIdle);
     }
@@ -126,12 +125,18 @@ public class TcpService implements InfoContributor {
         private final String shortDirection;
         private final String direction;
         
-        private final ServerSocketChannel serverSocketChannel;
+        /** 接入连接、向target（或proxy）建立的连接的socket调优 */
+        private final SocketProfile srcSocket;
+        private final SocketProfile targetSocket;
+        /** 向target（或proxy）建立连接的超时毫秒数 */
+        private final long connectTimeout;
+        /** 到target（或经proxy到target）的预连接池，未配置时为null */
+        private final WarmPool warmPool;
         
-        private final ChannelTransmitter src2target;
-        private final ChannelTransmitter target2src;
+        private final List<ServerSocketChannel> serverSocketChannels;
         
         private final List<ConnectMeta> connections = Collections.synchronizedList(new LinkedList<>());
+        private final IdleTracker idleTracker = new IdleTracker(TcpService.this.config::getMaxIdleTime);
         
         public ServerMeta(TcpConfig config) throws IOException {
             this.config = config;
@@ -143,39 +148,57 @@ public class TcpService implements InfoContributor {
             this.shortDirection = config.shortDirection();
             this.direction = config.direction();
             
+            this.srcSocket = SocketProfile.merge(config.getSocket(), TcpService.this.config.getSocket());
+            this.targetSocket = SocketProfile.merge(config.getTargetSocket(), TcpService.this.config.getSocket());
+            this.connectTimeout = firstNonNull(config.getConnectTimeout(), TcpService.this.config.getConnectTimeout());
+            
+            if(config.getWarmPool()!=null && config.getWarmPool()>0 && !isPws(proxy)){
+                warmPool = new WarmPool(shortDirection, config.getWarmPool(), config.getWarmPoolMaxIdle(), protocol.reader(), delayRunner, this::warmConnect);
+                warmPool.maintain();
+            }else{
+                warmPool = null;
+            }
+            
             try{
-                serverSocketChannel = ProxyApp.server(host, port);
-                
-                src2target = new ChannelTransmitter(port+" s->t");
-                target2src = new ChannelTransmitter(port+" t->s");
-                
-                acceptor.accept(serverSocketChannel, this::accept, e->log.error("establish connection err", e));
+                Consumer<Exception> exHandler = e->log.error("establish connection err", e);
+                serverSocketChannels = acceptor.listen(host, port
+                    ,firstNonNull(config.getAcceptors(), TcpService.this.config.getAcceptors())
+                    ,firstNonNull(config.getBacklog(), TcpService.this.config.getAcceptBacklog())
+                    ,srcSocket
+                    ,loops.dispatch(this::accept, exHandler), exHandler);
             }catch(IOException e){
                 destory();
                 throw e;
             }
         }
-        private void accept(SocketChannel src) throws IOException {
-            connections.add(new ConnectMeta(src, target, proxy));
+        private void accept(EventLoop loop, SocketChannel src) throws IOException {
+            connections.add(new ConnectMeta(loop, src, target, proxy));
+        }
+        
+        /**
+         * 为预连接池建立一个到target的连接，经proxy时完成代理握手
+         */
+        private void warmConnect(IOExceptionConsumer<SocketChannel> onConnect, Consumer<Exception> exHandler) {
+            if(proxy==null) loops.next().connector.connect(target, targetSocket, connectTimeout, onConnect, exHandler);
+            else protocol.client_connect(proxy, target, targetSocket, connectTimeout, onConnect, exHandler);
+        }
+        private boolean isPws(URI proxy) {
+            if(proxy==null) return false;
+            Protocol protocol = Protocol.parse(proxy.getScheme());
+            return protocol==Protocol.Pws || protocol==Protocol.Pwss;
         }
         
         public void destory() {
+            if(warmPool!=null) warmPool.destory();
             ImmutableSet.copyOf(connections).forEach(ConnectMeta::destory);
-            if(src2target!=null) src2target.destory();
-            if(target2src!=null) target2src.destory();
-            ProxyApp.close(serverSocketChannel);
-            acceptor.waitDeregister(serverSocketChannel);
+            acceptor.close(serverSocketChannels);
             servers.remove(config);
             log.info("{} tcp代理停止", shortDirection);
         }
         
         public void cleanIdle() {
-            synchronized (connections) {
-                for(ConnectMeta connect : ImmutableSet.copyOf(connections)){
-                    if(System.currentTimeMillis()-connect.latestTouchTime<TcpService.this.config.getMaxIdleTime()) continue;
-                    connect.destory();
-                }
-            }
+            if(warmPool!=null) warmPool.maintain();
+            idleTracker.sweep();
         }
         
         public String info() {
@@ -190,6 +213,12 @@ public class TcpService implements InfoContributor {
         }
         
         private class ConnectMeta {
+            /** 本连接固定使用的loop（accept时选定），建立、连接、读写、转发都在该loop上 */
+            private final EventLoop loop;
+            /** 非IO回调（连接建立后的日志、异常处理等），未启用worker时仍在selector线程上执行 */
+            private final SerialExecutor worker = loops.worker();
+            private final Consumer<Exception> exHandler = worker.offload(this::onException);
+            
             private final SocketChannel src;
             
             private final HostAndPort targetConfig;
@@ -199,25 +228,27 @@ public class TcpService implements InfoContributor {
             
             private String direction;
             
-            private long latestTouchTime = System.currentTimeMillis();
+            private final IdleTracker.Entry idle = idleTracker.track(this::abort);
             
-            public ConnectMeta(SocketChannel src, HostAndPort targetConfig, URI proxyConfig) throws IOException {
+            public ConnectMeta(EventLoop loop, SocketChannel src, HostAndPort targetConfig, URI proxyConfig) throws IOException {
+                this.loop = loop;
                 this.src = src;
                 this.proxyConfig = proxyConfig;
                 try{
                     src.configureBlocking(false);
+                    SocketProfile.apply(srcSocket, src);
                     
                     this.targetConfig = targetConfig;
                     direction = String.format("%s->%s->%s->%s"
                         ,format(src.getRemoteAddress()), port(src.getLocalAddress())
                         ,"initializing" , targetConfig);
                     
-                    if(proxy==null){
-                        target = SocketChannel.open();
-                        target.configureBlocking(false);
-                        target.connect(new InetSocketAddress(targetConfig.getHostText(), targetConfig.getPort()));
-                        
-                        connector.connect(target, ()->onDirectConnect(target), this::onException);
+                    SocketChannel warm = warmPool==null?null:warmPool.poll();
+                    if(warm!=null){ //预连接池的握手在共用的protocol上
+                        if(proxy==null) protocol.handover(warm, src, ()->onDirectConnect(warm), exHandler);
+                        else onProxyConnect(protocol, warm);
+                    }else if(proxy==null){
+                        loop.protocol.connect(targetConfig, targetSocket, connectTimeout, worker.offload(this::onDirectConnect, this::onException), exHandler);
                     }else{
                         Protocol protocol = Protocol.parse(proxyConfig.getScheme());
                         switch(protocol){
@@ -225,7 +256,7 @@ public class TcpService implements InfoContributor {
                             pwsProxy = new PwsClient(proxyConfig);
                             break;
                         default:
-                            TcpService.this.protocol.client_connect(proxyConfig, targetConfig, this::onProxyConnect, this::onException);
+                            loop.protocol.client_connect(proxyConfig, targetConfig, targetSocket, connectTimeout, worker.offload(server->onProxyConnect(loop.protocol, server), this::onException), exHandler);
                             break;
                         }
                     }
@@ -236,44 +267,62 @@ public class TcpService implements InfoContributor {
             }
             private void onDirectConnect(SocketChannel target) throws IOException {
                 this.target = target;
+                if(!src.isOpen()){ //连接建立前已被关闭（如闲置清理）
+                    ProxyApp.close(target);
+                    return;
+                }
                 direction = String.format("%s->%s->%s->%s"
                     ,format(src.getRemoteAddress()), port(src.getLocalAddress())
                     ,port(target.getLocalAddress()), format(target.getRemoteAddress()));
                 
-                src2target.transmit(src, target, 1024, this::onTrans, this::onException);
-                target2src.transmit(target, src, 1024, this::onTrans, this::onException);
+                loop.transmitter.transmit(src, target, TcpService.this.config.getTransmitBufferMin(), TcpService.this.config.getTransmitBufferMax(), this::onTrans, exHandler);
                 
                 log.info("{} connected {}", shortDirection, direction);
             }
-            private void onProxyConnect(SocketChannel proxy) throws IOException {
+            /**
+             * @param handshaker 与proxy握手的protocol，握手时多读的数据在其reader中
+             */
+            private void onProxyConnect(ProtocolService handshaker, SocketChannel proxy) throws IOException {
                 this.target = proxy;
                 direction = String.format("%s->%s->%s->%s->%s"
                         ,format(src.getRemoteAddress()), port(src.getLocalAddress())
                         ,port(proxy.getLocalAddress()), proxyConfig, targetConfig);
                 
-                src2target.transmit(src, target, 1024, this::onTrans, this::onException);
-                target2src.transmit(target, src, 1024, this::onTrans, this::onException);
+                handshaker.handover(proxy, src, ()->{
+                    loop.transmitter.transmit(src, target, TcpService.this.config.getTransmitBufferMin(), TcpService.this.config.getTransmitBufferMax(), this::onTrans, exHandler);
+                }, exHandler);
                 
                 log.info("{} connected {}", shortDirection, direction);
             }
             
             private void onTrans() {
-                latestTouchTime = System.currentTimeMillis();
+                idle.touch();
             }
             
             private synchronized void onException(Exception e) {
-                if(!isCloseException(e)) log.error("connection {} err", direction, e);
+                if(isCloseException(e)){
+                    destory();
+                    return;
+                }
+                log.error("connection {} err", direction, e);
+                abort();
+            }
+            
+            /**
+             * 出错、闲置超时时中止连接，见{@link SocketProfile#abort}
+             */
+            private void abort() {
+                SocketProfile.abort(srcSocket, src);
+                SocketProfile.abort(targetSocket, target);
                 destory();
             }
             
             private void destory() {
                 if(pwsProxy==null) ProxyApp.close(src);
-                else{
-                    pwsProxy.prepareCloseClient = true;
-                    pwsProxy.closeIfPossible();
-                }
+                else loop.writer.closeAfterFlush(src, pwsProxy::close);
                 ProxyApp.close(target);
                 connections.remove(this);
+                idleTracker.untrack(idle);
                 
                 log.info("{} disconnected {}", shortDirection, direction);
             }
@@ -285,9 +334,8 @@ public class TcpService implements InfoContributor {
             }
             class PwsClient extends WebSocketClient {
 
-                private AtomicLong prepareWrite2SrcDataIder = new AtomicLong();
-                private Set<Long> prepareWrite2SrcDataIds = Collections.synchronizedSet(new HashSet<>());
-                private volatile boolean prepareCloseClient = false;
+                /** 写src不及时（超过高水位） */
+                private boolean congested;
                 
                 public PwsClient(URI pwsServer) {
                     super(Protocol.pws2ws(pwsServer), pws_headers(pwsServer));
@@ -300,7 +348,8 @@ public class TcpService implements InfoContributor {
                         ,format(src.getRemoteAddress()), port(src.getLocalAddress())
                         ,port(getLocalSocketAddress()), format(getRemoteSocketAddress()));
                     
-                    srcRead(null);
+                    loop.writer.backpressure(src, this::congest, this::decongest);
+                    srcRead();
                     
                     log.info("{} connected {}", shortDirection, direction);
                 }
@@ -322,16 +371,13 @@ public class TcpService implements InfoContributor {
                 /**
                  * pws协议用byte[]格式传递数据
                  */
-                @Override
+                @Override @SneakyThrows
                 public void onMessage(ByteBuffer bytes) {
                     dataFromTargetToSrc(bytes);
+                    awaitDecongest();
                 }
-                private void srcRead(ByteBuffer buf) {
-                    if(buf==null) buf = ByteBuffer.allocate(1024);
-                    reader.readAny(src, buf, data->{
-                        dataFromSrcToTarget(data);
-                        srcRead(data);
-                    }, e->{
+                private void srcRead() {
+                    loop.reader.readStream(src, 1024, this::dataFromSrcToTarget, e->{
                         try{
                             if(isOpen()) send(Command_Close);
                         }catch(Exception ig){}
@@ -343,14 +389,23 @@ public class TcpService implements InfoContributor {
                     onTrans();
                 }
                 private void dataFromTargetToSrc(ByteBuffer buf) {
-                    long prepareWrite2ClientDataId = prepareWrite2SrcDataIder.incrementAndGet();
-                    prepareWrite2SrcDataIds.add(prepareWrite2ClientDataId);
-                    writer.write(src, buf, ()->{
-                        prepareWrite2SrcDataIds.remove(prepareWrite2ClientDataId);
-                        closeIfPossible();
-                    }, this::onError);
+                    loop.writer.write(src, buf, this::onError);
                     onTrans();
                 }
+                private synchronized void congest() {
+                    congested = true;
+                }
+                private synchronized void decongest() {
+                    congested = false;
+                    notifyAll();
+                }
+                /**
+                 * 写src不及时时阻塞本连接的WebSocket读线程，即暂停读pws server，
+                 * 直到src的待写数据降到低水位以下
+                 */
+                private synchronized void awaitDecongest() throws InterruptedException {
+                    while(congested && src.isOpen()) wait(1000);
+                }
                 @Override
                 public void onClose(int code, String reason, boolean remote) {
                     if(CloseFrame.NORMAL==code) return;
@@ -358,16 +413,8 @@ public class TcpService implements InfoContributor {
                 }
                 @Override
                 public void onError(Exception ex) {
-                    prepareWrite2SrcDataIds.clear();
                     onException(ex);
                 }
-                public void closeIfPossible() {
-                    if(!prepareCloseClient) return;
-                    if(!prepareWrite2SrcDataIds.isEmpty()) return;
-                    
-                    close();
-                    ProxyApp.close(src);
-                }
                 
             }
         }
@@ -0,0 +1,28 @@
+package com.lvt4j.socketproxy;
+
+import java.nio.channels.SocketChannel;
+import java.util.function.Consumer;
+
+/**
+ * 在握手完成的两个channel之间双向转发数据
+ * @see ChannelTransmitter selector引擎
+ * @see BlockingTransmitter 阻塞（虚拟线程）引擎
+ * @author LV on 2026年10月18日
+ */
+public interface Transmitter {
+    
+    /**
+     * 在a与b之间双向转发数据
+     * @param a
+     * @param b
+     * @param minBuffSize 每个方向上的缓冲初始及最小大小
+     * @param maxBuffSize 每个方向上的缓冲最大大小
+     * @param onTrans 任一方向有数据读写时回调
+     * @param exHandler 任一方向异常（包括对端关闭）时回调，回调后两个channel都不再被转发
+     */
+    public void transmit(SocketChannel a, SocketChannel b, int minBuffSize, int maxBuffSize,
+            Runnable onTrans, Consumer<Exception> exHandler);
+    
+    public void destory();
+
+}
@@ -0,0 +1,182 @@
+package com.lvt4j.socketproxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Deque;
+import java.util.LinkedList;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import com.lvt4j.socketproxy.ProxyApp.IOExceptionConsumer;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 到固定目标的预连接池
+ * <pre>
+ * 后台保持size个已连接（经代理时已完成代理握手）的channel，每取走一个即异步补充一个，新连接到来时可直接使用
+ * 闲置的channel不注册读，取出及{@link #maintain()}时试读一次，读到-1或异常即对端已断开（FIN、RST），关闭后重新补充
+ * 试读到的数据（如目标先发的欢迎信息）追加到reader的预读中，使用者需从该reader取走（见{@link ChannelReader#takeReadAhead}）
+ * 闲置超过maxIdle的channel不再使用，关闭后重新补充，避免使用已被目标或中间设备因闲置断开的连接
+ * 补充失败时{@link #RetryGap}毫秒后再补充
+ * 需定期调用{@link #maintain()}以清理过期的channel并补充
+ * </pre>
+ * @author LV on 2026年10月18日
+ */
+@Slf4j
+public class WarmPool {
+    
+    /** 补充失败后多久再次尝试 */
+    public static final long RetryGap = 1000;
+    /** 试读缓冲大小 */
+    private static final int ProbeSize = 1024;
+    
+    private final String name;
+    private final int size;
+    private final long maxIdle;
+    /** 持有channel预读数据的reader */
+    private final ChannelReader reader;
+    /** 异步补充 */
+    private final DelayRunner delayRunner;
+    /** 建立一个可用的channel，参数为成功、失败的回调 */
+    private final BiConsumer<IOExceptionConsumer<SocketChannel>, Consumer<Exception>> connector;
+    
+    /** 闲置的channel，先放入的在前 */
+    private final Deque<Idle> idles = new LinkedList<>();
+    /** 正在建立中的数量 */
+    private int pending;
+    private long retryTime;
+    /** 已提交还未执行的补充 */
+    private boolean filling;
+    private boolean destoried;
+    
+    /** 试读用的缓冲，只在持有本对象锁时使用 */
+    private final ByteBuffer probeBuf = ByteBuffer.allocate(ProbeSize);
+    
+    private final Counter hitCounter;
+    private final Counter missCounter;
+    
+    public WarmPool(String name, int size, long maxIdle, ChannelReader reader, DelayRunner delayRunner,
+            BiConsumer<IOExceptionConsumer<SocketChannel>, Consumer<Exception>> connector) {
+        this.name = name;
+        this.size = size;
+        this.maxIdle = maxIdle;
+        this.reader = reader;
+        this.delayRunner = delayRunner;
+        this.connector = connector;
+        hitCounter = Counter.builder("warmpool.poll").tag("pool", name).tag("result", "hit")
+            .register(Metrics.globalRegistry);
+        missCounter = Counter.builder("warmpool.poll").tag("pool", name).tag("result", "miss")
+            .register(Metrics.globalRegistry);
+    }
+    
+    /**
+     * 取一个可用的channel，没有时返回null
+     */
+    public synchronized SocketChannel poll() {
+        SocketChannel channel = null;
+        long now = System.currentTimeMillis();
+        while(channel==null && !idles.isEmpty()){
+            Idle idle = idles.pollFirst();
+            if(now-idle.time<maxIdle && alive(idle.channel)) channel = idle.channel;
+            else close(idle.channel);
+        }
+        (channel!=null?hitCounter:missCounter).increment();
+        fillLater(0);
+        return channel;
+    }
+    
+    /**
+     * 关闭过期的channel并补充
+     */
+    public synchronized void maintain() {
+        long now = System.currentTimeMillis();
+        idles.removeIf(idle->{
+            if(now-idle.time<maxIdle && alive(idle.channel)) return false;
+            close(idle.channel);
+            return true;
+        });
+        fill();
+    }
+    
+    public synchronized int idleSize() {
+        return idles.size();
+    }
+    
+    public synchronized void destory() {
+        destoried = true;
+        idles.forEach(idle->close(idle.channel));
+        idles.clear();
+    }
+    
+    /**
+     * 闲置的channel没有注册读，对端的FIN、RST只有读时才能发现
+     * @return 读到-1或异常时为false
+     */
+    private boolean alive(SocketChannel channel) {
+        if(!channel.isOpen()) return false;
+        probeBuf.clear();
+        try{
+            int size = channel.read(probeBuf);
+            if(size<0) return false;
+            if(size>0){
+                probeBuf.flip();
+                ByteBuffer data = ByteBuffer.allocate(size);
+                data.put(probeBuf).flip();
+                reader.addReadAhead(channel, data);
+            }
+            return true;
+        }catch(IOException e){
+            return false;
+        }
+    }
+    private void close(SocketChannel channel) {
+        ProxyApp.close(channel);
+        reader.takeReadAhead(channel);
+    }
+    
+    /**
+     * 在{@link DelayRunner}上补充，不占用调用方（取channel的连接）的线程
+     */
+    private void fillLater(long delay) {
+        if(filling || destoried) return;
+        filling = true;
+        delayRunner.run(delay, ()->{
+            synchronized(this){
+                filling = false;
+                fill();
+            }
+        }, e->log.error("{} 预连接补充失败", name, e));
+    }
+    private void fill() {
+        while(!destoried && System.currentTimeMillis()>=retryTime && idles.size()+pending<size){
+            pending++;
+            connector.accept(this::filled, this::fillFail);
+        }
+    }
+    private synchronized void filled(SocketChannel channel) {
+        pending--;
+        if(destoried){
+            close(channel);
+            return;
+        }
+        idles.addLast(new Idle(channel, System.currentTimeMillis()));
+    }
+    private synchronized void fillFail(Exception e) {
+        pending--;
+        retryTime = System.currentTimeMillis()+RetryGap;
+        log.warn("{} 预连接失败，{}ms后重试", name, RetryGap, e);
+        fillLater(RetryGap);
+    }
+    
+    @RequiredArgsConstructor
+    private static class Idle {
+        private final SocketChannel channel;
+        private final long time;
+    }
+    
+}
\ No newline at end of file
@@ -0,0 +1,209 @@
+package com.lvt4j.socketproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.mutable.MutableObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.net.HostAndPort;
+import com.google.common.primitives.Shorts;
+import com.lvt4j.socketproxy.ProtocolService.Http;
+import com.lvt4j.socketproxy.ProtocolService.Socks5;
+
+/**
+ *
+ * @author LV on 2026年10月18日
+ */
+public class BlockingProtocolServiceTest extends BaseTest {
+    
+    private ChannelReader reader;
+    private ChannelWriter writer;
+    private ChannelConnector connector;
+    private BlockingTransmitter engine;
+    private BlockingProtocolService protocol;
+    
+    private int proxyPort;
+    private ServerSocketChannel proxyServer;
+    private int targetPort;
+    private ServerSocket targetServer;
+    
+    private MutableObject<Exception> exRef = new MutableObject<>();
+    
+    @Before
+    public void before() throws Exception {
+        reader = new ChannelReader(); reader.init("reader");
+        writer = new ChannelWriter(); writer.init("writer");
+        connector = new ChannelConnector(); connector.init("connector", null);
+        engine = new BlockingTransmitter("engine");
+        protocol = new BlockingProtocolService(reader, writer, connector, engine);
+    
+        proxyPort = availablePort();
+        proxyServer = ServerSocketChannel.open();
+        proxyServer.bind(new InetSocketAddress(proxyPort));
+        targetPort = availablePort();
+        targetServer = new ServerSocket(targetPort);
+    }
+    
+    @After
+    public void after() {
+        engine.destory();
+        connector.destory();
+        writer.destory();
+        reader.destory();
+        ProxyApp.close(proxyServer);
+        ProxyApp.close(targetServer);
+    }
+    
+    /**
+     * 服务端握手、连接目标都在引擎线程上阻塞完成，紧随请求到达的数据直接写往目标
+     */
+    @Test(timeout=10000)
+    public void socks5_server() throws Exception {
+        Socket client = new Socket("127.0.0.1", proxyPort);
+        SocketChannel proxySrc = proxyServer.accept();
+        proxySrc.configureBlocking(false);
+        CompletableFuture<Thread> connected = new CompletableFuture<>();
+        protocol.socks5_server_connect(proxySrc, null, 1000, target->{
+            connected.complete(Thread.currentThread());
+            engine.transmit(proxySrc, target, 1024, 64*1024, ()->{}, exRef::setValue);
+        }, exRef::setValue);
+    
+        byte[] data = rand();
+        byte[] request = {5,1,0, 5,1,0,1, 127,0,0,1, 0,0};
+        System.arraycopy(Shorts.toByteArray((short) targetPort), 0, request, request.length-2, 2);
+        client.getOutputStream().write(ArrayUtils.addAll(request, data));
+        assertBs(Socks5.Acc, client.getInputStream());
+        assertBs(Socks5.Suc, client.getInputStream());
+    
+        try(Socket target = targetServer.accept()){
+            assertBs(data, target.getInputStream());
+            assertTrue(connected.get(1, TimeUnit.SECONDS).getName().startsWith("engine-"));
+            assertTrue(proxySrc.isBlocking());
+    
+            data = rand();
+            target.getOutputStream().write(data);
+            assertBs(data, client.getInputStream());
+            assertNull(exRef.getValue());
+        }finally{
+            client.close();
+        }
+    }
+    
+    /**
+     * 连接目标失败时回复Fail
+     */
+    @Test(timeout=10000)
+    public void socks5_server_connect_fail() throws Exception {
+        Socket client = new Socket("127.0.0.1", proxyPort);
+        SocketChannel proxySrc = proxyServer.accept();
+        CompletableFuture<Exception> failed = new CompletableFuture<>();
+        protocol.socks5_server_connect(proxySrc, null, 1000, target->{}, failed::complete);
+    
+        byte[] request = {5,1,0, 5,1,0,1, 127,0,0,1, 0,0};
+        System.arraycopy(Shorts.toByteArray((short) availablePort()), 0, request, request.length-2, 2);
+        client.getOutputStream().write(request);
+        assertBs(Socks5.Acc, client.getInputStream());
+        assertBs(Socks5.Fail, client.getInputStream());
+        assertTrue(failed.get(1, TimeUnit.SECONDS).getMessage().startsWith("连接目标失败"));
+        client.close();
+    }
+    
+    @Test(timeout=10000)
+    public void http_server() throws Exception {
+        Socket client = new Socket("127.0.0.1", proxyPort);
+        SocketChannel proxySrc = proxyServer.accept();
+        MutableObject<String> targetStr = new MutableObject<>();
+        protocol.http_server_connect(proxySrc, null, 1000, (str, target)->{
+            targetStr.setValue(str);
+            engine.transmit(proxySrc, target, 1024, 64*1024, ()->{}, exRef::setValue);
+        }, exRef::setValue);
+    
+        byte[] data = rand();
+        byte[] head = ("CONNECT 127.0.0.1:"+targetPort+" HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n").getBytes();
+        client.getOutputStream().write(ArrayUtils.addAll(head, data));
+        assertBs(Http.EstablishedHeaders, client.getInputStream());
+    
+        try(Socket target = targetServer.accept()){
+            assertBs(data, target.getInputStream());
+            assertEquals("127.0.0.1:"+targetPort, targetStr.getValue());
+            assertNull(exRef.getValue());
+        }finally{
+            client.close();
+        }
+    
+        client = new Socket("127.0.0.1", proxyPort);
+        SocketChannel directSrc = proxyServer.accept();
+        MutableObject<Exception> directExRef = new MutableObject<>();
+        protocol.http_server_connect(directSrc, null, 1000, (str, target)->{
+            engine.transmit(directSrc, target, 1024, 64*1024, ()->{}, directExRef::setValue);
+        }, directExRef::setValue);
+        head = ("GET http://127.0.0.1:"+targetPort+"/ HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n").getBytes();
+        client.getOutputStream().write(head);
+        try(Socket target = targetServer.accept()){
+            assertBs(head, target.getInputStream());
+            assertNull(directExRef.getValue());
+        }finally{
+            client.close();
+        }
+    }
+    
+    /**
+     * 客户端握手时多读的数据经handover写往对接的channel
+     */
+    @Test(timeout=10000)
+    public void socks5_client() throws Exception {
+        byte[] greeting = rand();
+        Thread server = new Thread(()->{
+            try(Socket proxy = targetServer.accept()){
+                byte[] handshake = new byte[Socks5.ClientHandshake.length];
+                read(proxy.getInputStream(), handshake);
+                OutputStream out = proxy.getOutputStream();
+                out.write(Socks5.Acc);
+                byte[] request = new byte[4+1+"example.com".length()+2];
+                read(proxy.getInputStream(), request);
+                out.write(ArrayUtils.addAll(Socks5.Suc, greeting));
+                proxy.getInputStream().read();
+            }catch(IOException e){
+                exRef.setValue(e);
+            }
+        });
+        server.start();
+    
+        Socket client = new Socket("127.0.0.1", proxyPort);
+        SocketChannel proxySrc = proxyServer.accept();
+        CompletableFuture<SocketChannel> connected = new CompletableFuture<>();
+        protocol.socks5_client_connect(HostAndPort.fromParts("127.0.0.1", targetPort), HostAndPort.fromParts("example.com", 80),
+            null, 1000, connected::complete, connected::completeExceptionally);
+        SocketChannel proxy = connected.get(1, TimeUnit.SECONDS);
+        assertTrue(proxy.isBlocking());
+    
+        CompletableFuture<Void> handover = new CompletableFuture<>();
+        protocol.handover(proxy, proxySrc, ()->handover.complete(null), handover::completeExceptionally);
+        handover.get(1, TimeUnit.SECONDS);
+        assertBs(greeting, client.getInputStream());
+        assertNull(reader.takeReadAhead(proxy));
+    
+        proxy.write(ByteBuffer.wrap(new byte[]{1}));
+        server.join();
+        assertNull(exRef.getValue());
+        client.close();
+        proxy.close();
+    }
+
+}
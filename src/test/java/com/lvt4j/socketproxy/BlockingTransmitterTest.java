@@ -0,0 +1,231 @@
+package com.lvt4j.socketproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.EOFException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.commons.lang3.mutable.MutableObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import lombok.SneakyThrows;
+
+/**
+ *
+ * @author LV on 2026年10月18日
+ */
+public class BlockingTransmitterTest extends BaseTest {
+    
+    private ServerSocketChannel proxyServer;
+    private ServerSocket targetServer;
+    private int proxyPort;
+    private int targetPort;
+    
+    private List<Socket> sockets = new ArrayList<>();
+    private List<SocketChannel> channels = new ArrayList<>();
+    
+    @Before
+    public void before() throws Exception {
+        proxyPort = availablePort();
+        targetPort = availablePort();
+        proxyServer = ServerSocketChannel.open();
+        proxyServer.bind(new InetSocketAddress(proxyPort), 1024);
+        targetServer = new ServerSocket(targetPort, 1024);
+    }
+    
+    @After
+    public void after() {
+        sockets.forEach(ProxyApp::close);
+        channels.forEach(ProxyApp::close);
+        ProxyApp.close(proxyServer);
+        ProxyApp.close(targetServer);
+    }
+    
+    @Test(timeout=10000)
+    public void trans() throws Exception {
+        BlockingTransmitter transmitter = new BlockingTransmitter("s<->t");
+        MutableObject<Exception> exRef = new MutableObject<>();
+        Socket[] pair = pair(transmitter, exRef);
+        try{
+            for(int i=0; i<100; i++){
+                byte[] data = rand();
+                pair[0].getOutputStream().write(data);
+                assertBs(data, pair[1].getInputStream());
+                
+                data = rand();
+                pair[1].getOutputStream().write(data);
+                assertBs(data, pair[0].getInputStream());
+            }
+            assertNull(exRef.getValue());
+            
+            pair[0].close();
+            assertEquals(-1, pair[1].getInputStream().read());
+            Thread.sleep(100);
+            assertTrue(exRef.getValue() instanceof EOFException);
+        }finally{
+            transmitter.destory();
+        }
+    }
+    
+    /**
+     * 被外部直接关闭时不回调
+     */
+    @Test(timeout=10000)
+    public void close_outside() throws Exception {
+        BlockingTransmitter transmitter = new BlockingTransmitter("s<->t");
+        MutableObject<Exception> exRef = new MutableObject<>();
+        Socket[] pair = pair(transmitter, exRef);
+        try{
+            byte[] data = rand();
+            pair[0].getOutputStream().write(data);
+            assertBs(data, pair[1].getInputStream());
+            
+            channels.forEach(ProxyApp::close);
+            assertEquals(-1, pair[1].getInputStream().read());
+            Thread.sleep(100);
+            assertNull(exRef.getValue());
+        }finally{
+            transmitter.destory();
+        }
+    }
+    
+    /**
+     * 握手时注册在selector上的channel，等其注销后再切换为阻塞模式转发
+     */
+    @Test(timeout=10000)
+    public void after_handshake() throws Exception {
+        ChannelReader reader = new ChannelReader(); reader.init("reader");
+        BlockingTransmitter transmitter = new BlockingTransmitter("s<->t");
+        MutableObject<Exception> exRef = new MutableObject<>();
+        try{
+            Socket client = new Socket("127.0.0.1", proxyPort);
+            SocketChannel proxySrc = proxyServer.accept();
+            proxySrc.configureBlocking(false);
+            SocketChannel proxyTarget = SocketChannel.open(new InetSocketAddress("127.0.0.1", targetPort));
+            proxyTarget.configureBlocking(false);
+            Socket target = targetServer.accept();
+            sockets.add(client); sockets.add(target);
+            channels.add(proxySrc); channels.add(proxyTarget);
+            
+            CountDownLatch handshaked = new CountDownLatch(1);
+            reader.readOne(proxySrc, b->handshaked.countDown(), exRef::setValue);
+            client.getOutputStream().write(1);
+            handshaked.await();
+            
+            transmitter.transmit(proxySrc, proxyTarget, 1024, 64*1024, ()->{}, exRef::setValue);
+            byte[] data = rand();
+            client.getOutputStream().write(data);
+            assertBs(data, target.getInputStream());
+            assertTrue(proxySrc.isBlocking());
+            assertNull(exRef.getValue());
+        }finally{
+            transmitter.destory();
+            reader.destory();
+        }
+    }
+    
+    /**
+     * 两种引擎对比：建连速率、吞吐量、每连接内存，需手动运行
+     */
+    @Ignore("benchmark")
+    @Test(timeout=300000)
+    public void benchmark() throws Exception {
+        ChannelTransmitter selector = new ChannelTransmitter("selector s<->t");
+        try{
+            benchmark("selector", selector);
+        }finally{
+            selector.destory();
+        }
+        after(); sockets.clear(); channels.clear(); before();
+        BlockingTransmitter blocking = new BlockingTransmitter("blocking s<->t");
+        try{
+            benchmark("blocking", blocking);
+        }finally{
+            blocking.destory();
+        }
+    }
+    private void benchmark(String engine, Transmitter transmitter) throws Exception {
+        MutableObject<Exception> exRef = new MutableObject<>();
+        
+        int connections = 500;
+        System.gc();
+        long memBegin = usedMemory();
+        int threadBegin = Thread.activeCount();
+        long begin = System.nanoTime();
+        List<Socket[]> pairs = new ArrayList<>();
+        for(int i=0; i<connections; i++){
+            Socket[] pair = pair(transmitter, exRef);
+            pair[0].getOutputStream().write(i);
+            assertEquals(i&0xff, pair[1].getInputStream().read());
+            pairs.add(pair);
+        }
+        long cost = System.nanoTime()-begin;
+        System.gc();
+        long memCost = usedMemory()-memBegin;
+        System.out.printf("%s connection rate: %.0f conn/s%n", engine, connections/(cost/1e9));
+        System.out.printf("%s memory per connection: %.1f KB heap, %.1f platform threads%n", engine
+            ,memCost/1024d/connections, (Thread.activeCount()-threadBegin)/(double)connections);
+        
+        int total = 64*1024*1024;
+        byte[] chunk = new byte[64*1024];
+        ThreadLocalRandom.current().nextBytes(chunk);
+        Socket[] pair = pairs.get(0);
+        Thread sender = new Thread("sender"){@SneakyThrows public void run() {
+            OutputStream out = pair[0].getOutputStream();
+            for(int sent=0; sent<total; sent+=chunk.length) out.write(chunk);
+        }};
+        begin = System.nanoTime();
+        sender.start();
+        InputStream targetIn = pair[1].getInputStream();
+        byte[] received = new byte[chunk.length];
+        int receivedTotal = 0;
+        while(receivedTotal<total){
+            int size = targetIn.read(received);
+            if(size<0) break;
+            receivedTotal += size;
+        }
+        cost = System.nanoTime()-begin;
+        sender.join();
+        System.out.printf("%s throughput: %.1f MB/s%n", engine, total/1024d/1024d/(cost/1e9));
+        
+        if(exRef.getValue()!=null) throw exRef.getValue();
+    }
+    
+    /**
+     * 建立client<->proxySrc、proxyTarget<->target两对连接，并在proxySrc与proxyTarget间转发
+     * @return [client, target]
+     */
+    private Socket[] pair(Transmitter transmitter, MutableObject<Exception> exRef) throws Exception {
+        Socket client = new Socket("127.0.0.1", proxyPort);
+        SocketChannel proxySrc = proxyServer.accept();
+        proxySrc.configureBlocking(false);
+        SocketChannel proxyTarget = SocketChannel.open(new InetSocketAddress("127.0.0.1", targetPort));
+        proxyTarget.configureBlocking(false);
+        Socket target = targetServer.accept();
+        sockets.add(client); sockets.add(target);
+        channels.add(proxySrc); channels.add(proxyTarget);
+        
+        transmitter.transmit(proxySrc, proxyTarget, 1024, 64*1024, ()->{}, exRef::setValue);
+        return new Socket[]{client, target};
+    }
+    
+    private long usedMemory() {
+        return Runtime.getRuntime().totalMemory()-Runtime.getRuntime().freeMemory();
+    }
+
+}
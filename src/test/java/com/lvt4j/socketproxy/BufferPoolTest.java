@@ -0,0 +1,81 @@
+package com.lvt4j.socketproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ *
+ * @author LV on 2026年10月18日
+ */
+public class BufferPoolTest extends BaseTest {
+    
+    @Test
+    public void size_class() {
+        ByteBuffer buf = BufferPool.acquire(1);
+        assertTrue(buf.isDirect());
+        assertEquals(BufferPool.MinSize, buf.capacity());
+        assertEquals(1, buf.limit());
+        BufferPool.release(buf);
+        
+        buf = BufferPool.acquire(1025);
+        assertEquals(2048, buf.capacity());
+        assertEquals(1025, buf.limit());
+        BufferPool.release(buf);
+        
+        buf = BufferPool.acquire(BufferPool.MaxSize);
+        assertEquals(BufferPool.MaxSize, buf.capacity());
+        BufferPool.release(buf);
+    }
+    
+    @Test
+    public void reuse() {
+        ByteBuffer buf1 = BufferPool.acquire(4096);
+        buf1.putInt(1);
+        BufferPool.release(buf1);
+        
+        ByteBuffer buf2 = BufferPool.acquire(4000);
+        assertSame(buf1, buf2);
+        assertEquals(0, buf2.position());
+        assertEquals(4000, buf2.limit());
+        
+        ByteBuffer buf3 = BufferPool.acquire(4000);
+        assertNotSame(buf2, buf3);
+        
+        BufferPool.release(buf2);
+        BufferPool.release(buf3);
+    }
+    
+    @Test
+    public void release_ignore() {
+        int leased = BufferPool.leasedNum();
+        BufferPool.release(null);
+        BufferPool.release(ByteBuffer.allocate(1024));
+        
+        ByteBuffer buf = BufferPool.acquire(1024);
+        assertEquals(leased+1, BufferPool.leasedNum());
+        BufferPool.release(buf);
+        BufferPool.release(buf); //重复归还
+        assertEquals(leased, BufferPool.leasedNum());
+        
+        assertNotSame(BufferPool.acquire(1024), BufferPool.acquire(1024));
+    }
+    
+    @Test(timeout=30000)
+    public void leak_detect() throws Exception {
+        BufferPool.acquire(1024);
+        int leased = BufferPool.leasedNum();
+        
+        while(BufferPool.leasedNum()>=leased){
+            System.gc();
+            Thread.sleep(10);
+            BufferPool.release(BufferPool.acquire(1024));
+        }
+    }
+
+}
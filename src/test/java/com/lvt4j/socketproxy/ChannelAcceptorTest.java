@@ -0,0 +1,97 @@
+package com.lvt4j.socketproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNotNull;
+
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author LV on 2026年10月18日
+ */
+public class ChannelAcceptorTest extends BaseTest {
+    
+    private ChannelAcceptor acceptor;
+    private List<ServerSocketChannel> servers;
+    
+    private List<Socket> clients = new ArrayList<>();
+    private List<SocketChannel> accepteds = new ArrayList<>();
+    
+    @Before
+    public void before() throws Exception {
+        acceptor = new ChannelAcceptor(); invoke(acceptor, "init");
+    }
+    
+    @After
+    public void after() {
+        acceptor.close(servers);
+        acceptor.destory();
+        clients.forEach(ProxyApp::close);
+        synchronized(accepteds){
+            accepteds.forEach(ProxyApp::close);
+        }
+    }
+    
+    /**
+     * 大量连接同时到达时，全部accept
+     */
+    @Test(timeout=30000)
+    public void batch() throws Exception {
+        int num = 1000;
+        CountDownLatch latch = new CountDownLatch(num);
+        int port = availablePort();
+        servers = acceptor.listen(null, port, 1, num, c->{
+            synchronized(accepteds){
+                accepteds.add(c);
+            }
+            latch.countDown();
+        }, e->{});
+        assertEquals(1, servers.size());
+        
+        for(int i=0; i<num; i++) clients.add(new Socket("127.0.0.1", port));
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+    }
+    
+    /**
+     * 开启SO_REUSEPORT时多个acceptor线程监听同一端口
+     */
+    @Test(timeout=30000)
+    public void reuse_port() throws Exception {
+        assumeNotNull(ProxyApp.ReusePort);
+        
+        int num = 200;
+        CountDownLatch latch = new CountDownLatch(num);
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        int port = availablePort();
+        servers = acceptor.listen(null, port, 4, 0, c->{
+            threads.add(Thread.currentThread().getName());
+            synchronized(accepteds){
+                accepteds.add(c);
+            }
+            latch.countDown();
+        }, e->{});
+        assertEquals(4, servers.size());
+        
+        for(int i=0; i<num; i++) clients.add(new Socket("127.0.0.1", port));
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertTrue(threads.size()>1);
+        
+        acceptor.close(servers);
+        for(ServerSocketChannel server : servers) assertTrue(!server.isRegistered());
+        servers = null;
+    }
+
+}
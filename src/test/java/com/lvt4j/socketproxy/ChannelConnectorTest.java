@@ -0,0 +1,181 @@
+package com.lvt4j.socketproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.lang.reflect.Field;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.net.HostAndPort;
+
+/**
+ *
+ * @author LV on 2026年10月18日
+ */
+public class ChannelConnectorTest extends BaseTest {
+    
+    private ChannelConnector connector;
+    private ServerSocket server;
+    private List<SocketChannel> channels = new ArrayList<>();
+    
+    private AtomicReference<SocketChannel> connected = new AtomicReference<>();
+    private AtomicReference<Exception> ex = new AtomicReference<>();
+    private CountDownLatch latch = new CountDownLatch(1);
+    
+    @Before
+    public void before() throws Exception {
+        connector = new ChannelConnector(); connector.init("connector");
+    }
+    
+    @After
+    public void after() {
+        connector.destory();
+        ProxyApp.close(server);
+        ProxyApp.close(connected.get());
+        channels.forEach(ProxyApp::close);
+    }
+    
+    /**
+     * IPv6、IPv4交错排列，第一个地址的协议族在前
+     */
+    @Test
+    public void interleave() throws Exception {
+        InetAddress[] addresses = {
+            InetAddress.getByName("127.0.0.1"), InetAddress.getByName("127.0.0.2"),
+            InetAddress.getByName("::1"), InetAddress.getByName("127.0.0.3")};
+        Deque<InetSocketAddress> candidates = ChannelConnector.interleave(addresses, 80);
+        assertEquals(4, candidates.size());
+        assertEquals("127.0.0.1", candidates.poll().getAddress().getHostAddress());
+        assertEquals("0:0:0:0:0:0:0:1", candidates.poll().getAddress().getHostAddress());
+        assertEquals("127.0.0.2", candidates.poll().getAddress().getHostAddress());
+        assertEquals("127.0.0.3", candidates.poll().getAddress().getHostAddress());
+    }
+    
+    /**
+     * 前一个地址连接失败时立即尝试下一个
+     */
+    @Test(timeout=10000)
+    public void fallback() throws Exception {
+        int port = availablePort();
+        server = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+        InetAddress[] addresses = {InetAddress.getByName("::1"), InetAddress.getByName("127.0.0.1")};
+        connector.connect(addresses, port, null, 5000, this::onConnect, this::onException);
+        
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertNull(ex.get());
+        assertEquals(new InetSocketAddress("127.0.0.1", port), connected.get().getRemoteAddress());
+        assertTrue(scheduleds().isEmpty());
+    }
+    
+    /**
+     * 前一个地址迟迟连不上时，间隔{@link ChannelConnector#AttemptDelay}后尝试下一个，先连上的胜出
+     */
+    @Test(timeout=10000)
+    public void stagger() throws Exception {
+        int port = availablePort();
+        server = blackhole("127.0.0.1", port);
+        try(ServerSocket server2 = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.2"))){
+            long begin = System.currentTimeMillis();
+            InetAddress[] addresses = {InetAddress.getByName("127.0.0.1"), InetAddress.getByName("127.0.0.2")};
+            connector.connect(addresses, port, null, 5000, this::onConnect, this::onException);
+            
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            assertNull(ex.get());
+            assertEquals(new InetSocketAddress("127.0.0.2", port), connected.get().getRemoteAddress());
+            assertTrue(System.currentTimeMillis()-begin>=ChannelConnector.AttemptDelay);
+            try(Socket accepted = server2.accept()){
+                assertEquals(connected.get().getLocalAddress(), accepted.getRemoteSocketAddress());
+            }
+            assertTrue(scheduleds().isEmpty());
+        }
+    }
+    
+    /**
+     * 没有可连接的地址时以{@link ConnectException}失败
+     */
+    @Test(timeout=10000)
+    public void no_address() throws Exception {
+        connector.connect(new InetAddress[0], availablePort(), null, 5000, this::onConnect, this::onException);
+        
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertNull(connected.get());
+        assertTrue(ex.get() instanceof ConnectException);
+        assertTrue(scheduleds().isEmpty());
+    }
+    
+    @Test(timeout=10000)
+    public void refused() throws Exception {
+        connector.connect(HostAndPort.fromParts("127.0.0.1", availablePort()), null, 5000, this::onConnect, this::onException);
+        
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertNull(connected.get());
+        assertTrue(ex.get() instanceof ConnectException);
+    }
+    
+    /**
+     * 目标不响应SYN时按超时失败
+     */
+    @Test(timeout=10000)
+    public void timeout() throws Exception {
+        int port = availablePort();
+        server = blackhole("127.0.0.1", port);
+        long begin = System.currentTimeMillis();
+        connector.connect(HostAndPort.fromParts("127.0.0.1", port), null, 500, this::onConnect, this::onException);
+        
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertNull(connected.get());
+        assertTrue(ex.get() instanceof SocketTimeoutException);
+        assertTrue(System.currentTimeMillis()-begin>=500);
+    }
+    
+    /**
+     * connector中还未到期的定时任务，只在连接回调之后读取
+     */
+    private Collection<?> scheduleds() throws Exception {
+        Field field = ChannelConnector.class.getDeclaredField("scheduleds");
+        field.setAccessible(true);
+        return (Collection<?>) field.get(connector);
+    }
+    
+    /**
+     * 塞满accept队列的server，之后到达的SYN都被丢弃
+     */
+    private ServerSocket blackhole(String host, int port) throws Exception {
+        ServerSocket server = new ServerSocket(port, 1, InetAddress.getByName(host));
+        for(int i=0; i<8; i++){
+            SocketChannel channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.connect(new InetSocketAddress(host, port));
+            channels.add(channel);
+        }
+        return server;
+    }
+    
+    private void onConnect(SocketChannel channel) {
+        connected.set(channel);
+        latch.countDown();
+    }
+    private void onException(Exception e) {
+        ex.set(e);
+        latch.countDown();
+    }
+
+}
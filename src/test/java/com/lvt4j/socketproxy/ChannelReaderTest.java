@@ -2,9 +2,12 @@ package com.lvt4j.socketproxy;
 
 import static java.util.stream.Collectors.joining;
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.LinkedList;
@@ -159,6 +162,86 @@ public class ChannelReaderTest extends BaseTest {
         assertArrayEquals(sends, receives);
     }
     @Test(timeout=10000)
+    public void read_stream() throws Exception {
+        int count = 100;
+        for(int i=0; i<count; i++){
+            byte[] data = rand();
+            sends = ArrayUtils.addAll(sends, data);
+            client.getOutputStream().write(data);
+        }
+        
+        latch = new CountDownLatch(1);
+        receives = new byte[0];
+        MutableObject<ChannelReader.ReadStream> streamRef = new MutableObject<>();
+        streamRef.setValue(reader.readStream(server, 1024, d->{
+            byte[] data = new byte[d.remaining()];
+            d.get(data);
+            receives = ArrayUtils.addAll(receives, data);
+            if(receives.length==sends.length) latch.countDown();
+        }, e->ex=e));
+        
+        latch.await(10, TimeUnit.SECONDS); if(ex!=null) throw ex;
+        assertArrayEquals(sends, receives);
+        
+        //暂停后不再读
+        streamRef.getValue().pause();
+        Thread.sleep(100);
+        byte[] more = rand();
+        client.getOutputStream().write(more);
+        Thread.sleep(200);
+        assertEquals(sends.length, receives.length);
+        
+        //恢复后继续读
+        sends = ArrayUtils.addAll(sends, more);
+        latch = new CountDownLatch(1);
+        streamRef.getValue().resume();
+        latch.await(10, TimeUnit.SECONDS); if(ex!=null) throw ex;
+        assertArrayEquals(sends, receives);
+        
+        //关闭后不再读
+        streamRef.getValue().close();
+        Thread.sleep(100);
+        client.getOutputStream().write(rand());
+        Thread.sleep(200);
+        assertEquals(sends.length, receives.length);
+        assertNull(ex);
+    }
+    @Test(timeout=10000)
+    public void read_ahead() throws Exception {
+        byte[] tail = rand();
+        sends = ArrayUtils.addAll("line\n".getBytes(), (byte)1, (byte)2, (byte)3);
+        sends = ArrayUtils.addAll(sends, tail);
+        client.getOutputStream().write(sends);
+        Thread.sleep(100);
+        
+        latch = new CountDownLatch(1);
+        MutableObject<byte[]> lineRef = new MutableObject<>();
+        MutableObject<Byte> oneRef = new MutableObject<>();
+        MutableObject<byte[]> lengthRef = new MutableObject<>();
+        MutableObject<ByteBuffer> restRef = new MutableObject<>();
+        reader.readUntilByte(server, (byte)'\n', line->{
+            lineRef.setValue(line);
+            reader.readOne(server, one->{
+                oneRef.setValue(one);
+                reader.readUntilLength(server, 2, length->{
+                    lengthRef.setValue(length);
+                    restRef.setValue(reader.takeReadAhead(server));
+                    latch.countDown();
+                }, e->ex=e);
+            }, e->ex=e);
+        }, e->ex=e);
+        
+        latch.await(10, TimeUnit.SECONDS); if(ex!=null) throw ex;
+        
+        assertArrayEquals("line\n".getBytes(), lineRef.getValue());
+        assertEquals(1, oneRef.getValue().byteValue());
+        assertArrayEquals(new byte[]{2, 3}, lengthRef.getValue());
+        receives = new byte[restRef.getValue().remaining()];
+        restRef.getValue().get(receives);
+        assertArrayEquals(tail, receives);
+        assertNull(reader.takeReadAhead(server));
+    }
+    @Test(timeout=10000)
     public void read_any() throws Exception {
         int count = 100;
         for(int i=0; i<count; i++){
@@ -173,7 +256,7 @@ public class ChannelReaderTest extends BaseTest {
         Runnable read = ()->{
             reader.readAny(server, 1024, d->{
                 byte[] data = new byte[d.remaining()];
-                System.arraycopy(d.array(), 0, data, 0, d.remaining());
+                d.get(data);
                 receives = ArrayUtils.addAll(receives, data);
                 if(receives.length==sends.length){
                     latch.countDown();
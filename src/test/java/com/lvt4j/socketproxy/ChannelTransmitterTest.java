@@ -0,0 +1,153 @@
+package com.lvt4j.socketproxy;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.commons.lang3.mutable.MutableObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import lombok.SneakyThrows;
+
+/**
+ * 
+ * @author LV on 2026年10月18日
+ */
+public class ChannelTransmitterTest extends BaseTest {
+    
+    private ChannelTransmitter transmitter;
+    
+    private ServerSocketChannel proxyServer;
+    private SocketChannel proxySrc;
+    private SocketChannel proxyTarget;
+    
+    private Socket client;
+    
+    private ServerSocket targetServer;
+    private Socket target;
+    
+    private MutableObject<Exception> exRef = new MutableObject<>();
+    
+    @Before
+    public void before() throws Exception {
+        int proxyPort = availablePort();
+        int targetPort = availablePort();
+        
+        proxyServer = ServerSocketChannel.open();
+        proxyServer.bind(new InetSocketAddress(proxyPort));
+        targetServer = new ServerSocket(targetPort);
+        
+        client = new Socket("127.0.0.1", proxyPort);
+        proxySrc = proxyServer.accept();
+        proxySrc.configureBlocking(false);
+        
+        proxyTarget = SocketChannel.open(new InetSocketAddress("127.0.0.1", targetPort));
+        proxyTarget.configureBlocking(false);
+        target = targetServer.accept();
+        
+        transmitter = new ChannelTransmitter("s<->t");
+        transmitter.transmit(proxySrc, proxyTarget, 1024, 64*1024, ()->{}, exRef::setValue);
+    }
+    
+    @After
+    public void after() {
+        if(transmitter!=null) transmitter.destory();
+        
+        ProxyApp.close(client);
+        ProxyApp.close(target);
+        ProxyApp.close(proxySrc);
+        ProxyApp.close(proxyTarget);
+        ProxyApp.close(proxyServer);
+        ProxyApp.close(targetServer);
+    }
+    
+    @Test(timeout=10000)
+    public void trans() throws Exception {
+        for(int i=0; i<100; i++){
+            byte[] data = rand();
+            client.getOutputStream().write(data);
+            assertBs(data, target.getInputStream());
+            
+            data = rand();
+            target.getOutputStream().write(data);
+            assertBs(data, client.getInputStream());
+        }
+        if(exRef.getValue()!=null) throw exRef.getValue();
+    }
+    
+    @Test(timeout=10000)
+    public void release_idle() throws Exception {
+        int leased = BufferPool.leasedNum();
+        
+        byte[] data = rand();
+        client.getOutputStream().write(data);
+        assertBs(data, target.getInputStream());
+        data = rand();
+        target.getOutputStream().write(data);
+        assertBs(data, client.getInputStream());
+        assertEquals(leased+2, BufferPool.leasedNum());
+        
+        Thread.sleep(2500);
+        assertEquals(leased, BufferPool.leasedNum());
+        
+        data = rand();
+        client.getOutputStream().write(data);
+        assertBs(data, target.getInputStream());
+        if(exRef.getValue()!=null) throw exRef.getValue();
+    }
+    
+    /**
+     * 回环地址上的大块数据吞吐量及单字节往返延迟，需手动运行
+     */
+    @Ignore("benchmark")
+    @Test(timeout=120000)
+    public void benchmark() throws Exception {
+        int total = 64*1024*1024;
+        byte[] chunk = new byte[64*1024];
+        ThreadLocalRandom.current().nextBytes(chunk);
+        
+        Thread sender = new Thread("sender"){@SneakyThrows public void run() {
+            OutputStream out = client.getOutputStream();
+            for(int sent=0; sent<total; sent+=chunk.length) out.write(chunk);
+        }};
+        
+        long begin = System.nanoTime();
+        sender.start();
+        InputStream targetIn = target.getInputStream();
+        byte[] received = new byte[chunk.length];
+        int receivedTotal = 0;
+        while(receivedTotal<total){
+            int size = targetIn.read(received);
+            if(size<0) break;
+            receivedTotal += size;
+        }
+        long cost = System.nanoTime()-begin;
+        sender.join();
+        System.out.printf("transmit throughput: %.1f MB/s%n", total/1024d/1024d/(cost/1e9));
+        
+        int rounds = 10000;
+        InputStream clientIn = client.getInputStream();
+        OutputStream clientOut = client.getOutputStream();
+        OutputStream targetOut = target.getOutputStream();
+        begin = System.nanoTime();
+        for(int i=0; i<rounds; i++){
+            clientOut.write(i); targetIn.read();
+            targetOut.write(i); clientIn.read();
+        }
+        cost = System.nanoTime()-begin;
+        System.out.printf("transmit round trip: %.1f us%n", cost/1e3/rounds);
+        
+        if(exRef.getValue()!=null) throw exRef.getValue();
+    }
+
+}
@@ -1,20 +1,28 @@
 package com.lvt4j.socketproxy;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.lang3.mutable.MutableObject;
 import org.junit.After;
@@ -152,4 +160,183 @@ public class ChannelWriterTest extends BaseTest {
         assertNotEquals(lengths, resLengths);
         assertTrue(datas.isEmpty());
     }
+    
+    @Test(timeout=60000)
+    public void write_through() throws Exception {
+        byte[] data = rand();
+        
+        MutableObject<Exception> exRef = new MutableObject<>();
+        MutableObject<Thread> callbackThread = new MutableObject<>();
+        
+        writer.write(socket, data, ()->callbackThread.setValue(Thread.currentThread()), exRef::setValue);
+        
+        if(exRef.getValue()!=null) throw exRef.getValue();
+        assertEquals(Thread.currentThread(), callbackThread.getValue());
+        
+        serverAccept = server.accept();
+        acceptIn = serverAccept.getInputStream();
+        assertBs(data, acceptIn);
+    }
+    /**
+     * 对端未读导致写不下时，之后的大量小数据排队，应合并写出，且按入队顺序写出、回调
+     */
+    @Test(timeout=60000)
+    public void write_gathering() throws Exception {
+        int count = 1000;
+        
+        MutableObject<Exception> exRef = new MutableObject<>();
+        List<Integer> callbacks = Collections.synchronizedList(new ArrayList<>(count));
+        CountDownLatch latch = new CountDownLatch(count);
+        
+        byte[] blocker = new byte[16*1024*1024];
+        writer.write(socket, blocker, exRef::setValue);
+        
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for(int i=0; i<count; i++){
+            byte[] data = Ints.toByteArray(i);
+            expected.write(data);
+            
+            int idx = i;
+            writer.write(socket, data, ()->{
+                callbacks.add(idx);
+                latch.countDown();
+            }, exRef::setValue);
+        }
+        assertTrue(callbacks.isEmpty());
+        
+        serverAccept = server.accept();
+        acceptIn = serverAccept.getInputStream();
+        new DataInputStream(acceptIn).readFully(new byte[blocker.length]);
+        assertBs(expected.toByteArray(), acceptIn);
+        
+        latch.await();
+        if(exRef.getValue()!=null) throw exRef.getValue();
+        for(int i=0; i<count; i++) assertEquals(i, callbacks.get(i).intValue());
+    }
+    
+    @Test(timeout=60000)
+    public void backpressure() throws Exception {
+        MutableObject<Exception> exRef = new MutableObject<>();
+        AtomicInteger pauses = new AtomicInteger();
+        CountDownLatch resumed = new CountDownLatch(1);
+        writer.backpressure(socket, pauses::incrementAndGet, resumed::countDown);
+        
+        byte[] chunk = new byte[64*1024];
+        int total = 0;
+        while(pauses.get()==0){
+            writer.write(socket, chunk, exRef::setValue);
+            total += chunk.length;
+            assertTrue(total<=64*1024*1024);
+        }
+        assertEquals(1, resumed.getCount());
+        
+        serverAccept = server.accept();
+        new DataInputStream(serverAccept.getInputStream()).readFully(new byte[total]);
+        
+        resumed.await();
+        assertEquals(1, pauses.get());
+        if(exRef.getValue()!=null) throw exRef.getValue();
+    }
+    /**
+     * gathering写入的数据调用返回后即被改写（如归还缓冲池），需要排队的部分应已复制
+     */
+    @Test(timeout=60000)
+    public void write_gather() throws Exception {
+        MutableObject<Exception> exRef = new MutableObject<>();
+        
+        byte[] header1 = rand(), body1 = rand();
+        ByteBuffer[] datas1 = {ByteBuffer.wrap(header1.clone()), ByteBuffer.allocateDirect(body1.length).put(body1)};
+        datas1[1].flip();
+        writer.writeGather(socket, datas1, exRef::setValue);
+        assertFalse(datas1[0].hasRemaining()); assertFalse(datas1[1].hasRemaining());
+        
+        byte[] blocker = new byte[16*1024*1024];
+        writer.write(socket, blocker, exRef::setValue);
+        
+        byte[] header2 = rand(), body2 = rand();
+        ByteBuffer[] datas2 = {ByteBuffer.wrap(header2.clone()), ByteBuffer.allocateDirect(body2.length).put(body2)};
+        datas2[1].flip();
+        writer.writeGather(socket, datas2, exRef::setValue);
+        datas2[0].clear(); datas2[0].put(new byte[header2.length]);
+        datas2[1].clear(); datas2[1].put(new byte[body2.length]);
+        
+        serverAccept = server.accept();
+        acceptIn = serverAccept.getInputStream();
+        assertBs(header1, acceptIn); assertBs(body1, acceptIn);
+        new DataInputStream(acceptIn).readFully(new byte[blocker.length]);
+        assertBs(header2, acceptIn); assertBs(body2, acceptIn);
+        if(exRef.getValue()!=null) throw exRef.getValue();
+    }
+    @Test(timeout=60000)
+    public void write_urgent() throws Exception {
+        MutableObject<Exception> exRef = new MutableObject<>();
+        
+        byte[] blocker = new byte[16*1024*1024];
+        writer.write(socket, blocker, exRef::setValue);
+        byte[] data = rand();
+        writer.write(socket, data, exRef::setValue);
+        byte[] urgent1 = rand(), urgent2 = rand();
+        writer.writeUrgent(socket, ByteBuffer.wrap(urgent1), exRef::setValue);
+        writer.writeUrgent(socket, ByteBuffer.wrap(urgent2), exRef::setValue);
+        
+        serverAccept = server.accept();
+        acceptIn = serverAccept.getInputStream();
+        new DataInputStream(acceptIn).readFully(new byte[blocker.length]);
+        assertBs(urgent1, acceptIn);
+        assertBs(urgent2, acceptIn);
+        assertBs(data, acceptIn);
+        if(exRef.getValue()!=null) throw exRef.getValue();
+    }
+    /**
+     * 队首写完回调时，其后的数据可能已被同一次gathering write写出一部分，优先写要排在这些数据之后
+     */
+    @Test(timeout=60000)
+    public void write_urgent_in_callback() throws Exception {
+        MutableObject<Exception> exRef = new MutableObject<>();
+        socket.socket().setSendBufferSize(64*1024);
+        
+        byte[] blocker = new byte[4*1024*1024];
+        byte[] small = rand();
+        byte[] big = new byte[1024*1024];
+        ThreadLocalRandom.current().nextBytes(big);
+        byte[] urgent = rand();
+        writer.write(socket, ByteBuffer.wrap(blocker), ()->{
+            writer.writeUrgent(socket, ByteBuffer.wrap(urgent), exRef::setValue);
+        }, exRef::setValue);
+        writer.write(socket, small, exRef::setValue);
+        writer.write(socket, big, exRef::setValue);
+        
+        serverAccept = server.accept();
+        acceptIn = serverAccept.getInputStream();
+        DataInputStream in = new DataInputStream(acceptIn);
+        in.readFully(new byte[blocker.length]);
+        assertBs(small, acceptIn);
+        byte[] bigRead = new byte[big.length];
+        in.readFully(bigRead);
+        assertArrayEquals(big, bigRead);
+        assertBs(urgent, acceptIn);
+        if(exRef.getValue()!=null) throw exRef.getValue();
+    }
+    @Test(timeout=60000)
+    public void close_after_flush() throws Exception {
+        MutableObject<Exception> exRef = new MutableObject<>();
+        CountDownLatch closed = new CountDownLatch(1);
+        
+        byte[] blocker = new byte[16*1024*1024];
+        writer.write(socket, blocker, exRef::setValue);
+        byte[] data = rand();
+        writer.write(socket, data, exRef::setValue);
+        writer.closeAfterFlush(socket, closed::countDown);
+        assertTrue(socket.isOpen());
+        
+        serverAccept = server.accept();
+        acceptIn = serverAccept.getInputStream();
+        new DataInputStream(acceptIn).readFully(new byte[blocker.length]);
+        assertBs(data, acceptIn);
+        assertEquals(-1, acceptIn.read());
+        
+        closed.await();
+        assertFalse(socket.isOpen());
+        if(exRef.getValue()!=null) throw exRef.getValue();
+    }
 }
\ No newline at end of file
@@ -0,0 +1,98 @@
+package com.lvt4j.socketproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.junit.Test;
+
+import com.lvt4j.socketproxy.Config.SocketProfile;
+
+/**
+ *
+ * @author LV on 2026年10月18日
+ */
+public class ConfigTest extends BaseTest {
+    
+    /**
+     * 端口配置中未配置的项取全局配置
+     */
+    @Test
+    public void socket_profile_merge() {
+        SocketProfile base = new SocketProfile();
+        base.noDelay = true;
+        base.rcvBuf = 1024;
+        SocketProfile override = new SocketProfile();
+        override.rcvBuf = 4096;
+        override.linger = 0;
+        
+        SocketProfile merged = SocketProfile.merge(override, base);
+        assertEquals(Integer.valueOf(4096), merged.rcvBuf);
+        assertEquals(Boolean.TRUE, merged.noDelay);
+        assertEquals(Integer.valueOf(0), merged.linger);
+        assertNull(merged.keepAlive);
+        
+        assertSame(base, SocketProfile.merge(null, base));
+        assertSame(override, SocketProfile.merge(override, null));
+    }
+    
+    @Test
+    public void socket_profile_apply() throws Exception {
+        SocketProfile profile = new SocketProfile();
+        profile.noDelay = true;
+        profile.keepAlive = true;
+        profile.keepAliveIdle = 30;
+        profile.keepAliveInterval = 5;
+        profile.keepAliveCount = 3;
+        profile.quickAck = true;
+        profile.sndBuf = 64*1024;
+        profile.linger = 0;
+        
+        try(ServerSocketChannel server = ServerSocketChannel.open();
+                SocketChannel channel = SocketChannel.open()){
+            server.bind(new InetSocketAddress("127.0.0.1", 0));
+            profile.apply(channel);
+            channel.connect(server.getLocalAddress());
+            
+            assertTrue(channel.getOption(StandardSocketOptions.TCP_NODELAY));
+            assertTrue(channel.getOption(StandardSocketOptions.SO_KEEPALIVE));
+            assertTrue(channel.getOption(StandardSocketOptions.SO_LINGER)<0);
+            assertTrue(channel.getOption(StandardSocketOptions.SO_SNDBUF)>0);
+            
+            SocketProfile.abort(profile, channel);
+            assertFalse(channel.isOpen());
+        }
+        
+        SocketProfile.apply(null, null);
+        SocketProfile.abort(null, null);
+    }
+    
+    @Test
+    public void socket_profile_listen() throws Exception {
+        SocketProfile profile = new SocketProfile();
+        profile.rcvBuf = 128*1024;
+        
+        try(ServerSocketChannel server = ProxyApp.server(InetAddress.getByName("127.0.0.1"), 0, 0, false, profile);
+                SocketChannel client = SocketChannel.open(server.getLocalAddress())){
+            int listenRcvBuf = server.getOption(StandardSocketOptions.SO_RCVBUF);
+            assertTrue(listenRcvBuf>=profile.rcvBuf);
+            
+            SocketChannel accepted = null;
+            while((accepted = server.accept())==null) Thread.sleep(1);
+            try(SocketChannel channel = accepted){
+                assertEquals(client.getLocalAddress(), channel.getRemoteAddress());
+                profile.apply(channel);
+                assertEquals(Integer.valueOf(listenRcvBuf), channel.getOption(StandardSocketOptions.SO_RCVBUF));
+            }
+        }
+    }
+
+}
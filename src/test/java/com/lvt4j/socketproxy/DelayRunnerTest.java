@@ -1,14 +1,22 @@
 package com.lvt4j.socketproxy;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Ignore;
 import org.junit.Test;
 
 /**
@@ -59,4 +67,85 @@ public class DelayRunnerTest extends BaseTest {
         assertEquals(1, (int)msgs.get(1));
     }
     
+    @Test
+    public void cancel() throws Exception {
+        AtomicInteger ran = new AtomicInteger();
+        Delayed delayed = runner.run(200, ran::incrementAndGet, e->ex=e);
+        assertTrue(runner.cancel(delayed));
+        assertFalse(runner.cancel(delayed));
+        
+        Delayed done = runner.run(50, ran::incrementAndGet, e->ex=e);
+        Thread.sleep(400);
+        assertFalse(runner.cancel(done));
+        
+        if(ex!=null) throw ex;
+        assertEquals(1, ran.get());
+    }
+    
+    /**
+     * 跨越多层的任务都按时执行，不早于到期时间
+     */
+    @Test(timeout=10000)
+    public void levels() throws Exception {
+        int num = 2000;
+        CountDownLatch latch = new CountDownLatch(num);
+        AtomicLong minLate = new AtomicLong(Long.MAX_VALUE);
+        AtomicLong maxLate = new AtomicLong();
+        for(int i=0; i<num; i++){
+            long delay = ThreadLocalRandom.current().nextLong(1500);
+            long deadline = System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(delay);
+            runner.run(delay, ()->{
+                long late = System.nanoTime()-deadline;
+                minLate.accumulateAndGet(late, Math::min);
+                maxLate.accumulateAndGet(late, Math::max);
+                latch.countDown();
+            }, e->ex=e);
+        }
+        latch.await();
+        
+        if(ex!=null) throw ex;
+        assertTrue(minLate.get()>=0);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(maxLate.get())<50);
+    }
+    
+    /**
+     * 大量待执行任务下的提交、取消速率，及到期执行的吞吐，需手动运行
+     */
+    @Ignore("benchmark")
+    @Test(timeout=300000)
+    public void benchmark() throws Exception {
+        int pending = 2000000;
+        Delayed[] delayeds = new Delayed[pending];
+        long begin = System.nanoTime();
+        for(int i=0; i<pending; i++){
+            long delay = ThreadLocalRandom.current().nextLong(TimeUnit.MINUTES.toMillis(1), TimeUnit.HOURS.toMillis(1));
+            delayeds[i] = runner.run(delay, ()->{}, e->ex=e);
+        }
+        long cost = System.nanoTime()-begin;
+        System.out.printf("schedule: %.0f ops/s with %d pending%n", pending/(cost/1e9), pending);
+        
+        begin = System.nanoTime();
+        for(Delayed delayed : delayeds) assertTrue(runner.cancel(delayed));
+        cost = System.nanoTime()-begin;
+        System.out.printf("cancel: %.0f ops/s%n", pending/(cost/1e9));
+        
+        int fire = 1000000;
+        CountDownLatch latch = new CountDownLatch(fire);
+        AtomicLong maxLate = new AtomicLong();
+        begin = System.nanoTime();
+        for(int i=0; i<fire; i++){
+            long delay = ThreadLocalRandom.current().nextLong(1000);
+            long deadline = System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(delay);
+            runner.run(delay, ()->{
+                maxLate.accumulateAndGet(System.nanoTime()-deadline, Math::max);
+                latch.countDown();
+            }, e->ex=e);
+        }
+        latch.await();
+        cost = System.nanoTime()-begin;
+        System.out.printf("fire: %d timers in %.0f ms, max late %.1f ms%n", fire, cost/1e6, maxLate.get()/1e6);
+        
+        if(ex!=null) throw ex;
+    }
+    
 }
@@ -0,0 +1,113 @@
+package com.lvt4j.socketproxy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.commons.lang3.mutable.MutableObject;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.lvt4j.socketproxy.EventLoopGroup.EventLoop;
+
+import lombok.SneakyThrows;
+
+/**
+ *
+ * @author LV on 2026年10月18日
+ */
+public class EventLoopGroupTest extends BaseTest {
+    
+    private EventLoopGroup loops;
+    
+    @Before
+    public void before() throws Exception {
+        loops = new EventLoopGroup();
+        loops.init("loop", 3);
+    }
+    
+    @After
+    public void after() throws Exception {
+        if(loops!=null) loops.destory();
+    }
+    
+    @Test(timeout=10000)
+    public void next() throws Exception {
+        assertEquals(3, loops.size());
+        
+        Set<EventLoop> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
+        EventLoop first = loops.next();
+        distinct.add(first);
+        distinct.add(loops.next());
+        distinct.add(loops.next());
+        assertEquals(3, distinct.size());
+        
+        assertSame(first, loops.next());
+    }
+    
+    @Test(timeout=10000)
+    public void dispatch() throws Exception {
+        MutableObject<EventLoop> loopRef = new MutableObject<>();
+        CompletableFuture<Thread> thread = new CompletableFuture<>();
+        loops.dispatch((loop, channel)->{
+            loopRef.setValue(loop);
+            thread.complete(Thread.currentThread());
+        }, thread::completeExceptionally).accept(null);
+        
+        Thread dispatched = thread.get();
+        assertSame(loopRef.getValue().selector, dispatched);
+    }
+    
+    /**
+     * 同一channel上的读、写handler共用loop的selector上的一个key，互不影响
+     */
+    @Test(timeout=10000)
+    public void read_write_same_channel() throws Exception {
+        EventLoop loop = loops.next();
+        int port = availablePort();
+        try(ServerSocket server = new ServerSocket(port);
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+                Socket peer = server.accept()){
+            channel.configureBlocking(false);
+            byte[] big = new byte[4*1024*1024];
+            ThreadLocalRandom.current().nextBytes(big);
+            byte[] reply = rand();
+            
+            CompletableFuture<byte[]> readed = new CompletableFuture<>();
+            CompletableFuture<Void> written = new CompletableFuture<>();
+            loop.reader.readUntilLength(channel, reply.length, readed::complete, readed::completeExceptionally);
+            loop.writer.write(channel, ByteBuffer.wrap(big), ()->written.complete(null), written::completeExceptionally);
+            
+            Thread replier = new Thread("replier"){@SneakyThrows public void run() {
+                DataInputStream in = new DataInputStream(peer.getInputStream());
+                byte[] received = new byte[big.length];
+                in.readFully(received);
+                assertArrayEquals(big, received);
+                OutputStream out = peer.getOutputStream();
+                out.write(reply);
+                out.flush();
+            }};
+            replier.start();
+            
+            written.get();
+            assertArrayEquals(reply, readed.get());
+            replier.join();
+        }
+    }
+
+}
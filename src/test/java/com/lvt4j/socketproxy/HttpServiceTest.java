@@ -14,6 +14,7 @@ import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.collections4.CollectionUtils;
+import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.reflect.FieldUtils;
 import org.junit.After;
 import org.junit.Before;
@@ -30,11 +31,8 @@ public class HttpServiceTest extends BaseTest {
     private HttpService service;
     
     private Config config;
-    private ChannelReader reader;
-    private ChannelWriter writer;
     private ChannelAcceptor acceptor;
-    private ChannelConnector connector;
-    private ProtocolService protocolService;
+    private EventLoopGroup loops;
     
     private Socket socket;
     private InputStream in;
@@ -59,14 +57,8 @@ public class HttpServiceTest extends BaseTest {
         acceptor = new ChannelAcceptor(); invoke(acceptor, "init");
         FieldUtils.writeField(service, "acceptor", acceptor, true);
         
-        reader = new ChannelReader(); invoke(reader, "init");
-        writer = new ChannelWriter(); invoke(writer, "init");
-        connector = new ChannelConnector(); invoke(connector, "init");
-        protocolService = new ProtocolService();
-        FieldUtils.writeField(protocolService, "reader", reader, true);
-        FieldUtils.writeField(protocolService, "writer", writer, true);
-        FieldUtils.writeField(protocolService, "connector", connector, true);
-        FieldUtils.writeField(service, "protocolService", protocolService, true);
+        loops = new EventLoopGroup(); loops.init("loop", 2);
+        FieldUtils.writeField(service, "loops", loops, true);
         
         invoke(service, "init");
         
@@ -80,10 +72,8 @@ public class HttpServiceTest extends BaseTest {
     
     @After
     public void after() throws IOException {
-        if(reader!=null) invoke(reader, "destory");
-        if(writer!=null) invoke(writer, "destory");
         if(acceptor!=null) invoke(acceptor, "destory");
-        if(connector!=null) invoke(connector, "destory");
+        if(loops!=null) loops.destory();
         if(service!=null) invoke(service, "destory");
         
         if(socket!=null) socket.close();
@@ -209,6 +199,23 @@ public class HttpServiceTest extends BaseTest {
         
         trans();
     }
+    @Test(timeout=60000)
+    public void https_early_data() throws Exception {
+        byte[] data = rand();
+        byte[] handshake = ("CONNECT 127.0.0.1:"+serverPort+" ver\r\nheader1\r\n\r\n").getBytes();
+        out.write(ArrayUtils.addAll(handshake, data));
+        
+        assertBs(EstablishedHeaders, in);
+        
+        serverAccept = server.accept();
+        acceptIn = serverAccept.getInputStream();
+        assertBs(data, acceptIn);
+        
+        acceptOut = serverAccept.getOutputStream();
+        data = rand();
+        acceptOut.write(data);
+        assertBs(data, in);
+    }
     
     private void trans() throws IOException {
         byte[] data = rand();
@@ -0,0 +1,85 @@
+package com.lvt4j.socketproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+/**
+ *
+ * @author LV on 2026年10月18日
+ */
+public class IdleTrackerTest extends BaseTest {
+    
+    /**
+     * 只清理闲置超时的，期间有过touch的保留
+     */
+    @Test(timeout=10000)
+    public void sweep() throws Exception {
+        Set<String> idles = ConcurrentHashMap.newKeySet();
+        IdleTracker tracker = new IdleTracker(()->200);
+        tracker.track(()->idles.add("idle"));
+        IdleTracker.Entry active = tracker.track(()->idles.add("active"));
+        
+        for(int i=0; i<5; i++){
+            Thread.sleep(60);
+            active.touch();
+        }
+        tracker.sweep();
+        assertEquals(1, idles.size());
+        assertTrue(idles.contains("idle"));
+        assertEquals(1, tracker.size());
+        
+        Thread.sleep(300);
+        tracker.sweep();
+        assertEquals(2, idles.size());
+        assertEquals(0, tracker.size());
+    }
+    
+    /**
+     * 每秒sweep时，闲置超时在1秒内被清理
+     */
+    @Test(timeout=10000)
+    public void in_time() throws Exception {
+        AtomicLong idleTime = new AtomicLong();
+        IdleTracker tracker = new IdleTracker(()->1500);
+        long begin = System.currentTimeMillis();
+        tracker.track(()->idleTime.set(System.currentTimeMillis()));
+        while(idleTime.get()==0){
+            Thread.sleep(IdleTracker.SlotMillis);
+            tracker.sweep();
+        }
+        long cost = idleTime.get()-begin;
+        assertTrue(cost>=1500-IdleTracker.ClockResolution);
+        assertTrue(cost<1500+IdleTracker.SlotMillis+100);
+    }
+    
+    /**
+     * maxIdle变小后按新值清理，取消跟踪的不回调
+     */
+    @Test(timeout=10000)
+    public void max_idle_change() throws Exception {
+        AtomicLong maxIdle = new AtomicLong(60000);
+        Set<Integer> idles = ConcurrentHashMap.newKeySet();
+        IdleTracker tracker = new IdleTracker(maxIdle::get);
+        for(int i=0; i<10; i++){
+            int id = i;
+            IdleTracker.Entry entry = tracker.track(()->idles.add(id));
+            if(i%2==0) tracker.untrack(entry);
+        }
+        tracker.sweep();
+        assertEquals(0, idles.size());
+        
+        Thread.sleep(50);
+        maxIdle.set(1);
+        tracker.sweep();
+        assertEquals(5, idles.size());
+        idles.forEach(id->assertEquals(1, id%2));
+        assertEquals(0, tracker.size());
+    }
+
+}
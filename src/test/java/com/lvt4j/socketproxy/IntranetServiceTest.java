@@ -5,11 +5,15 @@ import static org.apache.commons.lang3.ArrayUtils.EMPTY_BYTE_ARRAY;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.lang.Thread.UncaughtExceptionHandler;
+import java.lang.reflect.Method;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
@@ -42,6 +46,7 @@ public class IntranetServiceTest extends BaseTest {
     
     private ChannelAcceptor acceptor;
     private ChannelConnector connector;
+    private EventLoopGroup loops;
     private DelayRunner delayRunner;
     
     private Socket client1;
@@ -82,11 +87,12 @@ public class IntranetServiceTest extends BaseTest {
         
         acceptor = new ChannelAcceptor(); invoke(acceptor, "init");
         connector = new ChannelConnector(); invoke(connector, "init");
+        loops = new EventLoopGroup(); loops.init("loop", 2);
         delayRunner = new DelayRunner(); delayRunner.init();
         
         FieldUtils.writeField(service, "config", config, true);
         FieldUtils.writeField(service, "acceptor", acceptor, true);
-        FieldUtils.writeField(service, "connector", connector, true);
+        FieldUtils.writeField(service, "loops", loops, true);
         FieldUtils.writeField(service, "delayRunner", delayRunner, true);
         
         invoke(service, "init");
@@ -99,6 +105,7 @@ public class IntranetServiceTest extends BaseTest {
     public void after() throws IOException {
         if(acceptor!=null) invoke(acceptor, "destory");
         if(connector!=null) invoke(connector, "destory");
+        if(loops!=null) loops.destory();
         if(delayRunner!=null) invoke(delayRunner, "destory");
         if(service!=null) invoke(service, "destory");
         
@@ -210,6 +217,90 @@ public class IntranetServiceTest extends BaseTest {
         assertCnns(0, 0);
     }
     
+    /**
+     * relay与entry建立多条隧道，entry按负载分配连接；断开一条隧道只关闭其上的连接，新的连接分配到其他隧道，断开的隧道由relay重建
+     */
+    @Test(timeout=60000)
+    @SuppressWarnings("unchecked")
+    public void striped() throws Throwable {
+        config.setIntranet(Arrays.asList(entryConfig));
+        invoke(service, "reloadConfig");
+        //before里连上的client不计入本测试：没有relay时entry都会关闭它们
+        awaitClosed(client1);
+        awaitClosed(client2);
+        relayConfig.tunnels = 3;
+        config.setIntranet(Arrays.asList(entryConfig, relayConfig));
+        invoke(service, "reloadConfig");
+        
+        Map<?, ?> servers = (Map<?, ?>) FieldUtils.readField(service, "servers", true);
+        Object entry = servers.get(entryConfig);
+        Map<IntranetTunnel, Long> relayers = (Map<IntranetTunnel, Long>) FieldUtils.readField(entry, "relayers", true);
+        awaitJoined(entry, relayers, 3);
+        
+        List<Socket> clients = new ArrayList<>();
+        List<Socket> targets = new ArrayList<>();
+        try{
+            for(int i=0; i<6; i++){
+                Socket client = new Socket("127.0.0.1", entryConfig.port);
+                client.setSoTimeout(5000);
+                clients.add(client);
+                client.getOutputStream().write(i);
+                Socket target = targetServer.accept();
+                targets.add(target);
+                assertEquals(i, target.getInputStream().read());
+            }
+            IntranetTunnel lost;
+            synchronized(entry){
+                relayers.keySet().forEach(t->assertEquals(2, t.streamCount()));
+                lost = relayers.keySet().iterator().next();
+            }
+            
+            Method onException = entry.getClass().getMethod("onException", IntranetTunnel.class, Exception.class);
+            onException.setAccessible(true);
+            onException.invoke(entry, lost, new IOException("lost"));
+            
+            assertCnns(4, 4);
+            int alives = 0;
+            for(int i=0; i<clients.size(); i++){
+                try{
+                    targets.get(i).getOutputStream().write(i);
+                    if(clients.get(i).getInputStream().read()==i) alives++;
+                }catch(IOException ig){}
+            }
+            assertEquals(4, alives);
+            
+            awaitJoined(entry, relayers, 3);
+            Socket client = new Socket("127.0.0.1", entryConfig.port);
+            clients.add(client);
+            client.getOutputStream().write(6);
+            targets.add(targetServer.accept());
+            assertEquals(6, targets.get(6).getInputStream().read());
+            synchronized(entry){
+                assertFalse(relayers.containsKey(lost));
+                assertEquals(5, relayers.keySet().stream().mapToInt(IntranetTunnel::streamCount).sum());
+                relayers.keySet().forEach(t->assertTrue(t.streamCount()<=2));
+            }
+        }finally{
+            clients.forEach(ProxyApp::close);
+            targets.forEach(ProxyApp::close);
+        }
+    }
+    
+    private void awaitClosed(Socket client) throws Exception {
+        client.setSoTimeout(5000);
+        try{
+            assertEquals(-1, client.getInputStream().read());
+        }catch(SocketException ig){}
+    }
+    private void awaitJoined(Object entry, Map<IntranetTunnel, Long> relayers, int count) throws Exception {
+        while(true){
+            synchronized(entry){
+                if(relayers.size()==count && !relayers.containsValue(null)) return;
+            }
+            Thread.sleep(10);
+        }
+    }
+    
     private void assertCnns(int entryCnns, int relayCnns) throws Exception {
         Thread.sleep(500); 
         
@@ -50,6 +50,7 @@ public class IntranetService_EntryTest extends BaseTest {
     
     private ChannelAcceptor acceptor;
     private ChannelConnector connector;
+    private EventLoopGroup loops;
     
     private int port;
     private int relay;
@@ -93,10 +94,11 @@ public class IntranetService_EntryTest extends BaseTest {
         
         acceptor = new ChannelAcceptor(); invoke(acceptor, "init");
         connector = new ChannelConnector(); invoke(connector, "init");
+        loops = new EventLoopGroup(); loops.init("loop", 2);
         
         FieldUtils.writeField(service, "config", config, true);
         FieldUtils.writeField(service, "acceptor", acceptor, true);
-        FieldUtils.writeField(service, "connector", connector, true);
+        FieldUtils.writeField(service, "loops", loops, true);
         
         invoke(service, "init");
         
@@ -108,6 +110,8 @@ public class IntranetService_EntryTest extends BaseTest {
     }
     private void initRelayer1() throws Exception {
         relay1 = new Socket("127.0.0.1", relay);
+        //entry先发起版本协商，这里模拟的是不认识Hello、一直使用版本1的relay
+        assertEquals(MsgType.Hello.Type, relay1.getInputStream().read());
         relaySendData1 = relayReceiveData1 = EMPTY_BYTE_ARRAY;
         relaySendData2 = relayReceiveData2 = EMPTY_BYTE_ARRAY;
         relayReceiveLengths1 = new LinkedList<>();
@@ -115,6 +119,8 @@ public class IntranetService_EntryTest extends BaseTest {
     }
     private void initRelayer2() throws Exception {
         relay2 = new Socket("127.0.0.1", relay);
+        //entry先发起版本协商，这里模拟的是不认识Hello、一直使用版本1的relay
+        assertEquals(MsgType.Hello.Type, relay2.getInputStream().read());
         relaySendData1 = relayReceiveData1 = EMPTY_BYTE_ARRAY;
         relaySendData2 = relayReceiveData2 = EMPTY_BYTE_ARRAY;
         relayReceiveLengths1 = new LinkedList<>();
@@ -125,6 +131,7 @@ public class IntranetService_EntryTest extends BaseTest {
     public void after() throws IOException {
         if(acceptor!=null) invoke(acceptor, "destory");
         if(connector!=null) invoke(connector, "destory");
+        if(loops!=null) loops.destory();
         if(service!=null) invoke(service, "destory");
         
         ProxyApp.close(client1);
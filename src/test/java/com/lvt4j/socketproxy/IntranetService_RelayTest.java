@@ -46,6 +46,7 @@ public class IntranetService_RelayTest extends BaseTest {
     
     private ChannelAcceptor acceptor;
     private ChannelConnector connector;
+    private EventLoopGroup loops;
     private DelayRunner delayRunner;
     
     private HostAndPort entryConfig;
@@ -98,11 +99,12 @@ public class IntranetService_RelayTest extends BaseTest {
         
         acceptor = new ChannelAcceptor(); invoke(acceptor, "init");
         connector = new ChannelConnector(); invoke(connector, "init");
+        loops = new EventLoopGroup(); loops.init("loop", 2);
         delayRunner = new DelayRunner(); delayRunner.init();
         
         FieldUtils.writeField(service, "config", config, true);
         FieldUtils.writeField(service, "acceptor", acceptor, true);
-        FieldUtils.writeField(service, "connector", connector, true);
+        FieldUtils.writeField(service, "loops", loops, true);
         FieldUtils.writeField(service, "delayRunner", delayRunner, true);
         
         invoke(service, "init");
@@ -114,6 +116,7 @@ public class IntranetService_RelayTest extends BaseTest {
     public void after() throws Throwable {
         if(acceptor!=null) invoke(acceptor, "destory");
         if(connector!=null) invoke(connector, "destory");
+        if(loops!=null) loops.destory();
         if(delayRunner!=null) invoke(delayRunner, "destory");
         if(service!=null) invoke(service, "destory");
         
@@ -0,0 +1,346 @@
+package com.lvt4j.socketproxy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.lvt4j.socketproxy.IntranetService.MsgType;
+
+/**
+ *
+ * @author LV on 2026年10月18日
+ */
+public class IntranetTunnelTest extends BaseTest {
+    
+    private ChannelReader reader;
+    private ChannelWriter writer;
+    
+    private ServerSocketChannel server;
+    private SocketChannel entryChannel;
+    private SocketChannel relayChannel;
+    
+    private Recorder entryRecorder = new Recorder();
+    private Recorder relayRecorder = new Recorder();
+    
+    @Before
+    public void before() throws Exception {
+        reader = new ChannelReader(); reader.init("reader");
+        writer = new ChannelWriter(); writer.init("writer");
+        
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+        relayChannel = SocketChannel.open(server.getLocalAddress());
+        entryChannel = server.accept();
+        relayChannel.configureBlocking(false);
+        entryChannel.configureBlocking(false);
+    }
+    
+    @After
+    public void after() {
+        ProxyApp.close(entryChannel);
+        ProxyApp.close(relayChannel);
+        ProxyApp.close(server);
+        if(reader!=null) reader.destory();
+        if(writer!=null) writer.destory();
+    }
+    
+    /**
+     * 双方协商到版本2，大于读缓冲的帧、大量小帧都能正确传输
+     */
+    @Test(timeout=10000)
+    public void negotiate_trans() throws Exception {
+        IntranetTunnel entry = new IntranetTunnel("entry", entryChannel, reader, writer, entryRecorder);
+        IntranetTunnel relay = new IntranetTunnel("relay", relayChannel, reader, writer, relayRecorder);
+        entry.start(true);
+        relay.start(false);
+        while(entry.getReadVersion()!=MsgType.Version2 || relay.getReadVersion()!=MsgType.Version2) Thread.sleep(10);
+        assertEquals(MsgType.Version2, entry.writeVersion());
+        assertEquals(MsgType.Version2, relay.writeVersion());
+        
+        byte[] big = new byte[200*1024];
+        for(int i=0; i<big.length; i++) big[i] = (byte) i;
+        entry.stream(1).writeTransmit(ByteBuffer.wrap(big));
+        ByteArrayOutputStream smalls = new ByteArrayOutputStream();
+        for(int i=0; i<1000; i++){
+            byte[] small = rand();
+            smalls.write(small);
+            relay.stream(300+i%2*200).writeTransmit(ByteBuffer.wrap(small));
+        }
+        entry.stream(1).writeClose();
+        entry.writeHeartbeat();
+        
+        while(!relayRecorder.closes.contains(1)) Thread.sleep(10);
+        assertArrayEquals(big, relayRecorder.data(1));
+        while(entryRecorder.data(300).length+entryRecorder.data(500).length<smalls.size()) Thread.sleep(10);
+        assertEquals(smalls.size(), entryRecorder.data(300).length+entryRecorder.data(500).length);
+        assertNoException();
+    }
+    
+    /**
+     * 版本2的帧逐字节到达时也能正确解码
+     */
+    @Test(timeout=10000)
+    public void decode_split() throws Exception {
+        relayChannel.configureBlocking(true);
+        IntranetTunnel entry = new IntranetTunnel("entry", entryChannel, reader, writer, entryRecorder);
+        entry.start(true);
+        InputStream in = relayChannel.socket().getInputStream();
+        OutputStream out = relayChannel.socket().getOutputStream();
+        assertEquals(MsgType.Hello.Type, in.read());
+        out.write(MsgType.Switch.Packet);
+        assertEquals(MsgType.Switch.Type, in.read());
+        
+        byte[] data = rand();
+        ByteBuffer header = MsgType.header(MsgType.Transmit.Type, 200, data.length);
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        frames.write(header.array(), 0, header.limit());
+        frames.write(data);
+        frames.write(MsgType.HeartBeat.Type); frames.write(0); frames.write(0);
+        ByteBuffer close = MsgType.header(MsgType.ConnectClose.Type, 200, 0);
+        frames.write(close.array(), 0, close.limit());
+        for(byte b : frames.toByteArray()){
+            out.write(b);
+            out.flush();
+        }
+        
+        while(!entryRecorder.closes.contains(200)) Thread.sleep(10);
+        assertArrayEquals(data, entryRecorder.data(200));
+        assertNoException();
+    }
+    
+    /**
+     * 接收方不归还窗口时，发送方最多发出一个窗口加一块后暂停读数据来源，归还后继续
+     */
+    @Test(timeout=30000)
+    public void window() throws Exception {
+        IntranetTunnel entry = new IntranetTunnel("entry", entryChannel, reader, writer, entryRecorder);
+        IntranetTunnel relay = new IntranetTunnel("relay", relayChannel, reader, writer, relayRecorder);
+        entry.start(true);
+        relay.start(false);
+        while(entry.getReadVersion()!=MsgType.Version2 || relay.getReadVersion()!=MsgType.Version2) Thread.sleep(10);
+        
+        SocketChannel src = SocketChannel.open(server.getLocalAddress());
+        SocketChannel srcRead = server.accept();
+        srcRead.configureBlocking(false);
+        try{
+            IntranetTunnel.Stream window = relay.stream(1);
+            window.source(reader.readStream(srcRead, MsgType.V2ChunkSize, data->{
+                int length = data.remaining();
+                window.writeTransmit(data);
+                window.onSend(length);
+            }, e->{}));
+            
+            byte[] data = new byte[4*MsgType.InitWindow];
+            for(int i=0; i<data.length; i++) data[i] = (byte) i;
+            Thread srcWriter = new Thread(()->{
+                try{
+                    src.write(ByteBuffer.wrap(data));
+                }catch(Exception ig){}
+            });
+            srcWriter.start();
+            
+            while(entryRecorder.data(1).length<MsgType.InitWindow) Thread.sleep(10);
+            Thread.sleep(500);
+            int received = entryRecorder.data(1).length;
+            assertTrue(received<=MsgType.InitWindow+MsgType.V2ChunkSize);
+            assertTrue(window.paused());
+            
+            entryRecorder.grants.put(1, entry.stream(1));
+            entry.stream(1).onConsumed(received);
+            srcWriter.join();
+            while(entryRecorder.data(1).length<data.length) Thread.sleep(10);
+            assertArrayEquals(data, entryRecorder.data(1));
+        }finally{
+            ProxyApp.close(src);
+            ProxyApp.close(srcRead);
+        }
+        assertNoException();
+    }
+    
+    /**
+     * 大流量连接排队时，后来的小流量连接不必等它发完
+     */
+    @Test(timeout=30000)
+    public void interleave() throws Exception {
+        IntranetTunnel entry = rawPeer();
+        
+        byte[] chunk = new byte[MsgType.V2ChunkSize];
+        int bulk = 8*1024*1024;
+        for(int i=0; i<bulk/chunk.length; i++) entry.stream(1).writeTransmit(ByteBuffer.wrap(chunk));
+        entry.stream(3).writeTransmit(ByteBuffer.wrap(new byte[100]));
+        
+        Map<Integer, Integer> received = new HashMap<>();
+        DataInputStream in = new DataInputStream(relayChannel.socket().getInputStream());
+        while(!received.containsKey(3)) readFrame(in, received);
+        assertTrue(received.getOrDefault(1, 0)<bulk/2);
+        assertNoException();
+    }
+    
+    /**
+     * 两个连接都有数据排队时，按权重分享带宽
+     */
+    @Test(timeout=30000)
+    public void weight() throws Exception {
+        IntranetTunnel entry = rawPeer();
+        entry.stream(3).weight(3);
+        
+        byte[] chunk = new byte[MsgType.V2ChunkSize];
+        int bulk = 4*1024*1024;
+        for(int i=0; i<bulk/chunk.length; i++){
+            entry.stream(1).writeTransmit(ByteBuffer.wrap(chunk));
+            entry.stream(3).writeTransmit(ByteBuffer.wrap(chunk));
+        }
+        
+        Map<Integer, Integer> received = new HashMap<>();
+        DataInputStream in = new DataInputStream(relayChannel.socket().getInputStream());
+        while(received.getOrDefault(3, 0)<bulk) readFrame(in, received);
+        //权重3的发完时，权重1的约发了三分之一
+        assertTrue(received.getOrDefault(1, 0)<bulk/2);
+        assertNoException();
+    }
+    
+    /**
+     * 心跳不在大流量连接之后排队，断开连接在该连接的数据之后
+     */
+    @Test(timeout=30000)
+    public void control_lane() throws Exception {
+        IntranetTunnel entry = rawPeer();
+        
+        byte[] chunk = new byte[MsgType.V2ChunkSize];
+        int bulk = 8*1024*1024;
+        for(int i=0; i<bulk/chunk.length; i++) entry.stream(1).writeTransmit(ByteBuffer.wrap(chunk));
+        entry.stream(1).writeClose();
+        entry.writeHeartbeat();
+        
+        Map<Integer, Integer> received = new HashMap<>();
+        DataInputStream in = new DataInputStream(relayChannel.socket().getInputStream());
+        int heartbeatAt = -1;
+        while(true){
+            byte type = in.readByte();
+            int id = readVarint(in);
+            byte[] payload = new byte[readVarint(in)];
+            in.readFully(payload);
+            if(type==MsgType.Transmit.Type) received.merge(id, payload.length, Integer::sum);
+            if(type==MsgType.HeartBeat.Type) heartbeatAt = received.getOrDefault(1, 0);
+            if(type==MsgType.ConnectClose.Type) break;
+        }
+        assertTrue(heartbeatAt>=0 && heartbeatAt<bulk/2);
+        assertEquals(bulk, received.get(1).intValue());
+        assertNoException();
+    }
+    
+    /**
+     * 版本2的心跳由对端回复，得到往返时延
+     */
+    @Test(timeout=10000)
+    public void heartbeat_rtt() throws Exception {
+        IntranetTunnel entry = new IntranetTunnel("entry", entryChannel, reader, writer, entryRecorder);
+        IntranetTunnel relay = new IntranetTunnel("relay", relayChannel, reader, writer, relayRecorder);
+        entry.start(true);
+        relay.start(false);
+        while(entry.getReadVersion()!=MsgType.Version2 || relay.getReadVersion()!=MsgType.Version2) Thread.sleep(10);
+        assertEquals(-1, entry.getRtt());
+        
+        entry.writeHeartbeat();
+        while(entry.getRtt()<0) Thread.sleep(10);
+        assertTrue(entry.getRtt()>0);
+        assertEquals(-1, relay.getRtt());
+        assertNoException();
+    }
+    
+    private void assertNoException() {
+        assertNull(entryRecorder.ex);
+        assertNull(relayRecorder.ex);
+    }
+    
+    /**
+     * entry与不读数据的原始socket协商到版本2，收发缓冲都调小，数据在entry的调度队列中积压
+     */
+    private IntranetTunnel rawPeer() throws Exception {
+        entryChannel.socket().setSendBufferSize(64*1024);
+        relayChannel.socket().setReceiveBufferSize(64*1024);
+        relayChannel.configureBlocking(true);
+        IntranetTunnel entry = new IntranetTunnel("entry", entryChannel, reader, writer, entryRecorder);
+        entry.start(true);
+        InputStream in = relayChannel.socket().getInputStream();
+        assertEquals(MsgType.Hello.Type, in.read());
+        relayChannel.socket().getOutputStream().write(MsgType.Switch.Packet);
+        assertEquals(MsgType.Switch.Type, in.read());
+        return entry;
+    }
+    /**
+     * 读一个版本2的帧，累计各连接收到的转发字节数
+     */
+    private static void readFrame(DataInputStream in, Map<Integer, Integer> received) throws Exception {
+        byte type = in.readByte();
+        int id = readVarint(in);
+        byte[] payload = new byte[readVarint(in)];
+        in.readFully(payload);
+        if(type==MsgType.Transmit.Type) received.merge(id, payload.length, Integer::sum);
+    }
+    private static int readVarint(DataInputStream in) throws Exception {
+        int value = 0;
+        for(int shift=0; ; shift+=7){
+            byte b = in.readByte();
+            value |= (b&0x7f)<<shift;
+            if((b&0x80)==0) return value;
+        }
+    }
+    
+    private static class Recorder implements IntranetTunnel.Handler {
+        private final Map<Integer, ByteArrayOutputStream> datas = new ConcurrentHashMap<>();
+        private final Set<Integer> closes = ConcurrentHashMap.newKeySet();
+        /** 收到即视为已消费并归还窗口的连接 */
+        private final Map<Integer, IntranetTunnel.Stream> grants = new ConcurrentHashMap<>();
+        /** tunnel上发生的第一个异常 */
+        private volatile Exception ex;
+        
+        private byte[] data(int id) {
+            ByteArrayOutputStream data = datas.get(id);
+            if(data==null) return new byte[0];
+            synchronized(data){
+                return data.toByteArray();
+            }
+        }
+        @Override
+        public void onTransmit(IntranetTunnel tunnel, int id, byte[] data) {
+            ByteArrayOutputStream out = datas.computeIfAbsent(id, k->new ByteArrayOutputStream());
+            synchronized(out){
+                out.write(data, 0, data.length);
+            }
+            IntranetTunnel.Stream grant = grants.get(id);
+            if(grant!=null) grant.onConsumed(data.length);
+        }
+        @Override
+        public void onConnectClose(IntranetTunnel tunnel, int id) {
+            closes.add(id);
+        }
+        @Override
+        public void onSwitch(IntranetTunnel tunnel) {}
+        @Override
+        public void onJoin(IntranetTunnel tunnel, long group) {}
+        @Override
+        public void onException(IntranetTunnel tunnel, Exception e) {
+            if(ex==null) ex = e;
+        }
+    }
+
+}
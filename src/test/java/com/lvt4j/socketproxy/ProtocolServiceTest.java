@@ -0,0 +1,87 @@
+package com.lvt4j.socketproxy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+
+import org.apache.commons.lang3.reflect.FieldUtils;
+import org.junit.Test;
+
+import com.lvt4j.socketproxy.ChannelReader.Decoder;
+import com.lvt4j.socketproxy.ProtocolService.Http;
+import com.lvt4j.socketproxy.ProtocolService.ReplyException;
+import com.lvt4j.socketproxy.ProtocolService.Socks5;
+import com.lvt4j.socketproxy.ProtocolService.Socks5.AddrMsg;
+
+/**
+ *
+ * @author LV on 2026年10月18日
+ */
+public class ProtocolServiceTest extends BaseTest {
+    
+    @Test
+    public void socks5_request_decoder() throws Exception {
+        byte[] request = {5,1,0,3, 9,'l','o','c','a','l','h','o','s','t', 0x1f,(byte)0x90, 7,7};
+        ByteBuffer data = ByteBuffer.wrap(request);
+        AddrMsg msg = decodeByteByByte(new Socks5.RequestDecoder(), data);
+        
+        assertEquals(3, msg.atyp);
+        assertArrayEquals("localhost".getBytes(), msg.addr);
+        assertEquals(8080, msg.port);
+        assertEquals(2, data.remaining()); //多余数据不被消费
+        
+        msg = new Socks5.RequestDecoder().decode(ByteBuffer.wrap(new byte[]{5,1,0,1, 127,0,0,1, 0,80}));
+        assertEquals("127.0.0.1", msg.host().getHostAddress());
+        assertEquals(80, msg.port);
+        
+        try{
+            decodeByteByByte(new Socks5.RequestDecoder(), ByteBuffer.wrap(new byte[]{5,2}));
+            fail();
+        }catch(ReplyException e){
+            assertArrayEquals(Socks5.Fail, (byte[]) FieldUtils.readField(e, "reply", true));
+        }
+    }
+    
+    @Test
+    public void socks5_methods_decoder() throws Exception {
+        byte[] methods = decodeByteByByte(new Socks5.MethodsDecoder(), ByteBuffer.wrap(new byte[]{5,3,2,1,0}));
+        assertArrayEquals(new byte[]{2,1,0}, methods);
+        
+        try{
+            decodeByteByByte(new Socks5.MethodsDecoder(), ByteBuffer.wrap(new byte[]{5,0}));
+            fail();
+        }catch(ReplyException e){
+            assertArrayEquals(Socks5.NoAcc, (byte[]) FieldUtils.readField(e, "reply", true));
+        }
+    }
+    
+    @Test
+    public void http_head_decoder() throws Exception {
+        ByteBuffer data = ByteBuffer.wrap("HTTP/1.0 200 OK\r\nh1: v1\nh2: v2\r\n\r\nbody".getBytes());
+        byte[] statusLine = decodeByteByByte(new Http.HeadDecoder(), data);
+        assertArrayEquals("HTTP/1.0 200 OK\r\n".getBytes(), statusLine);
+        assertEquals(4, data.remaining());
+        
+        data = ByteBuffer.wrap("h1: v1\n\nbody".getBytes());
+        assertArrayEquals(new byte[0], new Http.HeadDecoder(true).decode(data));
+        assertEquals(4, data.remaining());
+        
+        assertNull(new Http.HeadDecoder().decode(ByteBuffer.wrap("CONNECT host:80 HTTP/1.1\r\n".getBytes())));
+    }
+    
+    /**
+     * 每次只给decoder一个字节
+     */
+    private <T> T decodeByteByByte(Decoder<T> decoder, ByteBuffer data) throws Exception {
+        while(data.hasRemaining()){
+            ByteBuffer one = ByteBuffer.wrap(new byte[]{data.get()});
+            T decoded = decoder.decode(one);
+            if(decoded!=null) return decoded;
+        }
+        return null;
+    }
+
+}
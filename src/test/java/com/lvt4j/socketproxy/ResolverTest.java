@@ -0,0 +1,118 @@
+package com.lvt4j.socketproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author LV on 2026年10月18日
+ */
+public class ResolverTest extends BaseTest {
+    
+    private Resolver resolver;
+    
+    @Before
+    public void before() {
+        resolver = new Resolver(); resolver.init("resolver", 2, 60000, 60000);
+    }
+    
+    @After
+    public void after() {
+        resolver.destory();
+    }
+    
+    /**
+     * ip字面量直接在调用者线程上回调
+     */
+    @Test
+    public void literal() throws Exception {
+        AtomicReference<Thread> thread = new AtomicReference<>();
+        AtomicReference<InetAddress[]> result = new AtomicReference<>();
+        resolver.resolve("127.0.0.1", addresses->{
+            thread.set(Thread.currentThread());
+            result.set(addresses);
+        }, e->{});
+        assertSame(Thread.currentThread(), thread.get());
+        assertEquals("127.0.0.1", result.get()[0].getHostAddress());
+        
+        resolver.resolve("::1", result::set, e->{});
+        assertTrue(result.get()[0].isLoopbackAddress());
+    }
+    
+    /**
+     * 首次在解析线程上回调，之后命中缓存在调用者线程上回调
+     */
+    @Test(timeout=10000)
+    public void cache() throws Exception {
+        AtomicReference<Thread> thread = new AtomicReference<>();
+        CountDownLatch latch = new CountDownLatch(1);
+        resolver.resolve("localhost", addresses->{
+            thread.set(Thread.currentThread());
+            latch.countDown();
+        }, e->latch.countDown());
+        latch.await();
+        assertNotNull(thread.get());
+        assertTrue(thread.get()!=Thread.currentThread());
+        
+        resolver.resolve("localhost", addresses->thread.set(Thread.currentThread()), e->{});
+        assertSame(Thread.currentThread(), thread.get());
+    }
+    
+    /**
+     * 解析失败的结果也被缓存
+     */
+    @Test(timeout=30000)
+    public void negative() throws Exception {
+        AtomicReference<Exception> ex = new AtomicReference<>();
+        CountDownLatch latch = new CountDownLatch(1);
+        resolver.resolve("no-such-host.invalid", addresses->latch.countDown(), e->{
+            ex.set(e);
+            latch.countDown();
+        });
+        latch.await();
+        assertTrue(ex.get() instanceof UnknownHostException);
+        
+        AtomicReference<Thread> thread = new AtomicReference<>();
+        resolver.resolve("no-such-host.invalid", addresses->{}, e->thread.set(Thread.currentThread()));
+        assertSame(Thread.currentThread(), thread.get());
+    }
+    
+    /**
+     * 同一域名同时的多个请求只解析一次，全部得到回调
+     */
+    @Test(timeout=10000)
+    public void coalesce() throws Exception {
+        int num = 100;
+        Set<InetAddress[]> results = ConcurrentHashMap.newKeySet();
+        AtomicReference<Exception> ex = new AtomicReference<>();
+        CountDownLatch latch = new CountDownLatch(num);
+        for(int i=0; i<num; i++){
+            resolver.resolve("localhost", addresses->{
+                results.add(addresses);
+                latch.countDown();
+            }, e->{
+                ex.set(e);
+                latch.countDown();
+            });
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertNull(ex.get());
+        assertEquals(1, results.size());
+    }
+
+}
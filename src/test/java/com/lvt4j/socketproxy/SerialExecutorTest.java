@@ -0,0 +1,112 @@
+package com.lvt4j.socketproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.lvt4j.socketproxy.ProxyApp.IOExceptionRunnable;
+
+/**
+ *
+ * @author LV on 2026年10月18日
+ */
+public class SerialExecutorTest extends BaseTest {
+    
+    private ExecutorService pool;
+    
+    @Before
+    public void before() {
+        pool = Executors.newFixedThreadPool(4);
+    }
+    
+    @After
+    public void after() {
+        pool.shutdownNow();
+    }
+    
+    /**
+     * 多个线程提交、多个worker执行，同一执行器上的任务仍按提交顺序串行执行
+     */
+    @Test(timeout=60000)
+    public void serial() throws Exception {
+        int connectionNum = 16;
+        int taskNum = 10000;
+        
+        List<Thread> producers = new ArrayList<>();
+        CountDownLatch latch = new CountDownLatch(connectionNum*taskNum);
+        int[] lasts = new int[connectionNum];
+        boolean[] running = new boolean[connectionNum];
+        for(int c=0; c<connectionNum; c++){
+            int connection = c;
+            SerialExecutor worker = new SerialExecutor(pool);
+            producers.add(new Thread(()->{
+                for(int i=1; i<=taskNum; i++){
+                    int seq = i;
+                    worker.execute(()->{
+                        assertTrue(!running[connection]);
+                        running[connection] = true;
+                        assertEquals(lasts[connection]+1, seq);
+                        lasts[connection] = seq;
+                        running[connection] = false;
+                        latch.countDown();
+                    });
+                }
+            }));
+        }
+        producers.forEach(Thread::start);
+        for(Thread t : producers) t.join();
+        
+        latch.await();
+        for(int last : lasts) assertEquals(taskNum, last);
+    }
+    
+    @Test(timeout=10000)
+    public void offload() throws Exception {
+        SerialExecutor worker = new SerialExecutor(pool);
+        
+        AtomicReference<Thread> callbackThread = new AtomicReference<>();
+        AtomicReference<Exception> ex = new AtomicReference<>();
+        CountDownLatch latch = new CountDownLatch(1);
+        IOExceptionRunnable callback = worker.offload(()->{
+            callbackThread.set(Thread.currentThread());
+            throw new IOException("callback err");
+        }, e->{
+            ex.set(e);
+            latch.countDown();
+        });
+        callback.run();
+        
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(callbackThread.get()!=Thread.currentThread());
+        assertEquals("callback err", ex.get().getMessage());
+    }
+    
+    /**
+     * 未启用worker时回调原样返回，在调用者线程上执行
+     */
+    @Test
+    public void inline() throws Exception {
+        SerialExecutor worker = new SerialExecutor(null);
+        
+        IOExceptionRunnable callback = ()->{};
+        assertSame(callback, worker.offload(callback, e->{}));
+        
+        AtomicReference<Thread> thread = new AtomicReference<>();
+        worker.execute(()->thread.set(Thread.currentThread()));
+        assertSame(Thread.currentThread(), thread.get());
+    }
+
+}
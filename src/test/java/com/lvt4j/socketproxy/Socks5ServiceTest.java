@@ -32,10 +32,7 @@ public class Socks5ServiceTest extends BaseTest {
     
     private Config config;
     
-    private ChannelReader reader;
-    private ChannelWriter writer;
-    private ChannelConnector connector;
-    private ProtocolService protocolService;
+    private EventLoopGroup loops;
     
     private ChannelAcceptor acceptor;
     
@@ -61,15 +58,8 @@ public class Socks5ServiceTest extends BaseTest {
         acceptor = new ChannelAcceptor(); invoke(acceptor, "init");
         FieldUtils.writeField(service, "acceptor", acceptor, true);
         
-        reader = new ChannelReader(); invoke(reader, "init");
-        writer = new ChannelWriter(); invoke(writer, "init");
-        connector = new ChannelConnector(); invoke(connector, "init");
-        
-        protocolService = new ProtocolService();
-        FieldUtils.writeField(protocolService, "reader", reader, true);
-        FieldUtils.writeField(protocolService, "writer", writer, true);
-        FieldUtils.writeField(protocolService, "connector", connector, true);
-        FieldUtils.writeField(service, "protocolService", protocolService, true);
+        loops = new EventLoopGroup(); loops.init("loop", 2);
+        FieldUtils.writeField(service, "loops", loops, true);
 
         invoke(service, "init");
         
@@ -82,10 +72,8 @@ public class Socks5ServiceTest extends BaseTest {
     
     @After
     public void after() throws IOException {
-        if(reader!=null) invoke(reader, "destory");
-        if(writer!=null) invoke(writer, "destory");
         if(acceptor!=null) invoke(acceptor, "destory");
-        if(connector!=null) invoke(connector, "destory");
+        if(loops!=null) loops.destory();
         if(service!=null) invoke(service, "destory");
         
         if(socket!=null) socket.close();
@@ -0,0 +1,98 @@
+package com.lvt4j.socketproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author LV on 2026年10月18日
+ */
+public class TaskQueueTest extends BaseTest {
+    
+    private Selector selector;
+    private TaskQueue queue;
+    private Thread loop;
+    
+    @Before
+    public void before() throws Exception {
+        selector = Selector.open();
+        queue = new TaskQueue(selector);
+        loop = new Thread(()->{
+            try{
+                while(selector.isOpen()){
+                    queue.select(0);
+                    queue.run();
+                }
+            }catch(Exception ig){}
+        }, "loop");
+        loop.start();
+    }
+    
+    @After
+    public void after() throws Exception {
+        selector.close();
+        loop.join(1000);
+    }
+    
+    @Test(timeout=10000)
+    public void wakeup_when_selecting() throws Exception {
+        Thread.sleep(100);
+        CountDownLatch latch = new CountDownLatch(1);
+        queue.add(latch::countDown);
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+    }
+    
+    @Test(timeout=60000)
+    public void multi_producer() throws Exception {
+        int producerNum = 8;
+        int taskNum = 10000;
+        
+        int[] lasts = new int[producerNum];
+        CountDownLatch latch = new CountDownLatch(producerNum*taskNum);
+        List<Thread> producers = new ArrayList<>();
+        for(int p=0; p<producerNum; p++){
+            int producer = p;
+            producers.add(new Thread(()->{
+                for(int i=1; i<=taskNum; i++){
+                    int seq = i;
+                    queue.add(()->{
+                        assertEquals(lasts[producer]+1, seq);
+                        lasts[producer] = seq;
+                        latch.countDown();
+                    });
+                }
+            }));
+        }
+        producers.forEach(Thread::start);
+        for(Thread t : producers) t.join();
+        
+        latch.await();
+        for(int last : lasts) assertEquals(taskNum, last);
+    }
+    
+    /**
+     * 任务中提交的任务在下一轮执行，不会阻塞在select上
+     */
+    @Test(timeout=10000)
+    public void add_in_loop() throws Exception {
+        CountDownLatch latch = new CountDownLatch(2000);
+        Runnable[] task = new Runnable[1];
+        task[0] = ()->{
+            latch.countDown();
+            if(latch.getCount()>0) queue.add(task[0]);
+        };
+        queue.add(task[0]);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+}
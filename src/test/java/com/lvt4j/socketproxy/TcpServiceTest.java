@@ -34,6 +34,7 @@ public class TcpServiceTest extends BaseTest {
     private TcpConfig tcpConfig;
     private ChannelAcceptor acceptor;
     private ChannelConnector connector;
+    private EventLoopGroup loops;
     
     private Socket socket;
     private InputStream in;
@@ -57,10 +58,11 @@ public class TcpServiceTest extends BaseTest {
         
         acceptor = new ChannelAcceptor(); invoke(acceptor, "init");
         connector = new ChannelConnector(); invoke(connector, "init");
+        loops = new EventLoopGroup(); loops.init("loop", 2);
         
         FieldUtils.writeField(service, "config", config, true);
         FieldUtils.writeField(service, "acceptor", acceptor, true);
-        FieldUtils.writeField(service, "connector", connector, true);
+        FieldUtils.writeField(service, "loops", loops, true);
         
         invoke(service, "init");
         
@@ -75,6 +77,7 @@ public class TcpServiceTest extends BaseTest {
     public void after() throws IOException {
         if(acceptor!=null) invoke(acceptor, "destory");
         if(connector!=null) invoke(connector, "destory");
+        if(loops!=null) loops.destory();
         if(service!=null) invoke(service, "destory");
         
         if(socket!=null) socket.close();
@@ -0,0 +1,170 @@
+package com.lvt4j.socketproxy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.net.HostAndPort;
+
+/**
+ *
+ * @author LV on 2026年10月18日
+ */
+public class WarmPoolTest extends BaseTest {
+    
+    private ChannelConnector connector;
+    private ChannelReader reader;
+    private DelayRunner delayRunner;
+    private ServerSocket server;
+    private HostAndPort target;
+    private WarmPool pool;
+    
+    private AtomicInteger connects = new AtomicInteger();
+    private List<SocketChannel> polleds = new ArrayList<>();
+    
+    @Before
+    public void before() throws Exception {
+        connector = new ChannelConnector(); connector.init("connector");
+        reader = new ChannelReader(); reader.init("reader");
+        delayRunner = new DelayRunner(); delayRunner.init("delayRunner");
+        int port = availablePort();
+        server = new ServerSocket(port);
+        target = HostAndPort.fromParts("127.0.0.1", port);
+    }
+    
+    @After
+    public void after() {
+        if(pool!=null) pool.destory();
+        connector.destory();
+        reader.destory();
+        delayRunner.destory();
+        polleds.forEach(ProxyApp::close);
+        ProxyApp.close(server);
+    }
+    
+    /**
+     * 预先建立size个连接，取走后立即补充
+     */
+    @Test(timeout=10000)
+    public void poll() throws Exception {
+        pool = pool(2, 60000);
+        pool.maintain();
+        waitIdle(2);
+        assertEquals(2, connects.get());
+        
+        SocketChannel channel = pool.poll();
+        assertNotNull(channel);
+        polleds.add(channel);
+        assertTrue(channel.isConnected());
+        
+        waitIdle(2);
+        assertEquals(3, connects.get());
+    }
+    
+    /**
+     * 闲置过久的连接不再使用
+     */
+    @Test(timeout=10000)
+    public void max_idle() throws Exception {
+        pool = pool(1, 200);
+        pool.maintain();
+        waitIdle(1);
+        Thread.sleep(300);
+        
+        pool.maintain();
+        waitIdle(1);
+        assertEquals(2, connects.get());
+        
+        Thread.sleep(300);
+        SocketChannel channel = pool.poll();
+        assertNull(channel);
+    }
+    
+    /**
+     * 闲置时被对端关闭的连接不再使用，并补充
+     */
+    @Test(timeout=10000)
+    public void peer_close() throws Exception {
+        pool = pool(1, 60000);
+        pool.maintain();
+        waitIdle(1);
+        server.accept().close();
+        Thread.sleep(100);
+        
+        assertNull(pool.poll());
+        waitIdle(1);
+        assertEquals(2, connects.get());
+        
+        SocketChannel channel = pool.poll();
+        assertNotNull(channel);
+        polleds.add(channel);
+    }
+    
+    /**
+     * 闲置时对端发来的数据留在reader的预读中
+     */
+    @Test(timeout=10000)
+    public void peer_data() throws Exception {
+        pool = pool(1, 60000);
+        pool.maintain();
+        waitIdle(1);
+        Socket peer = server.accept();
+        peer.getOutputStream().write(new byte[]{1, 2});
+        Thread.sleep(100);
+        pool.maintain();
+        peer.getOutputStream().write(new byte[]{3});
+        Thread.sleep(100);
+        
+        SocketChannel channel = pool.poll();
+        assertNotNull(channel);
+        polleds.add(channel);
+        ByteBuffer readAhead = reader.takeReadAhead(channel);
+        byte[] data = new byte[readAhead.remaining()];
+        readAhead.get(data);
+        assertArrayEquals(new byte[]{1, 2, 3}, data);
+        peer.close();
+    }
+    
+    /**
+     * 连接失败后{@link WarmPool#RetryGap}后自动重试
+     */
+    @Test(timeout=10000)
+    public void retry() throws Exception {
+        server.close();
+        pool = pool(1, 60000);
+        pool.maintain();
+        Thread.sleep(200);
+        assertEquals(1, connects.get());
+        assertNull(pool.poll());
+        assertEquals(1, connects.get());
+        
+        Thread.sleep(WarmPool.RetryGap+200);
+        assertEquals(2, connects.get());
+    }
+    
+    private WarmPool pool(int size, long maxIdle) {
+        return new WarmPool("pool", size, maxIdle, reader, delayRunner, (onConnect, exHandler)->{
+            connects.incrementAndGet();
+            connector.connect(target, null, 1000, onConnect, exHandler);
+        });
+    }
+    
+    private void waitIdle(int size) throws Exception {
+        while(pool.idleSize()<size) Thread.sleep(10);
+    }
+
+}